@@ -30,13 +30,17 @@ import android.widget.FrameLayout;
 import android.widget.ProgressBar;
 
 import java.io.IOException;
+import java.util.Map;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.PagePrefetcher;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
 import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.http.EndpointHeaders;
 import io.github.tjg1.nori.adapter.ImagePagerAdapter;
 import io.github.tjg1.nori.fragment.ImageFragment;
+import io.github.tjg1.nori.util.ImageFilterSettings;
 import io.github.tjg1.nori.view.ImageViewerPager;
 
 /** Activity used to display full-screen images. */
@@ -73,7 +77,9 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   /** Search API client used to retrieve more search results for infinite scrolling. */
   private SearchClient searchClient;
   /** Callback waiting to receive another page of {@link io.github.tjg1.library.norilib.Image}s for the current {@link io.github.tjg1.library.norilib.SearchResult}. */
-  private SearchClient.SearchCallback searchCallback;
+  private InfiniteScrollingSearchCallback searchCallback;
+  /** Keeps the next pages of the search result in flight, for infinite scrolling. */
+  private PagePrefetcher pagePrefetcher;
   /** {@link android.widget.ProgressBar} used to indicated Search API activity. */
   private ProgressBar searchProgressBar;
   /** {@link DownloadManager} used to download images. */
@@ -117,6 +123,13 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
       searchClient = ((SearchClient.Settings) intent.getParcelableExtra(SearchActivity.BUNDLE_ID_SEARCH_CLIENT_SETTINGS))
           .createSearchClient(this);
     }
+    // Fetch more images with the same exclusions as the pages shown in the search grid.
+    if (searchClient != null) {
+      searchClient.setQueryFilter(ImageFilterSettings.getImageFilter(this));
+      if (searchResult != null && searchResult.getSearchState() != null) {
+        searchClient.resumeSearch(searchResult.getSearchState());
+      }
+    }
 
     // Keep screen on, if enabled by the user.
     if (sharedPreferences.getBoolean(getString(R.string.preference_image_viewer_keepScreenOn_key), true)) {
@@ -167,7 +180,20 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     appBarLayout.setExpanded(false, true);
 
     // Set activity title.
-    setTitle(searchResult.getImages()[imageIndex]);
+    setTitle(searchResult.get(imageIndex));
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+
+    // Cancel pending API callbacks.
+    if (searchCallback != null) {
+      searchCallback.cancel();
+    }
+    if (pagePrefetcher != null) {
+      pagePrefetcher.cancel();
+    }
   }
 
   @Override
@@ -220,11 +246,11 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   @Override
   public void onPageSelected(int position) {
     // Set activity title to image metadata.
-    setTitle(searchResult.getImages()[position]);
+    setTitle(searchResult.get(position));
 
     // Fetch more images for infinite scrolling, if available and there isn't another search request being waited on.
     if (searchCallback == null && searchResult.hasNextPage()
-        && (searchResult.getImages().length - position) <= INFINITE_SCROLLING_THRESHOLD) {
+        && (searchResult.size() - position) <= INFINITE_SCROLLING_THRESHOLD) {
       fetchMoreImages();
     }
   }
@@ -274,7 +300,7 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
    */
   private void setTitle(Image image) {
     String title = String.format(getString(R.string.activity_image_viewer_titleFormat),
-        image.id, Tag.stringFromArray(image.tags));
+        image.id, Tag.stringFromArray(image.getTags()));
 
     // Truncate string with ellipsis at the end, if needed.
     if (title.length() > getResources().getInteger(R.integer.activity_image_viewer_titleMaxLength)) {
@@ -326,6 +352,10 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
         .setTitle(fileName)
         .setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, fileName)
         .setVisibleInDownloadsUi(true);
+    // Apply API credentials. These are not part of the file URL.
+    for (Map.Entry<String, String> header : EndpointHeaders.getHeaders(fileUrl).entrySet()) {
+      request.addRequestHeader(header.getKey(), header.getValue());
+    }
     // Trigger media scanner to add image to system gallery app on Honeycomb and above.
     request.allowScanningByMediaScanner();
     // Show download UI notification on Honeycomb and above.
@@ -348,12 +378,18 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     searchProgressBar.setVisibility(View.VISIBLE);
     // Request search result from API client.
     searchCallback = new InfiniteScrollingSearchCallback(searchResult);
-    searchClient.search(Tag.stringFromArray(searchResult.getQuery()), searchResult.getCurrentOffset() + 1, searchCallback);
+    if (pagePrefetcher == null) {
+      pagePrefetcher = new PagePrefetcher(searchClient, Tag.stringFromArray(searchResult.getQuery()),
+          searchResult.getCurrentOffset() + 1);
+    }
+    pagePrefetcher.fetchMore(searchCallback);
   }
 
   /** Callback waiting to receive more images for infinite scrolling. */
   private class InfiniteScrollingSearchCallback implements SearchClient.SearchCallback {
     private final SearchResult searchResult;
+    /** Callback cancelled and should no longer respond to received SearchResult. */
+    private boolean isCancelled = false;
 
     /**
      * Create a new InfiniteScrollingSearchCallback.
@@ -366,6 +402,9 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
 
     @Override
     public void onFailure(IOException e) {
+      if (isCancelled) {
+        return;
+      }
       // Clear the active search callback and hide the progress bar in the action bar.
       searchCallback = null;
       searchProgressBar.setVisibility(View.GONE);
@@ -379,38 +418,38 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
 
     @Override
     public void onSuccess(SearchResult searchResult) {
+      if (isCancelled) {
+        return;
+      }
       // Clear the active search callback and hide the progress bar in the action bar.
       searchCallback = null;
       searchProgressBar.setVisibility(View.GONE);
 
-      if (searchResult.getImages().length == 0) {
+      // Keep the page layout up to date for the pages fetched later.
+      if (searchResult.getSearchState() != null) {
+        this.searchResult.setSearchState(searchResult.getSearchState());
+      }
+      if (searchResult.size() == 0) {
         // Just mark the current SearchResult as having reached the last page.
         this.searchResult.onLastPage();
       } else {
-        // Filter the received SearchResult.
-        if (sharedPreferences.contains(getString(R.string.preference_safeSearch_key))) {
-          // Get filter from shared preferences.
-          searchResult.filter(Image.SafeSearchRating.arrayFromStrings(
-              sharedPreferences.getString(getString(R.string.preference_safeSearch_key), "").split(" ")));
-        } else {
-          // Get default filter from resources.
-          searchResult.filter(Image.SafeSearchRating.arrayFromStrings(getResources().getStringArray(R.array.preference_safeSearch_defaultValues)));
-        }
-        if (sharedPreferences.contains(getString(R.string.preference_tagFilter_key))) {
-          // Get tag filters from shared preferences and filter the result.
-          searchResult.filter(Tag.arrayFromString(sharedPreferences.getString(getString(R.string.preference_tagFilter_key), "")));
-        }
-
-        // Update the search result and notify the ViewPager adapter that the data set has changed.
-        this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset());
+        // Filter the received images and add them to the search result.
+        final int addedCount = this.searchResult.addImages(searchResult.getImages(),
+            searchResult.getCurrentOffset(), ImageFilterSettings.getImageFilter(ImageViewerActivity.this));
+        // Notify the ViewPager adapter that the data set has changed.
         imagePagerAdapter.notifyDataSetChanged();
 
         // If all images in the current search result were filtered out, try fetching the next page.
-        if (searchResult.getImages().length == 0) {
+        if (addedCount == 0) {
           fetchMoreImages();
         }
       }
     }
+
+    /** Cancels this callback. */
+    public void cancel() {
+      this.isCancelled = true;
+    }
   }
   //endregion
 }
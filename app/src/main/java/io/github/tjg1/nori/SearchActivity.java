@@ -15,6 +15,7 @@ import android.database.Cursor;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.design.widget.Snackbar;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v4.widget.CursorAdapter;
@@ -23,7 +24,6 @@ import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.SearchView;
 import android.support.v7.widget.Toolbar;
-import android.text.TextUtils;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -33,19 +33,28 @@ import android.widget.Spinner;
 import android.widget.TextView;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
+import io.github.tjg1.library.norilib.PagePrefetcher;
 import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.SearchState;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.HydrusApi;
 import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.http.CircuitBreaker;
 import io.github.tjg1.nori.adapter.ServiceDropdownAdapter;
 import io.github.tjg1.nori.database.SearchSuggestionDatabase;
+import io.github.tjg1.nori.database.SearchSuggestionProvider;
 import io.github.tjg1.nori.fragment.SearchResultGridFragment;
+import io.github.tjg1.nori.util.ImageFilterSettings;
 
 /** Searches for images and displays the results in a scrollable grid of thumbnails. */
 public class SearchActivity extends AppCompatActivity
     implements SearchResultGridFragment.OnSearchResultGridFragmentInteractionListener,
-    ServiceDropdownAdapter.Listener {
+    ServiceDropdownAdapter.Listener, CircuitBreaker.Listener {
 
   //region Bundle IDs
   /** Identifier used to send the active {@link io.github.tjg1.library.norilib.SearchResult} to {@link io.github.tjg1.nori.ImageViewerActivity}. */
@@ -62,6 +71,14 @@ public class SearchActivity extends AppCompatActivity
   private static final String BUNDLE_ID_SEARCH_VIEW_IS_FOCUSED = "io.github.tjg1.nori.SearchView.isFocused";
   //endregion
 
+  //region Constants
+  /**
+   * Maximum number of pages fetched in a row to fill the grid when most images are filtered out.
+   * Stops searches where the filter removes almost everything from downloading pages forever.
+   */
+  private static final int MAX_SHORT_PAGE_FETCHES = 5;
+  //endregion
+
   //region Intent extra IDs
   /** Identifier used for the query string to search when starting this activity with an {@link android.content.Intent} */
   public static final String INTENT_EXTRA_SEARCH_QUERY = "io.github.tjg1.nori.SearchQuery";
@@ -89,8 +106,24 @@ public class SearchActivity extends AppCompatActivity
   private SearchClient searchClient;
   /** Search callback currently awaiting a response from the Search API. */
   private SearchResultCallback searchCallback;
+  /** Keeps the next pages of the displayed search result in flight, for endless scrolling. */
+  private PagePrefetcher pagePrefetcher;
+  /** Filter pushed down into the search queries of the displayed search result. Null if the API doesn't support it. */
+  private ImageFilter queryFilter;
   /** Bundle used when restoring saved instance state (after screen rotation, app restored from background, etc.) */
   private Bundle savedInstanceState;
+  /** Hydrus client used to fetch tag suggestions, if a Hydrus API is selected. */
+  private HydrusApi tagCompletionClient;
+  /** Tag suggestion request currently awaiting a response from the Hydrus API. */
+  private HydrusApi.TagCompletionRequest tagCompletionRequest;
+  /** Tag prefix the search view suggestions were last refreshed for. */
+  private String tagCompletionPrefix;
+  /** Search result whose endless scrolling stopped on a network error. Resumed once the API responds again. */
+  private SearchResult stalledSearchResult;
+  /** Query whose first page failed to load on a network error. Searched for again once the API responds. */
+  private String stalledQuery;
+  /** Snackbar showing the last network error. */
+  private Snackbar errorSnackbar;
   //endregion
 
   //region Activity lifecycle
@@ -116,6 +149,8 @@ public class SearchActivity extends AppCompatActivity
         searchClientSettings = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
         if (searchClientSettings != null) {
           searchClient = searchClientSettings.createSearchClient(this);
+          // Fetch the next pages of the restored search result with the same exclusions as the first ones.
+          setQueryFilter();
         }
       }
     } else {
@@ -132,16 +167,43 @@ public class SearchActivity extends AppCompatActivity
 
     // Set up the dropdown API server picker.
     setUpActionBar();
+
+    // Resume endless scrolling once an API that was down comes back.
+    CircuitBreaker.getInstance().addListener(this);
+  }
+
+  @Override
+  protected void onResume() {
+    super.onResume();
+
+    // Apply changes made to the tag filter or SafeSearch settings, without fetching the images again.
+    final SearchResult searchResult = searchResultGridFragment.getSearchResult();
+    if (searchResult != null) {
+      final ImageFilter imageFilter = ImageFilterSettings.getImageFilter(this);
+      if (queryFilter != null && !imageFilter.includes(queryFilter)) {
+        // Images that are no longer filtered out were excluded from the search query by the API.
+        doSearch(Tag.stringFromArray(searchResult.getQuery()));
+      } else if (searchResult.getFilter() != imageFilter) {
+        searchResult.filter(imageFilter);
+        searchResultGridFragment.setSearchResult(searchResult);
+      }
+    }
   }
 
   @Override
   protected void onDestroy() {
     super.onDestroy();
 
+    CircuitBreaker.getInstance().removeListener(this);
+
     // Cancel pending API callbacks.
     if (searchCallback != null) {
       searchCallback.cancel();
     }
+    cancelPagePrefetcher();
+    if (tagCompletionRequest != null) {
+      tagCompletionRequest.cancel();
+    }
   }
 
   @Override
@@ -214,6 +276,8 @@ public class SearchActivity extends AppCompatActivity
     }
 
     searchClientSettings = settings;
+    tagCompletionClient = null;
+    tagCompletionPrefix = null;
 
     // If a SearchClient wasn't included in the Intent that started this activity, create one now and search for the default query.
     // Only do this if SearchSearch filter is enabled.
@@ -228,6 +292,40 @@ public class SearchActivity extends AppCompatActivity
   }
   //endregion
 
+  //region CircuitBreaker.Listener methods (resuming failed searches)
+  @Override
+  public void onHostAvailable(String host) {
+    runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        final SearchResult searchResult = stalledSearchResult;
+        final String query = stalledQuery;
+        stalledSearchResult = null;
+        stalledQuery = null;
+        // Ignore if a new search was started in the meantime.
+        if (isFinishing() || searchCallback != null) {
+          return;
+        }
+        if (query != null) {
+          dismissErrorSnackbar();
+          doSearch(query);
+        } else if (searchResult != null && searchResult == searchResultGridFragment.getSearchResult()) {
+          dismissErrorSnackbar();
+          fetchMoreImages(searchResult);
+        }
+      }
+    });
+  }
+
+  /** Hide the last network error, once the request that failed is sent again. */
+  private void dismissErrorSnackbar() {
+    if (errorSnackbar != null) {
+      errorSnackbar.dismiss();
+      errorSnackbar = null;
+    }
+  }
+  //endregion
+
   //region SearchResultGridFragment.OnSearchResultGridFragmentInteractionListener methods (ImageViewerActivity, infinite scrolling)
   @Override
   public void onImageSelected(Image image, int position) {
@@ -250,11 +348,51 @@ public class SearchActivity extends AppCompatActivity
     searchProgressBar.setVisibility(View.VISIBLE);
     // Request search result from API client.
     searchCallback = new SearchResultCallback(searchResult);
-    searchClient.search(Tag.stringFromArray(searchResult.getQuery()), searchResult.getCurrentOffset() + 1, searchCallback);
+    getPagePrefetcher(searchResult).fetchMore(searchCallback);
+  }
+
+  /**
+   * Fetch the next page right away if there aren't enough images to fill the grid, e.g. because
+   * most of them were removed by the tag filter. The grid can't be scrolled to request more images
+   * for endless scrolling until it is filled.
+   *
+   * @param searchResult     Search result shown in the grid.
+   * @param shortPageFetches Number of pages already fetched in a row to fill the grid.
+   */
+  private void fetchShortPage(SearchResult searchResult, int shortPageFetches) {
+    if (searchResult.hasNextPage() && shortPageFetches < MAX_SHORT_PAGE_FETCHES
+        && searchResult.size() < searchResultGridFragment.getMinimumImageCount()) {
+      searchProgressBar.setVisibility(View.VISIBLE);
+      searchCallback = new SearchResultCallback(searchResult, shortPageFetches + 1);
+      getPagePrefetcher(searchResult).fetchMore(searchCallback);
+    }
+  }
+
+  /**
+   * Get the prefetcher used to fetch more pages of the displayed search result.
+   *
+   * @param searchResult Search result displayed in the grid.
+   * @return Prefetcher, starting at the page after the last page of the search result.
+   */
+  private PagePrefetcher getPagePrefetcher(SearchResult searchResult) {
+    if (pagePrefetcher == null) {
+      pagePrefetcher = new PagePrefetcher(searchClient, Tag.stringFromArray(searchResult.getQuery()),
+          searchResult.getCurrentOffset() + 1);
+    }
+    return pagePrefetcher;
+  }
+
+  /** Stop prefetching pages of the displayed search result, e.g. when a new search is started. */
+  private void cancelPagePrefetcher() {
+    if (pagePrefetcher != null) {
+      pagePrefetcher.cancel();
+      pagePrefetcher = null;
+    }
   }
 
   @Override
-  public void onRestoreSearchGridState(@NonNull String savedQuery, int firstVisiblePageOffset) {
+  public void onRestoreSearchGridState(@NonNull String savedQuery, int firstVisiblePageOffset,
+                                      @Nullable SearchState savedSearchState) {
     // Ignore request if there is another API request pending.
     if (searchCallback != null) {
       return;
@@ -264,11 +402,82 @@ public class SearchActivity extends AppCompatActivity
     searchProgressBar.setVisibility(View.VISIBLE);
 
     // Request previous SearchResult from API client.
-    searchCallback = new SearchResultCallback();
+    cancelPagePrefetcher();
+    clearStalledSearch();
+    setQueryFilter();
+    // Fetch the page with the exclusions chosen for the first page, rather than choosing them again.
+    if (savedSearchState != null && savedQuery.equals(savedSearchState.getQuery())) {
+      searchClient.resumeSearch(savedSearchState);
+    }
+    searchCallback = new SearchResultCallback(savedQuery, false);
     searchClient.search(savedQuery, firstVisiblePageOffset, searchCallback);
   }
   //endregion
 
+  //region Tag suggestions
+  /**
+   * Get the client used to fetch tag suggestions for the selected API.
+   *
+   * @return Hydrus client. null if the selected API doesn't support tag suggestions.
+   */
+  private HydrusApi getTagCompletionClient() {
+    if (searchClientSettings == null || searchClientSettings.getApiType() != SearchClient.Settings.APIType.HYDRUS) {
+      return null;
+    }
+    if (tagCompletionClient == null) {
+      tagCompletionClient = (HydrusApi) searchClientSettings.createSearchClient(this);
+    }
+    return tagCompletionClient;
+  }
+
+  /**
+   * Fetch suggestions for the last tag of the search query and refresh the search view suggestions
+   * once they are available. The suggestion provider reads them from the client's cache.
+   *
+   * @param query Search query typed by the user.
+   */
+  private void requestTagSuggestions(String query) {
+    final HydrusApi client = getTagCompletionClient();
+    SearchSuggestionProvider.setTagSuggestionSource(client);
+
+    final String prefix = lastTag(query);
+    // The suggestions for this prefix are already shown.
+    if (client == null || prefix.isEmpty() || prefix.equals(tagCompletionPrefix)) {
+      return;
+    }
+
+    tagCompletionRequest = client.completeTags(prefix, new HydrusApi.TagCompletionCallback() {
+      @Override
+      public void onSuccess(String prefix, List<HydrusApi.TagSuggestion> suggestions) {
+        tagCompletionRequest = null;
+        // Re-run the suggestion query, unless the user kept typing in the meantime.
+        if (searchView != null && prefix.equals(lastTag(searchView.getQuery().toString()))) {
+          tagCompletionPrefix = prefix;
+          if (!suggestions.isEmpty()) {
+            searchView.setQuery(searchView.getQuery(), false);
+          }
+        }
+      }
+
+      @Override
+      public void onFailure(IOException e) {
+        // Fall back to the local suggestions.
+        tagCompletionRequest = null;
+      }
+    });
+  }
+
+  /**
+   * Get the last tag of a search query.
+   *
+   * @param query Search query.
+   * @return Last tag, normalised the same way as tag completion prefixes.
+   */
+  private static String lastTag(String query) {
+    return query.substring(query.lastIndexOf(' ') + 1).trim().toLowerCase(Locale.US);
+  }
+  //endregion
+
   //region UI Setup
   /**
    * Set up the action bar SearchView and its event handlers.
@@ -289,6 +498,22 @@ public class SearchActivity extends AppCompatActivity
     searchView.setFocusable(false);
     searchView.setQueryRefinementEnabled(true);
 
+    // Fetch tag suggestions from the API while the user is typing.
+    searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+      @Override
+      public boolean onQueryTextSubmit(String query) {
+        // Handled by the OnEditorActionListener below.
+        return false;
+      }
+
+      @Override
+      public boolean onQueryTextChange(String newText) {
+        requestTagSuggestions(newText);
+        // Return false to let the SearchView query the suggestion provider.
+        return false;
+      }
+    });
+
     // Set submit action and allow empty queries.
     SearchView.SearchAutoComplete searchTextView = (SearchView.SearchAutoComplete) searchView.findViewById(R.id.search_src_text);
     searchTextView.setOnEditorActionListener(new TextView.OnEditorActionListener() {
@@ -446,14 +671,35 @@ public class SearchActivity extends AppCompatActivity
    * @param query Query string (a space-separated list of tags).
    */
   private void doSearch(String query) {
+    // Stop prefetching pages of the previous search result, and ignore its pending response.
+    if (searchCallback != null) {
+      searchCallback.cancel();
+    }
+    cancelPagePrefetcher();
+    clearStalledSearch();
     // Show progress bar in ActionBar.
     if (searchProgressBar != null) {
       searchProgressBar.setVisibility(View.VISIBLE);
     }
+    // Exclude filtered images in the search query, where supported by the API. The filter is kept
+    // for the following pages, so they are consistent with the first one.
+    setQueryFilter();
     // Request a search result from the API client.
-    searchCallback = new SearchResultCallback();
+    searchCallback = new SearchResultCallback(query);
     searchClient.search(query, searchCallback);
   }
+
+  /** Stop waiting for the API to respond again to resume a search that failed on a network error. */
+  private void clearStalledSearch() {
+    stalledSearchResult = null;
+    stalledQuery = null;
+  }
+
+  /** Push the current tag filter and SafeSearch settings down into the search queries of the {@link #searchClient}. */
+  private void setQueryFilter() {
+    final ImageFilter imageFilter = ImageFilterSettings.getImageFilter(this);
+    queryFilter = searchClient.setQueryFilter(imageFilter) ? imageFilter : null;
+  }
   //endregion
 
   //region Default search query
@@ -470,35 +716,101 @@ public class SearchActivity extends AppCompatActivity
   //endregion
 
   //region Inner class: Search callback
-  /** Callback waiting for a SearchResult received on a background thread from the Search API. */
-  private class SearchResultCallback implements SearchClient.SearchCallback {
+  /**
+   * Callback waiting for a SearchResult received on a background thread from the Search API.
+   * New searches show each image in the grid as soon as it was parsed, where supported by the API.
+   */
+  private class SearchResultCallback implements SearchClient.StreamingSearchCallback {
 
     //region Instance methods
     /** Search result to extend when fetching more images for endless scrolling. */
     private final SearchResult searchResult;
+    /** Number of pages fetched in a row to fill the grid, including this one. */
+    private final int shortPageFetches;
+    /** Query of a new or restored search. null when extending an existing SearchResult. */
+    private final String query;
+    /** Query of a new search, shown in the grid while its first page is downloaded. null to wait for the whole page. */
+    private final String streamedQuery;
+    /** Images of a new search parsed so far, shown in the grid until the whole page was received. */
+    private SearchResult streamedSearchResult;
     /** Callback cancelled and should no longer respond to received SearchResult. */
     private boolean isCancelled = false;
+    /** True once the whole page was received. */
+    private boolean isCompleted = false;
     //endregion
 
     //region Constructors
-    /** Default constructor. */
-    public SearchResultCallback() {
-      this.searchResult = null;
+    /**
+     * Constructor used for new searches, showing images in the grid while the first page is downloaded.
+     *
+     * @param query Search query.
+     */
+    public SearchResultCallback(String query) {
+      this(query, true);
+    }
+
+    /**
+     * Constructor used for new or restored searches.
+     *
+     * @param query        Search query.
+     * @param streamImages True to show images in the grid while the page is downloaded, false to wait for the whole page.
+     */
+    public SearchResultCallback(String query, boolean streamImages) {
+      this(null, 0, query, streamImages ? query : null);
     }
 
     /** Constructor used to add more images to an existing SearchResult to implement endless scrolling. */
     public SearchResultCallback(SearchResult searchResult) {
+      this(searchResult, 0);
+    }
+
+    /** Constructor used to add more images to an existing SearchResult until the grid is filled. */
+    public SearchResultCallback(SearchResult searchResult, int shortPageFetches) {
+      this(searchResult, shortPageFetches, null, null);
+    }
+
+    private SearchResultCallback(SearchResult searchResult, int shortPageFetches, String query, String streamedQuery) {
       this.searchResult = searchResult;
+      this.shortPageFetches = shortPageFetches;
+      this.query = query;
+      this.streamedQuery = streamedQuery;
     }
     //endregion
 
     //region SearchClient.SearchCallback methods
+    @Override
+    public void onImageParsed(Image image) {
+      if (isCancelled || isCompleted || streamedQuery == null) {
+        return;
+      }
+      final ImageFilter imageFilter = ImageFilterSettings.getImageFilter(SearchActivity.this);
+      if (streamedSearchResult == null) {
+        streamedSearchResult = new SearchResult(new Image[0], Tag.arrayFromString(streamedQuery), image.searchPage);
+        streamedSearchResult.filter(imageFilter);
+      }
+      if (streamedSearchResult.addImages(new Image[]{image}, image.searchPage, imageFilter) > 0) {
+        searchResultGridFragment.setSearchResult(streamedSearchResult);
+      }
+    }
+
     @Override
     public void onFailure(IOException e) {
+      isCompleted = true;
       if (!isCancelled) {
         // Show error message to user.
-        Snackbar.make(findViewById(R.id.root), String.format(getString(R.string.toast_networkError),
-            e.getLocalizedMessage()), Snackbar.LENGTH_INDEFINITE).show();
+        errorSnackbar = Snackbar.make(findViewById(R.id.root), String.format(getString(R.string.toast_networkError),
+            e.getLocalizedMessage()), Snackbar.LENGTH_INDEFINITE);
+        errorSnackbar.show();
+        // Fetch the page again once the API responds, in case it failed because the API is down.
+        if (this.searchResult != null) {
+          stalledSearchResult = this.searchResult;
+        } else {
+          stalledQuery = this.query;
+        }
+        if (streamedSearchResult != null) {
+          // Keep the images shown so far, but don't continue after a partial page.
+          streamedSearchResult.onLastPage();
+        }
         // Clear callback and hide progress indicator in Action Bar.
         searchProgressBar.setVisibility(View.GONE);
         searchCallback = null;
@@ -507,37 +819,33 @@ public class SearchActivity extends AppCompatActivity
 
     @Override
     public void onSuccess(SearchResult searchResult) {
+      isCompleted = true;
       if (!isCancelled) {
         // Clear callback and hide progress indicator in Action Bar.
         searchProgressBar.setVisibility(View.GONE);
         searchCallback = null;
 
-        // Filter the received SearchResult.
-        final int resultCount = searchResult.getImages().length;
-        if (sharedPreferences.contains(getString(R.string.preference_safeSearch_key)) &&
-            !TextUtils.isEmpty(sharedPreferences.getString(getString(R.string.preference_safeSearch_key), "").trim())) {
-          // Get filter from shared preferences.
-          searchResult.filter(Image.SafeSearchRating.arrayFromStrings(
-              sharedPreferences.getString(getString(R.string.preference_safeSearch_key), "").split(" ")));
-        } else {
-          // Get default filter from resources.
-          searchResult.filter(Image.SafeSearchRating.arrayFromStrings(getResources().getStringArray(R.array.preference_safeSearch_defaultValues)));
-        }
-        if (sharedPreferences.contains(getString(R.string.preference_tagFilter_key))) {
-          // Get tag filters from shared preferences and filter the result.
-          searchResult.filter(Tag.arrayFromString(sharedPreferences.getString(getString(R.string.preference_tagFilter_key), "")));
-        }
+        final int resultCount = searchResult.size();
 
         if (this.searchResult != null) {
+          // Keep the page layout up to date, so it can be restored with the saved instance state.
+          if (searchResult.getSearchState() != null) {
+            this.searchResult.setSearchState(searchResult.getSearchState());
+          }
           // Set onLastPage if no more images were fetched.
           if (resultCount == 0) {
             this.searchResult.onLastPage();
           } else {
-            // Extend existing search result for endless scrolling.
-            this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset());
+            // Extend existing search result for endless scrolling, filtering only the new page.
+            this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset(),
+                ImageFilterSettings.getImageFilter(SearchActivity.this));
             searchResultGridFragment.setSearchResult(this.searchResult);
           }
+          fetchShortPage(this.searchResult, shortPageFetches);
         } else {
+          // Filter the received SearchResult.
+          searchResult.filter(ImageFilterSettings.getImageFilter(SearchActivity.this));
+
           // Show search result.
           if (resultCount == 0) {
             searchResult.onLastPage();
@@ -545,6 +853,11 @@ public class SearchActivity extends AppCompatActivity
             addSearchHistoryEntry(Tag.stringFromArray(searchResult.getQuery()));
           }
           searchResultGridFragment.setSearchResult(searchResult);
+          // Start fetching the next pages before the user scrolls to them.
+          if (searchResult.hasNextPage()) {
+            getPagePrefetcher(searchResult).prefetch();
+          }
+          fetchShortPage(searchResult, shortPageFetches);
         }
       }
     }
@@ -46,7 +46,7 @@ public class ImagePagerAdapter extends FragmentStatePagerAdapter {
   @Override
   public Fragment getItem(int position) {
     // Create a new instance of ImageFragment for the given image.
-    Image image = listener.getSearchResult().getImages()[position];
+    Image image = listener.getSearchResult().get(position);
 
     if (shouldUseVideoPlayerFragment(image)) {
       return VideoPlayerFragment.newInstance(image);
@@ -73,7 +73,7 @@ public class ImagePagerAdapter extends FragmentStatePagerAdapter {
     if (listener.getSearchResult() == null) {
       return 0;
     }
-    return listener.getSearchResult().getImages().length;
+    return listener.getSearchResult().size();
   }
   //endregion
 
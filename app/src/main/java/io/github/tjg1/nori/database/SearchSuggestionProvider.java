@@ -11,12 +11,20 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import java.lang.ref.WeakReference;
+import java.util.List;
 import java.util.Locale;
 
+import io.github.tjg1.library.norilib.clients.HydrusApi;
+import io.github.tjg1.nori.R;
+
 import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_ICON;
 import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_ID;
 import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_NAME;
@@ -43,8 +51,20 @@ public class SearchSuggestionProvider extends ContentProvider {
   private static final String[] COLUMNS = {
       COLUMN_ID,
       COLUMN_NAME,
-      COLUMN_ICON
+      COLUMN_ICON,
+      "NULL AS " + SearchManager.SUGGEST_COLUMN_TEXT_2
   };
+  /** Columns of the cursor holding remote tag suggestions. */
+  private static final String[] REMOTE_SUGGESTION_COLUMNS = {
+      COLUMN_ID,
+      COLUMN_NAME,
+      COLUMN_ICON,
+      SearchManager.SUGGEST_COLUMN_TEXT_2
+  };
+  /** Resource ID of the icon used to represent remote tag suggestions. */
+  private static final String RESOURCE_ICON_REMOTE = Integer.toString(R.drawable.ic_search_suggestion_builtin);
+  /** Client whose cached tag suggestions are merged into the local suggestions. (optional) */
+  private static WeakReference<HydrusApi> tagSuggestionSource = new WeakReference<>(null);
   /** Content provider authority. (Unique ID) */
   public static String AUTHORITY = "io.github.tjg1.nori.SearchSuggestionProvider";
 
@@ -126,7 +146,8 @@ public class SearchSuggestionProvider extends ContentProvider {
 
   //region Get suggestions cursor from query
   /**
-   * Get tag suggestions from the underlying SQLite database.
+   * Get tag suggestions from the underlying SQLite database, followed by cached suggestions from the
+   * {@link #setTagSuggestionSource(HydrusApi) tag suggestion source}.
    *
    * @param query Query the database for tags starting with this substring.
    * @return Database cursor with returned suggestion.
@@ -135,9 +156,49 @@ public class SearchSuggestionProvider extends ContentProvider {
     // Query the database for search suggestions.
     if (query == null) {
       return db.query(TABLE_NAME, COLUMNS, null, null, null, null, COLUMN_ID + " DESC");
-    } else {
-      return db.query(TABLE_NAME, COLUMNS, COLUMN_NAME + " LIKE ?", new String[]{query + "%"}, null, null, COLUMN_ID + " DESC");
     }
+    final Cursor local = db.query(TABLE_NAME, COLUMNS, COLUMN_NAME + " LIKE ?", new String[]{query + "%"}, null, null, COLUMN_ID + " DESC");
+    final Cursor remote = getRemoteSuggestions(query);
+    return remote != null ? new MergeCursor(new Cursor[]{local, remote}) : local;
+  }
+
+  /**
+   * Get cached suggestions for the last tag of the query from the tag suggestion source.
+   * The network is never hit here: the search view requests the suggestions while the user is typing.
+   *
+   * @param query Search query typed by the user.
+   * @return Cursor with the full query for each suggestion. null if there are no cached suggestions.
+   */
+  @Nullable
+  private static Cursor getRemoteSuggestions(String query) {
+    final HydrusApi source = tagSuggestionSource.get();
+    final int separator = query.lastIndexOf(' ');
+    final String prefix = query.substring(separator + 1);
+    if (source == null || prefix.isEmpty()) {
+      return null;
+    }
+    final List<HydrusApi.TagSuggestion> suggestions = source.getCachedTagSuggestions(prefix);
+    if (suggestions == null || suggestions.isEmpty()) {
+      return null;
+    }
+
+    final MatrixCursor cursor = new MatrixCursor(REMOTE_SUGGESTION_COLUMNS, suggestions.size());
+    final String queryHead = query.substring(0, separator + 1);
+    int id = -1;
+    for (HydrusApi.TagSuggestion suggestion : suggestions) {
+      cursor.addRow(new Object[]{id--, queryHead + suggestion.tag.getName(), RESOURCE_ICON_REMOTE,
+          Integer.toString(suggestion.count)});
+    }
+    return cursor;
+  }
+
+  /**
+   * Set the client whose cached tag suggestions are merged into the suggestions returned by this provider.
+   *
+   * @param client Hydrus client. null to only return suggestions from the local database.
+   */
+  public static void setTagSuggestionSource(@Nullable HydrusApi client) {
+    tagSuggestionSource = new WeakReference<>(client);
   }
   //endregion
 }
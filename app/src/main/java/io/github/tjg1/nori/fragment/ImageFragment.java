@@ -31,9 +31,12 @@ import android.view.ViewGroup;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
 
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.http.EndpointHeaders;
 import io.github.tjg1.nori.R;
 import io.github.tjg1.nori.util.NetworkUtils;
 
@@ -208,7 +211,12 @@ public abstract class ImageFragment extends Fragment {
       @Override
       protected Exception doInBackground(Void... ignored) {
         try {
-          InputStream inputStream = new URL(imageUrl).openStream();
+          URLConnection connection = new URL(imageUrl).openConnection();
+          // Apply API credentials. These are not part of the image URL.
+          for (Map.Entry<String, String> header : EndpointHeaders.getHeaders(imageUrl).entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+          }
+          InputStream inputStream = connection.getInputStream();
           wallpaperManager.setStream(inputStream);
         } catch (IOException e) {
           return e;
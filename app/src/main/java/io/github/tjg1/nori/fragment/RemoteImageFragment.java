@@ -21,7 +21,10 @@ import com.koushikdutta.async.future.FutureCallback;
 import com.koushikdutta.ion.Ion;
 import com.koushikdutta.ion.builder.AnimateGifMode;
 
+import java.util.concurrent.CancellationException;
+
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.clients.HydrusApi;
 import io.github.tjg1.nori.BuildConfig;
 import io.github.tjg1.nori.R;
 
@@ -123,13 +126,21 @@ public class RemoteImageFragment extends ImageFragment {
   //region Loading images into image view
   /** Load remote image into the ImageView. */
   private void loadImage() {
+    loadImage(shouldLoadImageSamples() ? image.sampleUrl : image.fileUrl);
+  }
+
+  /**
+   * Load remote image into the ImageView.
+   *
+   * @param imageUrl URL of the image to load.
+   */
+  private void loadImage(final String imageUrl) {
     // Show the progress bar.
     if (this.isActive) {
       progressBar.setVisibility(View.VISIBLE);
     }
 
     // Load image into the view.
-    String imageUrl = shouldLoadImageSamples() ? image.sampleUrl : image.fileUrl;
     imageLoadingFuture = Ion.with(this)
         .load(imageUrl)
         .progressBar(progressBar)
@@ -142,7 +153,14 @@ public class RemoteImageFragment extends ImageFragment {
         .setCallback(new FutureCallback<ImageView>() {
           @Override
           public void onCompleted(Exception e, ImageView result) {
-            if (e != null) {
+            if (e != null && !(e instanceof CancellationException) && HydrusApi.isRenderURL(imageUrl)
+                && !imageUrl.equals(image.fileUrl) && isAdded()) {
+              // Hydrus samples are rendered by the server on demand, which not all servers support.
+              // Fall back to the original image. Samples of other APIs are never replaced by the
+              // original, to conserve bandwidth.
+              loadImage(image.fileUrl);
+              return;
+            } else if (e != null) {
               errorTextView.setVisibility(View.VISIBLE);
               errorTextView.setText(e.getLocalizedMessage());
             }
@@ -28,6 +28,7 @@ import com.koushikdutta.ion.builder.AnimateGifMode;
 
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.SearchState;
 import io.github.tjg1.library.norilib.Tag;
 import io.github.tjg1.nori.BuildConfig;
 import io.github.tjg1.nori.R;
@@ -42,6 +43,13 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
   private static final String BUNDLE_ID_SEARCH_QUERY = "io.github.tjg1.nori.SearchQuery";
   private static final String BUNDLE_ID_VISIBLE_PAGE = "io.github.tjg1.nori.FirstVisibleSearchPage";
   private static final String BUNDLE_ID_VISIBLE_ITEM = "io.github.tjg1.nori.FirstVisibleSearchPagePosition";
+  /** Identifier used for saving the request parameters of the displayed search result. */
+  private static final String BUNDLE_ID_SEARCH_STATE = "io.github.tjg1.nori.SearchState";
+  //endregion
+
+  //region Constants
+  /** Number of images needed to fill the grid, used before the grid is laid out. */
+  private static final int DEFAULT_MINIMUM_IMAGE_COUNT = 30;
   //endregion
 
   //region Instance fields
@@ -57,6 +65,8 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
   private int firstVisibleSearchPagePosition = 0;
   /** Previous search query, restored from saved instance state. */
   private String previousSearchQuery = null;
+  /** Request parameters of the previous search result, restored from saved instance state. */
+  private SearchState previousSearchState = null;
   /** Adapter used by the GridView in this fragment. */
   private BaseAdapter gridAdapter = new BaseAdapter() {
     @Override
@@ -65,13 +75,13 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
       if (searchResult == null) {
         return 0;
       }
-      return searchResult.getImages().length;
+      return searchResult.size();
     }
 
     @Override
     public Image getItem(int position) {
       // Return image at given position.
-      return searchResult.getImages()[position];
+      return searchResult.get(position);
     }
 
     @Override
@@ -141,9 +151,11 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
       }
 
       outState.putString(BUNDLE_ID_SEARCH_QUERY, Tag.stringFromArray(searchResult.getQuery()));
+      outState.putParcelable(BUNDLE_ID_SEARCH_STATE, searchResult.getSearchState());
     } else if (previousSearchQuery != null) {
       // Save the previous search query, in case the SearchResult hasn't loaded yet.
       outState.putString(BUNDLE_ID_SEARCH_QUERY, this.previousSearchQuery);
+      outState.putParcelable(BUNDLE_ID_SEARCH_STATE, this.previousSearchState);
       outState.putInt(BUNDLE_ID_VISIBLE_PAGE, firstVisibleSearchPage);
       outState.putInt(BUNDLE_ID_VISIBLE_ITEM, firstVisibleSearchPagePosition);
     }
@@ -171,10 +183,11 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
       this.previousSearchQuery = savedInstanceState.getString(BUNDLE_ID_SEARCH_QUERY);
       this.firstVisibleSearchPage = savedInstanceState.getInt(BUNDLE_ID_VISIBLE_PAGE, 0);
       this.firstVisibleSearchPagePosition = savedInstanceState.getInt(BUNDLE_ID_VISIBLE_ITEM, 0);
+      this.previousSearchState = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_STATE);
 
       if (this.previousSearchQuery != null) {
         mListener.onRestoreSearchGridState(this.previousSearchQuery,
-            this.firstVisibleSearchPagePosition);
+            this.firstVisibleSearchPage, this.previousSearchState);
       }
     }
   }
@@ -262,6 +275,25 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
   }
   //endregion
 
+  //region Minimum image count
+  /**
+   * Get the number of images needed to fill the grid with one spare row, so it can be scrolled to
+   * fetch more images for endless scrolling.
+   *
+   * @return Minimum number of images to show in the grid.
+   */
+  public int getMinimumImageCount() {
+    // Column count is only known after the grid is laid out.
+    if (gridView == null || gridView.getHeight() == 0 || gridView.getNumColumns() <= 0) {
+      return DEFAULT_MINIMUM_IMAGE_COUNT;
+    }
+    // Thumbnails are square.
+    final int rowHeight = gridView.getColumnWidth() + gridView.getVerticalSpacing();
+    final int rowCount = (gridView.getHeight() + rowHeight - 1) / rowHeight + 1;
+    return rowCount * gridView.getNumColumns();
+  }
+  //endregion
+
   //region Grid column width
   /**
    * Get the grid view column size from the thumbnail size shared preference.
@@ -311,8 +343,10 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
      * Called when the {@link SearchResult} has to fetched to restore this SearchResultGridFragment's saved instance state.
      * @param savedQuery Saved search query.
      * @param firstVisiblePageOffset Last visible page offset to retrieve for infinite scrolling.
+     * @param savedSearchState Request parameters the saved search result was fetched with. (optional)
      */
-    public void onRestoreSearchGridState(@NonNull String savedQuery, int firstVisiblePageOffset);
+    public void onRestoreSearchGridState(@NonNull String savedQuery, int firstVisiblePageOffset,
+                                         @Nullable SearchState savedSearchState);
   }
   //endregion
 }
@@ -99,7 +99,7 @@ public class TagListDialogFragment extends DialogFragment implements DialogInter
     intent.setAction(Intent.ACTION_SEARCH);
     intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
     intent.putExtra(SearchActivity.INTENT_EXTRA_SEARCH_CLIENT_SETTINGS, settings);
-    intent.putExtra(SearchActivity.INTENT_EXTRA_SEARCH_QUERY, image.tags[position].getName());
+    intent.putExtra(SearchActivity.INTENT_EXTRA_SEARCH_QUERY, image.getTag(position).getName());
     startActivity(intent);
 
     // Dismiss the dialog after the activity is started.
@@ -114,15 +114,15 @@ public class TagListDialogFragment extends DialogFragment implements DialogInter
   private class TagListAdapter extends BaseAdapter {
     @Override
     public int getCount() {
-      if (image == null || image.tags == null) {
+      if (image == null) {
         return 0;
       }
-      return image.tags.length;
+      return image.getTagCount();
     }
 
     @Override
     public Tag getItem(int position) {
-      return image.tags[position];
+      return image.getTag(position);
     }
 
     @Override
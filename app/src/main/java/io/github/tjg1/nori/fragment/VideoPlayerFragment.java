@@ -21,6 +21,7 @@ import android.widget.VideoView;
 import java.util.HashMap;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.http.EndpointHeaders;
 import io.github.tjg1.nori.BuildConfig;
 import io.github.tjg1.nori.R;
 import io.github.tjg1.nori.util.NetworkUtils;
@@ -132,7 +133,7 @@ public class VideoPlayerFragment extends ImageFragment {
       }
     } else {
       // Set the video URL and user agent.
-      HashMap<String, String> headers = new HashMap<>(1);
+      HashMap<String, String> headers = new HashMap<>(EndpointHeaders.getHeaders(image.fileUrl));
       headers.put("User-Agent", "nori/" + BuildConfig.VERSION_NAME);
       if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
         videoView.setVideoURI(Uri.parse(image.fileUrl), headers);
@@ -0,0 +1,89 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.nori.R;
+
+/**
+ * Compiles the tag filter and SafeSearch preferences into an {@link ImageFilter}.
+ * The filter is created once and re-used for every page of search results, until one of the
+ * preferences changes.
+ */
+public abstract class ImageFilterSettings {
+
+  //region Static fields
+  /** Filter compiled from the current preferences. Null if it needs to be re-created. */
+  private static ImageFilter imageFilter;
+  /** Key of the SafeSearch preference. Set when the filter is first created. */
+  private static String safeSearchKey;
+  /** Key of the tag filter preference. Set when the filter is first created. */
+  private static String tagFilterKey;
+  /**
+   * Clears the cached filter when the filter preferences change.
+   * Kept in a static field, as {@link SharedPreferences} only holds weak references to listeners.
+   */
+  private static final SharedPreferences.OnSharedPreferenceChangeListener preferenceChangeListener =
+      new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+          if (safeSearchKey.equals(key) || tagFilterKey.equals(key)) {
+            synchronized (ImageFilterSettings.class) {
+              imageFilter = null;
+            }
+          }
+        }
+      };
+  //endregion
+
+  //region Getting the filter
+  /**
+   * Get the filter for the current tag filter and SafeSearch preferences.
+   *
+   * @param context Android context.
+   * @return Cached filter, shared until the preferences change.
+   */
+  @NonNull
+  public static synchronized ImageFilter getImageFilter(@NonNull Context context) {
+    if (imageFilter == null) {
+      final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+      if (safeSearchKey == null) {
+        safeSearchKey = context.getString(R.string.preference_safeSearch_key);
+        tagFilterKey = context.getString(R.string.preference_tagFilter_key);
+        sharedPreferences.registerOnSharedPreferenceChangeListener(preferenceChangeListener);
+      }
+      imageFilter = createImageFilter(context, sharedPreferences);
+    }
+    return imageFilter;
+  }
+
+  /**
+   * Compile the filter from shared preferences.
+   *
+   * @param context           Android context.
+   * @param sharedPreferences Default shared preferences.
+   * @return New filter.
+   */
+  private static ImageFilter createImageFilter(Context context, SharedPreferences sharedPreferences) {
+    // Use the default SafeSearch setting if the preference was never set or cleared.
+    final String safeSearch = sharedPreferences.getString(safeSearchKey, "").trim();
+    final Image.SafeSearchRating[] safeSearchRatings = !TextUtils.isEmpty(safeSearch) ?
+        Image.SafeSearchRating.arrayFromStrings(safeSearch.split(" ")) :
+        Image.SafeSearchRating.arrayFromStrings(context.getResources().getStringArray(R.array.preference_safeSearch_defaultValues));
+
+    return new ImageFilter(Tag.arrayFromString(sharedPreferences.getString(tagFilterKey, "")), safeSearchRatings);
+  }
+  //endregion
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import io.github.tjg1.library.norilib.util.DateUtils;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.util.DateUtils} class. */
+public class DateUtilsTests extends AndroidTestCase {
+  /** Log tag. */
+  private static final String TAG = "DateUtilsBenchmark";
+  /** Number of dates parsed by the benchmarks. */
+  private static final int ITERATIONS = 10000;
+
+  /** Make sure ISO 8601 dates used by Danbooru 2.x and E621 are parsed. */
+  public void testParseIso8601() throws Throwable {
+    final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
+
+    assertThat(DateUtils.parseIso8601("2016-02-19T14:53:08-05:00"))
+        .isEqualTo(dateFormat.parse("2016-02-19T14:53:08-0500").getTime());
+    assertThat(DateUtils.parseIso8601("2016-02-19T14:53:08+0530"))
+        .isEqualTo(dateFormat.parse("2016-02-19T14:53:08+0530").getTime());
+    assertThat(DateUtils.parseIso8601("2016-02-19T14:53:08Z"))
+        .isEqualTo(dateFormat.parse("2016-02-19T14:53:08+0000").getTime());
+    assertThat(DateUtils.parseIso8601("2016-02-19T14:53:08.123456-05:00"))
+        .isEqualTo(dateFormat.parse("2016-02-19T14:53:08-0500").getTime() + 123);
+    assertThat(DateUtils.parseIso8601("1969-12-31T23:59:59Z")).isEqualTo(-1000L);
+    assertThat(DateUtils.parseIso8601("2000-02-29T00:00:00Z")).isEqualTo(951782400000L);
+  }
+
+  /** Make sure dates without a time zone are parsed in local time, like SimpleDateFormat does. */
+  public void testParseLocalTime() throws Throwable {
+    final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    final TimeZone defaultTimeZone = TimeZone.getDefault();
+
+    try {
+      for (String timeZone : new String[]{"UTC", "Europe/Warsaw", "America/New_York"}) {
+        TimeZone.setDefault(TimeZone.getTimeZone(timeZone));
+        dateFormat.setTimeZone(TimeZone.getDefault());
+        for (String date : new String[]{"2016-01-10 08:00:00", "2016-07-10 08:00:00"}) {
+          assertThat(DateUtils.parseIso8601(date)).isEqualTo(dateFormat.parse(date).getTime());
+        }
+      }
+    } finally {
+      TimeZone.setDefault(defaultTimeZone);
+    }
+  }
+
+  /** Make sure Unix timestamps are converted from seconds to milliseconds. */
+  public void testParseUnixTimestamp() throws Throwable {
+    assertThat(DateUtils.parseUnixTimestamp("1455911588")).isEqualTo(1455911588000L);
+  }
+
+  /** Make sure ctime-style dates used by Gelbooru are parsed. */
+  public void testParseCtime() throws Throwable {
+    final DateFormat dateFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss Z yyyy", Locale.US);
+
+    for (String date : new String[]{"Fri Feb 19 14:53:08 -0500 2016", "Sat Mar 4 02:05:12 +0100 2017"}) {
+      assertThat(DateUtils.parseCtime(date)).isEqualTo(dateFormat.parse(date).getTime());
+    }
+  }
+
+  /** Make sure invalid dates are rejected. */
+  public void testInvalidDates() throws Throwable {
+    final String[] dates = {"", "yesterday", "2016-13-19T14:53:08Z", "2016-02-19T14:53:08+5", "2016-02-19 14:53"};
+    for (String date : dates) {
+      try {
+        DateUtils.parseIso8601(date);
+        fail("Parsed invalid date: " + date);
+      } catch (ParseException ignored) {
+      }
+    }
+    try {
+      DateUtils.parseCtime("Fri Foo 19 14:53:08 -0500 2016");
+      fail("Parsed invalid month.");
+    } catch (ParseException ignored) {
+    }
+    // Truncated dates.
+    for (String date : new String[]{"Fri", "Fri Feb", "Fri Feb 19", "Fri Feb 19 14:53:08", "Fri Feb 19 14:53:08 -0500"}) {
+      try {
+        DateUtils.parseCtime(date);
+        fail("Parsed truncated date: " + date);
+      } catch (ParseException ignored) {
+      }
+    }
+  }
+
+  /** Compare the parser against the SimpleDateFormat-based code it replaced. Results are written to logcat. */
+  @SuppressWarnings("deprecation")
+  public void testBenchmark() throws Throwable {
+    final String date = "2016-02-19T14:53:08-05:00";
+    long result = 0;
+
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      // Previously used by Danbooru and E621 for every post.
+      final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
+      String newDate = date.replace("Z", "+0000");
+      if (newDate.length() == 25) {
+        newDate = newDate.substring(0, 22) + newDate.substring(23);
+      }
+      result += dateFormat.parse(newDate).getTime();
+    }
+    final long simpleDateFormatTime = System.nanoTime() - start;
+    Debug.stopAllocCounting();
+    final long simpleDateFormatBytes = Debug.getThreadAllocSize();
+
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      result -= new Date(DateUtils.parseIso8601(date)).getTime();
+    }
+    final long dateUtilsTime = System.nanoTime() - start;
+    Debug.stopAllocCounting();
+    final long dateUtilsBytes = Debug.getThreadAllocSize();
+
+    assertThat(result).isEqualTo(0L);
+    Log.i(TAG, String.format(Locale.US, "SimpleDateFormat: %d ns, %d bytes per date",
+        simpleDateFormatTime / ITERATIONS, simpleDateFormatBytes / ITERATIONS));
+    Log.i(TAG, String.format(Locale.US, "DateUtils: %d ns, %d bytes per date",
+        dateUtilsTime / ITERATIONS, dateUtilsBytes / ITERATIONS));
+  }
+}
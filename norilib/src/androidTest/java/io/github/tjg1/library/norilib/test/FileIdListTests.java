@@ -0,0 +1,93 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import io.github.tjg1.library.norilib.clients.FileIdList;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.clients.FileIdList} class. */
+public class FileIdListTests extends AndroidTestCase {
+
+  /** Search response with values around the file_ids array that could confuse the parser. */
+  private static final String SEARCH_RESPONSE = "{\"version\": 17, \"hydrus_version\": 441, " +
+      "\"misc\": {\"file_ids\": [9, 9], \"note\": \"\\\"file_ids\\\": [8]\"}, \"file_ids\" : [ 125462, 4852415, " +
+      "123, 1 ], \"extra\": [1, [2]]}";
+
+  /** Parse a response fed to the parser in chunks of given size. */
+  private static FileIdList parse(String response, int chunkSize, int limit) throws IOException {
+    final byte[] bytes = response.getBytes(Charset.forName("UTF-8"));
+    final FileIdList.StreamParser parser = new FileIdList.StreamParser(limit);
+    boolean parsing = true;
+
+    for (int i = 0; parsing && i < bytes.length; i += chunkSize) {
+      parsing = parser.feed(ByteBuffer.wrap(bytes, i, Math.min(chunkSize, bytes.length - i)));
+    }
+    return parser.finish();
+  }
+
+  /** Make sure only the root file_ids array is parsed, regardless of how the response is chunked. */
+  public void testStreamParser() throws Throwable {
+    for (int chunkSize = 1; chunkSize <= 16; chunkSize++) {
+      final FileIdList fileIds = parse(SEARCH_RESPONSE, chunkSize, Integer.MAX_VALUE);
+      assertThat(fileIds.size()).isEqualTo(4);
+      assertThat(fileIds.get(0)).isEqualTo(125462L);
+      assertThat(fileIds.get(1)).isEqualTo(4852415L);
+      assertThat(fileIds.get(2)).isEqualTo(123L);
+      assertThat(fileIds.get(3)).isEqualTo(1L);
+      assertThat(fileIds.isComplete()).isTrue();
+    }
+  }
+
+  /** Make sure parsing stops once the limit was reached. */
+  public void testStreamParserLimit() throws Throwable {
+    final FileIdList fileIds = parse(SEARCH_RESPONSE, 4, 2);
+    assertThat(fileIds.size()).isEqualTo(2);
+    assertThat(fileIds.get(1)).isEqualTo(4852415L);
+    assertThat(fileIds.isComplete()).isFalse();
+  }
+
+  /** Make sure large responses are read into the growable backing array. */
+  public void testStreamParserLargeResponse() throws Throwable {
+    final StringBuilder sb = new StringBuilder("{\"file_ids\":[");
+    for (int i = 0; i < 5000; i++) {
+      sb.append(i > 0 ? "," : "").append(i * 3);
+    }
+    final FileIdList fileIds = parse(sb.append("]}").toString(), 1024, Integer.MAX_VALUE);
+
+    assertThat(fileIds.size()).isEqualTo(5000);
+    assertThat(fileIds.get(4999)).isEqualTo(4999L * 3);
+  }
+
+  /** Make sure responses without a complete file_ids array are rejected. */
+  public void testStreamParserInvalidResponse() throws Throwable {
+    final String[] responses = {"{\"error\": \"Invalid access key\"}", "{\"file_ids\": [1, 2", "{\"file_ids\": [1, \"2\"]}"};
+    for (String response : responses) {
+      try {
+        parse(response, 8, Integer.MAX_VALUE);
+        fail("Parsed invalid response: " + response);
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /** Tests the {@link FileIdList#copyOfRange(int, int)} and {@link FileIdList#toString()} methods. */
+  public void testCopyOfRange() throws Throwable {
+    final FileIdList fileIds = new FileIdList(1, 2, 3, 4, 5);
+
+    assertThat(fileIds.copyOfRange(1, 3).toString()).isEqualTo("[2,3]");
+    assertThat(fileIds.copyOfRange(3, 100).toString()).isEqualTo("[4,5]");
+    assertThat(fileIds.copyOfRange(10, 20).isEmpty()).isTrue();
+    assertThat(fileIds.toString()).isEqualTo("[1,2,3,4,5]");
+  }
+}
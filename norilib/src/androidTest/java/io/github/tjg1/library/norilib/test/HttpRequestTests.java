@@ -0,0 +1,43 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import io.github.tjg1.library.norilib.http.HttpRequest;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.http.HttpRequest} class. */
+public class HttpRequestTests extends AndroidTestCase {
+
+  /** Make sure credentials are encoded as a HTTP Basic authentication header, with Base64 padding. */
+  public void testBasicAuthentication() throws Throwable {
+    assertThat(new HttpRequest("https://yande.re").basicAuthentication("user", "pass").getHeaders().get("Authorization"))
+        .isEqualTo("Basic dXNlcjpwYXNz");
+    assertThat(new HttpRequest("https://yande.re").basicAuthentication("user", "passw").getHeaders().get("Authorization"))
+        .isEqualTo("Basic dXNlcjpwYXNzdw==");
+    assertThat(new HttpRequest("https://yande.re").basicAuthentication("user", "passwd").getHeaders().get("Authorization"))
+        .isEqualTo("Basic dXNlcjpwYXNzd2Q=");
+  }
+
+  /** Make sure request options keep their defaults unless set. */
+  public void testDefaults() throws Throwable {
+    final HttpRequest request = new HttpRequest("https://yande.re").userAgent("nori");
+
+    assertThat(request.getUrl()).isEqualTo("https://yande.re");
+    assertThat(request.getHeaders().get("User-Agent")).isEqualTo("nori");
+    assertThat(request.getTimeout()).isEqualTo(0);
+    assertThat(request.getFollowRedirects()).isTrue();
+    assertThat(request.getUseCache()).isTrue();
+
+    request.setTimeout(5000).followRedirect(false).noCache();
+    assertThat(request.getTimeout()).isEqualTo(5000);
+    assertThat(request.getFollowRedirects()).isFalse();
+    assertThat(request.getUseCache()).isFalse();
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+import io.github.tjg1.library.norilib.clients.HydrusQueryOptions;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.clients.HydrusQueryOptions} class. */
+public class HydrusQueryOptionsTests extends AndroidTestCase {
+
+  /** Make sure supported metatags are removed from the query and applied to the options. */
+  public void testParseMetatags() throws Throwable {
+    final HydrusQueryOptions options = new HydrusQueryOptions();
+    final List<String> tags = options.parseMetatags(" creator:somebody  order:width_asc limit:500 order:unknown width:>1919 ");
+
+    assertThat(tags).containsExactly("creator:somebody", "order:unknown");
+    assertThat(options.getSortType()).isEqualTo(HydrusQueryOptions.SortType.WIDTH);
+    assertThat(options.getSortAscending()).isTrue();
+    assertThat(options.getLimit()).isEqualTo(500);
+    assertThat(options.toSystemPredicates()).containsExactly("system:width > 1919", "system:limit is 500");
+  }
+
+  /** Make sure ranges and units are translated into the matching system predicates. */
+  public void testToSystemPredicates() throws Throwable {
+    final HydrusQueryOptions options = new HydrusQueryOptions();
+    options.parseMetatags("height:720 filesize:1k..2m age:<7d age:>36h");
+
+    assertThat(options.toSystemPredicates()).containsExactly(
+        "system:height = 720",
+        "system:filesize > 1023 B",
+        "system:filesize < 2097153 B",
+        "system:import time > 1 days 12 hours",
+        "system:import time < 7 days");
+
+    options.setImportAge(0, 7 * 24)
+        .setMinRating("favourites", 3, 5)
+        .setLimit(0);
+    assertThat(options.toSystemPredicates()).contains(
+        "system:import time < 7 days",
+        "system:rating for favourites > 2/5");
+  }
+
+  /** Make sure invalid metatags, including ones with units the metatag doesn't support, are searched for as regular tags. */
+  public void testInvalidMetatags() throws Throwable {
+    final HydrusQueryOptions options = new HydrusQueryOptions();
+    final List<String> tags = options.parseMetatags("limit:many width:>abc height:500..100 width:>2k filesize:<3d age:>5m");
+
+    assertThat(tags).containsExactly("limit:many", "width:>abc", "height:500..100", "width:>2k", "filesize:<3d", "age:>5m");
+    assertThat(options.toSystemPredicates()).isEmpty();
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.ImageFilter} class. */
+public class ImageFilterTests extends AndroidTestCase {
+
+  /** Make sure images are filtered by both their tags and SafeSearch rating. */
+  public void testAccept() throws Throwable {
+    final ImageFilter filter = new ImageFilter(Tag.arrayFromString("duck"),
+        new Image.SafeSearchRating[]{Image.SafeSearchRating.S, Image.SafeSearchRating.Q});
+
+    assertThat(filter.accept(ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("bird")))).isTrue();
+    assertThat(filter.accept(ImageTests.getMockImage(Image.SafeSearchRating.Q, new Tag("bird"), new Tag("duck")))).isFalse();
+    assertThat(filter.accept(ImageTests.getMockImage(Image.SafeSearchRating.E, new Tag("bird")))).isFalse();
+  }
+
+  /** Make sure tags that were searched for are not filtered. */
+  public void testExemptTags() throws Throwable {
+    final Tag duck = new Tag("duck");
+    final ImageFilter filter = new ImageFilter(new Tag[]{duck}, null);
+
+    assertThat(filter.accept(ImageTests.getMockImage(Image.SafeSearchRating.E, duck), duck.getId())).isTrue();
+    assertThat(filter.accept(ImageTests.getMockImage(Image.SafeSearchRating.E, duck))).isFalse();
+  }
+
+  /** Make sure the hit counters are updated. */
+  public void testHitCounts() throws Throwable {
+    final Tag duck = new Tag("duck");
+    final ImageFilter filter = new ImageFilter(new Tag[]{duck, new Tag("quack")},
+        new Image.SafeSearchRating[]{Image.SafeSearchRating.S});
+    final SearchResult searchResult = new SearchResult(new Image[]{
+        ImageTests.getMockImage(Image.SafeSearchRating.S, duck),
+        ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("bird"), duck),
+        ImageTests.getMockImage(Image.SafeSearchRating.E, new Tag("bird")),
+        ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("bird"))
+    }, new Tag[]{new Tag("bird")}, 0);
+
+    searchResult.filter(filter);
+    assertThat(searchResult.size()).isEqualTo(1);
+    assertThat(searchResult.get(0).searchPagePosition).isEqualTo(0);
+    assertThat(filter.getEvaluatedCount()).isEqualTo(4);
+    assertThat(filter.getHitCount(duck)).isEqualTo(2);
+    assertThat(filter.getHitCount(new Tag("quack"))).isEqualTo(0);
+    assertThat(filter.getHitCount(Image.SafeSearchRating.E)).isEqualTo(1);
+  }
+
+  /** Make sure empty filters are recognised, so they can be skipped. */
+  public void testIsEmpty() throws Throwable {
+    assertThat(new ImageFilter(null, null).isEmpty()).isTrue();
+    assertThat(new ImageFilter(new Tag[0], new Image.SafeSearchRating[0]).isEmpty()).isTrue();
+    assertThat(new ImageFilter(Tag.arrayFromString("duck"), null).isEmpty()).isFalse();
+  }
+
+  /** Make sure loosened filters are detected, so searches with exclusions that no longer apply are fetched again. */
+  public void testIncludes() throws Throwable {
+    final ImageFilter filter = new ImageFilter(Tag.arrayFromString("duck quack"),
+        new Image.SafeSearchRating[]{Image.SafeSearchRating.S});
+
+    assertThat(filter.includes(filter)).isTrue();
+    assertThat(filter.includes(new ImageFilter(null, null))).isTrue();
+    assertThat(filter.includes(new ImageFilter(Tag.arrayFromString("duck"),
+        new Image.SafeSearchRating[]{Image.SafeSearchRating.S, Image.SafeSearchRating.Q}))).isTrue();
+    assertThat(filter.includes(new ImageFilter(Tag.arrayFromString("duck goose"), null))).isFalse();
+    assertThat(new ImageFilter(Tag.arrayFromString("duck quack"), null).includes(filter)).isFalse();
+    assertThat(new ImageFilter(Tag.arrayFromString("duck quack"),
+        new Image.SafeSearchRating[]{Image.SafeSearchRating.S, Image.SafeSearchRating.Q}).includes(filter)).isFalse();
+  }
+
+  /** Make sure combined filters remove the images removed by either filter. */
+  public void testCombine() throws Throwable {
+    final ImageFilter filter = new ImageFilter(Tag.arrayFromString("duck"),
+        new Image.SafeSearchRating[]{Image.SafeSearchRating.S, Image.SafeSearchRating.Q})
+        .withTags(new Tag("quack"))
+        .withSafeSearchRatings(Image.SafeSearchRating.Q, Image.SafeSearchRating.E);
+
+    assertThat(filter.accept(ImageTests.getMockImage(Image.SafeSearchRating.Q, new Tag("bird")))).isTrue();
+    assertThat(filter.accept(ImageTests.getMockImage(Image.SafeSearchRating.Q, new Tag("duck")))).isFalse();
+    assertThat(filter.accept(ImageTests.getMockImage(Image.SafeSearchRating.Q, new Tag("quack")))).isFalse();
+    assertThat(filter.accept(ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("bird")))).isFalse();
+    assertThat(filter.accept(ImageTests.getMockImage(Image.SafeSearchRating.E, new Tag("bird")))).isFalse();
+    // Ratings that don't overlap remove all images.
+    assertThat(filter.withSafeSearchRatings(Image.SafeSearchRating.S)
+        .accept(ImageTests.getMockImage(Image.SafeSearchRating.Q, new Tag("bird")))).isFalse();
+  }
+
+  /** Make sure SafeSearch ratings and blacklisted tags are excluded in search queries, within the API's tag limit. */
+  public void testAppendExclusions() throws Throwable {
+    final ImageFilter filter = new ImageFilter(Tag.arrayFromString("duck quack"),
+        new Image.SafeSearchRating[]{Image.SafeSearchRating.S});
+
+    assertThat(filter.appendExclusions("bird", 6)).isEqualTo("bird -rating:explicit -rating:questionable -duck -quack");
+    assertThat(filter.appendExclusions("bird", 2)).isEqualTo("bird -rating:explicit");
+    assertThat(filter.appendExclusions("bird duck", 2)).isEqualTo("bird duck");
+    assertThat(filter.appendExclusions("duck rating:e", 6)).isEqualTo("duck rating:e -quack");
+  }
+}
@@ -40,6 +40,8 @@ public class ImageTests extends AndroidTestCase {
   public void testWriteToParcel() throws Throwable {
     final Image original = getMockImage(Image.SafeSearchRating.S,
         new Tag("duck", Tag.Type.GENERAL), new Tag("revolutionary_girl_utena", Tag.Type.ARTIST));
+    original.mimeType = "video/webm";
+    original.duration = 4200;
     final Image unParceled;
     final Bundle bundle = new Bundle();
 
@@ -61,7 +63,7 @@ public class ImageTests extends AndroidTestCase {
       assertThat(unParceled.sampleUrl).isEqualTo(original.sampleUrl);
       assertThat(unParceled.sampleWidth).isEqualTo(original.sampleWidth);
       assertThat(unParceled.sampleHeight).isEqualTo(original.sampleHeight);
-      assertThat(unParceled.tags).containsOnly(original.tags);
+      assertThat(unParceled.getTags()).containsOnly(original.getTags());
       assertThat(unParceled.id).isEqualTo(original.id);
       assertThat(unParceled.parentId).isEqualTo(original.parentId);
       assertThat(unParceled.webUrl).isEqualTo(original.webUrl);
@@ -69,6 +71,9 @@ public class ImageTests extends AndroidTestCase {
       assertThat(unParceled.safeSearchRating).isEqualTo(original.safeSearchRating);
       assertThat(unParceled.score).isEqualTo(original.score);
       assertThat(unParceled.md5).isEqualTo(original.md5);
+      assertThat(unParceled.sha256).isEqualTo(original.sha256);
+      assertThat(unParceled.mimeType).isEqualTo(original.mimeType);
+      assertThat(unParceled.duration).isEqualTo(original.duration);
       assertThat(unParceled.searchPage).isEqualTo(original.searchPage);
       assertThat(unParceled.searchPagePosition).isEqualTo(original.searchPagePosition);
       assertThat(unParceled.createdAt).isEqualTo(original.createdAt);
@@ -96,6 +101,10 @@ public class ImageTests extends AndroidTestCase {
     assertThat(image.getFileExtension()).isEqualTo(null);
     image.fileUrl = "http://awesomeboorusite.org";
     assertThat(image.getFileExtension()).isEqualTo(null);
+    image.mimeType = "image/jpeg";
+    assertThat(image.getFileExtension()).isEqualTo("jpg");
+    image.mimeType = "video/webm";
+    assertThat(image.getFileExtension()).isEqualTo("webm");
   }
 
   /** Tests the {@link Image.SafeSearchRating#fromString(String)} method. */
@@ -118,7 +127,7 @@ public class ImageTests extends AndroidTestCase {
     image.sampleUrl = "http://awesomeboorusite.org/data/samples/image.png";
     image.sampleWidth = 850;
     image.sampleHeight = 800;
-    image.tags = tags.clone();
+    image.setTags(tags.clone());
     image.id = "123456";
     image.parentId = "123455";
     image.webUrl = "http://awesomeboorusite.org/post/view/image";
@@ -127,6 +136,7 @@ public class ImageTests extends AndroidTestCase {
     image.score = 23;
     image.source = "http://pixiv.com/duck.png";
     image.md5 = "cfaf278e8f522c72644cee2a753d2845";
+    image.sha256 = "0de2db64f5acba7c58b4c6a2a6ee5d1a2cdf8d0e5cd1d1d36d63fb91a9b38b4e";
     image.searchPage = 0;
     image.searchPagePosition = 1;
     image.createdAt = new Date(1398902400);
@@ -164,9 +174,9 @@ public class ImageTests extends AndroidTestCase {
     assertThat(image.sampleHeight).isGreaterThanOrEqualTo(0);
 
     // Verify tags.
-    if (image.tags.length == 0)
+    if (image.getTagCount() == 0)
       Log.w(TAG, String.format(Locale.US, "No tags for image: %s", image.webUrl));
-    for (Tag tag : image.tags) {
+    for (Tag tag : image.getTags()) {
       assertThat(tag.getName()).isNotEmpty();
       assertThat(tag.getType()).isNotNull();
     }
@@ -0,0 +1,209 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
+import io.github.tjg1.library.norilib.PagePrefetcher;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.SearchState;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.http.HttpCall;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.PagePrefetcher} class. */
+public class PagePrefetcherTests extends AndroidTestCase {
+
+  /** Make sure pages are requested ahead and delivered in page order, even if they complete out of order. */
+  public void testOutOfOrderCompletion() throws Throwable {
+    final MockSearchClient searchClient = new MockSearchClient();
+    final PagePrefetcher pagePrefetcher = new PagePrefetcher(searchClient, "bird", 1);
+    final List<Integer> deliveredPages = new ArrayList<>();
+
+    pagePrefetcher.fetchMore(new RecordingCallback(deliveredPages));
+    assertThat(searchClient.pendingRequests.keySet()).containsOnly(1, 2);
+
+    // Page 2 completes first, but has to wait for page 1.
+    searchClient.complete(2, 1);
+    assertThat(deliveredPages).isEmpty();
+    assertThat(pagePrefetcher.isFetching()).isTrue();
+    searchClient.complete(1, 1);
+    assertThat(deliveredPages).containsExactly(1);
+
+    // Page 2 was already fetched.
+    pagePrefetcher.fetchMore(new RecordingCallback(deliveredPages));
+    assertThat(deliveredPages).containsExactly(1, 2);
+    assertThat(pagePrefetcher.isFetching()).isFalse();
+  }
+
+  /** Make sure no pages are requested past the last page. */
+  public void testLastPage() throws Throwable {
+    final MockSearchClient searchClient = new MockSearchClient();
+    final PagePrefetcher pagePrefetcher = new PagePrefetcher(searchClient, "bird", 1);
+    final List<Integer> deliveredPages = new ArrayList<>();
+
+    pagePrefetcher.fetchMore(new RecordingCallback(deliveredPages));
+    searchClient.complete(1, 0);
+    searchClient.complete(2, 1);
+    assertThat(deliveredPages).containsExactly(1);
+
+    // The empty last page is delivered again, without new requests.
+    pagePrefetcher.fetchMore(new RecordingCallback(deliveredPages));
+    assertThat(searchClient.pendingRequests).isEmpty();
+    assertThat(deliveredPages).containsExactly(1, 1);
+  }
+
+  /** Make sure errors are delivered once and the failed page is requested again. */
+  public void testFailure() throws Throwable {
+    final MockSearchClient searchClient = new MockSearchClient();
+    final PagePrefetcher pagePrefetcher = new PagePrefetcher(searchClient, "bird", 1);
+    final List<Integer> deliveredPages = new ArrayList<>();
+    final RecordingCallback callback = new RecordingCallback(deliveredPages);
+
+    pagePrefetcher.fetchMore(callback);
+    searchClient.fail(1);
+    assertThat(callback.error).isNotNull();
+    assertThat(searchClient.pendingRequests).doesNotContainKey(1);
+
+    pagePrefetcher.fetchMore(new RecordingCallback(deliveredPages));
+    assertThat(searchClient.pendingRequests).containsKey(1);
+    searchClient.complete(1, 1);
+    assertThat(deliveredPages).containsExactly(1);
+  }
+
+  /** Make sure requests in flight are cancelled with the prefetcher, and that nothing is delivered afterwards. */
+  public void testCancel() throws Throwable {
+    final MockSearchClient searchClient = new MockSearchClient();
+    final PagePrefetcher pagePrefetcher = new PagePrefetcher(searchClient, "bird", 1);
+    final List<Integer> deliveredPages = new ArrayList<>();
+
+    pagePrefetcher.fetchMore(new RecordingCallback(deliveredPages));
+    searchClient.complete(2, 1);
+    pagePrefetcher.cancel();
+    assertThat(searchClient.cancelledRequests).containsOnly(1);
+
+    pagePrefetcher.fetchMore(new RecordingCallback(deliveredPages));
+    assertThat(searchClient.pendingRequests).isEmpty();
+    assertThat(deliveredPages).isEmpty();
+  }
+
+  /** Callback recording the pages delivered by the prefetcher. */
+  private static class RecordingCallback implements SearchClient.SearchCallback {
+    private final List<Integer> deliveredPages;
+    private IOException error;
+
+    public RecordingCallback(List<Integer> deliveredPages) {
+      this.deliveredPages = deliveredPages;
+    }
+
+    @Override
+    public void onFailure(IOException e) {
+      this.error = e;
+    }
+
+    @Override
+    public void onSuccess(SearchResult searchResult) {
+      deliveredPages.add(searchResult.getCurrentOffset());
+    }
+  }
+
+  /** Search client keeping requests pending until completed by the test. */
+  private static class MockSearchClient implements SearchClient {
+    private final Map<Integer, SearchCallback> pendingRequests = new TreeMap<>();
+    private final List<Integer> cancelledRequests = new ArrayList<>();
+
+    /**
+     * Complete a pending request.
+     *
+     * @param page       Requested page.
+     * @param imageCount Number of images on the page.
+     */
+    public void complete(int page, int imageCount) {
+      final Image[] images = new Image[imageCount];
+      for (int i = 0; i < imageCount; i++) {
+        images[i] = ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("bird"));
+      }
+      pendingRequests.remove(page).onSuccess(new SearchResult(images, Tag.arrayFromString("bird"), page));
+    }
+
+    /**
+     * Fail a pending request.
+     *
+     * @param page Requested page.
+     */
+    public void fail(int page) {
+      pendingRequests.remove(page).onFailure(new IOException("Page " + page + " failed."));
+    }
+
+    @Override
+    public SearchResult search(String tags) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SearchResult search(String tags, int pid) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public HttpCall search(String tags, SearchCallback callback) {
+      return search(tags, 0, callback);
+    }
+
+    @Override
+    public HttpCall search(String tags, final int pid, SearchCallback callback) {
+      pendingRequests.put(pid, callback);
+      return new HttpCall() {
+        @Override
+        public void cancel() {
+          if (pendingRequests.remove(pid) != null) {
+            cancelledRequests.add(pid);
+          }
+        }
+
+        @Override
+        public boolean isCancelled() {
+          return cancelledRequests.contains(pid);
+        }
+      };
+    }
+
+    @Override
+    public boolean setQueryFilter(ImageFilter filter) {
+      return false;
+    }
+
+    @Override
+    public void resumeSearch(SearchState searchState) {
+    }
+
+    @Override
+    public String getDefaultQuery() {
+      return "";
+    }
+
+    @Override
+    public AuthenticationType requiresAuthentication() {
+      return AuthenticationType.NONE;
+    }
+
+    @Override
+    public Settings getSettings() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import io.github.tjg1.library.norilib.clients.PageSizeController;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.clients.PageSizeController} class. */
+public class PageSizeControllerTests extends AndroidTestCase {
+
+  /** Make sure pages grow on fast servers, without overlapping or leaving gaps between them. */
+  public void testGrowth() throws Throwable {
+    final PageSizeController controller = new PageSizeController(25, 200);
+
+    PageSizeController.Page page = controller.getPage("bird", 0);
+    assertThat(page.limit).isEqualTo(25);
+    int end = page.getStart() + page.limit;
+    // 100 images per second.
+    controller.onPageFetched(page.limit, 250);
+
+    for (int pid = 1; pid < 8; pid++) {
+      page = controller.getPage("bird", pid);
+      assertThat(page.getStart()).isEqualTo(end);
+      assertThat(page.getStart() % page.limit).isEqualTo(0);
+      assertThat(page.limit).isLessThanOrEqualTo(100);
+      end = page.getStart() + page.limit;
+      controller.onPageFetched(page.limit, page.limit * 10);
+    }
+    assertThat(page.limit).isEqualTo(100);
+    assertThat(controller.getTargetLimit()).isEqualTo(100);
+  }
+
+  /** Make sure slow servers keep getting small pages. */
+  public void testSlowServer() throws Throwable {
+    final PageSizeController controller = new PageSizeController(25, 200);
+
+    controller.onPageFetched(controller.getPage("bird", 0).limit, 5000);
+    assertThat(controller.getPage("bird", 1).limit).isEqualTo(25);
+    assertThat(controller.getPage("bird", 2).limit).isEqualTo(25);
+    assertThat(controller.getPage("bird", 2).number).isEqualTo(2);
+  }
+
+  /** Make sure pages of a query keep their size, so images are not fetched twice. */
+  public void testStableLayout() throws Throwable {
+    final PageSizeController controller = new PageSizeController(25, 200);
+
+    controller.getPage("bird", 0);
+    final PageSizeController.Page page = controller.getPage("bird", 3);
+    controller.onPageFetched(200, 10);
+    assertThat(controller.getPage("bird", 3).limit).isEqualTo(page.limit);
+    assertThat(controller.getPage("bird", 3).number).isEqualTo(page.number);
+    // A new search starts with a small page.
+    assertThat(controller.getPage("bird", 0).limit).isEqualTo(25);
+  }
+
+  /** Make sure restored layouts continue where the saved pages ended, e.g. after the app was restarted. */
+  public void testRestoreLayout() throws Throwable {
+    final PageSizeController controller = new PageSizeController(25, 200);
+    controller.getPage("bird", 0);
+    controller.onPageFetched(200, 10);
+    final PageSizeController.Page page = controller.getPage("bird", 3);
+    final int[] pageStarts = controller.getPageStarts("bird");
+    assertThat(pageStarts).hasSize(5);
+    assertThat(page.limit).isGreaterThan(25);
+
+    // The measured throughput was lost along with the layout.
+    final PageSizeController restoredController = new PageSizeController(25, 200);
+    restoredController.restorePageLayout("bird", pageStarts);
+    PageSizeController.Page restoredPage = restoredController.getPage("bird", 3);
+    assertThat(restoredPage.getStart()).isEqualTo(page.getStart());
+    assertThat(restoredPage.limit).isEqualTo(page.limit);
+    restoredPage = restoredController.getPage("bird", 4);
+    assertThat(restoredPage.getStart()).isEqualTo(page.getStart() + page.limit);
+
+    // Pages added to a matching layout are kept.
+    restoredController.restorePageLayout("bird", pageStarts);
+    assertThat(restoredController.getPageStarts("bird")).hasSize(6);
+    // Invalid layouts are ignored.
+    restoredController.restorePageLayout("duck", new int[]{0, 30});
+    assertThat(restoredController.getPageStarts("duck")).containsOnly(0);
+  }
+}
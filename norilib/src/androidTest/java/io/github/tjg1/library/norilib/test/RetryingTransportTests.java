@@ -0,0 +1,212 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.http.CircuitBreaker;
+import io.github.tjg1.library.norilib.http.CircuitOpenException;
+import io.github.tjg1.library.norilib.http.HttpCall;
+import io.github.tjg1.library.norilib.http.HttpRequest;
+import io.github.tjg1.library.norilib.http.HttpResponse;
+import io.github.tjg1.library.norilib.http.HttpStatusException;
+import io.github.tjg1.library.norilib.http.HttpTransport;
+import io.github.tjg1.library.norilib.http.ResponseParser;
+import io.github.tjg1.library.norilib.http.RetryingTransport;
+import io.github.tjg1.library.norilib.http.StatusCodeParser;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.http.RetryingTransport} and {@link CircuitBreaker} classes. */
+public class RetryingTransportTests extends AndroidTestCase {
+  /** URL requested in the tests. */
+  private static final String URL = "https://danbooru.donmai.us/posts.json";
+
+  /** Make sure transient failures are retried, but not requests that can't safely be repeated. */
+  public void testRetry() throws Throwable {
+    final FakeTransport fakeTransport = new FakeTransport(503, 0, 200);
+    final HttpTransport transport = new RetryingTransport(fakeTransport, new CircuitBreaker(5, 60000));
+
+    assertThat(transport.execute(new HttpRequest(URL).retryOnFailure(), new StatusCodeParser())).isEqualTo(200);
+    assertThat(fakeTransport.requestCount).isEqualTo(3);
+
+    fakeTransport.setResponses(503);
+    assertThat(transport.execute(new HttpRequest(URL), new StatusCodeParser())).isEqualTo(503);
+    assertThat(fakeTransport.requestCount).isEqualTo(4);
+  }
+
+  /** Make sure requests are given up on after a few attempts, and that parse errors aren't retried. */
+  public void testGiveUp() throws Throwable {
+    final FakeTransport fakeTransport = new FakeTransport(502, 502, 502, 200);
+    final HttpTransport transport = new RetryingTransport(fakeTransport, new CircuitBreaker(5, 60000));
+
+    try {
+      transport.execute(new HttpRequest(URL).retryOnFailure(), new StatusCodeParser());
+      fail("Expected HttpStatusException.");
+    } catch (HttpStatusException e) {
+      assertThat(e.getCode()).isEqualTo(502);
+    }
+    assertThat(fakeTransport.requestCount).isEqualTo(3);
+
+    fakeTransport.setResponses(200, 200);
+    try {
+      transport.execute(new HttpRequest(URL).retryOnFailure(), new ResponseParser<Object>() {
+        @Override
+        public Object parse(HttpResponse response) throws Exception {
+          throw new IOException("Malformed response.");
+        }
+      });
+      fail("Expected IOException.");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).isEqualTo("Malformed response.");
+    }
+    assertThat(fakeTransport.requestCount).isEqualTo(4);
+  }
+
+  /** Make sure requests fail fast while a host is down, and that listeners are notified once it comes back. */
+  public void testCircuitBreaker() throws Throwable {
+    final FakeTransport fakeTransport = new FakeTransport(0, 0);
+    final CircuitBreaker circuitBreaker = new CircuitBreaker(2, 50);
+    final HttpTransport transport = new RetryingTransport(fakeTransport, circuitBreaker);
+    final CountDownLatch hostAvailable = new CountDownLatch(1);
+    circuitBreaker.addListener(new CircuitBreaker.Listener() {
+      @Override
+      public void onHostAvailable(String host) {
+        assertThat(host).isEqualTo("danbooru.donmai.us");
+        hostAvailable.countDown();
+      }
+    });
+
+    try {
+      transport.execute(new HttpRequest(URL).retryOnFailure(), new StatusCodeParser());
+      fail("Expected ConnectException.");
+    } catch (ConnectException ignored) {
+    }
+    assertThat(circuitBreaker.isOpen(URL)).isTrue();
+    assertThat(circuitBreaker.isOpen("https://yande.re/post.xml")).isFalse();
+    try {
+      transport.execute(new HttpRequest(URL).retryOnFailure(), new StatusCodeParser());
+      fail("Expected CircuitOpenException.");
+    } catch (CircuitOpenException ignored) {
+    }
+    assertThat(fakeTransport.requestCount).isEqualTo(2);
+
+    // The probe sent in the background gets a response.
+    fakeTransport.setResponses(200);
+    assertThat(hostAvailable.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(circuitBreaker.isOpen(URL)).isFalse();
+    assertThat(transport.execute(new HttpRequest(URL).retryOnFailure(), new StatusCodeParser())).isEqualTo(200);
+  }
+
+  /** Make sure requests failing fast are delivered on the callback executor, not re-entrantly. */
+  public void testCircuitOpenCallback() throws Throwable {
+    final FakeTransport fakeTransport = new FakeTransport(0);
+    final List<Runnable> callbacks = new ArrayList<>();
+    final HttpTransport transport = new RetryingTransport(fakeTransport, new CircuitBreaker(1, 60000), new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        callbacks.add(runnable);
+      }
+    });
+    final IOException[] error = new IOException[1];
+
+    try {
+      transport.execute(new HttpRequest(URL).retryOnFailure(), new StatusCodeParser());
+      fail("Expected ConnectException.");
+    } catch (ConnectException ignored) {
+    }
+    transport.enqueue(new HttpRequest(URL).retryOnFailure(), new StatusCodeParser(), new HttpTransport.Callback<Integer>() {
+      @Override
+      public void onSuccess(Integer result) {
+        fail("Expected CircuitOpenException.");
+      }
+
+      @Override
+      public void onFailure(IOException e) {
+        error[0] = e;
+      }
+    });
+    assertThat(error[0]).isNull();
+    assertThat(callbacks).hasSize(1);
+    callbacks.get(0).run();
+    assertThat(error[0]).isInstanceOf(CircuitOpenException.class);
+    assertThat(fakeTransport.requestCount).isEqualTo(1);
+  }
+
+  /** Transport returning scripted status codes. 0 fails the request with a connection error. */
+  private static class FakeTransport implements HttpTransport {
+    /** Status codes to respond with, in order. The last one is repeated. */
+    private final LinkedList<Integer> responses = new LinkedList<>();
+    /** Number of requests sent. */
+    private volatile int requestCount = 0;
+
+    public FakeTransport(Integer... responses) {
+      setResponses(responses);
+    }
+
+    public synchronized void setResponses(Integer... responses) {
+      this.responses.clear();
+      this.responses.addAll(Arrays.asList(responses));
+    }
+
+    @Override
+    public <T> T execute(HttpRequest request, ResponseParser<T> parser) throws IOException {
+      final int code;
+      synchronized (this) {
+        requestCount++;
+        code = responses.size() > 1 ? responses.removeFirst() : responses.getFirst();
+      }
+      if (code == 0) {
+        throw new ConnectException("Connection refused.");
+      }
+      try {
+        return parser.parse(new HttpResponse() {
+          @Override
+          public int getCode() {
+            return code;
+          }
+
+          @Override
+          public String getHeader(String name) {
+            return null;
+          }
+
+          @Override
+          public InputStream getBody() {
+            return new ByteArrayInputStream(new byte[0]);
+          }
+        });
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public <T> HttpCall enqueue(HttpRequest request, ResponseParser<T> parser, Callback<T> callback) {
+      try {
+        callback.onSuccess(execute(request, parser));
+      } catch (IOException e) {
+        callback.onFailure(e);
+      }
+      return null;
+    }
+  }
+}
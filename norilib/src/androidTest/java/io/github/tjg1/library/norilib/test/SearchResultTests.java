@@ -10,7 +10,9 @@ import android.os.Bundle;
 import android.test.AndroidTestCase;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
 import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.SearchState;
 import io.github.tjg1.library.norilib.Tag;
 
 import static org.fest.assertions.api.Assertions.assertThat;
@@ -21,6 +23,7 @@ public class SearchResultTests extends AndroidTestCase {
   /** Verify that SearchResult can be written and read from Parcels correctly. */
   public void testWriteToParcel() throws Throwable {
     final SearchResult original = getMockSearchResult();
+    original.setSearchState(new SearchState("Tag", "Tag -duck", new int[]{0, 25}));
     final SearchResult unParceled;
     final Bundle bundle = new Bundle();
 
@@ -34,6 +37,7 @@ public class SearchResultTests extends AndroidTestCase {
       assertThat(unParceled.getCurrentOffset()).isEqualTo(original.getCurrentOffset());
       assertThat(unParceled.getQuery()).containsOnly(original.getQuery());
       assertThat(unParceled.hasNextPage()).isEqualTo(original.hasNextPage());
+      assertThat(unParceled.getSearchState().getApiQuery()).isEqualTo("Tag -duck");
     }
   }
 
@@ -42,7 +46,7 @@ public class SearchResultTests extends AndroidTestCase {
     final SearchResult searchResult = getMockSearchResult();
     searchResult.filter(new Tag("duck"));
     assertThat(searchResult.getImages()).hasSize(1);
-    assertThat(searchResult.getImages()[0].tags[0].getName()).isEqualTo("bird");
+    assertThat(searchResult.getImages()[0].getTag(0).getName()).isEqualTo("bird");
     assertThat(searchResult.getImages()[0].searchPagePosition).isEqualTo(0);
   }
 
@@ -55,12 +59,85 @@ public class SearchResultTests extends AndroidTestCase {
     assertThat(searchResult.getCurrentOffset()).isEqualTo(20);
   }
 
+  /** Tests the {@link SearchResult#addImages(Image[], int, ImageFilter)} method. */
+  public void testAddImagesWithFilter() throws Throwable {
+    final SearchResult searchResult = getMockSearchResult();
+    final Image[] page = new Image[]{
+        ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("duck")),
+        ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("bird")),
+        ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("quack"))
+    };
+    for (Image image : page) {
+      image.searchPage = 1;
+    }
+
+    assertThat(searchResult.addImages(page, 1, new ImageFilter(new Tag[]{new Tag("duck")}, null))).isEqualTo(2);
+    assertThat(searchResult.size()).isEqualTo(3);
+    assertThat(searchResult.getPage(1)).containsExactly(page[1], page[2]);
+    assertThat(page[1].searchPagePosition).isEqualTo(0);
+    assertThat(page[2].searchPagePosition).isEqualTo(1);
+    // Images on earlier pages are re-evaluated, as the filter changed.
+    assertThat(searchResult.getPage(0)).hasSize(1);
+    assertThat(searchResult.getUnfilteredImageList()).hasSize(5);
+  }
+
+  /** Make sure images removed by a filter are shown again when the filter is changed. */
+  public void testChangeFilter() throws Throwable {
+    final SearchResult searchResult = getMockSearchResult();
+    searchResult.filter(new Tag("duck"));
+    assertThat(searchResult.size()).isEqualTo(1);
+    assertThat(searchResult.getUnfilteredImageList()).hasSize(2);
+
+    searchResult.filter(new ImageFilter(null, new Image.SafeSearchRating[]{Image.SafeSearchRating.S}));
+    assertThat(searchResult.size()).isEqualTo(1);
+    assertThat(searchResult.get(0).safeSearchRating).isEqualTo(Image.SafeSearchRating.S);
+
+    searchResult.filter((ImageFilter) null);
+    assertThat(searchResult.size()).isEqualTo(2);
+    assertThat(searchResult.get(1).searchPagePosition).isEqualTo(1);
+  }
+
+  /** Make sure tag and SafeSearch rating filters are added to the current filter. */
+  public void testFilterCumulative() throws Throwable {
+    final SearchResult searchResult = getMockSearchResult();
+    searchResult.filter(new Tag("bird"));
+    searchResult.filter(Image.SafeSearchRating.Q);
+    assertThat(searchResult.size()).isEqualTo(0);
+
+    searchResult.filter(new Tag("goose"));
+    searchResult.filter(Image.SafeSearchRating.S, Image.SafeSearchRating.Q);
+    assertThat(searchResult.size()).isEqualTo(0);
+    assertThat(searchResult.getUnfilteredImageList()).hasSize(2);
+  }
+
   /** Tests the {@link io.github.tjg1.library.norilib.SearchResult#getImages()} method. */
   public void testGetImages() throws Throwable {
     final SearchResult searchResult = getMockSearchResult();
     assertThat(searchResult.getImages()).isNotEmpty();
   }
 
+  /** Tests the {@link SearchResult#size()} and {@link SearchResult#get(int)} methods. */
+  public void testIndexedAccess() throws Throwable {
+    final SearchResult searchResult = getMockSearchResult();
+    assertThat(searchResult.size()).isEqualTo(2);
+    assertThat(searchResult.get(1)).isSameAs(searchResult.getImages()[1]);
+    assertThat(searchResult.getImageList()).containsExactly(searchResult.getImages());
+  }
+
+  /** Tests the {@link SearchResult#getPage(int)} method. */
+  public void testGetPage() throws Throwable {
+    final SearchResult searchResult = getMockSearchResult();
+    final Image image = ImageTests.getMockImage(Image.SafeSearchRating.E, new Tag("quack"));
+    image.searchPage = 2;
+    image.searchPagePosition = 0;
+    searchResult.addImages(new Image[]{image}, 2);
+
+    assertThat(searchResult.getPage(0)).hasSize(2);
+    assertThat(searchResult.getPage(1)).isEmpty();
+    assertThat(searchResult.getPage(2)).containsExactly(image);
+    assertThat(searchResult.getPage(3)).isEmpty();
+  }
+
   /** Tests the {@link io.github.tjg1.library.norilib.SearchResult#filter(Image.SafeSearchRating...)} method. */
   public void testFilterWithSafeSearchRating() throws Throwable {
     final SearchResult searchResult = getMockSearchResult();
@@ -93,9 +170,12 @@ public class SearchResultTests extends AndroidTestCase {
     image.searchPage = 1;
     image.searchPagePosition = 0;
     searchResult.addImages(new Image[]{image}, 1);
+    searchResult.setSearchState(new SearchState("Tag", "Tag -duck", new int[]{0, 25}));
     SearchResult filteredSearchResult = searchResult.getSearchResultForPage(1);
     assertThat(searchResult.getImages()[0].searchPage).isEqualTo(0);
     assertThat(filteredSearchResult.getImages()[0].searchPage).isEqualTo(1);
+    // The next pages are fetched with the same parameters.
+    assertThat(filteredSearchResult.getSearchState()).isSameAs(searchResult.getSearchState());
   }
 
   /** Create a SearchResult with fake data suitable for testing. */
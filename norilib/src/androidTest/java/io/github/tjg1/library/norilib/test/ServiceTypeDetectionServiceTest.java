@@ -22,6 +22,7 @@ import io.github.tjg1.library.norilib.clients.E621;
 import io.github.tjg1.library.norilib.clients.Flickr;
 import io.github.tjg1.library.norilib.clients.FlickrUser;
 import io.github.tjg1.library.norilib.clients.Gelbooru;
+import io.github.tjg1.library.norilib.clients.SearchClient;
 import io.github.tjg1.library.norilib.clients.Shimmie;
 import io.github.tjg1.library.norilib.service.ServiceTypeDetectionService;
 
@@ -112,6 +113,21 @@ public class ServiceTypeDetectionServiceTest extends InstrumentationTestCase {
     assertThat(url).isEqualTo("https://flickr.com/photos/128962151@N05");
   }
 
+  /** Test guessing the API type from the front page of a site. */
+  public void testFingerprint() throws Throwable {
+    assertThat(ServiceTypeDetectionService.fingerprint("client api/26 (hydrus network)", null))
+        .isEqualTo(SearchClient.Settings.APIType.HYDRUS);
+    assertThat(ServiceTypeDetectionService.fingerprint("nginx", "<title>Danbooru</title>"))
+        .isEqualTo(SearchClient.Settings.APIType.DANBOARD);
+    assertThat(ServiceTypeDetectionService.fingerprint(null, "<p>Running Moebooru</p>"))
+        .isEqualTo(SearchClient.Settings.APIType.DANBOARD_LEGACY);
+    assertThat(ServiceTypeDetectionService.fingerprint(null, "<p>Running Gelbooru Beta 0.1.11</p> Danbooru"))
+        .isEqualTo(SearchClient.Settings.APIType.GELBOARD);
+    assertThat(ServiceTypeDetectionService.fingerprint(null, "<meta name=\"generator\" content=\"Shimmie\">"))
+        .isEqualTo(SearchClient.Settings.APIType.SHIMMIE);
+    assertThat(ServiceTypeDetectionService.fingerprint("gws", "<title>Google</title>")).isNull();
+  }
+
   /** Test error returned when an invalid URL is supplied. */
   public void testInvalidUrlError() throws Throwable {
     // Create a lock that waits for the request to complete in background.
@@ -76,4 +76,24 @@ public class TagTests extends AndroidTestCase {
     assertThat(tags[0]).isEqualTo(new Tag("duck", Tag.Type.CHARACTER));
     assertThat(tags[1]).isEqualTo(new Tag("quack", Tag.Type.CHARACTER));
   }
+
+  /** Make sure repeated and irregular whitespace doesn't create empty tags. */
+  public void testArrayFromStringWhitespace() throws Throwable {
+    final Tag[] tags = Tag.arrayFromString("  duck   quack\tbird ");
+    assertThat(tags).hasSize(3);
+    assertThat(tags[0].getName()).isEqualTo("duck");
+    assertThat(tags[1].getName()).isEqualTo("quack");
+    assertThat(tags[2].getName()).isEqualTo("bird");
+    assertThat(Tag.arrayFromString("   ")).isEmpty();
+  }
+
+  /** Make sure tags with the same name and type share a single instance and ID. */
+  public void testIntern() throws Throwable {
+    final Tag tag = Tag.intern("duck", Tag.Type.CHARACTER);
+
+    assertThat(Tag.arrayFromString("quack duck", Tag.Type.CHARACTER)[1]).isSameAs(tag);
+    assertThat(Tag.intern("duck", Tag.Type.ARTIST).getId()).isNotEqualTo(tag.getId());
+    assertThat(new Tag("duck", Tag.Type.CHARACTER).getId()).isEqualTo(tag.getId());
+    assertThat(Tag.fromId(tag.getId())).isSameAs(tag);
+  }
 }
@@ -0,0 +1,316 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.content.Context;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.E621;
+import io.github.tjg1.library.norilib.clients.Flickr;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Compares the streaming E621 and Flickr parsers against the DOM parsers they replaced, using
+ * sample 100 post pages. Timings and allocations are written to logcat.
+ */
+public class XmlParserBenchmarkTests extends AndroidTestCase {
+  /** Log tag. */
+  private static final String TAG = "XmlParserBenchmark";
+  /** Number of times each page is parsed before measuring. */
+  private static final int WARMUP_ITERATIONS = 5;
+  /** Number of times each page is parsed while measuring. */
+  private static final int ITERATIONS = 20;
+
+  /** Make sure the E621 parser returns the same images as the DOM parser and allocates less. */
+  public void testE621Parser() throws Throwable {
+    final String body = readResource("e621_posts.xml");
+    final E621Client client = new E621Client(getContext());
+
+    final Image[] images = client.parse(body).getImages();
+    final List<Image> expected = client.parseDocument(body);
+    assertThat(images).hasSize(100);
+    assertSameImages(images, expected);
+
+    final Measurement dom = measure(new Parser() {
+      @Override
+      public void parse(String body) throws Exception {
+        client.parseDocument(body);
+      }
+    }, body);
+    final Measurement pull = measure(new Parser() {
+      @Override
+      public void parse(String body) throws Exception {
+        client.parse(body);
+      }
+    }, body);
+    log("E621", dom, pull);
+    if (dom.allocatedBytes > 0) {
+      // Allocation counting is not supported by every runtime.
+      assertThat(pull.allocatedBytes).isLessThan(dom.allocatedBytes);
+    }
+  }
+
+  /** Make sure the Flickr parser returns the same images as the DOM parser and allocates less. */
+  public void testFlickrParser() throws Throwable {
+    final String body = readResource("flickr_photos.xml");
+    final FlickrClient client = new FlickrClient(getContext());
+
+    final Image[] images = client.parse(body).getImages();
+    final List<Image> expected = client.parseDocument(body);
+    assertThat(images).hasSize(100);
+    assertSameImages(images, expected);
+
+    final Measurement dom = measure(new Parser() {
+      @Override
+      public void parse(String body) throws Exception {
+        client.parseDocument(body);
+      }
+    }, body);
+    final Measurement pull = measure(new Parser() {
+      @Override
+      public void parse(String body) throws Exception {
+        client.parse(body);
+      }
+    }, body);
+    log("Flickr", dom, pull);
+    if (dom.allocatedBytes > 0) {
+      // Allocation counting is not supported by every runtime.
+      assertThat(pull.allocatedBytes).isLessThan(dom.allocatedBytes);
+    }
+  }
+
+  //region Helper methods
+  /** Compare the fields set by both parsers. */
+  private static void assertSameImages(Image[] images, List<Image> expected) {
+    assertThat(images).hasSize(expected.size());
+    for (int i = 0; i < images.length; i++) {
+      final Image image = images[i];
+      final Image other = expected.get(i);
+      assertThat(image.id).isEqualTo(other.id);
+      assertThat(image.fileUrl).isEqualTo(other.fileUrl);
+      assertThat(image.width).isEqualTo(other.width);
+      assertThat(image.height).isEqualTo(other.height);
+      assertThat(image.sampleUrl).isEqualTo(other.sampleUrl);
+      assertThat(image.sampleWidth).isEqualTo(other.sampleWidth);
+      assertThat(image.sampleHeight).isEqualTo(other.sampleHeight);
+      assertThat(image.previewUrl).isEqualTo(other.previewUrl);
+      assertThat(image.previewWidth).isEqualTo(other.previewWidth);
+      assertThat(image.previewHeight).isEqualTo(other.previewHeight);
+      assertThat(Tag.stringFromArray(image.getTags())).isEqualTo(Tag.stringFromArray(other.getTags()));
+      assertThat(image.parentId).isEqualTo(other.parentId);
+      assertThat(image.safeSearchRating).isEqualTo(other.safeSearchRating);
+      assertThat(image.score).isEqualTo(other.score);
+      assertThat(image.md5).isEqualTo(other.md5);
+      assertThat(image.createdAt).isEqualTo(other.createdAt);
+      assertThat(image.webUrl).isEqualTo(other.webUrl);
+      assertThat(image.searchPagePosition).isEqualTo(other.searchPagePosition);
+    }
+  }
+
+  /** Parse the page repeatedly, measuring time and allocations on the current thread. */
+  @SuppressWarnings("deprecation")
+  private static Measurement measure(Parser parser, String body) throws Exception {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      parser.parse(body);
+    }
+
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+    final long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      parser.parse(body);
+    }
+    final long time = System.nanoTime() - start;
+    Debug.stopAllocCounting();
+
+    return new Measurement(time / ITERATIONS, Debug.getThreadAllocSize() / ITERATIONS);
+  }
+
+  /** Write the results of a benchmark to logcat. */
+  private static void log(String name, Measurement dom, Measurement pull) {
+    Log.i(TAG, String.format(Locale.US, "%s DOM: %d us, %d KiB per page", name, dom.time / 1000, dom.allocatedBytes / 1024));
+    Log.i(TAG, String.format(Locale.US, "%s pull: %d us, %d KiB per page", name, pull.time / 1000, pull.allocatedBytes / 1024));
+  }
+
+  /** Read a sample response bundled with the tests. */
+  private String readResource(String name) throws IOException {
+    final InputStream inputStream = getClass().getClassLoader().getResourceAsStream(name);
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int count;
+      while ((count = inputStream.read(buffer)) != -1) {
+        out.write(buffer, 0, count);
+      }
+      return out.toString("UTF-8");
+    } finally {
+      inputStream.close();
+    }
+  }
+  //endregion
+
+  //region Inner classes
+  /** Parser under test. */
+  private interface Parser {
+    void parse(String body) throws Exception;
+  }
+
+  /** Average time and allocations per parsed page. */
+  private static class Measurement {
+    /** Time in nanoseconds. */
+    public final long time;
+    /** Allocated bytes. */
+    public final long allocatedBytes;
+
+    public Measurement(long time, long allocatedBytes) {
+      this.time = time;
+      this.allocatedBytes = allocatedBytes;
+    }
+  }
+
+  /** Exposes the E621 parsers. */
+  private static class E621Client extends E621 {
+    public E621Client(Context context) {
+      super(context, "E621", "https://e621.net");
+    }
+
+    /** Parse a response with the streaming parser. */
+    public SearchResult parse(String body) throws IOException {
+      return new SearchResultParser("", 0, null).parse(new StringReader(body));
+    }
+
+    /** Parse a response with the DOM parser previously used by {@link E621}. */
+    public List<Image> parseDocument(String body) throws Exception {
+      final List<Image> imageList = new ArrayList<>();
+      final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .parse(new InputSource(new StringReader(body)));
+      final NodeList nList = doc.getElementsByTagName("post");
+
+      for (int i = 0; i < nList.getLength(); i++) {
+        final Node node = nList.item(i);
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+          final Element element = (Element) node;
+          final Image image = new Image();
+          image.searchPagePosition = i;
+          image.fileUrl = element.getElementsByTagName("file_url").item(0).getTextContent();
+          image.width = Integer.parseInt(element.getElementsByTagName("width").item(0).getTextContent());
+          image.height = Integer.parseInt(element.getElementsByTagName("height").item(0).getTextContent());
+          image.previewUrl = element.getElementsByTagName("preview_url").item(0).getTextContent();
+          image.previewWidth = Integer.parseInt(element.getElementsByTagName("preview_width").item(0).getTextContent());
+          image.previewHeight = Integer.parseInt(element.getElementsByTagName("preview_height").item(0).getTextContent());
+          image.sampleUrl = element.getElementsByTagName("sample_url").item(0).getTextContent();
+          image.sampleWidth = Integer.parseInt(element.getElementsByTagName("sample_width").item(0).getTextContent());
+          image.sampleHeight = Integer.parseInt(element.getElementsByTagName("sample_height").item(0).getTextContent());
+          image.setTags(Tag.arrayFromString(element.getElementsByTagName("tags").item(0).getTextContent(), Tag.Type.GENERAL));
+          image.id = element.getElementsByTagName("id").item(0).getTextContent();
+          image.webUrl = webUrlFromId(image.id);
+          image.parentId = element.getElementsByTagName("parent_id").item(0).getTextContent();
+          image.safeSearchRating = Image.SafeSearchRating.fromString(element.getElementsByTagName("rating").item(0).getTextContent());
+          image.score = Integer.parseInt(element.getElementsByTagName("score").item(0).getTextContent());
+          image.md5 = element.getElementsByTagName("md5").item(0).getTextContent();
+          image.createdAt = dateFromString(element.getElementsByTagName("created_at").item(0).getTextContent());
+          imageList.add(image);
+        }
+      }
+      return imageList;
+    }
+  }
+
+  /** Exposes the Flickr parsers. */
+  private static class FlickrClient extends Flickr {
+    public FlickrClient(Context context) {
+      super(context, "Flickr", null);
+    }
+
+    /** Parse a response with the streaming parser. */
+    public SearchResult parse(String body) throws IOException {
+      return new SearchResultParser("", 0, null).parse(new StringReader(body));
+    }
+
+    /** Parse a response with the DOM parser previously used by {@link Flickr}. */
+    public List<Image> parseDocument(String body) throws Exception {
+      final List<Image> imageList = new ArrayList<>();
+      final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .parse(new InputSource(new StringReader(body)));
+      final NodeList nodeList = doc.getElementsByTagName("photo");
+
+      for (int i = 0; i < nodeList.getLength(); i++) {
+        final Node node = nodeList.item(i);
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+          final Element element = (Element) node;
+          final Image image = new Image();
+          image.searchPagePosition = i;
+
+          final String urlQ = element.getAttribute("url_q");
+          final String urlM = element.getAttribute("url_m");
+          final String urlL = element.getAttribute("url_l");
+          final String urlO = element.getAttribute("url_o");
+          if (!TextUtils.isEmpty(urlO)) {
+            image.fileUrl = urlO;
+            image.width = Integer.parseInt(element.getAttribute("width_o"));
+            image.height = Integer.parseInt(element.getAttribute("height_o"));
+          } else if (!TextUtils.isEmpty(urlL)) {
+            image.fileUrl = urlL;
+            image.width = Integer.parseInt(element.getAttribute("width_l"));
+            image.height = Integer.parseInt(element.getAttribute("height_l"));
+          } else if (!TextUtils.isEmpty(urlM)) {
+            image.fileUrl = urlM;
+            image.width = Integer.parseInt(element.getAttribute("width_m"));
+            image.height = Integer.parseInt(element.getAttribute("height_m"));
+          }
+          if (!TextUtils.isEmpty(urlL)) {
+            image.sampleUrl = urlL;
+            image.sampleWidth = Integer.parseInt(element.getAttribute("width_l"));
+            image.sampleHeight = Integer.parseInt(element.getAttribute("height_l"));
+          } else if (!TextUtils.isEmpty(urlM)) {
+            image.sampleUrl = urlM;
+            image.sampleWidth = Integer.parseInt(element.getAttribute("width_m"));
+            image.sampleHeight = Integer.parseInt(element.getAttribute("height_m"));
+          }
+          if (!TextUtils.isEmpty(urlQ)) {
+            image.previewUrl = urlQ;
+            image.previewWidth = Integer.parseInt(element.getAttribute("width_q"));
+            image.previewHeight = Integer.parseInt(element.getAttribute("height_q"));
+          }
+          image.setTags(Tag.arrayFromString(element.getAttribute("tags")));
+          image.id = element.getAttribute("id");
+          image.webUrl = webUrlFromId(element.getAttribute("owner"), element.getAttribute("id"));
+          image.safeSearchRating = Image.SafeSearchRating.S;
+          image.md5 = "2d57d21f35e060a4c5e81c03aea3efa8";
+          image.createdAt = new Date(Long.parseLong(element.getAttribute("dateupload"), 10) * 1000);
+          imageList.add(image);
+        }
+      }
+      return imageList;
+    }
+  }
+  //endregion
+}
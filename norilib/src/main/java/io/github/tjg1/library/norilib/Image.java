@@ -56,7 +56,7 @@ public class Image implements Parcelable {
     sampleUrl = in.readString();
     sampleWidth = in.readInt();
     sampleHeight = in.readInt();
-    tags = in.createTypedArray(Tag.CREATOR);
+    setTags(in.createTypedArray(Tag.CREATOR));
     id = in.readString();
     parentId = in.readString();
     webUrl = in.readString();
@@ -65,6 +65,9 @@ public class Image implements Parcelable {
     score = in.readInt();
     source = in.readString();
     md5 = in.readString();
+    sha256 = in.readString();
+    mimeType = in.readString();
+    duration = in.readInt();
     final int tmpSearchPage = in.readInt();
     searchPage = (tmpSearchPage != -1) ? tmpSearchPage : null;
     final int tmpSearchPagePosition = in.readInt();
@@ -90,7 +93,7 @@ public class Image implements Parcelable {
     dest.writeString(sampleUrl); //
     dest.writeInt(sampleWidth); //
     dest.writeInt(sampleHeight); //
-    dest.writeTypedArray(tags, 0); //
+    dest.writeTypedArray(getTags(), 0); //
     dest.writeString(id); //
     dest.writeString(parentId); //
     dest.writeString(webUrl); //
@@ -99,6 +102,9 @@ public class Image implements Parcelable {
     dest.writeInt(score);
     dest.writeString(source);
     dest.writeString(md5);
+    dest.writeString(sha256);
+    dest.writeString(mimeType);
+    dest.writeInt(duration);
     dest.writeInt(searchPage != null ? searchPage : -1);
     dest.writeInt(searchPagePosition != null ? searchPagePosition : -1);
     dest.writeLong(createdAt != null ? createdAt.getTime() : -1L);
@@ -133,8 +139,8 @@ public class Image implements Parcelable {
   public int sampleWidth = 0;
   /** Sample height. */
   public int sampleHeight = 0;
-  /** Image tags. */
-  public Tag[] tags;
+  /** IDs of the image's tags in the tag dictionary. See {@link Tag#getId()}. */
+  private int[] tagIds;
   /** Image ID */
   public String id;
   /** Image parent ID. Used when there are multiple similar images. */
@@ -147,6 +153,12 @@ public class Image implements Parcelable {
   public String source;
   /** MD5 hash */
   public String md5;
+  /** SHA-256 hash. Only returned by APIs that identify files by their SHA-256 hash (Hydrus). */
+  public String sha256;
+  /** File MIME type. Null if not returned by the API. */
+  public String mimeType;
+  /** Duration of animations and videos, in milliseconds. 0 for still images or if unknown. */
+  public int duration = 0;
   /** Search result page that contains this Image. */
   public Integer searchPage;
   /** The position of the Image on the search result page. */
@@ -167,6 +179,63 @@ public class Image implements Parcelable {
   }
   //endregion
 
+  //region Tags
+  /**
+   * Get the image's tags.
+   *
+   * @return Image tags. Null if not set.
+   */
+  public Tag[] getTags() {
+    return tagIds != null ? TagDictionary.get(tagIds) : null;
+  }
+
+  /**
+   * Set the image's tags.
+   * Only tag IDs are stored, so images can share a single {@link Tag} instance for each tag.
+   *
+   * @param tags Image tags.
+   */
+  public void setTags(Tag... tags) {
+    if (tags == null) {
+      tagIds = null;
+      return;
+    }
+    tagIds = new int[tags.length];
+    for (int i = 0; i < tags.length; i++) {
+      tagIds[i] = tags[i].getId();
+    }
+  }
+
+  /**
+   * Get the number of tags the image is tagged with.
+   *
+   * @return Number of tags.
+   */
+  public int getTagCount() {
+    return tagIds != null ? tagIds.length : 0;
+  }
+
+  /**
+   * Get a single tag, without creating an array of all of the image's tags.
+   *
+   * @param position Position of the tag, between 0 and {@link #getTagCount()}.
+   * @return Tag at given position.
+   */
+  public Tag getTag(int position) {
+    return TagDictionary.get(tagIds[position]);
+  }
+
+  /**
+   * Get the IDs of the image's tags, in the order they were set.
+   * The returned array is used internally and must not be modified.
+   *
+   * @return Tag IDs. Empty array if no tags were set.
+   */
+  public int[] getTagIds() {
+    return tagIds != null ? tagIds : new int[0];
+  }
+  //endregion
+
   //region Static method: Pixiv URLs from IDs
   /**
    * Extract a Pixiv ID from URL to an image's Pixiv page.
@@ -193,7 +262,8 @@ public class Image implements Parcelable {
 
   //region File extension from URL
   /**
-   * Attempts to *guess* the file type of the {@link Image} based on the File URL.
+   * Attempts to *guess* the file type of the {@link Image} based on the MIME type returned by the
+   * API or, if not available, the File URL.
    * May not be accurate for API types that don't include the file extension in image file names.
    *
    * @return Lower-case file extension, without the preceding dot. "jpeg" gets normalised into
@@ -201,6 +271,15 @@ public class Image implements Parcelable {
    */
   @Nullable
   public String getFileExtension() {
+    // Prefer the MIME type returned by the API, if available.
+    if (!TextUtils.isEmpty(this.mimeType) && this.mimeType.indexOf('/') != -1) {
+      String subType = this.mimeType.toLowerCase(Locale.US).substring(this.mimeType.indexOf('/') + 1);
+      if (subType.startsWith("x-")) {
+        subType = subType.substring(2);
+      }
+      return "jpeg".equals(subType) ? "jpg" : subType;
+    }
+
     String path = Uri.parse(this.fileUrl).getLastPathSegment();
     String fileExt = (!TextUtils.isEmpty(path) && path.contains(".")) ?
         path.toLowerCase(Locale.US).substring(path.lastIndexOf(".") + 1) : null;
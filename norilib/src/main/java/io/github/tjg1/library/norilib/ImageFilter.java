@@ -0,0 +1,375 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tag blacklist and SafeSearch settings compiled into a form that can be evaluated against each
+ * {@link Image} with a few integer comparisons.
+ * <p>
+ * Blacklisted tags are kept in a bit set indexed by their {@link Tag#getId()}, so checking an
+ * image costs a bit lookup per tag. Filters are immutable, apart from the hit counters kept for
+ * diagnostics, and can be shared between threads. Create a new filter when the settings change.
+ */
+public class ImageFilter {
+
+  //region Constants
+  /** SafeSearch ratings that can be excluded on the server, starting with the most effective. */
+  private static final Image.SafeSearchRating[] EXCLUDABLE_RATINGS =
+      {Image.SafeSearchRating.E, Image.SafeSearchRating.Q, Image.SafeSearchRating.S};
+  /** Names of the {@link #EXCLUDABLE_RATINGS} used in search queries. Understood by all Danbooru-like APIs. */
+  private static final String[] EXCLUDABLE_RATING_NAMES = {"explicit", "questionable", "safe"};
+  //endregion
+
+  //region Instance fields
+  /** Bit set of blacklisted tag IDs. */
+  private final BitSet tagIdSet;
+  /** Blacklisted tag IDs, sorted. Used to find the hit counter of each tag. */
+  private final int[] tagIds;
+  /** Allowed SafeSearch ratings, indexed by ordinal. Null if all ratings are allowed. */
+  private final boolean[] allowedRatings;
+  /** Number of images removed by each blacklisted tag, in the same order as {@link #tagIds}. */
+  private final AtomicIntegerArray tagHits;
+  /** Number of images removed by each SafeSearch rating, indexed by ordinal. */
+  private final AtomicIntegerArray ratingHits;
+  /** Number of images evaluated by this filter. */
+  private final AtomicInteger evaluatedCount = new AtomicInteger();
+  //endregion
+
+  //region Constructors
+  /**
+   * Compile a new filter.
+   *
+   * @param tags              Tags to remove from search results. (optional)
+   * @param safeSearchRatings SafeSearch ratings to keep in search results.
+   *                          Null or empty array to keep images of all ratings.
+   */
+  public ImageFilter(@Nullable Tag[] tags, @Nullable Image.SafeSearchRating[] safeSearchRatings) {
+    this(toTagIdSet(tags), toAllowedRatings(safeSearchRatings));
+  }
+
+  /**
+   * Compile a new filter.
+   *
+   * @param tagIdSet       Bit set of blacklisted tag IDs. Owned by the new filter.
+   * @param allowedRatings Allowed SafeSearch ratings, indexed by ordinal. Null to allow all ratings.
+   */
+  private ImageFilter(BitSet tagIdSet, @Nullable boolean[] allowedRatings) {
+    this.tagIdSet = tagIdSet;
+    // Set bits are returned in ascending order, with duplicate tags merged.
+    tagIds = new int[tagIdSet.cardinality()];
+    for (int i = 0, tagId = tagIdSet.nextSetBit(0); tagId >= 0; i++, tagId = tagIdSet.nextSetBit(tagId + 1)) {
+      tagIds[i] = tagId;
+    }
+    tagHits = new AtomicIntegerArray(tagIds.length);
+
+    this.allowedRatings = allowedRatings;
+    ratingHits = new AtomicIntegerArray(Image.SafeSearchRating.values().length);
+  }
+  //endregion
+
+  //region Combining filters
+  /**
+   * Create a filter removing the images removed by this filter, as well as images with any of the
+   * given tags.
+   *
+   * @param tags Tags to remove from search results.
+   * @return New filter. This filter, if no tags were given.
+   */
+  public ImageFilter withTags(@Nullable Tag... tags) {
+    if (tags == null || tags.length == 0) {
+      return this;
+    }
+    final BitSet mergedTagIdSet = toTagIdSet(tags);
+    mergedTagIdSet.or(tagIdSet);
+    return new ImageFilter(mergedTagIdSet, allowedRatings);
+  }
+
+  /**
+   * Create a filter removing the images removed by this filter, as well as images with a SafeSearch
+   * rating other than the given ones.
+   *
+   * @param safeSearchRatings SafeSearch ratings to keep in search results.
+   * @return New filter. This filter, if no ratings were given.
+   */
+  public ImageFilter withSafeSearchRatings(@Nullable Image.SafeSearchRating... safeSearchRatings) {
+    if (safeSearchRatings == null || safeSearchRatings.length == 0) {
+      return this;
+    }
+    final boolean[] mergedAllowedRatings = toAllowedRatings(safeSearchRatings);
+    if (allowedRatings != null) {
+      for (int i = 0; i < mergedAllowedRatings.length; i++) {
+        mergedAllowedRatings[i] &= allowedRatings[i];
+      }
+    }
+    return new ImageFilter((BitSet) tagIdSet.clone(), mergedAllowedRatings);
+  }
+  //endregion
+
+  //region Evaluating images
+  /**
+   * Check if an image should be kept in the search result.
+   *
+   * @param image        Image to check.
+   * @param exemptTagIds IDs of tags that should not be filtered, usually the tags searched for.
+   * @return True if the image passes the filter.
+   */
+  public boolean accept(Image image, int... exemptTagIds) {
+    evaluatedCount.incrementAndGet();
+
+    if (allowedRatings != null) {
+      // Images without a rating are always removed and counted as unrated.
+      if (image.safeSearchRating == null) {
+        ratingHits.incrementAndGet(Image.SafeSearchRating.U.ordinal());
+        return false;
+      } else if (!allowedRatings[image.safeSearchRating.ordinal()]) {
+        ratingHits.incrementAndGet(image.safeSearchRating.ordinal());
+        return false;
+      }
+    }
+
+    if (!tagIdSet.isEmpty()) {
+      for (int tagId : image.getTagIds()) {
+        if (tagIdSet.get(tagId) && !contains(exemptTagIds, tagId)) {
+          tagHits.incrementAndGet(Arrays.binarySearch(tagIds, tagId));
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check if this filter has any effect.
+   *
+   * @return True if no tags are blacklisted and images of all ratings are allowed.
+   */
+  public boolean isEmpty() {
+    return tagIds.length == 0 && allowedRatings == null;
+  }
+
+  /**
+   * Check if this filter removes every image removed by another filter. If it doesn't, search
+   * queries with exclusions added by the other filter miss images this filter would keep.
+   *
+   * @param other Filter to compare with.
+   * @return True if all tags blacklisted by the other filter are blacklisted by this one, and it
+   * doesn't allow any SafeSearch rating the other filter removes.
+   */
+  public boolean includes(ImageFilter other) {
+    final BitSet missingTagIds = (BitSet) other.tagIdSet.clone();
+    missingTagIds.andNot(tagIdSet);
+    if (!missingTagIds.isEmpty()) {
+      return false;
+    }
+
+    if (other.allowedRatings == null) {
+      return true;
+    } else if (allowedRatings == null) {
+      return false;
+    }
+    for (int i = 0; i < allowedRatings.length; i++) {
+      if (allowedRatings[i] && !other.allowedRatings[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+  //endregion
+
+  //region Server-side filtering
+  /**
+   * Add exclusions to a search query, so images removed by this filter are not returned by the API
+   * in the first place. SafeSearch ratings are excluded first, then the blacklisted tags that
+   * removed the most images so far. Exclusions that don't fit into the API's tag limit are left
+   * to {@link #accept(Image, int...)}, which should still be applied to the results.
+   * <p>
+   * The ranking of blacklisted tags changes as images are filtered, so the result should be
+   * computed once per search and reused for all of its pages. Otherwise, pages could be fetched
+   * with different exclusions and overlap or skip images.
+   *
+   * @param query   Search query. A space-separated list of tags.
+   * @param maxTags Maximum number of tags the API accepts in a single query.
+   * @return Query with exclusions appended.
+   */
+  public String appendExclusions(String query, int maxTags) {
+    final Tag[] queryTags = Tag.arrayFromString(query);
+    int tagBudget = maxTags - queryTags.length;
+    if (tagBudget <= 0) {
+      return query;
+    }
+    final StringBuilder sb = new StringBuilder(query.trim());
+
+    // Don't override ratings searched for by the user.
+    if (allowedRatings != null && !containsRatingTag(queryTags)) {
+      for (int i = 0; i < EXCLUDABLE_RATINGS.length && tagBudget > 0; i++) {
+        if (!allowedRatings[EXCLUDABLE_RATINGS[i].ordinal()]) {
+          appendTag(sb, "-rating:" + EXCLUDABLE_RATING_NAMES[i]);
+          tagBudget--;
+        }
+      }
+    }
+
+    final int[] sortedTagIds = getTagIdsByHitCount();
+    for (int i = 0; i < sortedTagIds.length && tagBudget > 0; i++) {
+      final String name = Tag.fromId(sortedTagIds[i]).getName();
+      // Tags searched for by the user are never filtered.
+      if (!containsTagName(queryTags, name) && !containsTagName(queryTags, "-" + name)) {
+        appendTag(sb, "-" + name);
+        tagBudget--;
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Get blacklisted tag IDs sorted by the number of images they removed so far, most effective first.
+   *
+   * @return Tag IDs.
+   */
+  private int[] getTagIdsByHitCount() {
+    final Integer[] indices = new Integer[tagIds.length];
+    final int[] hits = new int[tagIds.length];
+    for (int i = 0; i < tagIds.length; i++) {
+      indices[i] = i;
+      hits[i] = tagHits.get(i);
+    }
+    Arrays.sort(indices, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer lhs, Integer rhs) {
+        return hits[lhs] != hits[rhs] ? (hits[lhs] > hits[rhs] ? -1 : 1) : lhs.compareTo(rhs);
+      }
+    });
+
+    final int[] sortedTagIds = new int[tagIds.length];
+    for (int i = 0; i < indices.length; i++) {
+      sortedTagIds[i] = tagIds[indices[i]];
+    }
+    return sortedTagIds;
+  }
+  //endregion
+
+  //region Diagnostics
+  /**
+   * Get the number of images evaluated by this filter.
+   *
+   * @return Number of images passed to {@link #accept(Image, int...)}.
+   */
+  public int getEvaluatedCount() {
+    return evaluatedCount.get();
+  }
+
+  /**
+   * Get the number of images removed because of a blacklisted tag.
+   *
+   * @param tag Blacklisted tag.
+   * @return Number of images removed by the tag. 0 if the tag is not blacklisted.
+   */
+  public int getHitCount(Tag tag) {
+    final int index = Arrays.binarySearch(tagIds, tag.getId());
+    return index >= 0 ? tagHits.get(index) : 0;
+  }
+
+  /**
+   * Get the number of images removed because of their SafeSearch rating.
+   *
+   * @param rating SafeSearch rating.
+   * @return Number of images with the given rating that were removed.
+   */
+  public int getHitCount(Image.SafeSearchRating rating) {
+    return ratingHits.get(rating.ordinal());
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("ImageFilter{evaluated=").append(getEvaluatedCount());
+    for (Image.SafeSearchRating rating : Image.SafeSearchRating.values()) {
+      if (ratingHits.get(rating.ordinal()) > 0) {
+        sb.append(", rating:").append(rating.name().toLowerCase(Locale.US)).append('=').append(ratingHits.get(rating.ordinal()));
+      }
+    }
+    for (int i = 0; i < tagIds.length; i++) {
+      if (tagHits.get(i) > 0) {
+        sb.append(", ").append(Tag.fromId(tagIds[i]).getName()).append('=').append(tagHits.get(i));
+      }
+    }
+    return sb.append('}').toString();
+  }
+  //endregion
+
+  //region Helper methods
+  /** @return Bit set of the IDs of given tags. */
+  private static BitSet toTagIdSet(@Nullable Tag[] tags) {
+    final BitSet tagIdSet = new BitSet();
+    if (tags != null) {
+      for (Tag tag : tags) {
+        tagIdSet.set(tag.getId());
+      }
+    }
+    return tagIdSet;
+  }
+
+  /** @return Allowed SafeSearch ratings, indexed by ordinal. Null if all ratings are allowed. */
+  @Nullable
+  private static boolean[] toAllowedRatings(@Nullable Image.SafeSearchRating[] safeSearchRatings) {
+    if (safeSearchRatings == null || safeSearchRatings.length == 0) {
+      return null;
+    }
+    final boolean[] allowedRatings = new boolean[Image.SafeSearchRating.values().length];
+    for (Image.SafeSearchRating rating : safeSearchRatings) {
+      allowedRatings[rating.ordinal()] = true;
+    }
+    return allowedRatings;
+  }
+
+  /** Append a tag to a space-separated query. */
+  private static void appendTag(StringBuilder sb, String tag) {
+    if (sb.length() > 0) {
+      sb.append(' ');
+    }
+    sb.append(tag);
+  }
+
+  /** @return True if the query contains a tag with the given name. */
+  private static boolean containsTagName(Tag[] tags, String name) {
+    for (Tag tag : tags) {
+      if (tag.getName().equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return True if the query already contains a rating metatag. */
+  private static boolean containsRatingTag(Tag[] tags) {
+    for (Tag tag : tags) {
+      if (tag.getName().startsWith("rating:") || tag.getName().startsWith("-rating:")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return True if the array contains the given value. */
+  private static boolean contains(int[] array, int value) {
+    for (int element : array) {
+      if (element == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+  //endregion
+}
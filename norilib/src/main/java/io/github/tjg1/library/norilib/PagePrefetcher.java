@@ -0,0 +1,225 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.http.HttpCall;
+
+/**
+ * Keeps the next pages of a search in flight ahead of the user, so endless scrolling doesn't stall
+ * at every page boundary.
+ * <p>
+ * Up to {@link #getLookAhead()} pages past the last delivered page are requested in parallel.
+ * Pages can complete in any order, but are delivered in page order, one for each call to
+ * {@link #fetchMore(SearchClient.SearchCallback)}. The look-ahead grows with the measured fetch
+ * latency: slow APIs get more pages in flight, while fast ones don't download pages the user may
+ * never scroll to.
+ * <p>
+ * Not thread-safe. Use from the thread {@link SearchClient} callbacks are delivered on.
+ */
+public class PagePrefetcher {
+
+  //region Constants
+  /** Minimum number of pages kept in flight ahead of the last delivered page. */
+  private static final int MIN_LOOK_AHEAD = 1;
+  /** Maximum number of pages kept in flight. Also bounds the number of concurrent requests. */
+  private static final int MAX_LOOK_AHEAD = 4;
+  /** Look-ahead used until the latency of the first page is measured. */
+  private static final int DEFAULT_LOOK_AHEAD = 2;
+  /** Average fetch latency, in milliseconds, that adds another page to the look-ahead. */
+  private static final long LATENCY_PER_PAGE = 750;
+  //endregion
+
+  //region Instance fields
+  /** API client used to fetch pages. */
+  private final SearchClient searchClient;
+  /** Search query. A space-separated list of tags. */
+  private final String query;
+  /** Next page to deliver. */
+  private int nextPage;
+  /** First page that was returned empty. Pages after it are never requested. */
+  private int lastPage = Integer.MAX_VALUE;
+  /** Request start times of the pages in flight, in nanoseconds, keyed by page. */
+  private final Map<Integer, Long> pagesInFlight = new HashMap<>();
+  /** Requests of the pages in flight, keyed by page. */
+  private final Map<Integer, HttpCall> requests = new HashMap<>();
+  /** Pages fetched ahead of {@link #nextPage}, waiting to be delivered. */
+  private final TreeMap<Integer, SearchResult> fetchedPages = new TreeMap<>();
+  /** Pages that could not be fetched, waiting for the error to be delivered. */
+  private final Map<Integer, IOException> failedPages = new HashMap<>();
+  /** Callback waiting for {@link #nextPage}. */
+  private SearchClient.SearchCallback callback;
+  /** Moving average of the fetch latency, in milliseconds. -1 if not measured yet. */
+  private long averageLatency = -1;
+  /** True if this prefetcher was cancelled and should ignore fetched pages. */
+  private boolean isCancelled = false;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new prefetcher.
+   *
+   * @param searchClient API client used to fetch pages.
+   * @param query        Search query. A space-separated list of tags.
+   * @param nextPage     Page to deliver first, usually the page after the one currently shown.
+   */
+  public PagePrefetcher(SearchClient searchClient, String query, int nextPage) {
+    this.searchClient = searchClient;
+    this.query = query;
+    this.nextPage = nextPage;
+  }
+  //endregion
+
+  //region Fetching pages
+  /**
+   * Deliver the next page to the callback, fetching it first if it isn't already available.
+   * Requests more pages to keep the look-ahead full. Ignored if another callback is still waiting.
+   *
+   * @param callback Callback to receive the next page. An empty {@link SearchResult} is delivered
+   *                 once the last page is reached. Errors are delivered once, and the failed page is
+   *                 requested again on the next call.
+   */
+  public void fetchMore(SearchClient.SearchCallback callback) {
+    if (isCancelled || this.callback != null) {
+      return;
+    }
+    this.callback = callback;
+    // Top up before delivering, so a failed page is only requested again after its error is delivered.
+    prefetch();
+    deliver();
+  }
+
+  /** Request pages ahead of the next delivered page, up to the look-ahead, without delivering anything. */
+  public void prefetch() {
+    final int lookAhead = getLookAhead();
+    for (int page = nextPage; page < nextPage + lookAhead && page <= lastPage && !isCancelled; page++) {
+      if (!pagesInFlight.containsKey(page) && !fetchedPages.containsKey(page) && !failedPages.containsKey(page)) {
+        request(page);
+      }
+    }
+  }
+
+  /** Stop delivering pages and cancel the requests in flight. */
+  public void cancel() {
+    isCancelled = true;
+    callback = null;
+    for (HttpCall request : requests.values()) {
+      request.cancel();
+    }
+    requests.clear();
+    pagesInFlight.clear();
+    fetchedPages.clear();
+    failedPages.clear();
+  }
+
+  /**
+   * Check if a callback is waiting for the next page.
+   *
+   * @return True if {@link #fetchMore(SearchClient.SearchCallback)} was called and the page wasn't delivered yet.
+   */
+  public boolean isFetching() {
+    return callback != null;
+  }
+
+  /**
+   * Get the number of pages kept in flight ahead of the last delivered page.
+   *
+   * @return Look-ahead, adapted to the measured fetch latency.
+   */
+  public int getLookAhead() {
+    if (averageLatency < 0) {
+      return DEFAULT_LOOK_AHEAD;
+    }
+    return (int) Math.min(MAX_LOOK_AHEAD, MIN_LOOK_AHEAD + averageLatency / LATENCY_PER_PAGE);
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Request a page from the API client.
+   *
+   * @param page Page to request.
+   */
+  private void request(final int page) {
+    // Mark the page as requested first, in case the client calls back right away.
+    pagesInFlight.put(page, System.nanoTime());
+    final HttpCall request = searchClient.search(query, page, new SearchClient.SearchCallback() {
+      @Override
+      public void onFailure(IOException e) {
+        requests.remove(page);
+        if (pagesInFlight.containsKey(page) && page <= lastPage && !isCancelled) {
+          pagesInFlight.remove(page);
+          failedPages.put(page, e);
+          deliver();
+        }
+      }
+
+      @Override
+      public void onSuccess(SearchResult searchResult) {
+        requests.remove(page);
+        final Long startTime = pagesInFlight.remove(page);
+        if (startTime != null && page <= lastPage && !isCancelled) {
+          updateLatency((System.nanoTime() - startTime) / 1000000L);
+          if (searchResult.size() == 0 && page < lastPage) {
+            // Forget pages requested past the end of the search.
+            lastPage = page;
+            fetchedPages.tailMap(page, false).clear();
+          }
+          fetchedPages.put(page, searchResult);
+          deliver();
+        }
+      }
+    });
+    // Only keep track of requests the client didn't complete right away.
+    if (request != null && pagesInFlight.containsKey(page)) {
+      requests.put(page, request);
+    }
+  }
+
+  /** Deliver the next page or its error to the waiting callback, if available. */
+  private void deliver() {
+    if (callback == null) {
+      return;
+    }
+    final SearchClient.SearchCallback callback = this.callback;
+    final SearchResult searchResult = fetchedPages.remove(nextPage);
+    if (searchResult != null) {
+      this.callback = null;
+      // Keep delivering the empty last page if asked for more.
+      if (nextPage < lastPage) {
+        nextPage++;
+        prefetch();
+      } else {
+        fetchedPages.put(nextPage, searchResult);
+      }
+      callback.onSuccess(searchResult);
+    } else if (failedPages.containsKey(nextPage)) {
+      this.callback = null;
+      callback.onFailure(failedPages.remove(nextPage));
+    }
+  }
+
+  /**
+   * Add a measured fetch latency to the moving average.
+   *
+   * @param latency Latency, in milliseconds.
+   */
+  private void updateLatency(long latency) {
+    if (averageLatency < 0) {
+      averageLatency = latency;
+    } else {
+      // Exponential moving average, giving each new sample a weight of 1/4.
+      averageLatency += (latency - averageLatency) / 4;
+    }
+  }
+  //endregion
+}
@@ -9,12 +9,9 @@ package io.github.tjg1.library.norilib;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.Predicate;
-
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -43,10 +40,18 @@ public class SearchResult implements Parcelable {
    * @param parcel {@link android.os.Parcel} used to deserialize the SearchResult.
    */
   protected SearchResult(Parcel parcel) {
-    this.images = parcel.createTypedArrayList(Image.CREATOR);
+    this.unfilteredImages = parcel.createTypedArrayList(Image.CREATOR);
+    // Positions of the images that passed the filter. The filter itself is re-applied by the app.
+    final int[] filteredPositions = parcel.createIntArray();
+    this.images = new ArrayList<>(filteredPositions.length);
+    for (int position : filteredPositions) {
+      images.add(unfilteredImages.get(position));
+    }
     this.offset = parcel.readInt();
     this.query = parcel.createTypedArray(Tag.CREATOR);
     this.hasNextPage = (parcel.readByte() == 0x01);
+    this.searchState = parcel.readParcelable(SearchState.class.getClassLoader());
+    indexPages();
   }
 
   @Override
@@ -56,16 +61,24 @@ public class SearchResult implements Parcelable {
 
   @Override
   public void writeToParcel(Parcel dest, int flags) {
-    dest.writeTypedList(images);
+    // All images are written, so loosening the filter after the SearchResult was restored brings
+    // back the images removed by the filter.
+    dest.writeTypedList(unfilteredImages);
+    dest.writeIntArray(getFilteredPositions());
     dest.writeInt(offset);
     dest.writeTypedArray(query, 0);
     dest.writeByte((byte) (hasNextPage ? 0x01 : 0x00));
+    dest.writeParcelable(searchState, flags);
   }
   //endregion
 
   //region Instance fields
-  /** List of {@link Image}s included in this SearchResult. */
+  /** List of {@link Image}s included in this SearchResult that passed the current {@link #filter}. */
   private final List<Image> images;
+  /** All {@link Image}s added to this SearchResult, including the ones removed by the filter. */
+  private final List<Image> unfilteredImages;
+  /** Filter applied to {@link #images}. Null to show all images. */
+  private ImageFilter filter;
 
   /** Current offset. Used for paging. */
   private int offset = 0;
@@ -77,6 +90,14 @@ public class SearchResult implements Parcelable {
    * Set to false when the last page of results has been retrieved and included in {@link #images}.
    */
   private boolean hasNextPage = true;
+  /** Request parameters the following pages have to be fetched with. Null if not set by the API client. */
+  private SearchState searchState;
+  /** Paging offsets of the pages included in this SearchResult, in the order they were added. */
+  private int[] pages = new int[8];
+  /** Position of the first {@link Image} of each page in {@link #images}. */
+  private int[] pageStarts = new int[8];
+  /** Number of pages in the page index. */
+  private int pageCount = 0;
   //endregion
 
   //region Constructors
@@ -90,8 +111,10 @@ public class SearchResult implements Parcelable {
   public SearchResult(Image[] images, Tag[] query, int offset) {
     // Have to use the ArrayList constructor because the Lists returned by Arrays.asList are not resizable which is a bummer for filtering.
     this.images = new ArrayList<>(Arrays.asList(images));
+    this.unfilteredImages = new ArrayList<>(this.images);
     this.query = query.clone();
     this.offset = offset;
+    indexPages();
   }
   //endregion
 
@@ -99,83 +122,83 @@ public class SearchResult implements Parcelable {
   /**
    * Add more images to this SearchResult.
    * Usually called when new page of results has been fetched from the API.
-   * Don't forget to call {@link #filter(Tag[])} and {@link #filter(Image.SafeSearchRating[])}
-   * after adding more images.
+   * Only the new images are evaluated against the current filter and renumbered, so the cost
+   * doesn't grow with the number of pages that were already added.
    *
    * @param images Images to add.
    * @param offset Current paging offset. (ie. page number)
    */
   public void addImages(Image[] images, int offset) {
-    // Add images to list.
-    this.images.addAll(Arrays.asList(images));
+    final int[] queryTagIds = getQueryTagIds();
+
+    for (Image image : images) {
+      unfilteredImages.add(image);
+      if (filter == null || filter.accept(image, queryTagIds)) {
+        this.images.add(image);
+        addToPageIndex(image, this.images.size() - 1, true);
+      }
+    }
     // Set new offset.
     this.offset = offset;
   }
+
+  /**
+   * Add more images to this SearchResult, filtering them with the given filter.
+   * If the filter differs from the current one, images added before are re-evaluated first.
+   *
+   * @param images Images to add.
+   * @param offset Current paging offset. (ie. page number)
+   * @param filter Filter to apply. (optional)
+   * @return Number of new images that passed the filter.
+   */
+  public int addImages(Image[] images, int offset, ImageFilter filter) {
+    if (filter != this.filter) {
+      filter(filter);
+    }
+    final int size = this.images.size();
+    addImages(images, offset);
+    return this.images.size() - size;
+  }
   //endregion
 
   //region Filtering results
   /**
-   * Remove images with the given set of {@link Tag}s from this SearchResult.
+   * Only show images without the given set of {@link Tag}s. Added to the current filter.
    *
    * @param tags Tags to remove.
    */
   public void filter(final Tag... tags) {
-    // Don't waste time filtering against an empty array.
-    if (tags == null || tags.length == 0) {
-      return;
-    }
-
-    // Don't filter tags searched for by the user.
-    final Collection<Tag> tagList = CollectionUtils.removeAll(Arrays.asList(tags), Arrays.asList(query));
-
-    // Remove images containing filtered tags.
-    CollectionUtils.filter(images, new Predicate<Image>() {
-      @Override
-      public boolean evaluate(Image image) {
-        return !CollectionUtils.containsAny(Arrays.asList(image.tags), tagList);
-      }
-    });
-
-    reorderImagePageOffsets();
+    filter(filter != null ? filter.withTags(tags) : new ImageFilter(tags, null));
   }
 
   /**
-   * Remove images not in the given set of {@link Image.SafeSearchRating} from this SearchResult.
+   * Only show images in the given set of {@link Image.SafeSearchRating}s. Added to the current filter.
    *
-   * @param safeSearchRatings SafeSearch ratings to remove.
+   * @param safeSearchRatings SafeSearch ratings to keep.
    */
   public void filter(final Image.SafeSearchRating... safeSearchRatings) {
-    // Don't waste time filtering against an empty array.
-    if (safeSearchRatings == null || safeSearchRatings.length == 0) {
-      return;
-    }
-
-    // Concert filtered rating array to List
-    final List<Image.SafeSearchRating> ratingList = Arrays.asList(safeSearchRatings);
-    // Remove images containing filtered ratings.
-    CollectionUtils.filter(images, new Predicate<Image>() {
-      @Override
-      public boolean evaluate(Image image) {
-        return ratingList.contains(image.safeSearchRating);
-      }
-    });
-
-    reorderImagePageOffsets();
+    filter(filter != null ? filter.withSafeSearchRatings(safeSearchRatings) : new ImageFilter(null, safeSearchRatings));
   }
 
-  /** Re-calculate image page offsets after filtering. */
-  private void reorderImagePageOffsets() {
-    int page = 0;
-    int offset = 0;
+  /**
+   * Set the {@link ImageFilter} used to choose the {@link Image}s shown by this SearchResult.
+   * Images removed by the filter are kept, so changing the filter settings doesn't require fetching
+   * the images again. All images are re-evaluated and their page positions re-calculated in a
+   * single pass. Tags searched for by the user are never filtered.
+   *
+   * @param filter Filter to apply. Null to show all images.
+   */
+  public void filter(ImageFilter filter) {
+    this.filter = filter;
+    final boolean acceptAll = filter == null || filter.isEmpty();
+    final int[] queryTagIds = getQueryTagIds();
 
-    for (Image image : images) {
-      if (image.searchPage != null) {
-        if (image.searchPage != page) {
-          page = image.searchPage;
-          offset = 0;
-        }
-        image.searchPagePosition = offset;
-        offset += 1;
+    images.clear();
+    pageCount = 0;
+    for (Image image : unfilteredImages) {
+      if (acceptAll || filter.accept(image, queryTagIds)) {
+        images.add(image);
+        addToPageIndex(image, images.size() - 1, true);
       }
     }
   }
@@ -189,20 +212,127 @@ public class SearchResult implements Parcelable {
    * @return A {@link SearchResult} containing only {@link Image}s for the given search paging offset.
    */
   public SearchResult getSearchResultForPage(final int page) {
-    Collection<Image> selectedImages = CollectionUtils.select(images, new Predicate<Image>() {
-      @Override
-      public boolean evaluate(Image image) {
-        return (image.searchPage != null && image.searchPage == page);
+    final List<Image> selectedImages = getPage(page);
+    final SearchResult searchResult = new SearchResult(selectedImages.toArray(new Image[selectedImages.size()]), this.query, page);
+    searchResult.searchState = this.searchState;
+    return searchResult;
+  }
+
+  /**
+   * Get the positions of the {@link Image}s that passed the filter in {@link #unfilteredImages}.
+   *
+   * @return Positions, in ascending order.
+   */
+  private int[] getFilteredPositions() {
+    final int[] positions = new int[images.size()];
+    // Filtered images keep the order of the unfiltered list.
+    int position = 0;
+    for (int i = 0; i < unfilteredImages.size() && position < positions.length; i++) {
+      if (unfilteredImages.get(i) == images.get(position)) {
+        positions[position++] = i;
       }
-    });
+    }
+    return positions;
+  }
+  //endregion
 
-    return new SearchResult(selectedImages.toArray(new Image[selectedImages.size()]), this.query, page);
+  //region Indexed access
+  /**
+   * Get the number of {@link Image}s contained in this SearchResult that passed the filter.
+   *
+   * @return Number of images.
+   */
+  public int size() {
+    return images.size();
+  }
+
+  /**
+   * Get a single {@link Image}, without copying the images into an array.
+   *
+   * @param position Image position, between 0 and {@link #size()}.
+   * @return Image at given position.
+   */
+  public Image get(int position) {
+    return images.get(position);
+  }
+
+  /**
+   * Get a read-only view of the {@link Image}s contained in this SearchResult that passed the filter.
+   * The view reflects images added later, but must not be iterated while images are being filtered.
+   *
+   * @return Unmodifiable list of images.
+   */
+  public List<Image> getImageList() {
+    return Collections.unmodifiableList(images);
+  }
+
+  /**
+   * Get a read-only view of the {@link Image}s fetched from the given search paging offset.
+   * The view is only valid until images are added to or filtered from this SearchResult.
+   *
+   * @param page Paging offset. (ie. page number)
+   * @return Unmodifiable list of images on the given page. Empty, if the page wasn't fetched.
+   */
+  public List<Image> getPage(int page) {
+    final int index = Arrays.binarySearch(pages, 0, pageCount, page);
+    if (index < 0) {
+      return Collections.emptyList();
+    }
+    final int end = (index + 1 < pageCount) ? pageStarts[index + 1] : images.size();
+    return Collections.unmodifiableList(images.subList(pageStarts[index], end));
+  }
+  //endregion
+
+  //region Page index
+  /** Re-build the page index from scratch. */
+  private void indexPages() {
+    pageCount = 0;
+    for (int i = 0; i < images.size(); i++) {
+      addToPageIndex(images.get(i), i, false);
+    }
+  }
+
+  /**
+   * Add an image to the page index. Must be called for each image in order, as pages are
+   * expected to be appended in ascending order.
+   *
+   * @param image    Image to add.
+   * @param position Position of the image in {@link #images}.
+   * @param renumber Update the image's {@link Image#searchPagePosition}.
+   */
+  private void addToPageIndex(Image image, int position, boolean renumber) {
+    if (image.searchPage == null) {
+      return;
+    }
+    if (pageCount == 0 || pages[pageCount - 1] != image.searchPage) {
+      if (pageCount == pages.length) {
+        pages = Arrays.copyOf(pages, pageCount * 2);
+        pageStarts = Arrays.copyOf(pageStarts, pageCount * 2);
+      }
+      pages[pageCount] = image.searchPage;
+      pageStarts[pageCount] = position;
+      pageCount++;
+    }
+    if (renumber) {
+      image.searchPagePosition = position - pageStarts[pageCount - 1];
+    }
+  }
+
+  /** @return IDs of the tags searched for. Exempt from filtering. */
+  private int[] getQueryTagIds() {
+    final int[] queryTagIds = new int[query.length];
+    for (int i = 0; i < query.length; i++) {
+      queryTagIds[i] = query[i].getId();
+    }
+    return queryTagIds;
   }
   //endregion
 
   //region Getters & Setters
   /**
-   * Get {@link Image}s contained in this SearchResult.
+   * Get {@link Image}s contained in this SearchResult that passed the filter.
+   * Copies all images into a new array. Use {@link #size()} and {@link #get(int)} to access
+   * single images.
    *
    * @return {@link Image}s returned by this SearchResult.
    */
@@ -210,6 +340,25 @@ public class SearchResult implements Parcelable {
     return images.toArray(new Image[images.size()]);
   }
 
+  /**
+   * Get the filter applied to this SearchResult.
+   *
+   * @return Current filter. Null if all images are shown.
+   */
+  public ImageFilter getFilter() {
+    return filter;
+  }
+
+  /**
+   * Get a read-only view of all {@link Image}s added to this SearchResult, including the ones
+   * removed by the filter.
+   *
+   * @return Unmodifiable list of images.
+   */
+  public List<Image> getUnfilteredImageList() {
+    return Collections.unmodifiableList(unfilteredImages);
+  }
+
   /**
    * Get the current paging offset.
    * The way this value works varies greatly between APIs.
@@ -232,6 +381,27 @@ public class SearchResult implements Parcelable {
     return query;
   }
 
+  /**
+   * Get the request parameters the following pages of this SearchResult have to be fetched with.
+   * Pass them to {@link io.github.tjg1.library.norilib.clients.SearchClient#resumeSearch(SearchState)}
+   * when fetching more pages with another client.
+   *
+   * @return Search state. Null if not set by the API client.
+   */
+  public SearchState getSearchState() {
+    return searchState;
+  }
+
+  /**
+   * Set the request parameters this SearchResult was fetched with.
+   * Called by the API clients.
+   *
+   * @param searchState Search state.
+   */
+  public void setSearchState(SearchState searchState) {
+    this.searchState = searchState;
+  }
+
   /**
    * True if this SearchResult may contain another page that has not been retrieved yet.
    * Useful when implementing endless scrolling.
@@ -249,7 +419,7 @@ public class SearchResult implements Parcelable {
    * - Immediately for empty results.
    * - When fetching the next page returns an empty result.
    * Don't rely on length of array returned by {@link #getImages()}, as its value can be affected
-   * by {@link #filter(Tag[])} and {@link #filter(Image.SafeSearchRating[])}.
+   * by {@link #filter(ImageFilter)}.
    *
    * @see #hasNextPage()
    */
@@ -0,0 +1,104 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+
+/**
+ * Request parameters chosen by a {@link io.github.tjg1.library.norilib.clients.SearchClient} for the
+ * pages of a search: the query sent to the API and the size of each page. These have to stay the
+ * same for all pages of the search, so they don't overlap or skip images.
+ * <p>
+ * Kept with the {@link SearchResult} and in saved instance state, and handed to
+ * {@link io.github.tjg1.library.norilib.clients.SearchClient#resumeSearch(SearchState)} when the
+ * following pages are fetched by another client, e.g. in another activity or after the app was
+ * restarted.
+ */
+public class SearchState implements Parcelable {
+
+  //region Parcelable
+  /** Class loader used when deserializing from a {@link Parcel}. */
+  public static final Parcelable.Creator<SearchState> CREATOR = new Parcelable.Creator<SearchState>() {
+    @Override
+    public SearchState createFromParcel(Parcel source) {
+      return new SearchState(source);
+    }
+
+    @Override
+    public SearchState[] newArray(int size) {
+      return new SearchState[size];
+    }
+  };
+
+  /**
+   * Re-create a SearchState by deserializing data from a {@link Parcel}.
+   *
+   * @param parcel {@link Parcel} used to deserialize the SearchState.
+   */
+  protected SearchState(Parcel parcel) {
+    this.query = parcel.readString();
+    this.apiQuery = parcel.readString();
+    this.pageStarts = parcel.createIntArray();
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeString(query);
+    dest.writeString(apiQuery);
+    dest.writeIntArray(pageStarts);
+  }
+  //endregion
+
+  //region Instance fields
+  /** Query searched for by the user. */
+  private final String query;
+  /** Query sent to the API, including the exclusions added by the client. */
+  private final String apiQuery;
+  /** Offset of the first image of each page requested from the API, followed by the end of the last page. */
+  private final int[] pageStarts;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new SearchState.
+   *
+   * @param query      Query searched for by the user. A space-separated list of tags.
+   * @param apiQuery   Query sent to the API, including the exclusions added by the client.
+   * @param pageStarts Offset of the first image of each page requested from the API, followed by the
+   *                   end of the last page. Pages can have different sizes.
+   */
+  public SearchState(@NonNull String query, @NonNull String apiQuery, @NonNull int[] pageStarts) {
+    this.query = query;
+    this.apiQuery = apiQuery;
+    this.pageStarts = pageStarts.clone();
+  }
+  //endregion
+
+  //region Getters
+  /** @return Query searched for by the user. A space-separated list of tags. */
+  public String getQuery() {
+    return query;
+  }
+
+  /** @return Query sent to the API, including the exclusions added by the client. */
+  public String getApiQuery() {
+    return apiQuery;
+  }
+
+  /** @return Offset of the first image of each page requested from the API, followed by the end of the last page. */
+  public int[] getPageStarts() {
+    return pageStarts.clone();
+  }
+  //endregion
+}
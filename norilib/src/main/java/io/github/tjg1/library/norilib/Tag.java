@@ -18,8 +18,9 @@ public class Tag implements Comparable<Tag>, Parcelable {
 
     @Override
     public Tag createFromParcel(Parcel source) {
-      // Use the Parcel constructor.
-      return new Tag(source);
+      // Tag IDs are only valid within a single process, so tags are re-interned by name.
+      final String name = source.readString();
+      return intern(name, Type.values()[source.readInt()]);
     }
 
     @Override
@@ -28,16 +29,6 @@ public class Tag implements Comparable<Tag>, Parcelable {
     }
   };
 
-  /**
-   * Re-create a serialize tag from {@link android.os.Parcel}.
-   *
-   * @param in Parcel containing a serialized {@link Tag}.
-   */
-  protected Tag(Parcel in) {
-    this.name = in.readString();
-    this.type = Type.values()[in.readInt()];
-  }
-
   @Override
   public int describeContents() {
     return 0;
@@ -55,21 +46,24 @@ public class Tag implements Comparable<Tag>, Parcelable {
   private final String name;
   /** Tag type */
   private final Type type;
+  /** Tag ID in the {@link TagDictionary}. */
+  private final int id;
   //endregion
 
   //region Constructors
   /**
    * Create a new {@link Image} tag of the {@link Type#GENERAL} type.
+   * Consider using {@link #intern(String, Type)} to re-use the shared instance instead.
    *
    * @param name Tag name.
    */
   public Tag(String name) {
-    this.name = name;
-    this.type = Type.GENERAL;
+    this(name, Type.GENERAL);
   }
 
   /**
    * Create a new {@link Image} tag.
+   * Consider using {@link #intern(String, Type)} to re-use the shared instance instead.
    *
    * @param name Tag name.
    * @param type Tag type.
@@ -77,6 +71,20 @@ public class Tag implements Comparable<Tag>, Parcelable {
   public Tag(String name, Type type) {
     this.name = name;
     this.type = type;
+    this.id = TagDictionary.intern(name, 0, name.length(), type).id;
+  }
+
+  /**
+   * Create the shared instance of an interned tag. Used by the {@link TagDictionary}.
+   *
+   * @param name Tag name.
+   * @param type Tag type.
+   * @param id   Tag ID.
+   */
+  Tag(String name, Type type, int id) {
+    this.name = name;
+    this.type = type;
+    this.id = id;
   }
   //endregion
 
@@ -86,16 +94,13 @@ public class Tag implements Comparable<Tag>, Parcelable {
     if (this == o) return true;
     if (o == null || ((Object) this).getClass() != o.getClass()) return false;
 
-    Tag tag = (Tag) o;
-
-    return !(name != null ? !name.equals(tag.name) : tag.name != null) && type == tag.type;
+    // Tags with the same name and type share the same ID.
+    return id == ((Tag) o).id;
   }
 
   @Override
   public int hashCode() {
-    int result = name != null ? name.hashCode() : 0;
-    result = 31 * result + (type != null ? type.hashCode() : 0);
-    return result;
+    return id;
   }
 
   @Override
@@ -123,6 +128,16 @@ public class Tag implements Comparable<Tag>, Parcelable {
   public Type getType() {
     return type;
   }
+
+  /**
+   * Get tag's ID. Tags with the same name and type have the same ID.
+   * IDs are assigned densely from 0 and are only valid until the process is restarted.
+   *
+   * @return Tag ID.
+   */
+  public int getId() {
+    return id;
+  }
   //endregion
 
   //region Tag colours
@@ -175,6 +190,7 @@ public class Tag implements Comparable<Tag>, Parcelable {
 
   /**
    * Create a Tag array from a space-separated list of tags.
+   * Returned tags are shared instances from the tag dictionary.
    *
    * @param query Space-separated list of tags.
    * @param type  Type to set for each tag.
@@ -186,16 +202,53 @@ public class Tag implements Comparable<Tag>, Parcelable {
     if (query == null || query.isEmpty()) {
       return new Tag[0];
     }
-    // Split the space-separated string into a String array.
-    final String[] strings = query.trim().split(" ");
 
-    // Convert each String into a Tag object.
-    final Tag[] tags = new Tag[strings.length];
-    for (int i = 0; i < strings.length; i++) {
-      tags[i] = new Tag(strings[i], type);
+    // Count the tags first, to allocate an array of the right size.
+    final int length = query.length();
+    int count = 0;
+    for (int i = 0; i < length; i++) {
+      if (query.charAt(i) > ' ' && (i == 0 || query.charAt(i - 1) <= ' ')) {
+        count++;
+      }
+    }
+
+    // Look up each space-separated tag name in the tag dictionary.
+    final Tag[] tags = new Tag[count];
+    int start = 0;
+    for (int i = 0; i < count; i++) {
+      while (query.charAt(start) <= ' ') {
+        start++;
+      }
+      int end = start + 1;
+      while (end < length && query.charAt(end) > ' ') {
+        end++;
+      }
+      tags[i] = TagDictionary.intern(query, start, end, type);
+      start = end;
     }
     return tags;
   }
+
+  /**
+   * Get the shared instance of a tag.
+   *
+   * @param name Tag name.
+   * @param type Tag type.
+   * @return Interned {@link Tag}.
+   */
+  public static Tag intern(String name, Tag.Type type) {
+    return TagDictionary.intern(name, 0, name.length(), type);
+  }
+
+  /**
+   * Get the shared instance of a tag by its ID.
+   *
+   * @param id Tag ID, as returned by {@link #getId()}.
+   * @return Interned {@link Tag}.
+   */
+  public static Tag fromId(int id) {
+    return TagDictionary.get(id);
+  }
   //endregion
 
   //region Tag type enum
@@ -0,0 +1,144 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib;
+
+import java.util.Arrays;
+
+/**
+ * Process-wide dictionary of interned {@link Tag}s.
+ * <p>
+ * Each distinct (name, type) pair is stored once and given a dense integer ID, so images can
+ * reference their tags by ID and tags can be compared without looking at their names. Tags are
+ * never removed: the number of distinct tags seen during a session is tiny compared to the number
+ * of times popular tags occur across search results.
+ * <p>
+ * Tags are looked up by a region of a string, so a tag that was already interned can be found
+ * without allocating a substring for it.
+ */
+final class TagDictionary {
+
+  //region Constants
+  /** Initial number of slots in the hash table. Must be a power of two. */
+  private static final int INITIAL_CAPACITY = 1024;
+  //endregion
+
+  //region Static fields
+  /** Open-addressed hash table of interned tags. Kept at most half full. */
+  private static Tag[] table = new Tag[INITIAL_CAPACITY];
+  /** Interned tags, indexed by their ID. */
+  private static Tag[] tags = new Tag[INITIAL_CAPACITY / 2];
+  /** Number of interned tags. Also the ID given to the next new tag. */
+  private static int size = 0;
+  //endregion
+
+  //region Constructors
+  /** Static class, do not instantiate. */
+  private TagDictionary() {
+  }
+  //endregion
+
+  //region Interning tags
+  /**
+   * Get the interned tag for a region of a string, interning it if it wasn't seen before.
+   *
+   * @param s     String containing the tag name.
+   * @param start Index of the first character of the tag name.
+   * @param end   End of the tag name (exclusive).
+   * @param type  Tag type.
+   * @return Shared {@link Tag} instance.
+   */
+  static synchronized Tag intern(String s, int start, int end, Tag.Type type) {
+    final int length = end - start;
+    final int mask = table.length - 1;
+
+    int slot = hash(s, start, end, type) & mask;
+    for (Tag tag = table[slot]; tag != null; tag = table[slot]) {
+      if (tag.getType() == type && tag.getName().length() == length &&
+          tag.getName().regionMatches(0, s, start, length)) {
+        return tag;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    // Tag seen for the first time.
+    final String name = (start == 0 && end == s.length()) ? s : s.substring(start, end);
+    final Tag tag = new Tag(name, type, size);
+    if (size == tags.length) {
+      tags = Arrays.copyOf(tags, size * 2);
+    }
+    tags[size++] = tag;
+    table[slot] = tag;
+    if (size * 2 > table.length) {
+      rehash();
+    }
+    return tag;
+  }
+
+  /**
+   * Get an interned tag by its ID.
+   *
+   * @param id Tag ID, as returned by {@link Tag#getId()}.
+   * @return Shared {@link Tag} instance.
+   */
+  static synchronized Tag get(int id) {
+    if (id < 0 || id >= size) {
+      throw new IllegalArgumentException("Unknown tag ID: " + id);
+    }
+    return tags[id];
+  }
+
+  /**
+   * Get interned tags by their IDs.
+   *
+   * @param ids Tag IDs, as returned by {@link Tag#getId()}.
+   * @return Shared {@link Tag} instances, in the same order as the IDs.
+   */
+  static synchronized Tag[] get(int[] ids) {
+    final Tag[] result = new Tag[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      if (ids[i] < 0 || ids[i] >= size) {
+        throw new IllegalArgumentException("Unknown tag ID: " + ids[i]);
+      }
+      result[i] = tags[ids[i]];
+    }
+    return result;
+  }
+  //endregion
+
+  //region Helper methods
+  /** Double the size of the hash table. */
+  private static void rehash() {
+    final Tag[] newTable = new Tag[table.length * 2];
+    final int mask = newTable.length - 1;
+
+    for (int i = 0; i < size; i++) {
+      final String name = tags[i].getName();
+      int slot = hash(name, 0, name.length(), tags[i].getType()) & mask;
+      while (newTable[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      newTable[slot] = tags[i];
+    }
+    table = newTable;
+  }
+
+  /**
+   * Hash a tag name, read from a region of a string, and type.
+   *
+   * @return Hash code.
+   */
+  private static int hash(String s, int start, int end, Tag.Type type) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + s.charAt(i);
+    }
+    h = 31 * h + type.ordinal();
+    // Spread the high bits, as only the low bits are used to pick a slot.
+    return h ^ (h >>> 16);
+  }
+  //endregion
+}
@@ -12,37 +12,30 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.async.DataSink;
-import com.koushikdutta.async.callback.CompletedCallback;
-import com.koushikdutta.async.future.Future;
-import com.koushikdutta.async.future.FutureCallback;
-import com.koushikdutta.async.future.TransformFuture;
-import com.koushikdutta.async.parser.AsyncParser;
-import com.koushikdutta.async.parser.StringParser;
-import com.koushikdutta.ion.Ion;
-import com.koushikdutta.ion.Response;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import java.io.IOException;
-import java.io.StringReader;
-import java.lang.reflect.Type;
-import java.text.DateFormat;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ExecutionException;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
 import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.SearchState;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.http.HttpCall;
+import io.github.tjg1.library.norilib.http.HttpRequest;
+import io.github.tjg1.library.norilib.http.HttpTransport;
+import io.github.tjg1.library.norilib.http.HttpTransports;
+import io.github.tjg1.library.norilib.http.StatusCodeParser;
+import io.github.tjg1.library.norilib.util.DateUtils;
 
 /**
  * Client for the Danbooru 2.x API.
@@ -50,20 +43,30 @@ import io.github.tjg1.library.norilib.Tag;
 public class Danbooru implements SearchClient {
 
   //region Constants
-  /**
-   * Number of images per search results page.
-   * Best to use a large value to minimize number of unique HTTP requests.
-   */
-  private static final int DEFAULT_LIMIT = 100;
+  /** Number of images on the first search results page. Small, so the first thumbnails are shown quickly. */
+  private static final int MIN_LIMIT = 25;
+  /** Maximum number of images per search results page accepted by the API. */
+  private static final int MAX_LIMIT = 200;
   /** Thumbnail size set if not returned by the API. */
   private static final int THUMBNAIL_SIZE = 150;
   /** Sample size set if not returned by the API. */
   private static final int SAMPLE_SIZE = 850;
+  /**
+   * Maximum number of tags in a search query. This is the limit for basic accounts, as the account
+   * level of the user isn't known. Gold accounts can search for more tags.
+   */
+  private static final int MAX_SEARCH_TAGS = 2;
+  /** Post fields used by the parser. Only these are requested from the API, to reduce the response size. */
+  private static final String POST_FIELDS = "id,created_at,score,source,md5,rating,image_width,image_height," +
+      "tag_string_general,tag_string_artist,tag_string_character,tag_string_copyright,parent_id,pixiv_id," +
+      "file_url,large_file_url,preview_file_url";
   //endregion
 
   //region Service configuration instance fields
   /** Android context. */
   protected final Context context;
+  /** Sends HTTP requests to the API. */
+  protected final HttpTransport transport;
   /** Human-readable service name */
   private final String name;
   /** URL to the HTTP API Endpoint - the server implementing the API. */
@@ -72,6 +75,14 @@ public class Danbooru implements SearchClient {
   private final String username;
   /** API key used for authentication. (optional) */
   private final String apiKey;
+  /** Filter pushed down into search queries. (optional) */
+  private ImageFilter queryFilter;
+  /** Query the {@link #filteredQuery} was chosen for, or restored by {@link #resumeSearch(SearchState)}. */
+  private String filteredTags;
+  /** Query sent to the API for {@link #filteredTags}, with the exclusions chosen for its first page. */
+  private String filteredQuery;
+  /** Chooses the number of images per page. Shared with other clients of the same endpoint. */
+  private final PageSizeController pageSizeController;
   //endregion
 
   //region Constructors
@@ -83,10 +94,12 @@ public class Danbooru implements SearchClient {
    */
   public Danbooru(Context context, String name, String endpoint) {
     this.context = context;
+    this.transport = HttpTransports.forContext(context);
     this.name = name;
     this.apiEndpoint = endpoint;
     this.username = null;
     this.apiKey = null;
+    this.pageSizeController = PageSizeController.forEndpoint(endpoint, MIN_LIMIT, MAX_LIMIT);
   }
 
   /**
@@ -99,10 +112,12 @@ public class Danbooru implements SearchClient {
    */
   public Danbooru(Context context, String name, String endpoint, String username, final String apiKey) {
     this.context = context;
+    this.transport = HttpTransports.forContext(context);
     this.name = name;
     this.apiEndpoint = endpoint;
     this.username = username;
     this.apiKey = apiKey;
+    this.pageSizeController = PageSizeController.forEndpoint(endpoint, MIN_LIMIT, MAX_LIMIT);
   }
   //endregion
 
@@ -119,25 +134,17 @@ public class Danbooru implements SearchClient {
   public static String detectService(@NonNull Context context, @NonNull Uri uri, int timeout) {
     final String endpointUrl = Uri.withAppendedPath(uri, "/posts.xml").toString();
 
+    final HttpRequest request = new HttpRequest(endpointUrl)
+        .setTimeout(timeout)
+        .userAgent(SearchClient.USER_AGENT)
+        .followRedirect(false)
+        .noCache();
+
     try {
-      final Response<DataEmitter> response = Ion.with(context)
-          .load(endpointUrl)
-          .setTimeout(timeout)
-          .userAgent(SearchClient.USER_AGENT)
-          .followRedirect(false)
-          .noCache()
-          .asDataEmitter()
-          .withResponse()
-          .get();
-
-      // Close the connection.
-      final DataEmitter dataEmitter = response.getResult();
-      if (dataEmitter != null) dataEmitter.close();
-
-      if (response.getHeaders().code() == 200) {
+      if (HttpTransports.forContext(context).execute(request, new StatusCodeParser()) == 200) {
         return uri.toString();
       }
-    } catch (InterruptedException | ExecutionException ignored) {
+    } catch (IOException ignored) {
     }
     return null;
   }
@@ -152,39 +159,46 @@ public class Danbooru implements SearchClient {
 
   @Override
   public SearchResult search(String tags, int pid) throws IOException {
-    try {
-      return Ion.with(this.context)
-          .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-          .userAgent(SearchClient.USER_AGENT)
-          .as(new SearchResultParser(tags, pid))
-          .get();
-    } catch (InterruptedException | ExecutionException e) {
-      // Normalise exception to IOException, so method signatures are not tied to a single HTTP
-      // library.
-      throw new IOException(e);
-    }
+    final PageSizeController.Page page = pageSizeController.getPage(tags, pid);
+    final SearchState searchState = new SearchState(tags, filterQuery(tags), pageSizeController.getPageStarts(tags));
+    final long startTime = System.nanoTime();
+    final SearchResult searchResult = transport.execute(
+        new HttpRequest(createSearchURL(searchState.getApiQuery(), page.number, page.limit))
+            .userAgent(SearchClient.USER_AGENT)
+            .retryOnFailure(),
+        new SearchResultParser(tags, pid, null));
+    pageSizeController.onPageFetched(page.limit, (System.nanoTime() - startTime) / 1000000L);
+    searchResult.setSearchState(searchState);
+    return searchResult;
   }
 
   @Override
-  public void search(String tags, SearchCallback callback) {
+  public HttpCall search(String tags, SearchCallback callback) {
     // Return results for page 0.
-    search(tags, 0, callback);
+    return search(tags, 0, callback);
   }
 
   @Override
-  public void search(final String tags, final int pid, final SearchCallback callback) {
-    Ion.with(this.context)
-        .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-        .userAgent(SearchClient.USER_AGENT)
-        .as(new SearchResultParser(tags, pid))
-        .setCallback(new FutureCallback<SearchResult>() {
+  public HttpCall search(final String tags, final int pid, final SearchCallback callback) {
+    final PageSizeController.Page page = pageSizeController.getPage(tags, pid);
+    final SearchState searchState = new SearchState(tags, filterQuery(tags), pageSizeController.getPageStarts(tags));
+    final long startTime = System.nanoTime();
+    return transport.enqueue(
+        new HttpRequest(createSearchURL(searchState.getApiQuery(), page.number, page.limit))
+            .userAgent(SearchClient.USER_AGENT)
+            .retryOnFailure(),
+        new SearchResultParser(tags, pid, callback),
+        new HttpTransport.Callback<SearchResult>() {
+          @Override
+          public void onSuccess(SearchResult result) {
+            pageSizeController.onPageFetched(page.limit, (System.nanoTime() - startTime) / 1000000L);
+            result.setSearchState(searchState);
+            callback.onSuccess(result);
+          }
+
           @Override
-          public void onCompleted(Exception e, SearchResult result) {
-            if (e != null) {
-              callback.onFailure(new IOException(e));
-            } else {
-              callback.onSuccess(result);
-            }
+          public void onFailure(IOException e) {
+            callback.onFailure(e);
           }
         });
   }
@@ -195,6 +209,21 @@ public class Danbooru implements SearchClient {
     return "";
   }
 
+  @Override
+  public synchronized boolean setQueryFilter(ImageFilter filter) {
+    this.queryFilter = filter;
+    this.filteredTags = null;
+    this.filteredQuery = null;
+    return filter != null && MAX_SEARCH_TAGS > 0;
+  }
+
+  @Override
+  public synchronized void resumeSearch(SearchState searchState) {
+    this.filteredTags = searchState.getQuery();
+    this.filteredQuery = searchState.getApiQuery();
+    pageSizeController.restorePageLayout(searchState.getQuery(), searchState.getPageStarts());
+  }
+
   @Override
   public Settings getSettings() {
     return new Settings(Settings.APIType.DANBOARD, name, apiEndpoint, username, apiKey);
@@ -207,12 +236,30 @@ public class Danbooru implements SearchClient {
   //endregion
 
   //region Creating search URLs
+  /**
+   * Append exclusions for the {@link #queryFilter} to a search query. The exclusions are chosen
+   * once and reused for every page of the query, until the filter is set again, or restored by
+   * {@link #resumeSearch(SearchState)}.
+   *
+   * @param tags Space-separated tags.
+   * @return Tags to send to the API.
+   */
+  private synchronized String filterQuery(String tags) {
+    if (tags.equals(filteredTags)) {
+      return filteredQuery;
+    } else if (queryFilter == null) {
+      return tags;
+    }
+    filteredTags = tags;
+    filteredQuery = queryFilter.appendExclusions(tags, MAX_SEARCH_TAGS);
+    return filteredQuery;
+  }
 
   /**
    * Generate request URL to the search API endpoint.
    *
    * @param tags  Space-separated tags.
-   * @param pid   Page number (0-indexed).
+   * @param pid   Page number (0-indexed), in units of the page size.
    * @param limit Images to fetch per page.
    * @return URL to search results API.
    */
@@ -221,120 +268,107 @@ public class Danbooru implements SearchClient {
     final int page = pid + 1;
 
     if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.apiKey)) {
-      return String.format(Locale.US, apiEndpoint + "/posts.xml?tags=%s&page=%d&limit=%d&login=%s&api_key=%s",
-          Uri.encode(tags), page, limit, Uri.encode(this.username), Uri.encode(this.apiKey));
+      return String.format(Locale.US, apiEndpoint + "/posts.json?tags=%s&page=%d&limit=%d&only=%s&login=%s&api_key=%s",
+          Uri.encode(tags), page, limit, POST_FIELDS, Uri.encode(this.username), Uri.encode(this.apiKey));
     }
-    return String.format(Locale.US, apiEndpoint + "/posts.xml?tags=%s&page=%d&limit=%d", Uri.encode(tags), page, limit);
+    return String.format(Locale.US, apiEndpoint + "/posts.json?tags=%s&page=%d&limit=%d&only=%s", Uri.encode(tags), page, limit, POST_FIELDS);
   }
   //endregion
 
   //region Parsing responses
   /**
-   * Parse an XML response returned by the API.
+   * Parse a single post object of a JSON response returned by the API.
    *
-   * @param body   HTTP Response body.
-   * @param tags   Tags used to retrieve the response.
-   * @param offset Current paging offset.
-   * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given XML.
+   * @param reader Reader positioned at the start of the post object.
+   * @return Image parsed from the post object. null, if the image is not available.
    */
   @SuppressWarnings("FeatureEnvy")
-  protected SearchResult parseXMLResponse(String body, String tags, int offset) throws IOException {
-    // Create variables to hold the values as XML is being parsed.
-    final List<Image> imageList = new ArrayList<>(DEFAULT_LIMIT);
-    Image image = new Image();
-    List<Tag> imageTags = new ArrayList<>();
-    int position = 0;
+  protected Image parsePost(JsonReader reader) throws IOException, ParseException {
+    final Image image = new Image();
+    final List<Tag> imageTags = new ArrayList<>();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String name = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
 
-    try {
-      // Create an XML parser factory and disable namespace awareness for security reasons.
-      // See: (http://lists.w3.org/Archives/Public/public-xmlsec/2009Dec/att-0000/sws5-jensen.pdf).
-      final XmlPullParserFactory xmlParserFactory = XmlPullParserFactory.newInstance();
-      xmlParserFactory.setNamespaceAware(false);
-
-      // Create a new XML parser from factory and feed HTTP response data into it.
-      final XmlPullParser xpp = xmlParserFactory.newPullParser();
-      xpp.setInput(new StringReader(body));
-
-      // Iterate over each XML element and handle pull parser "events".
-      while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
-        if (xpp.getEventType() == XmlPullParser.START_TAG) {
-          // Get the tag's name.
-          final String name = xpp.getName();
-
-          if ("post".equals(name)) {
-            // Create a new image for each <post> tag.
-            image = new Image();
-            imageTags = new ArrayList<>();
-            image.searchPage = offset;
-            image.searchPagePosition = position;
-          }
-          // Extract image metadata from XML tags.
-          else if ("large-file-url".equals(name)) {
-            image.sampleUrl = xpp.nextText();
-          } else if ("image-width".equals(name)) {
-            image.width = Integer.parseInt(xpp.nextText());
-          } else if ("image-height".equals(name)) {
-            image.height = Integer.parseInt(xpp.nextText());
-          } else if ("preview-file-url".equals(name)) {
-            image.previewUrl = xpp.nextText();
-          } else if ("file-url".equals(name)) {
-            image.fileUrl = xpp.nextText();
-          } else if ("tag-string-general".equals(name)) {
-            imageTags.addAll(Arrays.asList(Tag.arrayFromString(xpp.nextText(), Tag.Type.GENERAL)));
-          } else if ("tag-string-artist".equals(name)) {
-            imageTags.addAll(Arrays.asList(Tag.arrayFromString(xpp.nextText(), Tag.Type.ARTIST)));
-          } else if ("tag-string-character".equals(name)) {
-            imageTags.addAll(Arrays.asList(Tag.arrayFromString(xpp.nextText(), Tag.Type.CHARACTER)));
-          } else if ("tag-string-copyright".equals(name)) {
-            imageTags.addAll(Arrays.asList(Tag.arrayFromString(xpp.nextText(), Tag.Type.COPYRIGHT)));
-          } else if ("id".equals(name)) {
-            image.id = xpp.nextText();
-          } else if ("parent-id".equals(name)) {
-            image.parentId = xpp.getAttributeValue(null, "nil") != null ? null : xpp.nextText();
-          } else if ("pixiv-id".equals(name)) {
-            image.pixivId = xpp.getAttributeValue(null, "nil") != null ? null : xpp.nextText();
-          } else if ("rating".equals(name)) {
-            image.safeSearchRating = Image.SafeSearchRating.fromString(xpp.nextText());
-          } else if ("score".equals(name)) {
-            image.score = Integer.parseInt(xpp.nextText());
-          } else if ("source".equals(name)) {
-            image.source = xpp.nextText();
-          } else if ("md5".equals(name)) {
-            image.md5 = xpp.nextText();
-          } else if ("created-at".equals(name)) {
-            image.createdAt = dateFromString(xpp.nextText());
-          }
-          // createdAt
-        } else if (xpp.getEventType() == XmlPullParser.END_TAG) {
-          if ("post".equals(xpp.getName())) {
-            // Convert tag list to array.
-            image.tags = imageTags.toArray(new Tag[imageTags.size()]);
-            // Append values not returned by API to image.
-            image.webUrl = webUrlFromId(image.id);
-            // FIXME: API does not return thumbnail sizes.
-            image.previewWidth = THUMBNAIL_SIZE;
-            image.previewHeight = THUMBNAIL_SIZE;
-            // FIXME: API does not return sample sizes.
-            image.sampleWidth = SAMPLE_SIZE;
-            image.sampleHeight = SAMPLE_SIZE;
-            // Discard images requiring a gold account. They do not return a valid file_url.
-            if (image.fileUrl != null) {
-              // Add to result.
-              imageList.add(image);
-              position++;
-            }
-          }
-        }
-        xpp.next();
+      // Extract image metadata from the post object.
+      switch (name) {
+        case "large_file_url":
+          image.sampleUrl = reader.nextString();
+          break;
+        case "image_width":
+          image.width = reader.nextInt();
+          break;
+        case "image_height":
+          image.height = reader.nextInt();
+          break;
+        case "preview_file_url":
+          image.previewUrl = reader.nextString();
+          break;
+        case "file_url":
+          image.fileUrl = reader.nextString();
+          break;
+        case "tag_string_general":
+          imageTags.addAll(Arrays.asList(Tag.arrayFromString(reader.nextString(), Tag.Type.GENERAL)));
+          break;
+        case "tag_string_artist":
+          imageTags.addAll(Arrays.asList(Tag.arrayFromString(reader.nextString(), Tag.Type.ARTIST)));
+          break;
+        case "tag_string_character":
+          imageTags.addAll(Arrays.asList(Tag.arrayFromString(reader.nextString(), Tag.Type.CHARACTER)));
+          break;
+        case "tag_string_copyright":
+          imageTags.addAll(Arrays.asList(Tag.arrayFromString(reader.nextString(), Tag.Type.COPYRIGHT)));
+          break;
+        case "id":
+          image.id = reader.nextString();
+          break;
+        case "parent_id":
+          image.parentId = reader.nextString();
+          break;
+        case "pixiv_id":
+          image.pixivId = reader.nextString();
+          break;
+        case "rating":
+          image.safeSearchRating = Image.SafeSearchRating.fromString(reader.nextString());
+          break;
+        case "score":
+          image.score = reader.nextInt();
+          break;
+        case "source":
+          image.source = reader.nextString();
+          break;
+        case "md5":
+          image.md5 = reader.nextString();
+          break;
+        case "created_at":
+          image.createdAt = dateFromString(reader.nextString());
+          break;
+        default:
+          reader.skipValue();
       }
-    } catch (XmlPullParserException | ParseException e) {
-      // Convert into IOException.
-      // Needed for consistent method signatures in the SearchClient interface for different APIs.
-      // (Throwing an XmlPullParserException would be fine, until dealing with an API using JSON, etc.)
-      throw new IOException(e);
     }
+    reader.endObject();
 
-    return new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), offset);
+    // Discard images requiring a gold account. They do not return a valid file_url.
+    if (image.fileUrl == null) {
+      return null;
+    }
+    // Convert tag list to array.
+    image.setTags(imageTags.toArray(new Tag[imageTags.size()]));
+    // Append values not returned by API to image.
+    image.webUrl = webUrlFromId(image.id);
+    // FIXME: API does not return thumbnail sizes.
+    image.previewWidth = THUMBNAIL_SIZE;
+    image.previewHeight = THUMBNAIL_SIZE;
+    // FIXME: API does not return sample sizes.
+    image.sampleWidth = SAMPLE_SIZE;
+    image.sampleHeight = SAMPLE_SIZE;
+    return image;
   }
 
   /**
@@ -344,18 +378,7 @@ public class Danbooru implements SearchClient {
    * @return Date converted from given String.
    */
   protected static Date dateFromString(String date) throws ParseException {
-    final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
-
-    // Normalise the ISO8601 time zone into a format parse-able by SimpleDateFormat.
-    if (!TextUtils.isEmpty(date)) {
-      String newDate = date.replace("Z", "+0000");
-      if (newDate.length() == 25) {
-        newDate = newDate.substring(0, 22) + newDate.substring(23); // Remove timezone colon.
-      }
-      return DATE_FORMAT.parse(newDate);
-    }
-
-    return null;
+    return !TextUtils.isEmpty(date) ? new Date(DateUtils.parseIso8601(date)) : null;
   }
 
   /**
@@ -369,38 +392,40 @@ public class Danbooru implements SearchClient {
   }
   //endregion
 
-  //region Ion async SearchResult parser
-  /** Asynchronous search parser to use with ion. */
-  protected class SearchResultParser implements AsyncParser<SearchResult> {
-    /** Tags searched for. */
-    private final String tags;
-    /** Current page offset. */
-    private final int pageOffset;
-
-    public SearchResultParser(String tags, int pageOffset) {
-      this.tags = tags;
-      this.pageOffset = pageOffset;
-    }
-
-    @Override
-    public Future<SearchResult> parse(DataEmitter emitter) {
-      return new StringParser().parse(emitter)
-          .then(new TransformFuture<SearchResult, String>() {
-            @Override
-            protected void transform(String result) throws Exception {
-              setComplete(parseXMLResponse(result, tags, pageOffset));
-            }
-          });
+  //region Streaming SearchResult parser
+  /** Asynchronous search parser to use with the {@link HttpTransport}. Parses posts while the response is downloaded. */
+  protected class SearchResultParser extends SearchResultStreamParser {
+    public SearchResultParser(String tags, int pageOffset, SearchCallback callback) {
+      super(tags, pageOffset, callback);
     }
 
     @Override
-    public void write(DataSink sink, SearchResult value, CompletedCallback completed) {
-      // Not implemented.
-    }
+    protected SearchResult parse(InputStream inputStream) throws IOException {
+      final List<Image> imageList = new ArrayList<>(MIN_LIMIT);
+      final JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+
+      try {
+        // Errors are returned as an object instead of an array of posts.
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+          throw new IOException("Unexpected response from the API.");
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+          final Image image = parsePost(reader);
+          if (image != null) {
+            addImage(imageList, image);
+          }
+        }
+        reader.endArray();
+      } catch (IllegalStateException | NumberFormatException | ParseException e) {
+        // Convert into IOException.
+        // Needed for consistent method signatures in the SearchClient interface for different APIs.
+        throw new IOException(e);
+      } finally {
+        reader.close();
+      }
 
-    @Override
-    public Type getType() {
-      return null;
+      return createSearchResult(imageList);
     }
   }
   //endregion
@@ -12,53 +12,45 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.async.DataSink;
-import com.koushikdutta.async.callback.CompletedCallback;
-import com.koushikdutta.async.future.Future;
-import com.koushikdutta.async.future.FutureCallback;
-import com.koushikdutta.async.future.TransformFuture;
-import com.koushikdutta.async.parser.AsyncParser;
-import com.koushikdutta.async.parser.StringParser;
-import com.koushikdutta.ion.Ion;
-import com.koushikdutta.ion.Response;
-
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.IOException;
-import java.io.StringReader;
-import java.lang.reflect.Type;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ExecutionException;
 import java.net.URL;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
 import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.SearchState;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.http.HttpCall;
+import io.github.tjg1.library.norilib.http.HttpRequest;
+import io.github.tjg1.library.norilib.http.HttpTransport;
+import io.github.tjg1.library.norilib.http.HttpTransports;
+import io.github.tjg1.library.norilib.http.StatusCodeParser;
+import io.github.tjg1.library.norilib.util.DateUtils;
 
 /**
  * Client for the Danbooru 1.x API.
  */
 public class DanbooruLegacy implements SearchClient {
   //region Constants
-  /**
-   * Number of images per search results page.
-   * Best to use a large value to minimize number of unique HTTP requests.
-   */
-  private static final int DEFAULT_LIMIT = 100;
+  /** Number of images on the first search results page. Small, so the first thumbnails are shown quickly. */
+  private static final int MIN_LIMIT = 25;
+  /** Maximum number of images per search results page accepted by the API. */
+  private static final int MAX_LIMIT = 100;
+  /** Maximum number of tags in a search query. Danbooru 1.x and Moebooru limit searches to 6 tags. */
+  private static final int MAX_SEARCH_TAGS = 6;
   //endregion
 
   //region Service configuration instance fields
   /** Android context. */
   protected final Context context;
+  /** Sends HTTP requests to the API. */
+  protected final HttpTransport transport;
   /** Human-readable service name. */
   protected final String name;
   /** URL to the HTTP API Endpoint - the server implementing the API. */
@@ -67,6 +59,14 @@ public class DanbooruLegacy implements SearchClient {
   protected final String username;
   /** Password used for authentication. (optional) */
   protected final String password;
+  /** Filter pushed down into search queries. (optional) */
+  private ImageFilter queryFilter;
+  /** Query the {@link #filteredQuery} was chosen for, or restored by {@link #resumeSearch(SearchState)}. */
+  private String filteredTags;
+  /** Query sent to the API for {@link #filteredTags}, with the exclusions chosen for its first page. */
+  private String filteredQuery;
+  /** Chooses the number of images per page. Created on first use by {@link #getPageSizeController()}. */
+  private PageSizeController pageSizeController;
   //endregion
 
   //region Constructors
@@ -77,6 +77,7 @@ public class DanbooruLegacy implements SearchClient {
    */
   public DanbooruLegacy(Context context, String name, String endpoint) {
     this.context = context;
+    this.transport = HttpTransports.forContext(context);
     this.name = name;
     this.apiEndpoint = endpoint;
     this.username = null;
@@ -92,6 +93,7 @@ public class DanbooruLegacy implements SearchClient {
    */
   public DanbooruLegacy(Context context, String name, String endpoint, String username, String password) {
     this.context = context;
+    this.transport = HttpTransports.forContext(context);
     this.name = name;
     this.apiEndpoint = endpoint;
     this.username = username;
@@ -112,25 +114,17 @@ public class DanbooruLegacy implements SearchClient {
   public static String detectService(@NonNull Context context, @NonNull Uri uri, int timeout) {
     final String endpointUrl = Uri.withAppendedPath(uri, "/post/index.xml").toString();
 
+    final HttpRequest request = new HttpRequest(endpointUrl)
+        .setTimeout(timeout)
+        .userAgent(SearchClient.USER_AGENT)
+        .followRedirect(false)
+        .noCache();
+
     try {
-      final Response<DataEmitter> response = Ion.with(context)
-          .load(endpointUrl)
-          .setTimeout(timeout)
-          .userAgent(SearchClient.USER_AGENT)
-          .followRedirect(false)
-          .noCache()
-          .asDataEmitter()
-          .withResponse()
-          .get();
-
-      // Close the connection.
-      final DataEmitter dataEmitter = response.getResult();
-      if (dataEmitter != null) dataEmitter.close();
-
-      if (response.getHeaders().code() == 200) {
+      if (HttpTransports.forContext(context).execute(request, new StatusCodeParser()) == 200) {
         return uri.toString();
       }
-    } catch (InterruptedException | ExecutionException ignored) {
+    } catch (IOException ignored) {
     }
     return null;
   }
@@ -145,64 +139,41 @@ public class DanbooruLegacy implements SearchClient {
 
   @Override
   public SearchResult search(String tags, int pid) throws IOException {
-    try {
-      if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.password)) {
-        return Ion.with(this.context)
-            .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-            .userAgent(SearchClient.USER_AGENT)
-            .basicAuthentication(this.username, this.password)
-            .as(new SearchResultParser(tags, pid))
-            .get();
-      } else {
-        return Ion.with(this.context)
-            .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-            .userAgent(SearchClient.USER_AGENT)
-            .as(new SearchResultParser(tags, pid))
-            .get();
-      }
-    } catch (InterruptedException | ExecutionException e) {
-      // Normalise exception to IOException, so method signatures are not tied to a single HTTP
-      // library.
-      throw new IOException(e);
-    }
+    final PageSizeController.Page page = getPageSizeController().getPage(tags, pid);
+    final SearchState searchState = new SearchState(tags, filterQuery(tags), getPageSizeController().getPageStarts(tags));
+    final long startTime = System.nanoTime();
+    final SearchResult searchResult = transport.execute(createSearchRequest(searchState.getApiQuery(), page),
+        new SearchResultParser(tags, pid, null));
+    getPageSizeController().onPageFetched(page.limit, (System.nanoTime() - startTime) / 1000000L);
+    searchResult.setSearchState(searchState);
+    return searchResult;
   }
 
   @Override
-  public void search(String tags, SearchCallback callback) {
+  public HttpCall search(String tags, SearchCallback callback) {
     // Return results for page 0.
-    search(tags, 0, callback);
+    return search(tags, 0, callback);
   }
 
   @Override
-  public void search(final String tags, final int pid, final SearchCallback callback) {
-    // Define the ion callback. Not using FutureCallbacks as parameters, so the method signatures
-    // are not tied to a single download library.
-    FutureCallback<SearchResult> futureCallback = new FutureCallback<SearchResult>() {
-      @Override
-      public void onCompleted(Exception e, SearchResult result) {
-        if (e != null) {
-          callback.onFailure(new IOException(e));
-        } else {
-          callback.onSuccess(result);
-        }
-      }
-    };
+  public HttpCall search(final String tags, final int pid, final SearchCallback callback) {
+    final PageSizeController.Page page = getPageSizeController().getPage(tags, pid);
+    final SearchState searchState = new SearchState(tags, filterQuery(tags), getPageSizeController().getPageStarts(tags));
+    final long startTime = System.nanoTime();
+    return transport.enqueue(createSearchRequest(searchState.getApiQuery(), page), new SearchResultParser(tags, pid, callback),
+        new HttpTransport.Callback<SearchResult>() {
+          @Override
+          public void onSuccess(SearchResult result) {
+            getPageSizeController().onPageFetched(page.limit, (System.nanoTime() - startTime) / 1000000L);
+            result.setSearchState(searchState);
+            callback.onSuccess(result);
+          }
 
-    // Handle authentication.
-    if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.password)) {
-      Ion.with(this.context)
-          .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-          .userAgent(SearchClient.USER_AGENT)
-          .basicAuthentication(this.username, this.password)
-          .as(new SearchResultParser(tags, pid))
-          .setCallback(futureCallback);
-    } else {
-      Ion.with(this.context)
-          .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-          .userAgent(SearchClient.USER_AGENT)
-          .as(new SearchResultParser(tags, pid))
-          .setCallback(futureCallback);
-    }
+          @Override
+          public void onFailure(IOException e) {
+            callback.onFailure(e);
+          }
+        });
   }
 
   @Override
@@ -211,6 +182,21 @@ public class DanbooruLegacy implements SearchClient {
     return "";
   }
 
+  @Override
+  public synchronized boolean setQueryFilter(ImageFilter filter) {
+    this.queryFilter = filter;
+    this.filteredTags = null;
+    this.filteredQuery = null;
+    return filter != null && getMaxSearchTags() > 0;
+  }
+
+  @Override
+  public synchronized void resumeSearch(SearchState searchState) {
+    this.filteredTags = searchState.getQuery();
+    this.filteredQuery = searchState.getApiQuery();
+    getPageSizeController().restorePageLayout(searchState.getQuery(), searchState.getPageStarts());
+  }
+
   @Override
   public Settings getSettings() {
     return new Settings(Settings.APIType.DANBOARD_LEGACY, name, apiEndpoint, username, password);
@@ -223,11 +209,60 @@ public class DanbooruLegacy implements SearchClient {
   //endregion
 
   //region Creating Search URLs
+  /**
+   * Get the maximum number of images per search results page accepted by the API.
+   *
+   * @return Page size limit.
+   */
+  protected int getMaxLimit() {
+    return MAX_LIMIT;
+  }
+
+  /**
+   * Get the controller choosing the number of images per page for this endpoint.
+   *
+   * @return Page size controller.
+   */
+  protected PageSizeController getPageSizeController() {
+    if (pageSizeController == null) {
+      pageSizeController = PageSizeController.forEndpoint(apiEndpoint, MIN_LIMIT, getMaxLimit());
+    }
+    return pageSizeController;
+  }
+
+  /**
+   * Get the maximum number of tags the API accepts in a single search query.
+   *
+   * @return Tag limit. 0 if exclusions shouldn't be added to search queries.
+   */
+  protected int getMaxSearchTags() {
+    return MAX_SEARCH_TAGS;
+  }
+
+  /**
+   * Append exclusions for the {@link #queryFilter} to a search query. The exclusions are chosen
+   * once and reused for every page of the query, until the filter is set again, or restored by
+   * {@link #resumeSearch(SearchState)}.
+   *
+   * @param tags Space-separated tags.
+   * @return Tags to send to the API.
+   */
+  protected synchronized String filterQuery(String tags) {
+    if (tags.equals(filteredTags)) {
+      return filteredQuery;
+    } else if (queryFilter == null) {
+      return tags;
+    }
+    filteredTags = tags;
+    filteredQuery = queryFilter.appendExclusions(tags, getMaxSearchTags());
+    return filteredQuery;
+  }
+
   /**
    * Generate request URL to the search API endpoint.
    *
    * @param tags  Space-separated tags.
-   * @param pid   Page number (0-indexed).
+   * @param pid   Page number (0-indexed), in units of the page size.
    * @param limit Images to fetch per page.
    * @return URL to search results API.
    */
@@ -237,115 +272,98 @@ public class DanbooruLegacy implements SearchClient {
 
     return String.format(Locale.US, apiEndpoint + "/post/index.xml?tags=%s&limit=%d&page=%d", Uri.encode(tags), limit, page);
   }
+
+  /**
+   * Create a request to the search API endpoint, authenticated if credentials were given.
+   *
+   * @param tags Space-separated tags.
+   * @param page Page chosen by the {@link #getPageSizeController()}.
+   * @return Search request.
+   */
+  protected HttpRequest createSearchRequest(String tags, PageSizeController.Page page) {
+    final HttpRequest request = new HttpRequest(createSearchURL(tags, page.number, page.limit))
+        .userAgent(SearchClient.USER_AGENT)
+        .retryOnFailure();
+    if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.password)) {
+      request.basicAuthentication(this.username, this.password);
+    }
+    return request;
+  }
   //endregion
 
   //region Parsing responses
   /**
-   * Parse an XML response returned by the API.
+   * Parse a single post element of an XML response returned by the API.
    *
-   * @param body   HTTP Response body.
-   * @param tags   Tags used to retrieve the response.
-   * @param offset Current paging offset.
-   * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given XML.
+   * @param xpp Pull parser positioned on the start tag of the post element.
+   * @return Image parsed from the post element.
    */
-  protected SearchResult parseXMLResponse(String body, String tags, int offset) throws IOException {
-    // Create variables to hold the values as XML is being parsed.
-    final List<Image> imageList = new ArrayList<>(DEFAULT_LIMIT);
-    int position = 0;
-
-    try {
-      // Create an XML parser factory and disable namespace awareness for security reasons.
-      // See: (http://lists.w3.org/Archives/Public/public-xmlsec/2009Dec/att-0000/sws5-jensen.pdf).
-      final XmlPullParserFactory xmlParserFactory = XmlPullParserFactory.newInstance();
-      xmlParserFactory.setNamespaceAware(false);
-
-      // Create a new XML parser and feed HTTP response data into it.
-      final XmlPullParser xpp = xmlParserFactory.newPullParser();
-      xpp.setInput(new StringReader(body));
-
-      // Iterate over each XML element and handle pull parser "events".
-      while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
-        if (xpp.getEventType() == XmlPullParser.START_TAG) {
-          if ("post".equals(xpp.getName())) {
-            // <post> tags contain metadata for each image.
-            final Image image = new Image();
-            image.searchPage = offset;
-            image.searchPagePosition = position;
-
-            // Extract image metadata from XML attributes.
-            for (int i = 0; i < xpp.getAttributeCount(); i++) {
-              // Get name and value of current XML attribute.
-              final String name = xpp.getAttributeName(i);
-              final String value = xpp.getAttributeValue(i);
-
-              // Set the appropriate value for each tag name.
-              if ("file_url".equals(name)) {
-                image.fileUrl = normalizeUrl(value);
-              } else if ("width".equals(name)) {
-                image.width = Integer.parseInt(value);
-              } else if ("height".equals(name)) {
-                image.height = Integer.parseInt(value);
-              } else if ("preview_url".equals(name)) {
-                image.previewUrl = normalizeUrl(value);
-              } else if ("preview_width".equals(name)) {
-                image.previewWidth = Integer.valueOf(value);
-              } else if ("preview_height".equals(name)) {
-                image.previewHeight = Integer.valueOf(value);
-              } else if ("sample_url".equals(name)) {
-                image.sampleUrl = normalizeUrl(value);
-              } else if ("sample_width".equals(name)) {
-                image.sampleWidth = Integer.valueOf(value);
-              } else if ("sample_height".equals(name)) {
-                image.sampleHeight = Integer.valueOf(value);
-              } else if ("tags".equals(name)) {
-                image.tags = Tag.arrayFromString(value, Tag.Type.GENERAL);
-              } else if ("id".equals(name)) {
-                image.id = value;
-              } else if ("parent_id".equals(name)) {
-                image.parentId = value;
-              } else if ("rating".equals(name)) {
-                image.safeSearchRating = Image.SafeSearchRating.fromString(value);
-              } else if ("score".equals(name)) {
-                image.score = Integer.parseInt(value);
-              } else if ("md5".equals(name)) {
-                image.md5 = value;
-              } else if ("created_at".equals(name) || "date".equals(name)) {
-                try {
-                  image.createdAt = dateFromString(value);
-                } catch (ParseException e) {
-                  // There have been too many issues reported in Nori related to date parsing.
-                  // It's almost as if every site uses its own date format and, unfortunately,
-                  // I can't hard code all of them.
-                  image.createdAt = null;
-                }
-              }
-            }
-
-            // Append values not returned by the API.
-            image.webUrl = webUrlFromId(image.id);
-            image.pixivId = Image.getPixivIdFromUrl(image.source);
-            // Use original file if low-resolution sample does not exist.
-            if (image.sampleUrl == null) {
-              image.sampleUrl = image.fileUrl;
-              image.sampleWidth = image.width;
-              image.sampleHeight = image.height;
-            }
-            // Add Image to search result.
-            imageList.add(image);
-            position++;
-          }
+  protected Image parsePost(XmlPullParser xpp) throws IOException, XmlPullParserException, ParseException {
+    // <post> tags contain metadata for each image.
+    final Image image = new Image();
+
+    // Extract image metadata from XML attributes.
+    for (int i = 0; i < xpp.getAttributeCount(); i++) {
+      // Get name and value of current XML attribute.
+      final String name = xpp.getAttributeName(i);
+      final String value = xpp.getAttributeValue(i);
+
+      // Set the appropriate value for each tag name.
+      if ("file_url".equals(name)) {
+        image.fileUrl = normalizeUrl(value);
+      } else if ("width".equals(name)) {
+        image.width = Integer.parseInt(value);
+      } else if ("height".equals(name)) {
+        image.height = Integer.parseInt(value);
+      } else if ("preview_url".equals(name)) {
+        image.previewUrl = normalizeUrl(value);
+      } else if ("preview_width".equals(name)) {
+        image.previewWidth = Integer.valueOf(value);
+      } else if ("preview_height".equals(name)) {
+        image.previewHeight = Integer.valueOf(value);
+      } else if ("sample_url".equals(name)) {
+        image.sampleUrl = normalizeUrl(value);
+      } else if ("sample_width".equals(name)) {
+        image.sampleWidth = Integer.valueOf(value);
+      } else if ("sample_height".equals(name)) {
+        image.sampleHeight = Integer.valueOf(value);
+      } else if ("tags".equals(name)) {
+        image.setTags(Tag.arrayFromString(value, Tag.Type.GENERAL));
+      } else if ("id".equals(name)) {
+        image.id = value;
+      } else if ("parent_id".equals(name)) {
+        image.parentId = value;
+      } else if ("rating".equals(name)) {
+        image.safeSearchRating = Image.SafeSearchRating.fromString(value);
+      } else if ("score".equals(name)) {
+        image.score = Integer.parseInt(value);
+      } else if ("md5".equals(name)) {
+        image.md5 = value;
+      } else if ("created_at".equals(name) || "date".equals(name)) {
+        try {
+          image.createdAt = dateFromString(value);
+        } catch (ParseException e) {
+          // There have been too many issues reported in Nori related to date parsing.
+          // It's almost as if every site uses its own date format and, unfortunately,
+          // I can't hard code all of them.
+          image.createdAt = null;
         }
-        // Get next XMLPullParser event.
-        xpp.next();
       }
-    } catch (XmlPullParserException e) {
-      // Convert into IOException.
-      // Needed for consistent method signatures in the SearchClient interface for different APIs.
-      // (Throwing an XmlPullParserException would be fine, until dealing with an API using JSON, etc.)
-      throw new IOException(e);
     }
-    // Create and return a SearchResult.
-    return new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), offset);
+
+    // Append values not returned by the API.
+    image.webUrl = webUrlFromId(image.id);
+    image.pixivId = Image.getPixivIdFromUrl(image.source);
+    // Use original file if low-resolution sample does not exist.
+    if (image.sampleUrl == null) {
+      image.sampleUrl = image.fileUrl;
+      image.sampleWidth = image.width;
+      image.sampleHeight = image.height;
+    }
+
+    // Skip child elements, all metadata is stored in attributes.
+    XmlSearchResultParser.skipElement(xpp, xpp.getDepth());
+    return image;
   }
 
   /**
@@ -379,50 +397,26 @@ public class DanbooruLegacy implements SearchClient {
    * @return Date converted from given String.
    */
   protected Date dateFromString(String date) throws ParseException {
-    // Parser for the date format used by upstream Danbooru 1.x.
-    final DateFormat DATE_FORMAT_DEFAULT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-
     if (TextUtils.isDigitsOnly(date)) {
       // Moebooru-based boards (Danbooru 1.x fork) use Unix timestamps.
-      return new Date(Integer.valueOf(date));
+      return new Date(DateUtils.parseUnixTimestamp(date));
     } else {
-      return DATE_FORMAT_DEFAULT.parse(date);
+      // Upstream Danbooru 1.x uses "yyyy-MM-dd HH:mm:ss", in local time.
+      return new Date(DateUtils.parseIso8601(date));
     }
   }
   //endregion
 
-  //region Ion async SearchResult parser
-  /** Asynchronous search parser to use with ion. */
-  protected class SearchResultParser implements AsyncParser<SearchResult> {
-    /** Tags searched for. */
-    private final String tags;
-    /** Current page offset. */
-    private final int pageOffset;
-
-    public SearchResultParser(String tags, int pageOffset) {
-      this.tags = tags;
-      this.pageOffset = pageOffset;
-    }
-
-    @Override
-    public Future<SearchResult> parse(DataEmitter emitter) {
-      return new StringParser().parse(emitter)
-          .then(new TransformFuture<SearchResult, String>() {
-            @Override
-            protected void transform(String result) throws Exception {
-              setComplete(parseXMLResponse(result, tags, pageOffset));
-            }
-          });
-    }
-
-    @Override
-    public void write(DataSink sink, SearchResult value, CompletedCallback completed) {
-      // Not implemented.
+  //region Streaming SearchResult parser
+  /** Asynchronous search parser to use with the {@link HttpTransport}. Parses posts while the response is downloaded. */
+  protected class SearchResultParser extends XmlSearchResultParser {
+    public SearchResultParser(String tags, int pageOffset, SearchCallback callback) {
+      super(tags, pageOffset, "post", callback);
     }
 
     @Override
-    public Type getType() {
-      return null;
+    protected Image parsePost(XmlPullParser xpp) throws IOException, XmlPullParserException, ParseException {
+      return DanbooruLegacy.this.parsePost(xpp);
     }
   }
   //endregion
@@ -12,36 +12,26 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
-import java.io.StringReader;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
-import java.util.Locale;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.HashMap;
+import java.util.Map;
 
 import io.github.tjg1.library.norilib.Image;
-import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.util.DateUtils;
 import io.github.tjg1.library.norilib.util.HashUtils;
 
 /** {@link io.github.tjg1.library.norilib.clients.SearchClient} for the E621 imageboard. */
 public class E621 extends DanbooruLegacy {
 
-  //region Constants
-  /** Number of images to fetch with each search. */
-  private static final int DEFAULT_LIMIT = 100;
+  //region Instance fields
+  /** Setters for the child elements of a post element, keyed by element name. */
+  private final Map<String, XmlSearchResultParser.FieldSetter> fieldSetters = createFieldSetters();
   //endregion
 
   //region Constructors
@@ -83,6 +73,20 @@ public class E621 extends DanbooruLegacy {
   }
   //endregion
 
+  //region Creating search URLs
+  @Override
+  protected int getMaxSearchTags() {
+    // E621 allows up to 40 tags per search.
+    return 40;
+  }
+
+  @Override
+  protected int getMaxLimit() {
+    // E621 returns up to 320 posts per page.
+    return 320;
+  }
+  //endregion
+
   //region Parsing responses
   @Override
   protected String webUrlFromId(String id) {
@@ -90,60 +94,116 @@ public class E621 extends DanbooruLegacy {
   }
 
   @Override
-  protected SearchResult parseXMLResponse(String body, String tags, int offset) throws IOException {
-
-    final List<Image> imageList = new ArrayList<>(DEFAULT_LIMIT);
-
-    try {
-      DocumentBuilderFactory Factory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder Builder = Factory.newDocumentBuilder();
-      Document doc = Builder.parse(new InputSource(new StringReader(body)));
-
-      NodeList nList = doc.getElementsByTagName("post");
-
-      for(int i = 0; i < nList.getLength(); i++) {
-
-        Node node = nList.item(i);
-        if(node.getNodeType() == Node.ELEMENT_NODE) {
-
-          Element element = (Element) node;
-
-          final Image image = new Image();
-          image.searchPage = offset;
-          image.searchPagePosition = i;
-
-
-          image.fileUrl = element.getElementsByTagName("file_url").item(0).getTextContent();
-          image.width = Integer.parseInt(element.getElementsByTagName("width").item(0).getTextContent());
-          image.height = Integer.parseInt(element.getElementsByTagName("height").item(0).getTextContent());
-
-          image.previewUrl = element.getElementsByTagName("preview_url").item(0).getTextContent();
-          image.previewWidth = Integer.parseInt(element.getElementsByTagName("preview_width").item(0).getTextContent());
-          image.previewHeight = Integer.parseInt(element.getElementsByTagName("preview_height").item(0).getTextContent());
-
-          image.sampleUrl = element.getElementsByTagName("sample_url").item(0).getTextContent();
-          image.sampleWidth = Integer.parseInt(element.getElementsByTagName("sample_width").item(0).getTextContent());
-          image.sampleHeight = Integer.parseInt(element.getElementsByTagName("sample_height").item(0).getTextContent());
+  protected Image parsePost(XmlPullParser xpp) throws IOException, XmlPullParserException, ParseException {
+    // Unlike Danbooru 1.x, E621 stores image metadata in child elements instead of attributes.
+    final Image image = new Image();
+    XmlSearchResultParser.readChildElements(xpp, fieldSetters, image);
+    image.webUrl = webUrlFromId(image.id);
+    return image;
+  }
 
-          image.tags = Tag.arrayFromString(element.getElementsByTagName("tags").item(0).getTextContent(), Tag.Type.GENERAL);
-          image.id = element.getElementsByTagName("id").item(0).getTextContent();
-          image.webUrl = webUrlFromId(image.id);
-          image.parentId = element.getElementsByTagName("parent_id").item(0).getTextContent();
-          image.safeSearchRating = Image.SafeSearchRating.fromString(element.getElementsByTagName("rating").item(0).getTextContent());
-          image.score = Integer.parseInt(element.getElementsByTagName("score").item(0).getTextContent());
-          image.md5 = element.getElementsByTagName("md5").item(0).getTextContent();
-          image.createdAt = dateFromString(element.getElementsByTagName("created_at").item(0).getTextContent());
+  /** @return Setters for the child elements of a post element, keyed by element name. */
+  private Map<String, XmlSearchResultParser.FieldSetter> createFieldSetters() {
+    final Map<String, XmlSearchResultParser.FieldSetter> setters = new HashMap<>(32);
 
-          imageList.add(image);
-        }
+    setters.put("file_url", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.fileUrl = value;
       }
+    });
+    setters.put("width", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.width = Integer.parseInt(value);
+      }
+    });
+    setters.put("height", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.height = Integer.parseInt(value);
+      }
+    });
+    setters.put("preview_url", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.previewUrl = value;
+      }
+    });
+    setters.put("preview_width", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.previewWidth = Integer.parseInt(value);
+      }
+    });
+    setters.put("preview_height", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.previewHeight = Integer.parseInt(value);
+      }
+    });
+    setters.put("sample_url", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.sampleUrl = value;
+      }
+    });
+    setters.put("sample_width", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.sampleWidth = Integer.parseInt(value);
+      }
+    });
+    setters.put("sample_height", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.sampleHeight = Integer.parseInt(value);
+      }
+    });
+    setters.put("tags", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.setTags(Tag.arrayFromString(value, Tag.Type.GENERAL));
+      }
+    });
+    setters.put("id", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.id = value;
+      }
+    });
+    setters.put("parent_id", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.parentId = value;
+      }
+    });
+    setters.put("rating", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.safeSearchRating = Image.SafeSearchRating.fromString(value);
+      }
+    });
+    setters.put("score", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.score = Integer.parseInt(value);
+      }
+    });
+    setters.put("md5", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) {
+        image.md5 = value;
+      }
+    });
+    setters.put("created_at", new XmlSearchResultParser.FieldSetter() {
+      @Override
+      public void set(Image image, String value) throws ParseException {
+        image.createdAt = dateFromString(value);
+      }
+    });
 
-    }
-    catch(Exception e) {
-      throw new IOException(e);
-    }
-
-    return new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), offset);
+    return setters;
   }
 
   /**
@@ -154,18 +214,7 @@ public class E621 extends DanbooruLegacy {
    */
   @Override
   protected Date dateFromString(String date) throws ParseException {
-    final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
-
-    // Normalise the ISO8601 time zone into a format parse-able by SimpleDateFormat.
-    if (!TextUtils.isEmpty(date)) {
-      String newDate = date.replace("Z", "+0000");
-      if (newDate.length() == 25) {
-        newDate = newDate.substring(0, 22) + newDate.substring(23); // Remove timezone colon.
-      }
-      return DATE_FORMAT.parse(newDate);
-    }
-
-    return null;
+    return !TextUtils.isEmpty(date) ? new Date(DateUtils.parseIso8601(date)) : null;
   }
   //endregion
 }
@@ -0,0 +1,262 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.clients;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact list of Hydrus file ids, backed by a primitive long array.
+ * Id lists returned by the search_files endpoint can hold hundreds of thousands of entries, so they
+ * are kept as primitives and shared between all pages sliced from them.
+ */
+public class FileIdList {
+  /** Initial capacity of lists created by the {@link StreamParser}. */
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  /** File ids. Only the first {@link #size} entries are valid. */
+  private long[] ids;
+  /** Number of ids in the list. */
+  private int size;
+  /** False if parsing was stopped before the end of the response. */
+  private boolean complete = true;
+
+  /**
+   * Create a new, empty list.
+   *
+   * @param capacity Initial capacity.
+   */
+  public FileIdList(int capacity) {
+    this.ids = new long[Math.max(1, capacity)];
+  }
+
+  /**
+   * Create a new list from an array of file ids.
+   *
+   * @param ids File ids.
+   */
+  public FileIdList(long... ids) {
+    this.ids = ids.length > 0 ? ids.clone() : new long[1];
+    this.size = ids.length;
+  }
+
+  /** @return Number of file ids in the list. */
+  public int size() {
+    return size;
+  }
+
+  /** @return True if the list contains no file ids. */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Get the file id at given index.
+   *
+   * @param index Index of the file id.
+   * @return File id.
+   */
+  public long get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+    return ids[index];
+  }
+
+  /**
+   * Check if the list holds every id returned by the API.
+   *
+   * @return False if parsing stopped early, because the response held more ids than requested.
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Copy a range of file ids into a new list.
+   *
+   * @param fromIndex Start of the range (inclusive). Clamped to the size of the list.
+   * @param toIndex   End of the range (exclusive). Clamped to the size of the list.
+   * @return New list containing the given range.
+   */
+  public FileIdList copyOfRange(int fromIndex, int toIndex) {
+    fromIndex = Math.min(Math.max(fromIndex, 0), size);
+    toIndex = Math.min(Math.max(toIndex, fromIndex), size);
+    return new FileIdList(Arrays.copyOfRange(ids, fromIndex, toIndex));
+  }
+
+  /**
+   * Append a file id to the end of the list, growing the backing array if needed.
+   *
+   * @param id File id.
+   */
+  void add(long id) {
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+    }
+    ids[size++] = id;
+  }
+
+  /** @return JSON array of the file ids, as used by the file_metadata endpoint. */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder(size * 8 + 2);
+    sb.append('[');
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(ids[i]);
+    }
+    return sb.append(']').toString();
+  }
+
+  /**
+   * Push parser reading the "file_ids" array of a search_files response straight from the raw
+   * response bytes, without buffering the body or boxing the ids. Every other value in the response
+   * is skipped.
+   */
+  public static class StreamParser {
+    /** Parsing values outside of the file_ids array. */
+    private static final int STATE_VALUE = 0;
+    /** Parsing a string. */
+    private static final int STATE_STRING = 1;
+    /** Parsing an escape sequence inside a string. */
+    private static final int STATE_STRING_ESCAPE = 2;
+    /** Parsing the contents of the file_ids array. */
+    private static final int STATE_FILE_IDS = 3;
+    /** Done parsing the file_ids array. */
+    private static final int STATE_DONE = 4;
+
+    /** Name of the array holding the file ids. */
+    private static final byte[] FILE_IDS_KEY = {'f', 'i', 'l', 'e', '_', 'i', 'd', 's'};
+
+    /** List the parsed ids are added to. */
+    private final FileIdList fileIds = new FileIdList(DEFAULT_CAPACITY);
+    /** Maximum number of ids to parse. */
+    private final int limit;
+    /** Current parser state. */
+    private int state = STATE_VALUE;
+    /** Object/array nesting depth. */
+    private int depth = 0;
+    /** Number of bytes of the current top-level string matching {@link #FILE_IDS_KEY}. -1 on mismatch. */
+    private int keyMatch = -1;
+    /** True if the last string read at the top level was the file_ids key. */
+    private boolean fileIdsKey = false;
+    /** Id currently being parsed. */
+    private long id = 0;
+    /** True if at least one digit of the current id was read. */
+    private boolean hasDigits = false;
+
+    /**
+     * Create a new parser.
+     *
+     * @param limit Maximum number of ids to parse. Parsing stops once the limit is reached.
+     */
+    public StreamParser(int limit) {
+      this.limit = limit;
+    }
+
+    /**
+     * Parse the next chunk of the response.
+     *
+     * @param buffer Response bytes. Consumed up to the end of the file_ids array.
+     * @return False once the file_ids array was fully read or the limit was reached.
+     * @throws IOException The file_ids array contains something other than numbers.
+     */
+    public boolean feed(ByteBuffer buffer) throws IOException {
+      while (state != STATE_DONE && buffer.hasRemaining()) {
+        final byte b = buffer.get();
+        switch (state) {
+          case STATE_FILE_IDS:
+            if (b >= '0' && b <= '9') {
+              id = id * 10 + (b - '0');
+              hasDigits = true;
+            } else if (b == ',' || b == ']') {
+              if (hasDigits) {
+                fileIds.add(id);
+              }
+              id = 0;
+              hasDigits = false;
+              if (b == ']') {
+                state = STATE_DONE;
+              } else if (fileIds.size() >= limit) {
+                fileIds.complete = false;
+                state = STATE_DONE;
+              }
+            } else if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+              throw new IOException("Unexpected character in file_ids: " + (char) b);
+            }
+            break;
+          case STATE_STRING:
+            if (b == '"') {
+              state = STATE_VALUE;
+              fileIdsKey = keyMatch == FILE_IDS_KEY.length;
+            } else if (b == '\\') {
+              state = STATE_STRING_ESCAPE;
+              keyMatch = -1;
+            } else if (keyMatch >= 0 && keyMatch < FILE_IDS_KEY.length && b == FILE_IDS_KEY[keyMatch]) {
+              keyMatch++;
+            } else {
+              keyMatch = -1;
+            }
+            break;
+          case STATE_STRING_ESCAPE:
+            state = STATE_STRING;
+            break;
+          default:
+            if (b == '"') {
+              state = STATE_STRING;
+              // Only keys of the root object are matched against the file_ids key.
+              keyMatch = depth == 1 ? 0 : -1;
+              fileIdsKey = false;
+            } else if (b == '[' && depth == 1 && fileIdsKey) {
+              state = STATE_FILE_IDS;
+            } else if (b == '{' || b == '[') {
+              depth++;
+              fileIdsKey = false;
+            } else if (b == '}' || b == ']') {
+              depth--;
+            } else if (b == ',') {
+              fileIdsKey = false;
+            }
+        }
+      }
+      return state != STATE_DONE;
+    }
+
+    /** @return Number of ids parsed so far. */
+    public int size() {
+      return fileIds.size;
+    }
+
+    /**
+     * Copy a range of the ids parsed so far into a new list.
+     *
+     * @param fromIndex Start of the range (inclusive).
+     * @param toIndex   End of the range (exclusive).
+     * @return New list containing the given range.
+     */
+    public FileIdList copyOfRange(int fromIndex, int toIndex) {
+      return fileIds.copyOfRange(fromIndex, toIndex);
+    }
+
+    /**
+     * Finish parsing.
+     *
+     * @return Parsed file ids.
+     * @throws IOException The response ended before a complete file_ids array was read.
+     */
+    public FileIdList finish() throws IOException {
+      if (state != STATE_DONE) {
+        throw new IOException("Response does not contain a complete file_ids array.");
+      }
+      return fileIds;
+    }
+  }
+}
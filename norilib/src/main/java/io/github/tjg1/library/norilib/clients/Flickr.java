@@ -12,57 +12,80 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.async.DataSink;
-import com.koushikdutta.async.callback.CompletedCallback;
-import com.koushikdutta.async.future.Future;
-import com.koushikdutta.async.future.FutureCallback;
-import com.koushikdutta.async.future.TransformFuture;
-import com.koushikdutta.async.parser.AsyncParser;
-import com.koushikdutta.async.parser.StringParser;
-import com.koushikdutta.ion.Ion;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
-import java.io.StringReader;
-import java.lang.reflect.Type;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.HashMap;
+import java.util.Map;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
 import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.SearchState;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.http.HttpCall;
+import io.github.tjg1.library.norilib.http.HttpRequest;
+import io.github.tjg1.library.norilib.http.HttpTransport;
+import io.github.tjg1.library.norilib.http.HttpTransports;
 
 /** Search client for the Flickr API. */
 public class Flickr implements SearchClient {
 
   //region Constants
-  /** Number of images to fetch per page. */
-  protected static final int DEFAULT_LIMIT = 100;
+  /** Number of images on the first search results page. Small, so the first thumbnails are shown quickly. */
+  private static final int MIN_LIMIT = 25;
+  /** Maximum number of images per search results page accepted by the API. */
+  private static final int MAX_LIMIT = 500;
   /** Default API endpoint. */
   public static final Uri FLICKR_API_ENDPOINT = Uri.parse("https://api.flickr.com/services/rest");
   /** Public API key used to access Flickr services. */
   protected static final String FLICKR_API_KEY = "6b74179518fc00c8bef70b230c7ee880";
+  /**
+   * Attributes of photo elements read by the parser. Each image size is stored as its URL
+   * attribute, followed by its width and height.
+   */
+  private static final String[] PHOTO_ATTRIBUTES = {"id", "owner", "tags", "dateupload",
+      "url_o", "width_o", "height_o", "url_l", "width_l", "height_l",
+      "url_m", "width_m", "height_m", "url_q", "width_q", "height_q"};
+  /** Index of the id attribute in {@link #PHOTO_ATTRIBUTES}. */
+  private static final int ATTRIBUTE_ID = 0;
+  /** Index of the owner attribute in {@link #PHOTO_ATTRIBUTES}. */
+  private static final int ATTRIBUTE_OWNER = 1;
+  /** Index of the tags attribute in {@link #PHOTO_ATTRIBUTES}. */
+  private static final int ATTRIBUTE_TAGS = 2;
+  /** Index of the dateupload attribute in {@link #PHOTO_ATTRIBUTES}. */
+  private static final int ATTRIBUTE_DATE_UPLOAD = 3;
+  /** Index of the original size in {@link #PHOTO_ATTRIBUTES}. */
+  private static final int ATTRIBUTE_SIZE_O = 4;
+  /** Index of the large size in {@link #PHOTO_ATTRIBUTES}. */
+  private static final int ATTRIBUTE_SIZE_L = 7;
+  /** Index of the medium size in {@link #PHOTO_ATTRIBUTES}. */
+  private static final int ATTRIBUTE_SIZE_M = 10;
+  /** Index of the square thumbnail size in {@link #PHOTO_ATTRIBUTES}. */
+  private static final int ATTRIBUTE_SIZE_Q = 13;
+  /** Maps the names in {@link #PHOTO_ATTRIBUTES} to their index. */
+  private static final Map<String, Integer> PHOTO_ATTRIBUTE_INDICES = new HashMap<>(32);
+
+  static {
+    for (int i = 0; i < PHOTO_ATTRIBUTES.length; i++) {
+      PHOTO_ATTRIBUTE_INDICES.put(PHOTO_ATTRIBUTES[i], i);
+    }
+  }
   //endregion
 
   //region Instance fields
   /** Android context. */
   protected final Context context;
+  /** Sends HTTP requests to the API. */
+  protected final HttpTransport transport;
   /** Human readable service name. */
   protected final String name;
   /** API Endpoint. */
   protected final Uri apiEndpoint;
+  /** Chooses the number of images per page. Shared with other clients of the same endpoint. */
+  private final PageSizeController pageSizeController;
   //endregion
 
   //region Constructors
@@ -75,8 +98,10 @@ public class Flickr implements SearchClient {
    */
   public Flickr(Context context, String name, String apiEndpoint) {
     this.context = context;
+    this.transport = HttpTransports.forContext(context);
     this.name = name;
     this.apiEndpoint = apiEndpoint != null ? Uri.parse(apiEndpoint) : FLICKR_API_ENDPOINT;
+    this.pageSizeController = PageSizeController.forEndpoint(this.apiEndpoint.toString(), MIN_LIMIT, MAX_LIMIT);
   }
   //endregion
 
@@ -122,17 +147,17 @@ public class Flickr implements SearchClient {
    */
   @Override
   public SearchResult search(String tags, int pid) throws IOException {
-    try {
-      return Ion.with(this.context)
-          .load(createSearchURL(tags, pid))
-          .userAgent(SearchClient.USER_AGENT)
-          .as(new SearchResultParser(tags, pid))
-          .get();
-    } catch (InterruptedException | ExecutionException e) {
-      // Normalise exception to IOException, so method signatures are not tied to a single HTTP
-      // library.
-      throw new IOException(e);
-    }
+    final PageSizeController.Page page = pageSizeController.getPage(tags, pid);
+    final SearchState searchState = new SearchState(tags, tags, pageSizeController.getPageStarts(tags));
+    final long startTime = System.nanoTime();
+    final SearchResult searchResult = transport.execute(
+        new HttpRequest(createSearchURL(tags, page.number, page.limit))
+            .userAgent(SearchClient.USER_AGENT)
+            .retryOnFailure(),
+        new SearchResultParser(tags, pid, null));
+    pageSizeController.onPageFetched(page.limit, (System.nanoTime() - startTime) / 1000000L);
+    searchResult.setSearchState(searchState);
+    return searchResult;
   }
 
   /**
@@ -140,11 +165,12 @@ public class Flickr implements SearchClient {
    *
    * @param tags     Search query. A space-separated list of tags.
    * @param callback Callback listening for the SearchResult returned in the background.
+   * @return Request that can be cancelled.
    */
   @Override
-  public void search(String tags, SearchCallback callback) {
+  public HttpCall search(String tags, SearchCallback callback) {
     // Return results for page 0.
-    search(tags, 0, callback);
+    return search(tags, 0, callback);
   }
 
   /**
@@ -153,21 +179,29 @@ public class Flickr implements SearchClient {
    * @param tags     Search query. A space-separated list of tags.
    * @param pid      Page number. (zero-indexed)
    * @param callback Callback listening for the SearchResult returned in the background.
+   * @return Request that can be cancelled.
    */
   @Override
-  public void search(String tags, int pid, final SearchCallback callback) {
-    Ion.with(this.context)
-        .load(createSearchURL(tags, pid))
-        .userAgent(SearchClient.USER_AGENT)
-        .as(new SearchResultParser(tags, pid))
-        .setCallback(new FutureCallback<SearchResult>() {
+  public HttpCall search(String tags, int pid, final SearchCallback callback) {
+    final PageSizeController.Page page = pageSizeController.getPage(tags, pid);
+    final SearchState searchState = new SearchState(tags, tags, pageSizeController.getPageStarts(tags));
+    final long startTime = System.nanoTime();
+    return transport.enqueue(
+        new HttpRequest(createSearchURL(tags, page.number, page.limit))
+            .userAgent(SearchClient.USER_AGENT)
+            .retryOnFailure(),
+        new SearchResultParser(tags, pid, callback),
+        new HttpTransport.Callback<SearchResult>() {
+          @Override
+          public void onSuccess(SearchResult result) {
+            pageSizeController.onPageFetched(page.limit, (System.nanoTime() - startTime) / 1000000L);
+            result.setSearchState(searchState);
+            callback.onSuccess(result);
+          }
+
           @Override
-          public void onCompleted(Exception e, SearchResult result) {
-            if (e != null) {
-              callback.onFailure(new IOException(e));
-            } else {
-              callback.onSuccess(result);
-            }
+          public void onFailure(IOException e) {
+            callback.onFailure(e);
           }
         });
   }
@@ -182,6 +216,18 @@ public class Flickr implements SearchClient {
     return "";
   }
 
+  @Override
+  public boolean setQueryFilter(ImageFilter filter) {
+    // Flickr doesn't have SafeSearch ratings or support excluding tags from searches.
+    return false;
+  }
+
+  @Override
+  public void resumeSearch(SearchState searchState) {
+    // Queries are sent to the API unchanged, only the page sizes have to be restored.
+    pageSizeController.restorePageLayout(searchState.getQuery(), searchState.getPageStarts());
+  }
+
   /**
    * Get a serializable {@link Settings} object with this
    * {@link SearchClient}'s settings.
@@ -213,11 +259,12 @@ public class Flickr implements SearchClient {
   /**
    * Generate request URL to the search API endpoint.
    *
-   * @param tags Space-separated tags.
-   * @param pid  Page number (0-indexed).
+   * @param tags  Space-separated tags.
+   * @param pid   Page number (0-indexed), in units of the page size.
+   * @param limit Images to fetch per page.
    * @return URL to search results API.
    */
-  protected String createSearchURL(String tags, int pid) {
+  protected String createSearchURL(String tags, int pid, int limit) {
     return new Uri.Builder()
         .scheme(apiEndpoint.getScheme())
         .authority(apiEndpoint.getAuthority())
@@ -225,7 +272,7 @@ public class Flickr implements SearchClient {
         .appendQueryParameter("api_key", FLICKR_API_KEY)
         .appendQueryParameter("method", !TextUtils.isEmpty(tags) ? "flickr.photos.search" : "flickr.interestingness.getList")
         .appendQueryParameter("text", tags != null ? tags : "")
-        .appendQueryParameter("per_page", Integer.toString(DEFAULT_LIMIT, 10))
+        .appendQueryParameter("per_page", Integer.toString(limit, 10))
         .appendQueryParameter("extras", "date_upload,owner_name,media,tags,path_alias,icon_server,o_dims,path_alias,original_format,url_q,url_m,url_l,url_o")
         .appendQueryParameter("page", Integer.toString(pid + 1, 10))
         .build()
@@ -235,92 +282,77 @@ public class Flickr implements SearchClient {
 
   //region Parsing responses
   /**
-   * Parse an XML response returned by the API.
+   * Parse a single photo element of an XML response returned by the API.
    *
-   * @param body   HTTP Response body.
-   * @param tags   Tags used to retrieve the response.
-   * @param offset Current paging offset.
-   * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given XML.
+   * @param xpp Pull parser positioned on the start tag of the photo element.
+   * @return Image parsed from the photo element.
    */
-  protected SearchResult parseXMLResponse(String body, String tags, int offset) throws IOException {
-    final List<Image> imageList = new ArrayList<>(DEFAULT_LIMIT);
-
-    try {
-      Document doc = DocumentBuilderFactory
-          .newInstance()
-          .newDocumentBuilder()
-          .parse(new InputSource(new StringReader(body)));
-
-      NodeList nodeList = doc.getElementsByTagName("photo");
-
-      for (int i = 0; i < nodeList.getLength(); i++) {
-        Node node = nodeList.item(i);
-
-        if (node.getNodeType() == Node.ELEMENT_NODE) {
-          Element element = (Element) node;
-
-          final Image image = new Image();
-          image.searchPage = offset;
-          image.searchPagePosition = i;
-
-          String urlQ = element.getAttribute("url_q");
-          String urlM = element.getAttribute("url_m");
-          String urlL = element.getAttribute("url_l");
-          String urlO = element.getAttribute("url_o");
-
-          // Set file url.
-          if (!TextUtils.isEmpty(urlO)) {
-            image.fileUrl = urlO;
-            image.width = Integer.parseInt(element.getAttribute("width_o"));
-            image.height = Integer.parseInt(element.getAttribute("height_o"));
-          } else if (!TextUtils.isEmpty(urlL)) {
-            image.fileUrl = urlL;
-            image.width = Integer.parseInt(element.getAttribute("width_l"));
-            image.height = Integer.parseInt(element.getAttribute("height_l"));
-          } else if (!TextUtils.isEmpty(urlM)) {
-            image.fileUrl = urlM;
-            image.width = Integer.parseInt(element.getAttribute("width_m"));
-            image.height = Integer.parseInt(element.getAttribute("height_m"));
-          }
+  protected Image parsePost(XmlPullParser xpp) throws IOException, XmlPullParserException {
+    // Read the attributes used by the parser in a single pass.
+    // Image sizes have to be picked once all attributes are known, so they can't be set right away.
+    final String[] values = new String[PHOTO_ATTRIBUTES.length];
+    for (int i = 0; i < xpp.getAttributeCount(); i++) {
+      final Integer index = PHOTO_ATTRIBUTE_INDICES.get(xpp.getAttributeName(i));
+      if (index != null) {
+        values[index] = xpp.getAttributeValue(i);
+      }
+    }
+    XmlSearchResultParser.skipElement(xpp, xpp.getDepth());
 
-          // Set sample url.
-          if (!TextUtils.isEmpty(urlL)) {
-            image.sampleUrl = urlL;
-            image.sampleWidth = Integer.parseInt(element.getAttribute("width_l"));
-            image.sampleHeight = Integer.parseInt(element.getAttribute("height_l"));
-          } else if (!TextUtils.isEmpty(urlM)) {
-            image.sampleUrl = urlM;
-            image.sampleWidth = Integer.parseInt(element.getAttribute("width_m"));
-            image.sampleHeight = Integer.parseInt(element.getAttribute("height_m"));
-          }
+    final Image image = new Image();
 
-          // Set preview url.
-          if (!TextUtils.isEmpty(urlQ)) {
-            image.previewUrl = urlQ;
-            image.previewWidth = Integer.parseInt(element.getAttribute("width_q"));
-            image.previewHeight = Integer.parseInt(element.getAttribute("height_q"));
-          }
+    // Set file url.
+    final int fileSize = firstAvailableSize(values, ATTRIBUTE_SIZE_O, ATTRIBUTE_SIZE_L, ATTRIBUTE_SIZE_M);
+    if (fileSize != -1) {
+      image.fileUrl = values[fileSize];
+      image.width = Integer.parseInt(values[fileSize + 1]);
+      image.height = Integer.parseInt(values[fileSize + 2]);
+    }
 
-          image.tags = Tag.arrayFromString(element.getAttribute("tags"));
-          image.id = element.getAttribute("id");
-          image.webUrl = webUrlFromId(element.getAttribute("owner"), element.getAttribute("id"));
-          image.parentId = null;
-          image.safeSearchRating = Image.SafeSearchRating.S;
-          image.score = 0;
-          image.md5 = "2d57d21f35e060a4c5e81c03aea3efa8"; // not implemented
-          image.createdAt = new Date(Long.parseLong(element.getAttribute("dateupload"), 10) * 1000);
-
-          imageList.add(image);
-        }
-      }
+    // Set sample url.
+    final int sampleSize = firstAvailableSize(values, ATTRIBUTE_SIZE_L, ATTRIBUTE_SIZE_M);
+    if (sampleSize != -1) {
+      image.sampleUrl = values[sampleSize];
+      image.sampleWidth = Integer.parseInt(values[sampleSize + 1]);
+      image.sampleHeight = Integer.parseInt(values[sampleSize + 2]);
+    }
 
-    } catch (SAXException | ParserConfigurationException e) {
-      throw new IOException(e);
+    // Set preview url.
+    if (!TextUtils.isEmpty(values[ATTRIBUTE_SIZE_Q])) {
+      image.previewUrl = values[ATTRIBUTE_SIZE_Q];
+      image.previewWidth = Integer.parseInt(values[ATTRIBUTE_SIZE_Q + 1]);
+      image.previewHeight = Integer.parseInt(values[ATTRIBUTE_SIZE_Q + 2]);
     }
 
-    return new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), offset);
+    final String id = values[ATTRIBUTE_ID] != null ? values[ATTRIBUTE_ID] : "";
+    final String owner = values[ATTRIBUTE_OWNER] != null ? values[ATTRIBUTE_OWNER] : "";
+    image.setTags(Tag.arrayFromString(values[ATTRIBUTE_TAGS]));
+    image.id = id;
+    image.webUrl = webUrlFromId(owner, id);
+    image.parentId = null;
+    image.safeSearchRating = Image.SafeSearchRating.S;
+    image.score = 0;
+    image.md5 = "2d57d21f35e060a4c5e81c03aea3efa8"; // not implemented
+    image.createdAt = new Date(Long.parseLong(values[ATTRIBUTE_DATE_UPLOAD], 10) * 1000);
+
+    return image;
   }
 
+  /**
+   * Find the first image size with a URL in the attributes of a photo element.
+   *
+   * @param values Attribute values, indexed like {@link #PHOTO_ATTRIBUTES}.
+   * @param sizes  Index of the URL attribute of each size, in order of preference.
+   * @return Index of the URL attribute of the first available size. -1, if none are available.
+   */
+  private static int firstAvailableSize(String[] values, int... sizes) {
+    for (int size : sizes) {
+      if (!TextUtils.isEmpty(values[size])) {
+        return size;
+      }
+    }
+    return -1;
+  }
 
   /** Create Flickr web url for given user and photo id. */
   protected String webUrlFromId(String userId, String photoId) {
@@ -328,38 +360,16 @@ public class Flickr implements SearchClient {
   }
   //endregion
 
-  //region Ion async SearchResult parser
-  /** Asynchronous search parser to use with ion. */
-  protected class SearchResultParser implements AsyncParser<SearchResult> {
-    /** Tags searched for. */
-    private final String tags;
-    /** Current page offset. */
-    private final int pageOffset;
-
-    public SearchResultParser(String tags, int pageOffset) {
-      this.tags = tags;
-      this.pageOffset = pageOffset;
-    }
-
-    @Override
-    public Future<SearchResult> parse(DataEmitter emitter) {
-      return new StringParser().parse(emitter)
-          .then(new TransformFuture<SearchResult, String>() {
-            @Override
-            protected void transform(String result) throws Exception {
-              setComplete(parseXMLResponse(result, tags, pageOffset));
-            }
-          });
-    }
-
-    @Override
-    public void write(DataSink sink, SearchResult value, CompletedCallback completed) {
-      // Not implemented.
+  //region Streaming SearchResult parser
+  /** Asynchronous search parser to use with the {@link HttpTransport}. Parses photos while the response is downloaded. */
+  protected class SearchResultParser extends XmlSearchResultParser {
+    public SearchResultParser(String tags, int pageOffset, SearchCallback callback) {
+      super(tags, pageOffset, "photo", callback);
     }
 
     @Override
-    public Type getType() {
-      return null;
+    protected Image parsePost(XmlPullParser xpp) throws IOException, XmlPullParserException {
+      return Flickr.this.parsePost(xpp);
     }
   }
   //endregion
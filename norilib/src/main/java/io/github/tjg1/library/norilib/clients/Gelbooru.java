@@ -11,26 +11,21 @@ import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.ion.Ion;
-import com.koushikdutta.ion.Response;
-
+import java.io.IOException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
-import java.util.concurrent.ExecutionException;
+
+import io.github.tjg1.library.norilib.http.HttpRequest;
+import io.github.tjg1.library.norilib.http.HttpTransports;
+import io.github.tjg1.library.norilib.http.StatusCodeParser;
+import io.github.tjg1.library.norilib.util.DateUtils;
 
 /**
  * Client for the Gelbooru API.
  * The Gelbooru API is based on the Danbooru 1.x API with a few minor differences.
  */
 public class Gelbooru extends DanbooruLegacy {
-  //region Constants
-  /** Date format used by Gelbooru. */
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("EEE MMM d HH:mm:ss Z yyyy", Locale.US);
-  //endregion
-
   //region Constructors
   public Gelbooru(Context context, String name, String endpoint) {
     super(context, name, endpoint);
@@ -55,25 +50,17 @@ public class Gelbooru extends DanbooruLegacy {
     final String endpointUrl = Uri.withAppendedPath(uri, "/index.php?page=dapi&s=post&q=index")
         .toString();
 
-    try {
-      final Response<DataEmitter> response = Ion.with(context)
-          .load(endpointUrl)
-          .setTimeout(timeout)
-          .userAgent(SearchClient.USER_AGENT)
-          .followRedirect(false)
-          .noCache()
-          .asDataEmitter()
-          .withResponse()
-          .get();
-
-      // Close the connection.
-      final DataEmitter dataEmitter = response.getResult();
-      if (dataEmitter != null) dataEmitter.close();
+    final HttpRequest request = new HttpRequest(endpointUrl)
+        .setTimeout(timeout)
+        .userAgent(SearchClient.USER_AGENT)
+        .followRedirect(false)
+        .noCache();
 
-      if (response.getHeaders().code() == 200) {
+    try {
+      if (HttpTransports.forContext(context).execute(request, new StatusCodeParser()) == 200) {
         return uri.toString();
       }
-    } catch (InterruptedException | ExecutionException ignored) {
+    } catch (IOException ignored) {
     }
     return null;
   }
@@ -87,6 +74,12 @@ public class Gelbooru extends DanbooruLegacy {
   //endregion
 
   //region Creating search URLs
+  @Override
+  protected int getMaxSearchTags() {
+    // Gelbooru doesn't limit the number of tags. Keep search URLs reasonably short.
+    return 20;
+  }
+
   @Override
   protected String createSearchURL(String tags, int pid, int limit) {
     // Unlike DanbooruLegacy, page numbers are 0-indexed for Gelbooru APIs.
@@ -103,7 +96,7 @@ public class Gelbooru extends DanbooruLegacy {
   @Override
   protected Date dateFromString(String date) throws ParseException {
     // Override Danbooru 1.x date format.
-    return DATE_FORMAT.parse(date);
+    return new Date(DateUtils.parseCtime(date));
   }
   //endregion
 }
@@ -2,93 +2,206 @@ package io.github.tjg1.library.norilib.clients;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.async.DataSink;
-import com.koushikdutta.async.callback.CompletedCallback;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.FutureCallback;
-import com.koushikdutta.async.future.TransformFuture;
-import com.koushikdutta.async.parser.AsyncParser;
-import com.koushikdutta.async.parser.StringParser;
-import com.koushikdutta.ion.Ion;
-import com.koushikdutta.ion.Response;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
+import com.koushikdutta.async.future.SimpleFuture;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.Type;
 import java.net.URL;
-import java.text.DateFormat;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import io.github.tjg1.library.norilib.BuildConfig;
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
 import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.SearchState;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.http.AuthInterceptor;
+import io.github.tjg1.library.norilib.http.EndpointHeaders;
+import io.github.tjg1.library.norilib.http.HttpCall;
+import io.github.tjg1.library.norilib.http.HttpRequest;
+import io.github.tjg1.library.norilib.http.HttpTransport;
+import io.github.tjg1.library.norilib.http.HttpTransports;
+import io.github.tjg1.library.norilib.http.StatusCodeParser;
+import io.github.tjg1.library.norilib.http.StreamingParser;
+import io.github.tjg1.library.norilib.util.DateUtils;
 
 public class HydrusApi implements SearchClient {
 
-    private static final int DEFAULT_LIMIT = 100;
+    /** Number of images on the first search results page. Small, so the first thumbnails are shown quickly. */
+    private static final int MIN_LIMIT = 25;
+    /** Maximum number of images per search results page, resolved in concurrent metadata batches. */
+    private static final int MAX_LIMIT = 400;
+    /** HTTP header used to send the Client API access key. */
+    public static final String ACCESS_KEY_HEADER = "Hydrus-Client-API-Access-Key";
+    /** Maximum number of file ids resolved by a single /get_files/file_metadata request. */
+    private static final int METADATA_BATCH_SIZE = 100;
+    /** Size of the box Hydrus fits its thumbnails into, used when the API doesn't return thumbnail sizes. */
+    private static final int DEFAULT_THUMBNAIL_SIZE = 150;
+    /** Hydrus service type of the virtual "all known tags" service. */
+    private static final int SERVICE_TYPE_COMBINED_TAG = 10;
+    /** Tag status used by Hydrus for tags that are currently applied to a file. */
+    private static final String TAG_STATUS_CURRENT = "0";
+    /** Time after which cached search_files id lists are no longer used for the first page of a search. */
+    private static final long FILE_ID_CACHE_TTL = TimeUnit.MINUTES.toMillis(10);
+    /**
+     * Maximum number of file ids kept in the id list cache, across all cached queries. Also the
+     * maximum number of ids read from a single search_files response.
+     */
+    private static final int FILE_ID_CACHE_SIZE = 1000000;
+
+    /** Delay before a tag completion request is sent, so only the last of quickly typed keystrokes hits the network. */
+    private static final long TAG_COMPLETION_DELAY = 250;
+    /** Maximum number of prefixes cached per endpoint by the tag completion cache. */
+    private static final int TAG_COMPLETION_CACHE_SIZE = 256;
+    /** Maximum number of tag suggestions returned for a prefix. */
+    private static final int TAG_COMPLETION_LIMIT = 20;
+
+    /** Tag suggestions returned by the search_tags endpoint, keyed by endpoint and access key, then by prefix. */
+    private static final Map<String, LruCache<String, List<TagSuggestion>>> tagCompletionCache = new HashMap<>();
+
+    /** Value of the render_format parameter used to render JPEG images. */
+    private static final int RENDER_FORMAT_JPEG = 1;
+    /** Value of the render_format parameter used to render PNG images. */
+    private static final int RENDER_FORMAT_PNG = 2;
+    /** Value of the render_format parameter used to render WebP images. */
+    private static final int RENDER_FORMAT_WEBP = 33;
+    /** Quality of rendered JPEG samples (0-100). */
+    private static final int RENDER_QUALITY_JPEG = 85;
+    /** Quality of rendered WebP samples (0-100). */
+    private static final int RENDER_QUALITY_WEBP = 80;
+    /** Compression level of rendered PNG samples (0-9). */
+    private static final int RENDER_QUALITY_PNG = 6;
+
+    /** Render endpoint support, keyed by endpoint. null while the endpoint is being probed. */
+    private static final Map<String, Boolean> renderSupport = new HashMap<>();
+
+    /** Handler used to resolve search pages on the main thread, where ion delivers its callbacks. */
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Id lists returned by the search_files endpoint, keyed by endpoint, access key and query.
+     * Shared between client instances, so paging through results doesn't re-run the search.
+     */
+    private static final LruCache<String, FileIdCacheEntry> fileIdCache =
+            new LruCache<String, FileIdCacheEntry>(FILE_ID_CACHE_SIZE) {
+                @Override
+                protected int sizeOf(String key, FileIdCacheEntry value) {
+                    return Math.max(1, value.fileIds.size());
+                }
+            };
 
     //region Service configuration instance fields
     /** Android context. */
     protected final Context context;
+    /** Sends HTTP requests to the API. */
+    protected final HttpTransport transport;
     /** Human-readable service name. */
     protected final String name;
     /** URL to the HTTP API Endpoint - the server implementing the API. */
     protected final String apiEndpoint;
     /** Username used for authentication. (optional) */
     protected final String username;
-    /** Password used for authentication. (optional) */
+    /** Password used for authentication. Holds the Hydrus Client API access key. */
     protected final String password;
+    /** Sorting, limits and system predicates applied to every search. */
+    protected HydrusQueryOptions queryOptions = new HydrusQueryOptions();
+    /** Chooses the number of images per page. Shared with other clients of the same endpoint. */
+    private final PageSizeController pageSizeController;
+    /** Tag completion request waiting for its debounce delay or a response. */
+    private TagCompletionRequest pendingTagCompletion;
     //endregion
 
 
 
 
     /**
-     * Create a new Danbooru 1.x client without authentication.
+     * Create a new Hydrus Client API client without authentication.
      *
      * @param endpoint URL to the HTTP API Endpoint - the server implementing the API.
      */
     public HydrusApi(Context context, String name, String endpoint) {
         this.context = context;
+        this.transport = HttpTransports.forContext(context);
         this.name = name;
         this.apiEndpoint = endpoint;
         this.username = null;
         this.password = null;
+        this.pageSizeController = PageSizeController.forEndpoint(endpoint, MIN_LIMIT, MAX_LIMIT);
     }
 
     /**
-     * Create a new Danbooru 1.x client with authentication.
+     * Create a new Hydrus Client API client with authentication.
      *
      * @param endpoint URL to the HTTP API Endpoint - the server implementing the API.
      * @param username Username used for authentication.
-     * @param password Password used for authentication.
+     * @param password Client API access key used for authentication.
      */
     public HydrusApi(Context context, String name, String endpoint, String username, String password) {
         this.context = context;
+        this.transport = HttpTransports.forContext(context);
         this.name = name;
         this.apiEndpoint = endpoint;
         this.username = username;
         this.password = password;
+        this.pageSizeController = PageSizeController.forEndpoint(endpoint, MIN_LIMIT, MAX_LIMIT);
+
+        // Send the access key as a header, so it never ends up in URLs and cache keys.
+        if (!TextUtils.isEmpty(password)) {
+            EndpointHeaders.setHeader(endpoint, ACCESS_KEY_HEADER, password);
+            // Images loaded by the app through ion need the header too.
+            if (context != null) {
+                AuthInterceptor.install(context);
+            }
+        }
+    }
+    //endregion
+
+    //region Query options
+    /**
+     * Set the sorting, limits and system predicates evaluated server-side for every search.
+     * Metatags in the search query take precedence over these options.
+     *
+     * @param queryOptions Query options.
+     */
+    public void setQueryOptions(@NonNull HydrusQueryOptions queryOptions) {
+        this.queryOptions = new HydrusQueryOptions(queryOptions);
+    }
+
+    /** @return Copy of the query options used for every search. */
+    @NonNull
+    public HydrusQueryOptions getQueryOptions() {
+        return new HydrusQueryOptions(queryOptions);
     }
     //endregion
 
@@ -104,18 +217,7 @@ public class HydrusApi implements SearchClient {
     @Override
     public SearchResult search(String tags, int pid) throws IOException {
         try {
-            if (!TextUtils.isEmpty(this.password)) {
-
-                System.out.println(createSearchURL(tags, pid, DEFAULT_LIMIT, this.password));
-
-                return Ion.with(this.context)
-                        .load(createSearchURL(tags, pid, DEFAULT_LIMIT, this.password))
-                        .userAgent(SearchClient.USER_AGENT)
-                        .as(new HydrusApi.SearchResultParser(tags, pid))
-                        .get();
-            } else {
-                throw new IOException();
-            }
+            return searchAsync(tags, pid).get();
         } catch (InterruptedException | ExecutionException e) {
             // Normalise exception to IOException, so method signatures are not tied to a single HTTP
             // library.
@@ -124,43 +226,40 @@ public class HydrusApi implements SearchClient {
     }
 
     @Override
-    public void search(String tags, SearchCallback callback) {
+    public HttpCall search(String tags, SearchCallback callback) {
         // Return results for page 0.
-        search(tags, 0, callback);
+        return search(tags, 0, callback);
     }
 
-
-    public void search(final String tags, final int pid, final SearchCallback callback) {
-        // Define the ion callback. Not using FutureCallbacks as parameters, so the method signatures
+    @Override
+    public HttpCall search(final String tags, final int pid, final SearchCallback callback) {
+        // Define the future callback. Not using FutureCallbacks as parameters, so the method signatures
         // are not tied to a single download library.
         FutureCallback<SearchResult> futureCallback = new FutureCallback<SearchResult>() {
             @Override
             public void onCompleted(Exception e, SearchResult result) {
                 if (e != null) {
-                    callback.onFailure(new IOException(e));
+                    callback.onFailure(e instanceof IOException ? (IOException) e : new IOException(e));
                 } else {
                     callback.onSuccess(result);
                 }
             }
         };
 
-        // Handle authentication.
-        if (!TextUtils.isEmpty(this.password)) {
-
-            System.out.println(createSearchURL(tags, pid, DEFAULT_LIMIT, this.password));
+        final Future<SearchResult> future = searchAsync(tags, pid);
+        future.setCallback(futureCallback);
+        // Cancelling the future cancels the id and metadata requests it is waiting for.
+        return new HttpCall() {
+            @Override
+            public void cancel() {
+                future.cancel();
+            }
 
-            Ion.with(this.context)
-                    .load(createSearchURL(tags, pid, DEFAULT_LIMIT, this.password))
-                    .userAgent(SearchClient.USER_AGENT)
-                    .as(new HydrusApi.SearchResultParser(tags, pid))
-                    .setCallback(futureCallback);
-        } else {
-            Ion.with(this.context)
-                    .load(createSearchURL(tags, pid, DEFAULT_LIMIT, this.password))
-                    .userAgent(SearchClient.USER_AGENT)
-                    .as(new HydrusApi.SearchResultParser(tags, pid))
-                    .setCallback(futureCallback);
-        }
+            @Override
+            public boolean isCancelled() {
+                return future.isCancelled();
+            }
+        };
     }
 
 
@@ -181,34 +280,399 @@ public class HydrusApi implements SearchClient {
         return AuthenticationType.REQUIRED;
     }
 
+    @Override
+    public boolean setQueryFilter(ImageFilter filter) {
+        // Hydrus serves local files, so there's little to gain from filtering them on the server.
+        return false;
+    }
+
+    @Override
+    public void resumeSearch(SearchState searchState) {
+        // Queries are sent to the API unchanged, only the page sizes have to be restored.
+        pageSizeController.restorePageLayout(searchState.getQuery(), searchState.getPageStarts());
+    }
+    //endregion
+
+    //region Fetching search results
+    /**
+     * Search for images. The ids matching the query are fetched first, then the ids on the requested
+     * page are resolved in batches of {@link #METADATA_BATCH_SIZE} concurrent file_metadata requests.
+     *
+     * @param tags Space-separated tags.
+     * @param pid  Page number (0-indexed).
+     * @return Future completed with the {@link SearchResult}. Cancelling it cancels all in-flight requests.
+     */
+    protected Future<SearchResult> searchAsync(final String tags, final int pid) {
+        final SearchFuture result = new SearchFuture(pageSizeController.getPage(tags, pid),
+                new SearchState(tags, tags, pageSizeController.getPageStarts(tags)));
+
+        // The Client API refuses all requests without an access key.
+        if (TextUtils.isEmpty(this.password)) {
+            result.setComplete(new IOException("Hydrus Client API access key is required."));
+            return result;
+        }
+
+        probeRenderSupport();
+
+        final String cacheKey = fileIdCacheKey(tags);
+        final FileIdCacheEntry cachedEntry = fileIdCache.get(cacheKey);
+        final long now = SystemClock.elapsedRealtime();
+
+        // Later pages are always sliced from the cached list, so their offsets match the first page.
+        if (cachedEntry != null && (pid > 0 || now - cachedEntry.createdAt < FILE_ID_CACHE_TTL)) {
+            if (pid == 0 && now - cachedEntry.createdAt >= FILE_ID_CACHE_TTL / 2) {
+                refreshFileIds(cacheKey, tags, cachedEntry);
+            }
+            fetchFileMetadata(result, pageFileIds(cachedEntry.fileIds, result.page), tags, pid);
+            return result;
+        }
+
+        // The requested page is resolved as soon as its ids were read from the response, while the
+        // rest of the id list is still being downloaded into the cache.
+        final SimpleFuture<FileIdList> windowFuture = new SimpleFuture<>();
+        result.addRequest(fetchFileIds(tags, result.page.getStart() + result.page.limit, windowFuture,
+                new HttpTransport.Callback<FileIdList>() {
+                    @Override
+                    public void onSuccess(FileIdList fileIds) {
+                        fileIdCache.put(cacheKey, new FileIdCacheEntry(fileIds));
+                    }
+
+                    @Override
+                    public void onFailure(IOException e) {
+                        windowFuture.setComplete(e);
+                    }
+                }));
+        windowFuture.setCallback(new FutureCallback<FileIdList>() {
+            @Override
+            public void onCompleted(final Exception e, final FileIdList fileIds) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (e != null) {
+                            result.setComplete(new IOException(e));
+                        } else {
+                            fetchFileMetadata(result, pageFileIds(fileIds, result.page), tags, pid);
+                        }
+                    }
+                });
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Fetch the ids of all files matching the given query from the search_files endpoint.
+     *
+     * @param tags         Space-separated tags.
+     * @param windowSize   Number of ids after which the window future is completed.
+     * @param windowFuture Future completed with the first windowSize ids, as soon as they were read.
+     *                     (optional)
+     * @param callback     Callback receiving the file ids, in the order returned by the API.
+     * @return Request, so it can be cancelled.
+     */
+    protected HttpCall fetchFileIds(String tags, int windowSize, @Nullable SimpleFuture<FileIdList> windowFuture,
+                                    HttpTransport.Callback<FileIdList> callback) {
+        return transport.enqueue(
+                new HttpRequest(createSearchURL(tags)).userAgent(SearchClient.USER_AGENT).retryOnFailure(),
+                new FileIdListParser(windowSize, windowFuture),
+                callback);
+    }
+
+    /**
+     * Get the file ids on the given page.
+     *
+     * @param fileIds All file ids matching the search query.
+     * @param page    Page chosen by the {@link #pageSizeController}.
+     * @return File ids on the given page. Empty list if the page is past the end of the results.
+     */
+    private static FileIdList pageFileIds(FileIdList fileIds, PageSizeController.Page page) {
+        return fileIds.copyOfRange(page.getStart(), page.getStart() + page.limit);
+    }
+
+    /**
+     * Resolve the metadata of the given file ids and complete the given future with the
+     * {@link SearchResult}. Images are returned in the order of the given id list.
+     *
+     * @param result  Future to complete.
+     * @param fileIds Ids of the files on the current page.
+     * @param tags    Tags used to retrieve the file ids.
+     * @param pid     Current page number.
+     */
+    protected void fetchFileMetadata(final SearchFuture result, final FileIdList fileIds,
+                                     final String tags, final int pid) {
+        if (fileIds.isEmpty()) {
+            result.setSearchResult(new SearchResult(new Image[0], Tag.arrayFromString(tags), pid));
+            return;
+        }
+
+        final int chunkCount = (fileIds.size() + METADATA_BATCH_SIZE - 1) / METADATA_BATCH_SIZE;
+        final Map<String, Image> images = new HashMap<>(fileIds.size() * 2);
+        final AtomicInteger pendingChunks = new AtomicInteger(chunkCount);
+
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            final FileIdList chunkIds = fileIds.copyOfRange(chunk * METADATA_BATCH_SIZE,
+                    (chunk + 1) * METADATA_BATCH_SIZE);
+            result.addRequest(transport.enqueue(
+                    new HttpRequest(createFileMetadataURL(chunkIds)).userAgent(SearchClient.USER_AGENT).retryOnFailure(),
+                    new FileMetadataParser(),
+                    new HttpTransport.Callback<List<Image>>() {
+                        @Override
+                        public void onSuccess(List<Image> chunkImages) {
+                            synchronized (images) {
+                                for (Image image : chunkImages) {
+                                    images.put(image.id, image);
+                                }
+                            }
+                            if (pendingChunks.decrementAndGet() == 0) {
+                                pageSizeController.onPageFetched(result.page.limit,
+                                        (System.nanoTime() - result.startTime) / 1000000L);
+                                result.setSearchResult(assembleSearchResult(images, fileIds, tags, pid));
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(IOException e) {
+                            // Fail the whole page and stop the remaining requests.
+                            if (result.setComplete(e)) {
+                                result.cancelRequests();
+                            }
+                        }
+                    }));
+        }
+    }
+
+    /**
+     * Put the resolved images back into the order returned by the search_files endpoint.
+     *
+     * @param images  Images keyed by file id.
+     * @param fileIds Ids of the files on the current page, in search order.
+     * @param tags    Tags used to retrieve the file ids.
+     * @param pid     Current page number.
+     * @return Search result for the current page.
+     */
+    private static SearchResult assembleSearchResult(Map<String, Image> images, FileIdList fileIds,
+                                                     String tags, int pid) {
+        final List<Image> imageList = new ArrayList<>(fileIds.size());
+        synchronized (images) {
+            for (int i = 0; i < fileIds.size(); i++) {
+                final Image image = images.get(String.valueOf(fileIds.get(i)));
+                // Files deleted between both requests are not returned by the metadata endpoint.
+                if (image != null) {
+                    image.searchPage = pid;
+                    image.searchPagePosition = imageList.size();
+                    imageList.add(image);
+                }
+            }
+        }
+        return new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), pid);
+    }
+    //endregion
+
 
     //region Creating Search URLs
     /**
-     * Generate request URL to the search API endpoint.
+     * Generate request URL to the search API endpoint. Sorting, limits and system predicates from the
+     * {@link #queryOptions} and metatags in the query are evaluated by the server.
      *
-     * @param tags  Space-separated tags.
-     * @param pid   Page number (0-indexed).
-     * @param limit Images to fetch per page.
+     * The ids of all matching files are returned at once, pages are sliced from the id list locally.
+     *
+     * @param tags Space-separated tags.
      * @return URL to search results API.
      */
-    protected String createSearchURL(String tags, int pid, int limit, String apiKey) {
-
-        String result;
-        if (tags.equals("")) {
-            result = String.format(Locale.US, apiEndpoint + "/get_files/search_files?system_inbox=false&system_archive=false&Hydrus-Client-API-Access-Key=%s", apiKey);
+    protected String createSearchURL(String tags) {
+        final HydrusQueryOptions options = new HydrusQueryOptions(queryOptions);
+        final List<String> searchTags = options.parseMetatags(tags);
+        searchTags.addAll(options.toSystemPredicates());
+
+        final StringBuilder url = new StringBuilder(apiEndpoint)
+                .append("/get_files/search_files?system_inbox=false&system_archive=false");
+        if (!searchTags.isEmpty()) {
+            url.append("&tags=").append(Uri.encode(new Gson().toJson(searchTags)));
+        }
+        if (options.getSortType() != null) {
+            url.append("&file_sort_type=").append(options.getSortType().value);
         }
-        else {
+        if (options.getSortAscending() != null) {
+            url.append("&file_sort_asc=").append(options.getSortAscending());
+        }
+        return url.toString();
+    }
+
+    /**
+     * Generate request URL to the file metadata API endpoint.
+     *
+     * @param fileIds Ids of the files to resolve.
+     * @return URL to the file metadata API.
+     */
+    protected String createFileMetadataURL(FileIdList fileIds) {
+        return String.format(Locale.US, apiEndpoint + "/get_files/file_metadata?file_ids=%s",
+                Uri.encode(fileIds.toString()));
+    }
+
+    /**
+     * Generate the URL of a file. Files are identified by their hash where possible, so cache keys
+     * only depend on the endpoint and the file contents.
+     *
+     * @param image Image to get the file URL for.
+     * @return URL to the original file.
+     */
+    protected String createFileURL(Image image) {
+        return this.apiEndpoint + "/get_files/file?" + fileIdentifierQuery(image);
+    }
 
-            result = String.format(Locale.US, apiEndpoint + "/get_files/search_files?system_inbox=false&system_archive=false&tags=%s&Hydrus-Client-API-Access-Key=%s", Uri.encode(new Gson().toJson(tags.split("\\s+"))), apiKey);
+    /**
+     * Generate the URL of a file thumbnail.
+     *
+     * @param image Image to get the thumbnail URL for.
+     * @return URL to the thumbnail of the file.
+     */
+    protected String createThumbnailURL(Image image) {
+        return this.apiEndpoint + "/get_files/thumbnail?" + fileIdentifierQuery(image);
+    }
+
+    /**
+     * Get the query parameter identifying a file.
+     *
+     * @param image Image to identify.
+     * @return SHA-256 hash query parameter, or the file id if the hash is unknown.
+     */
+    private static String fileIdentifierQuery(Image image) {
+        if (!TextUtils.isEmpty(image.sha256)) {
+            return "hash=" + image.sha256;
         }
-        System.out.println("Created search URL: " + result);
-        return result;
+        return "file_id=" + image.id;
     }
     //endregion
 
 
 
 
+    //region Rendered samples
+    /**
+     * Set the sample URL and size of an image. Static images larger than the display are rendered
+     * server-side at display size, so viewing them doesn't require downloading the original file.
+     * Animations, videos and images already smaller than the display use the original file.
+     *
+     * @param image      Image to set the sample of.
+     * @param frameCount Number of frames of the file. 0 if unknown.
+     */
+    protected void setSample(Image image, int frameCount) {
+        image.sampleUrl = image.fileUrl;
+        image.sampleWidth = image.width;
+        image.sampleHeight = image.height;
+
+        final int maxSize = getDisplaySize();
+        final boolean isStaticImage = image.mimeType != null && image.mimeType.startsWith("image/") &&
+                !"image/gif".equals(image.mimeType) && image.duration == 0 && frameCount <= 1;
+        if (!isStaticImage || maxSize <= 0 || Math.max(image.width, image.height) <= maxSize ||
+                isRenderUnsupported()) {
+            return;
+        }
+
+        final float scale = (float) maxSize / Math.max(image.width, image.height);
+        image.sampleWidth = Math.max(1, Math.round(image.width * scale));
+        image.sampleHeight = Math.max(1, Math.round(image.height * scale));
+        image.sampleUrl = createRenderURL(image, image.sampleWidth, image.sampleHeight);
+    }
+
+    /**
+     * Generate the URL of a file rendered server-side.
+     * JPEG files are rendered as JPEG. Other images are rendered as WebP (or PNG, on Android versions
+     * that can't decode WebP images with transparency), to keep transparency.
+     *
+     * @param image  Image to render.
+     * @param width  Width of the rendered image.
+     * @param height Height of the rendered image.
+     * @return URL to the rendered file.
+     */
+    protected String createRenderURL(Image image, int width, int height) {
+        final int format;
+        final int quality;
+        if ("image/jpeg".equals(image.mimeType)) {
+            format = RENDER_FORMAT_JPEG;
+            quality = RENDER_QUALITY_JPEG;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            format = RENDER_FORMAT_WEBP;
+            quality = RENDER_QUALITY_WEBP;
+        } else {
+            format = RENDER_FORMAT_PNG;
+            quality = RENDER_QUALITY_PNG;
+        }
+        return String.format(Locale.US, "%s/get_files/render?%s&render_format=%d&render_quality=%d&width=%d&height=%d",
+                apiEndpoint, fileIdentifierQuery(image), format, quality, width, height);
+    }
+
+    /**
+     * Check if a URL points to a file rendered server-side, which not all Hydrus servers support.
+     *
+     * @param url Image URL.
+     * @return True if the URL was generated by {@link #createRenderURL(Image, int, int)}.
+     */
+    public static boolean isRenderURL(@Nullable String url) {
+        if (url == null) {
+            return false;
+        }
+        final String path = Uri.parse(url).getPath();
+        return path != null && path.endsWith("/get_files/render");
+    }
+
+    /** @return True if probing the server showed that it doesn't support the render endpoint. */
+    private boolean isRenderUnsupported() {
+        synchronized (renderSupport) {
+            return Boolean.FALSE.equals(renderSupport.get(apiEndpoint));
+        }
+    }
+
+    /** @return Length of the longer side of the display in pixels, so samples fit in either orientation. 0 if unknown. */
+    private int getDisplaySize() {
+        if (context == null) {
+            return 0;
+        }
+        final DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+        return Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels);
+    }
+
+    /**
+     * Check if the server supports the render endpoint, once per endpoint. Until the result is known,
+     * the endpoint is assumed to be supported: the app falls back to the original file if the sample
+     * can't be loaded.
+     */
+    protected void probeRenderSupport() {
+        synchronized (renderSupport) {
+            if (renderSupport.containsKey(apiEndpoint)) {
+                return;
+            }
+            // Mark the probe as in progress.
+            renderSupport.put(apiEndpoint, null);
+        }
+
+        transport.enqueue(
+                new HttpRequest(apiEndpoint + "/get_files/render").userAgent(SearchClient.USER_AGENT).noCache(),
+                new StatusCodeParser(),
+                new HttpTransport.Callback<Integer>() {
+                    @Override
+                    public void onSuccess(Integer code) {
+                        // Servers with the render endpoint reject the request because of the missing file
+                        // parameter. Older servers don't know the path at all.
+                        synchronized (renderSupport) {
+                            renderSupport.put(apiEndpoint, code != 404);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(IOException e) {
+                        // Try again on the next search.
+                        synchronized (renderSupport) {
+                            renderSupport.remove(apiEndpoint);
+                        }
+                    }
+                });
+    }
+    //endregion
+
+
+
     //region Service detection
     /**
      * Checks if the given URL exposes a supported API endpoint.
@@ -222,25 +686,17 @@ public class HydrusApi implements SearchClient {
     public static String detectService(@NonNull Context context, @NonNull Uri uri, int timeout) {
         final String endpointUrl = Uri.withAppendedPath(uri, "api_version").toString();
 
+        final HttpRequest request = new HttpRequest(endpointUrl)
+                .setTimeout(timeout)
+                .userAgent(SearchClient.USER_AGENT)
+                .followRedirect(false)
+                .noCache();
+
         try {
-            final Response<DataEmitter> response = Ion.with(context)
-                    .load(endpointUrl)
-                    .setTimeout(timeout)
-                    .userAgent(SearchClient.USER_AGENT)
-                    .followRedirect(false)
-                    .noCache()
-                    .asDataEmitter()
-                    .withResponse()
-                    .get();
-
-            // Close the connection.
-            final DataEmitter dataEmitter = response.getResult();
-            if (dataEmitter != null) dataEmitter.close();
-
-            if (response.getHeaders().code() == 200) {
+            if (HttpTransports.forContext(context).execute(request, new StatusCodeParser()) == 200) {
                 return uri.toString();
             }
-        } catch (InterruptedException | ExecutionException ignored) {
+        } catch (IOException ignored) {
         }
         return null;
     }
@@ -249,86 +705,319 @@ public class HydrusApi implements SearchClient {
 
 
 
-
-
-
-
-
-
-
-
-
-
-
-
     //region Parsing responses
     /**
-     * Parse an XML response returned by the API.
+     * Parse a response returned by the file_metadata endpoint.
      *
-     * @param body   HTTP Response body.
-     * @param tags   Tags used to retrieve the response.
-     * @param offset Current paging offset.
-     * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given XML.
+     * @param body HTTP Response body.
+     * @return Images parsed from the response, in the order returned by the API.
      */
-    protected SearchResult parseXMLResponse(String body, String tags, int offset) throws IOException {
-        // Create variables to hold the values as XML is being parsed.
-        final List<Image> imageList = new ArrayList<>(DEFAULT_LIMIT);
-        int position = 0;
+    protected List<Image> parseFileMetadata(Reader body) throws IOException {
+        final List<Image> imageList = new ArrayList<>(METADATA_BATCH_SIZE);
+        final JsonReader reader = new JsonReader(body);
 
         try {
-            JSONObject owo = new JSONObject(body);
-
-            JSONArray uwu = owo.getJSONArray("file_ids");
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("metadata".equals(reader.nextName())) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        imageList.add(parseImage(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException(e);
+        } finally {
+            reader.close();
+        }
 
-            ArrayList<String> ids = new Gson().fromJson(uwu.toString(), new TypeToken<List<String>>(){}.getType());
+        return imageList;
+    }
 
-            for (int i = offset * DEFAULT_LIMIT; i < (offset+1) * DEFAULT_LIMIT && i < ids.size(); i++) {
+    /**
+     * Parse a single file metadata object.
+     *
+     * @param reader Reader positioned at the start of the metadata object.
+     * @return Image parsed from the metadata object.
+     */
+    private Image parseImage(JsonReader reader) throws IOException {
+        final Image image = new Image();
+        final Map<String, Tag> tags = new LinkedHashMap<>();
+        final Map<String, Tag> legacyTags = new LinkedHashMap<>();
+        long timeImported = 0;
+        long timeModified = 0;
+        int frameCount = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
 
-                final Image image = new Image();
-                image.searchPage = offset;
-                image.searchPagePosition = i;
+            switch (name) {
+                case "file_id":
+                    image.id = reader.nextString();
+                    break;
+                case "hash":
+                    image.sha256 = reader.nextString();
+                    break;
+                case "mime":
+                    image.mimeType = reader.nextString();
+                    break;
+                case "width":
+                    image.width = reader.nextInt();
+                    break;
+                case "height":
+                    image.height = reader.nextInt();
+                    break;
+                case "duration":
+                    image.duration = reader.nextInt();
+                    break;
+                case "num_frames":
+                    frameCount = reader.nextInt();
+                    break;
+                case "thumbnail_width":
+                    image.previewWidth = reader.nextInt();
+                    break;
+                case "thumbnail_height":
+                    image.previewHeight = reader.nextInt();
+                    break;
+                case "time_modified":
+                    timeModified = reader.nextLong();
+                    break;
+                case "file_services":
+                    timeImported = parseTimeImported(reader);
+                    break;
+                case "known_urls":
+                    reader.beginArray();
+                    if (reader.hasNext()) {
+                        image.source = reader.nextString();
+                    }
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                    }
+                    reader.endArray();
+                    break;
+                case "tags":
+                    parseTags(reader, tags);
+                    break;
+                case "service_keys_to_statuses_to_display_tags":
+                case "service_names_to_statuses_to_tags":
+                    parseLegacyTags(reader, legacyTags);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // Prefer the tags object returned by newer versions of the Client API.
+        final Collection<Tag> tagList = tags.isEmpty() ? legacyTags.values() : tags.values();
+        final Tag[] imageTags = tagList.toArray(new Tag[tagList.size()]);
+        image.setTags(imageTags);
+        image.safeSearchRating = safeSearchRatingFromTags(imageTags);
+
+        image.fileUrl = createFileURL(image);
+        setSample(image, frameCount);
+        image.previewUrl = createThumbnailURL(image);
+        if (image.previewWidth == 0 || image.previewHeight == 0) {
+            // Older API versions don't return thumbnail sizes: Hydrus fits thumbnails into a square box.
+            final float scale = Math.min(1f, (float) DEFAULT_THUMBNAIL_SIZE /
+                    Math.max(1, Math.max(image.width, image.height)));
+            image.previewWidth = Math.max(1, Math.round(image.width * scale));
+            image.previewHeight = Math.max(1, Math.round(image.height * scale));
+        }
+        // Hydrus has no web interface.
+        image.webUrl = image.fileUrl;
+        image.parentId = null;
+        image.score = 0;
+        // Hydrus identifies files by their SHA-256 hash and doesn't expose MD5 hashes.
+        image.md5 = null;
+        // Null if the API returned neither timestamp, rather than showing the epoch.
+        final long createdAt = timeImported != 0 ? timeImported : timeModified;
+        image.createdAt = createdAt != 0 ? new Date(createdAt * 1000L) : null;
+
+        return image;
+    }
 
+    /**
+     * Get the earliest time the file was imported into any of its current file services.
+     *
+     * @param reader Reader positioned at the start of the file_services object.
+     * @return Unix timestamp of the earliest import. 0 if not available.
+     */
+    private static long parseTimeImported(JsonReader reader) throws IOException {
+        long timeImported = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"current".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                reader.nextName();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("time_imported".equals(reader.nextName()) && reader.peek() == JsonToken.NUMBER) {
+                        final long time = reader.nextLong();
+                        if (timeImported == 0 || time < timeImported) {
+                            timeImported = time;
+                        }
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+        }
+        reader.endObject();
 
-                image.fileUrl = this.apiEndpoint + "/get_files/file?Hydrus-Client-API-Access-Key=" + this.password + "&file_id=" + ids.get(i);
-                image.width = 500; //Integer.parseInt(element.getElementsByTagName("width").item(0).getTextContent());
-                image.height = 500; //Integer.parseInt(element.getElementsByTagName("height").item(0).getTextContent());
+        return timeImported;
+    }
 
-                image.previewUrl = this.apiEndpoint + "/get_files/thumbnail?Hydrus-Client-API-Access-Key=" + this.password + "&file_id=" + ids.get(i);
-                image.previewWidth = 500; //Integer.parseInt(element.getElementsByTagName("preview_width").item(0).getTextContent());
-                image.previewHeight = 500; //Integer.parseInt(element.getElementsByTagName("preview_height").item(0).getTextContent());
+    /**
+     * Parse the tags object returned by newer versions of the Client API. If the "all known tags"
+     * service is present, only its tags are used. Otherwise, the tags of all services are merged.
+     *
+     * @param reader Reader positioned at the start of the tags object.
+     * @param tags   Map the parsed tags are added to.
+     */
+    private static void parseTags(JsonReader reader, Map<String, Tag> tags) throws IOException {
+        final Map<String, Tag> combinedTags = new LinkedHashMap<>();
+        boolean hasCombinedService = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            reader.nextName();
+            final Map<String, Tag> serviceTags = new LinkedHashMap<>();
+            int serviceType = -1;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("type".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                    serviceType = reader.nextInt();
+                } else if ("display_tags".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    parseTagStatuses(reader, serviceTags);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
 
-                image.sampleUrl = this.apiEndpoint + "/get_files/file?Hydrus-Client-API-Access-Key=" + this.password + "&file_id=" + ids.get(i);
-                image.sampleWidth = 500; //Integer.parseInt(element.getElementsByTagName("sample_width").item(0).getTextContent());
-                image.sampleHeight = 500; //Integer.parseInt(element.getElementsByTagName("sample_height").item(0).getTextContent());
+            if (serviceType == SERVICE_TYPE_COMBINED_TAG) {
+                hasCombinedService = true;
+                combinedTags.putAll(serviceTags);
+            } else {
+                tags.putAll(serviceTags);
+            }
+        }
+        reader.endObject();
 
-                //image.tags = Tag.arrayFromString(element.getElementsByTagName("tags").item(0).getTextContent(), Tag.Type.GENERAL);
-                image.id = (String) ids.get(i);
-                //image.webUrl = webUrlFromId(image.id);
-                //image.parentId = element.getElementsByTagName("parent_id").item(0).getTextContent();
-                //image.safeSearchRating = Image.SafeSearchRating.fromString(element.getElementsByTagName("rating").item(0).getTextContent());
-                //image.score = Integer.parseInt(element.getElementsByTagName("score").item(0).getTextContent());
-                //image.md5 = element.getElementsByTagName("md5").item(0).getTextContent();
-                //image.createdAt = dateFromString(element.getElementsByTagName("created_at").item(0).getTextContent());
+        if (hasCombinedService) {
+            tags.clear();
+            tags.putAll(combinedTags);
+        }
+    }
 
+    /**
+     * Parse the service to status to tags objects returned by older versions of the Client API.
+     *
+     * @param reader Reader positioned at the start of the object.
+     * @param tags   Map the parsed tags are added to.
+     */
+    private static void parseLegacyTags(JsonReader reader, Map<String, Tag> tags) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            reader.nextName();
+            parseTagStatuses(reader, tags);
+        }
+        reader.endObject();
+    }
 
-                image.tags = Tag.arrayFromString("this does not work");
-                image.webUrl =  this.apiEndpoint + "/get_files/file?Hydrus-Client-API-Access-Key=" + this.password + "&file_id=" + ids.get(i);
-                image.parentId = null;
-                image.safeSearchRating = Image.SafeSearchRating.S;
-                image.score = 0;
-                image.md5 = "2d57d21f35e060a4c5e81c03aea3efa8"; // not implemented
-                image.createdAt = new Date();
+    /**
+     * Parse a status to tags object, keeping only tags that are currently applied to the file.
+     *
+     * @param reader Reader positioned at the start of the object.
+     * @param tags   Map the parsed tags are added to.
+     */
+    private static void parseTagStatuses(JsonReader reader, Map<String, Tag> tags) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!TAG_STATUS_CURRENT.equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                final String tag = reader.nextString();
+                if (!tags.containsKey(tag)) {
+                    tags.put(tag, Tag.intern(tag, tagTypeFromNamespace(tag)));
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
 
+    /**
+     * Get the {@link Tag.Type} matching the namespace of a Hydrus tag.
+     *
+     * @param tag Tag, optionally prefixed with a namespace ("namespace:subtag").
+     * @return Tag type.
+     */
+    protected static Tag.Type tagTypeFromNamespace(String tag) {
+        final int separator = tag.indexOf(':');
+        if (separator <= 0) {
+            return Tag.Type.GENERAL;
+        }
+        switch (tag.substring(0, separator)) {
+            case "creator":
+                return Tag.Type.ARTIST;
+            case "character":
+                return Tag.Type.CHARACTER;
+            case "series":
+            case "copyright":
+                return Tag.Type.COPYRIGHT;
+            default:
+                return Tag.Type.GENERAL;
+        }
+    }
 
-                imageList.add(image);
+    /**
+     * Get the {@link Image.SafeSearchRating} from the "rating:" namespace tag of an image.
+     *
+     * @param tags Image tags.
+     * @return Safe search rating. {@link Image.SafeSearchRating#U} if the image has no rating tag.
+     */
+    protected static Image.SafeSearchRating safeSearchRatingFromTags(Tag[] tags) {
+        for (Tag tag : tags) {
+            final String name = tag.getName();
+            if (!name.startsWith("rating:")) {
+                continue;
+            }
+            switch (name.substring("rating:".length())) {
+                case "safe":
+                case "general":
+                    return Image.SafeSearchRating.S;
+                case "questionable":
+                case "sensitive":
+                    return Image.SafeSearchRating.Q;
+                case "explicit":
+                    return Image.SafeSearchRating.E;
             }
         }
-        catch (Exception e) {
-            System.err.println(e.toString());
-            throw new IOException(e);
-        }
-        // Create and return a SearchResult.
-        return new SearchResult(imageList.toArray(new Image[0]), Tag.arrayFromString(tags), offset);
+        return Image.SafeSearchRating.U;
     }
 
     /**
@@ -345,16 +1034,6 @@ public class HydrusApi implements SearchClient {
         return new URL(new URL(apiEndpoint), url).toString();
     }
 
-    /**
-     * Get a URL viewable in the system web browser for given Image ID.
-     *
-     * @param id {@link io.github.tjg1.library.norilib.Image} ID.
-     * @return URL for viewing the image in the browser.
-     */
-    protected String webUrlFromId(String id) {
-        return apiEndpoint + "/post/show/" + id;
-    }
-
     /**
      * Create a {@link java.util.Date} object from String date representation used by this API.
      *
@@ -362,50 +1041,438 @@ public class HydrusApi implements SearchClient {
      * @return Date converted from given String.
      */
     protected Date dateFromString(String date) throws ParseException {
-        // Parser for the date format used by upstream Danbooru 1.x.
-        final DateFormat DATE_FORMAT_DEFAULT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-
         if (TextUtils.isDigitsOnly(date)) {
             // Moebooru-based boards (Danbooru 1.x fork) use Unix timestamps.
-            return new Date(Integer.valueOf(date));
+            return new Date(DateUtils.parseUnixTimestamp(date));
         } else {
-            return DATE_FORMAT_DEFAULT.parse(date);
+            // Upstream Danbooru 1.x uses "yyyy-MM-dd HH:mm:ss", in local time.
+            return new Date(DateUtils.parseIso8601(date));
         }
     }
     //endregion
 
-    //region Ion async SearchResult parser
-    /** Asynchronous search parser to use with ion. */
-    protected class SearchResultParser implements AsyncParser<SearchResult> {
-        /** Tags searched for. */
-        private final String tags;
-        /** Current page offset. */
-        private final int pageOffset;
+    //region Tag autocomplete
+    /**
+     * Get tag suggestions for given prefix from the search_tags endpoint. Requests are debounced: a
+     * request still waiting for its delay or a response is cancelled when a new one is started.
+     * Responses are cached per endpoint, so repeated prefixes never hit the network twice.
+     * Must be called from the main thread. The callback is also invoked on the main thread.
+     *
+     * @param prefix   Tag prefix typed by the user.
+     * @param callback Callback invoked with the suggestions, ordered by descending tag count.
+     * @return Handle that can be used to cancel the request.
+     */
+    @NonNull
+    public TagCompletionRequest completeTags(@NonNull String prefix, @NonNull TagCompletionCallback callback) {
+        if (pendingTagCompletion != null) {
+            pendingTagCompletion.cancel();
+        }
+
+        final TagCompletionRequest request = new TagCompletionRequest(prefix.trim().toLowerCase(Locale.US), callback);
+        if (getCachedTagSuggestions(request.prefix) != null) {
+            // Deliver cached results without waiting for the debounce delay.
+            mainHandler.post(request);
+        } else {
+            pendingTagCompletion = request;
+            mainHandler.postDelayed(request, TAG_COMPLETION_DELAY);
+        }
+        return request;
+    }
+
+    /**
+     * Get cached tag suggestions for given prefix, without hitting the network.
+     *
+     * @param prefix Tag prefix typed by the user.
+     * @return Cached suggestions. null if the prefix is not cached.
+     */
+    @Nullable
+    public List<TagSuggestion> getCachedTagSuggestions(@NonNull String prefix) {
+        return getTagCompletionCache().get(prefix.trim().toLowerCase(Locale.US));
+    }
+
+    /** @return Tag completion cache of this endpoint and access key. */
+    private LruCache<String, List<TagSuggestion>> getTagCompletionCache() {
+        final String key = apiEndpoint + '\n' + password;
+        synchronized (tagCompletionCache) {
+            LruCache<String, List<TagSuggestion>> cache = tagCompletionCache.get(key);
+            if (cache == null) {
+                cache = new LruCache<>(TAG_COMPLETION_CACHE_SIZE);
+                tagCompletionCache.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Generate request URL to the tag search API endpoint.
+     *
+     * @param prefix Tag prefix.
+     * @return URL to the tag search API.
+     */
+    protected String createTagSearchURL(String prefix) {
+        return String.format(Locale.US, apiEndpoint + "/add_tags/search_tags?search=%s&tag_display_type=display",
+                Uri.encode(prefix));
+    }
+
+    /**
+     * Parse a response returned by the search_tags endpoint.
+     *
+     * @param body HTTP Response body.
+     * @return Suggestions, ordered by descending tag count.
+     */
+    protected List<TagSuggestion> parseTagSuggestions(Reader body) throws IOException {
+        final List<TagSuggestion> suggestions = new ArrayList<>();
+        final JsonReader reader = new JsonReader(body);
 
-        public SearchResultParser(String tags, int pageOffset) {
-            this.tags = tags;
-            this.pageOffset = pageOffset;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"tags".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String value = null;
+                    int count = 0;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        final String name = reader.nextName();
+                        if ("value".equals(name)) {
+                            value = reader.nextString();
+                        } else if ("count".equals(name)) {
+                            count = reader.nextInt();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    if (value != null) {
+                        suggestions.add(new TagSuggestion(Tag.intern(value, tagTypeFromNamespace(value)), count));
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException(e);
+        } finally {
+            reader.close();
+        }
+
+        Collections.sort(suggestions);
+        return suggestions.size() > TAG_COMPLETION_LIMIT ?
+                new ArrayList<>(suggestions.subList(0, TAG_COMPLETION_LIMIT)) : suggestions;
+    }
+
+    /** Tag completion request. Not tied to a single HTTP library, so it can be held by the UI. */
+    public class TagCompletionRequest implements Runnable {
+        /** Normalised tag prefix. */
+        private final String prefix;
+        /** Callback invoked with the results. */
+        private final TagCompletionCallback callback;
+        /** In-flight request to the search_tags endpoint. */
+        private HttpCall call;
+        /** True if the request was cancelled. */
+        private boolean cancelled = false;
+
+        private TagCompletionRequest(String prefix, TagCompletionCallback callback) {
+            this.prefix = prefix;
+            this.callback = callback;
         }
 
         @Override
-        public Future<SearchResult> parse(DataEmitter emitter) {
-            return new StringParser().parse(emitter)
-                    .then(new TransformFuture<SearchResult, String>() {
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            final List<TagSuggestion> cached = getCachedTagSuggestions(prefix);
+            if (cached != null || prefix.isEmpty()) {
+                finish();
+                callback.onSuccess(prefix, cached != null ? cached : Collections.<TagSuggestion>emptyList());
+                return;
+            }
+            if (TextUtils.isEmpty(password)) {
+                finish();
+                callback.onFailure(new IOException("Hydrus Client API access key is required."));
+                return;
+            }
+
+            call = transport.enqueue(
+                    new HttpRequest(createTagSearchURL(prefix)).userAgent(SearchClient.USER_AGENT),
+                    new TagSuggestionParser(),
+                    new HttpTransport.Callback<List<TagSuggestion>>() {
                         @Override
-                        protected void transform(String result) throws Exception {
-                            setComplete(parseXMLResponse(result, tags, pageOffset));
+                        public void onSuccess(List<TagSuggestion> suggestions) {
+                            if (cancelled) {
+                                return;
+                            }
+                            finish();
+                            getTagCompletionCache().put(prefix, suggestions);
+                            callback.onSuccess(prefix, suggestions);
+                        }
+
+                        @Override
+                        public void onFailure(IOException e) {
+                            if (cancelled) {
+                                return;
+                            }
+                            finish();
+                            callback.onFailure(e);
                         }
                     });
         }
 
+        /** Cancel the request. The callback won't be invoked. */
+        public void cancel() {
+            cancelled = true;
+            mainHandler.removeCallbacks(this);
+            if (call != null) {
+                call.cancel();
+            }
+            finish();
+        }
+
+        /** Stop tracking this request as the pending request of the client. */
+        private void finish() {
+            if (pendingTagCompletion == this) {
+                pendingTagCompletion = null;
+            }
+        }
+    }
+
+    /** Tag suggested by the search_tags endpoint. */
+    public static class TagSuggestion implements Comparable<TagSuggestion> {
+        /** Suggested tag. */
+        public final Tag tag;
+        /** Number of files tagged with the tag. */
+        public final int count;
+
+        public TagSuggestion(Tag tag, int count) {
+            this.tag = tag;
+            this.count = count;
+        }
+
         @Override
-        public void write(DataSink sink, SearchResult value, CompletedCallback completed) {
-            // Not implemented.
+        public int compareTo(@NonNull TagSuggestion another) {
+            // Sort by descending count, then by name.
+            if (count != another.count) {
+                return count > another.count ? -1 : 1;
+            }
+            return tag.compareTo(another.tag);
+        }
+    }
+
+    /** Callback invoked with the results of {@link #completeTags(String, TagCompletionCallback)}. */
+    public interface TagCompletionCallback {
+        /**
+         * Suggestions were fetched successfully.
+         *
+         * @param prefix      Normalised tag prefix.
+         * @param suggestions Suggestions, ordered by descending tag count.
+         */
+        void onSuccess(String prefix, List<TagSuggestion> suggestions);
+
+        /**
+         * Suggestions could not be fetched.
+         *
+         * @param e Error.
+         */
+        void onFailure(IOException e);
+    }
+    //endregion
+
+    //region File id cache
+    /**
+     * Get the id list cache key for the given query.
+     *
+     * @param tags Space-separated tags.
+     * @return Cache key unique to the endpoint, the access key (which may restrict the searchable files)
+     * and the search request, including the normalised query and query options.
+     */
+    private String fileIdCacheKey(String tags) {
+        return apiEndpoint + '\n' + password + '\n' + createSearchURL(tags);
+    }
+
+    /**
+     * Re-fetch a cached id list in the background and replace the cache entry once done.
+     * Searches keep being served from the old list in the meantime.
+     *
+     * @param cacheKey Id list cache key.
+     * @param tags     Space-separated tags.
+     * @param entry    Cache entry to refresh.
+     */
+    private void refreshFileIds(final String cacheKey, String tags, final FileIdCacheEntry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
         }
+        fetchFileIds(tags, 0, null, new HttpTransport.Callback<FileIdList>() {
+            @Override
+            public void onSuccess(FileIdList fileIds) {
+                fileIdCache.put(cacheKey, new FileIdCacheEntry(fileIds));
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                // Try again on the next search.
+                entry.refreshing.set(false);
+            }
+        });
+    }
+
+    /**
+     * Drop all cached id lists of the given endpoint, e.g. after files were imported or deleted.
+     *
+     * @param endpoint URL to the HTTP API Endpoint.
+     */
+    public static void invalidateFileIdCache(@NonNull String endpoint) {
+        final String prefix = endpoint + '\n';
+        for (String key : fileIdCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                fileIdCache.remove(key);
+            }
+        }
+    }
+
+    /** Drop all cached id lists. */
+    public static void invalidateFileIdCache() {
+        fileIdCache.evictAll();
+    }
+
+    /** Id list returned by the search_files endpoint. */
+    private static class FileIdCacheEntry {
+        /** File ids, in the order returned by the API. */
+        final FileIdList fileIds;
+        /** {@link SystemClock#elapsedRealtime()} at the time the list was fetched. */
+        final long createdAt = SystemClock.elapsedRealtime();
+        /** True if a background refresh of this entry is in progress. */
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        FileIdCacheEntry(FileIdList fileIds) {
+            this.fileIds = fileIds;
+        }
+    }
+    //endregion
+
+    //region Search future
+    /** Search result future that cancels all of its in-flight requests when cancelled. */
+    protected static class SearchFuture extends SimpleFuture<SearchResult> {
+        /** Requests started to resolve this search result. */
+        private final List<HttpCall> requests = new ArrayList<>();
+        /** Page of file ids resolved by this search. */
+        final PageSizeController.Page page;
+        /** Request parameters of the search, attached to the search result. */
+        final SearchState searchState;
+        /** Time the search was started, in nanoseconds. */
+        final long startTime = System.nanoTime();
+
+        /**
+         * Create a new search future.
+         *
+         * @param page        Page of file ids to resolve.
+         * @param searchState Request parameters of the search.
+         */
+        SearchFuture(PageSizeController.Page page, SearchState searchState) {
+            this.page = page;
+            this.searchState = searchState;
+        }
+
+        /**
+         * Complete this future with the resolved search result.
+         *
+         * @param searchResult Search result for the requested page.
+         */
+        void setSearchResult(SearchResult searchResult) {
+            searchResult.setSearchState(searchState);
+            setComplete(searchResult);
+        }
+
+        /**
+         * Track a request started to resolve this search result.
+         *
+         * @param request Request.
+         */
+        synchronized void addRequest(HttpCall request) {
+            if (isCancelled()) {
+                request.cancel();
+            } else {
+                requests.add(request);
+            }
+        }
+
+        /** Cancel all tracked requests. */
+        synchronized void cancelRequests() {
+            for (HttpCall request : requests) {
+                request.cancel();
+            }
+            requests.clear();
+        }
+
+        @Override
+        public boolean cancel() {
+            final boolean cancelled = super.cancel();
+            if (cancelled) {
+                cancelRequests();
+            }
+            return cancelled;
+        }
+    }
+    //endregion
+
+    //region Streaming parsers
+    /**
+     * Asynchronous parser for the file id list returned by the search_files endpoint.
+     * Ids are parsed straight from the response stream as it is being downloaded.
+     */
+    protected static class FileIdListParser extends StreamingParser<FileIdList> {
+        /** Size of the buffer the response is read into. */
+        private static final int BUFFER_SIZE = 8192;
+        /** Number of ids after which {@link #windowFuture} is completed. */
+        private final int windowSize;
+        /** Future completed as soon as the first {@link #windowSize} ids were read. (optional) */
+        private final SimpleFuture<FileIdList> windowFuture;
+
+        public FileIdListParser(int windowSize, @Nullable SimpleFuture<FileIdList> windowFuture) {
+            this.windowSize = windowSize;
+            this.windowFuture = windowFuture;
+        }
+
+        @Override
+        protected FileIdList parse(InputStream inputStream) throws IOException {
+            final FileIdList.StreamParser parser = new FileIdList.StreamParser(FILE_ID_CACHE_SIZE);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+
+            boolean parsing = true;
+            int count;
+            while (parsing && (count = inputStream.read(buffer)) != -1) {
+                parsing = parser.feed(ByteBuffer.wrap(buffer, 0, count));
+                if (windowFuture != null && !windowFuture.isDone() && parser.size() >= windowSize) {
+                    windowFuture.setComplete(parser.copyOfRange(0, windowSize));
+                }
+            }
+
+            // Ids past the limit are not downloaded: the transport closes the rest of the response.
+            final FileIdList fileIds = parser.finish();
+            if (windowFuture != null) {
+                windowFuture.setComplete(fileIds);
+            }
+            return fileIds;
+        }
+    }
+
+    /** Asynchronous parser for responses returned by the search_tags endpoint. */
+    protected class TagSuggestionParser extends StreamingParser<List<TagSuggestion>> {
+        @Override
+        protected List<TagSuggestion> parse(InputStream inputStream) throws IOException {
+            return parseTagSuggestions(new InputStreamReader(inputStream, "UTF-8"));
+        }
+    }
 
+    /** Asynchronous parser for responses returned by the file_metadata endpoint. Parses metadata while it is downloaded. */
+    protected class FileMetadataParser extends StreamingParser<List<Image>> {
         @Override
-        public Type getType() {
-            return null;
+        protected List<Image> parse(InputStream inputStream) throws IOException {
+            return parseFileMetadata(new InputStreamReader(inputStream, "UTF-8"));
         }
     }
     //endregion
@@ -0,0 +1,540 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.clients;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sorting, limits and system predicates evaluated by the Hydrus client when searching for files, so
+ * only the relevant slice of the file id list is computed and transferred.
+ * <p>
+ * Options can be set on a {@link HydrusApi} instance, or overridden per search with booru-style
+ * metatags in the query (e.g. "order:width_asc limit:500 width:>1920 filesize:..5M age:<7d").
+ */
+public class HydrusQueryOptions {
+  /** Hours in a day, used to format import age predicates. */
+  private static final int HOURS_PER_DAY = 24;
+
+  /** Sort order used by the search_files endpoint. */
+  @Nullable
+  private SortType sortType;
+  /** Sort ascending (true), descending (false) or using the default direction of the sort type (null). */
+  @Nullable
+  private Boolean sortAscending;
+  /** Maximum number of files returned by the search. 0 if not limited. */
+  private int limit;
+  /** Minimum/maximum file size in bytes. 0 if not limited. */
+  private long minFileSize, maxFileSize;
+  /** Minimum/maximum width in pixels. 0 if not limited. */
+  private int minWidth, maxWidth;
+  /** Minimum/maximum height in pixels. 0 if not limited. */
+  private int minHeight, maxHeight;
+  /** Minimum/maximum time since the file was imported, in hours. 0 if not limited. */
+  private int minImportAge, maxImportAge;
+  /** Name of the numerical rating service used by {@link #minRating}. */
+  @Nullable
+  private String ratingService;
+  /** Minimum rating, out of {@link #ratingScale} stars. 0 if not limited. */
+  private int minRating, ratingScale;
+
+  /** Create new query options, using the server-side defaults. */
+  public HydrusQueryOptions() {
+  }
+
+  /**
+   * Create a copy of given query options.
+   *
+   * @param other Options to copy.
+   */
+  public HydrusQueryOptions(@NonNull HydrusQueryOptions other) {
+    this.sortType = other.sortType;
+    this.sortAscending = other.sortAscending;
+    this.limit = other.limit;
+    this.minFileSize = other.minFileSize;
+    this.maxFileSize = other.maxFileSize;
+    this.minWidth = other.minWidth;
+    this.maxWidth = other.maxWidth;
+    this.minHeight = other.minHeight;
+    this.maxHeight = other.maxHeight;
+    this.minImportAge = other.minImportAge;
+    this.maxImportAge = other.maxImportAge;
+    this.ratingService = other.ratingService;
+    this.minRating = other.minRating;
+    this.ratingScale = other.ratingScale;
+  }
+
+  //region Setters
+  /**
+   * Sort files on the server.
+   *
+   * @param sortType  Sort type. null to use the server default (import time).
+   * @param ascending Sort ascending, descending, or null to use the default direction.
+   * @return This object, for chaining.
+   */
+  public HydrusQueryOptions setSort(@Nullable SortType sortType, @Nullable Boolean ascending) {
+    this.sortType = sortType;
+    this.sortAscending = ascending;
+    return this;
+  }
+
+  /**
+   * Limit the number of files returned by the search.
+   *
+   * @param limit Maximum number of files. 0 to return all files.
+   * @return This object, for chaining.
+   */
+  public HydrusQueryOptions setLimit(int limit) {
+    this.limit = Math.max(0, limit);
+    return this;
+  }
+
+  /**
+   * Only return files within the given size range.
+   *
+   * @param min Minimum file size in bytes (inclusive). 0 if not limited.
+   * @param max Maximum file size in bytes (inclusive). 0 if not limited.
+   * @return This object, for chaining.
+   */
+  public HydrusQueryOptions setFileSize(long min, long max) {
+    this.minFileSize = Math.max(0, min);
+    this.maxFileSize = Math.max(0, max);
+    return this;
+  }
+
+  /**
+   * Only return files within the given width range.
+   *
+   * @param min Minimum width in pixels (inclusive). 0 if not limited.
+   * @param max Maximum width in pixels (inclusive). 0 if not limited.
+   * @return This object, for chaining.
+   */
+  public HydrusQueryOptions setWidth(int min, int max) {
+    this.minWidth = Math.max(0, min);
+    this.maxWidth = Math.max(0, max);
+    return this;
+  }
+
+  /**
+   * Only return files within the given height range.
+   *
+   * @param min Minimum height in pixels (inclusive). 0 if not limited.
+   * @param max Maximum height in pixels (inclusive). 0 if not limited.
+   * @return This object, for chaining.
+   */
+  public HydrusQueryOptions setHeight(int min, int max) {
+    this.minHeight = Math.max(0, min);
+    this.maxHeight = Math.max(0, max);
+    return this;
+  }
+
+  /**
+   * Only return files imported within the given time range.
+   *
+   * @param minHours Minimum time since the file was imported, in hours. 0 if not limited.
+   * @param maxHours Maximum time since the file was imported, in hours. 0 if not limited.
+   * @return This object, for chaining.
+   */
+  public HydrusQueryOptions setImportAge(int minHours, int maxHours) {
+    this.minImportAge = Math.max(0, minHours);
+    this.maxImportAge = Math.max(0, maxHours);
+    return this;
+  }
+
+  /**
+   * Only return files rated at least the given number of stars on a numerical rating service.
+   *
+   * @param service   Name of the rating service.
+   * @param minRating Minimum rating (inclusive). 0 if not limited.
+   * @param scale     Number of stars of the rating service.
+   * @return This object, for chaining.
+   */
+  public HydrusQueryOptions setMinRating(@Nullable String service, int minRating, int scale) {
+    this.ratingService = service;
+    this.minRating = Math.max(0, minRating);
+    this.ratingScale = scale;
+    return this;
+  }
+  //endregion
+
+  //region Getters
+  /** @return Sort type. null if the server default is used. */
+  @Nullable
+  public SortType getSortType() {
+    return sortType;
+  }
+
+  /** @return Sort direction. null if the default direction of the sort type is used. */
+  @Nullable
+  public Boolean getSortAscending() {
+    return sortAscending;
+  }
+
+  /** @return Maximum number of files returned by the search. 0 if not limited. */
+  public int getLimit() {
+    return limit;
+  }
+  //endregion
+
+  //region Query translation
+  /**
+   * Remove supported metatags from a search query and apply them to these options.
+   * Unsupported metatags are kept in the query and searched for as regular Hydrus tags.
+   *
+   * @param query Space-separated tags.
+   * @return Remaining tags.
+   */
+  public List<String> parseMetatags(@NonNull String query) {
+    final List<String> tags = new ArrayList<>();
+    for (String tag : query.trim().split("\\s+")) {
+      if (!tag.isEmpty() && !parseMetatag(tag)) {
+        tags.add(tag);
+      }
+    }
+    return tags;
+  }
+
+  /**
+   * Apply a single metatag to these options.
+   *
+   * @param tag Tag to parse.
+   * @return True if the tag was a supported metatag.
+   */
+  private boolean parseMetatag(String tag) {
+    final int separator = tag.indexOf(':');
+    if (separator <= 0 || separator == tag.length() - 1) {
+      return false;
+    }
+    final String name = tag.substring(0, separator).toLowerCase(Locale.US);
+    final String value = tag.substring(separator + 1).toLowerCase(Locale.US);
+
+    try {
+      if ("order".equals(name)) {
+        return parseOrder(value);
+      } else if ("limit".equals(name)) {
+        setLimit(Integer.parseInt(value));
+        return true;
+      }
+
+      final Unit unit = Unit.forMetatag(name);
+      if (unit == null) {
+        return false;
+      }
+      // Ages don't need to be exact to the hour, so exclusive bounds are kept as they are.
+      final long[] range = parseRange(value, unit == Unit.AGE ? 0 : 1, unit);
+      if (range == null) {
+        return false;
+      }
+      // One-sided ranges only replace their own bound, so "width:>1000 width:<2000" works.
+      switch (name) {
+        case "width":
+          setWidth((int) merge(range[0], minWidth), (int) merge(range[1], maxWidth));
+          return true;
+        case "height":
+          setHeight((int) merge(range[0], minHeight), (int) merge(range[1], maxHeight));
+          return true;
+        case "filesize":
+          setFileSize(merge(range[0], minFileSize), merge(range[1], maxFileSize));
+          return true;
+        case "age":
+          setImportAge((int) merge(range[0], minImportAge), (int) merge(range[1], maxImportAge));
+          return true;
+        default:
+          return false;
+      }
+    } catch (NumberFormatException e) {
+      // Not a valid metatag, search for it as a regular tag.
+      return false;
+    }
+  }
+
+  /**
+   * Merge a bound parsed from a metatag with the current bound.
+   *
+   * @param bound   Parsed bound. 0 if not limited.
+   * @param current Current bound.
+   * @return Parsed bound, or the current bound if the metatag didn't limit it.
+   */
+  private static long merge(long bound, long current) {
+    return bound != 0 ? bound : current;
+  }
+
+  /**
+   * Parse the value of an order metatag, e.g. "width_asc".
+   *
+   * @param value Metatag value.
+   * @return True if the value is a supported sort type.
+   */
+  private boolean parseOrder(String value) {
+    Boolean ascending = null;
+    if (value.endsWith("_asc")) {
+      ascending = true;
+      value = value.substring(0, value.length() - "_asc".length());
+    } else if (value.endsWith("_desc")) {
+      ascending = false;
+      value = value.substring(0, value.length() - "_desc".length());
+    }
+    final SortType sortType = SortType.fromMetatag(value);
+    if (sortType == null) {
+      return false;
+    }
+    setSort(sortType, ascending);
+    return true;
+  }
+
+  /**
+   * Parse a range in the booru metatag syntax: "N", ">N", ">=N", "<N", "<=N", "N..M", "N.." or "..M".
+   * Values can be suffixed with the units supported by the metatag.
+   *
+   * @param value Range to parse.
+   * @param step  Step between two values, used to convert exclusive bounds into inclusive ones.
+   * @param unit  Units of the metatag.
+   * @return Inclusive minimum and maximum. 0 for unbounded ends. null if the range is empty.
+   */
+  @Nullable
+  private static long[] parseRange(String value, long step, Unit unit) throws NumberFormatException {
+    long min = 0, max = 0;
+    if (value.startsWith(">=")) {
+      min = parseNumber(value.substring(2), unit);
+    } else if (value.startsWith("<=")) {
+      max = parseNumber(value.substring(2), unit);
+    } else if (value.startsWith(">")) {
+      min = parseNumber(value.substring(1), unit) + step;
+    } else if (value.startsWith("<")) {
+      max = parseNumber(value.substring(1), unit) - step;
+    } else if (value.contains("..")) {
+      final int separator = value.indexOf("..");
+      if (separator > 0) {
+        min = parseNumber(value.substring(0, separator), unit);
+      }
+      if (separator + 2 < value.length()) {
+        max = parseNumber(value.substring(separator + 2), unit);
+      }
+    } else {
+      min = max = parseNumber(value, unit);
+    }
+    if (max < 0 || (max > 0 && min > max)) {
+      return null;
+    }
+    return new long[]{min, max};
+  }
+
+  /**
+   * Parse a number with an optional unit suffix.
+   *
+   * @param value Value to parse, e.g. "5m" or "7d".
+   * @param unit  Units of the metatag.
+   * @return Parsed number, in bytes or hours.
+   * @throws NumberFormatException Value is not a number, or its unit is not supported by the metatag.
+   */
+  private static long parseNumber(String value, Unit unit) throws NumberFormatException {
+    int end = value.length();
+    while (end > 0 && Character.isLetter(value.charAt(end - 1))) {
+      end--;
+    }
+    final long multiplier = unit.getMultiplier(value.substring(end));
+    final String number = value.substring(0, end);
+    if (number.contains(".")) {
+      return Math.round(Double.parseDouble(number) * multiplier);
+    }
+    return Long.parseLong(number) * multiplier;
+  }
+
+  /**
+   * Get the Hydrus system predicates matching these options.
+   *
+   * @return System predicates, to be searched for alongside the query tags.
+   */
+  public List<String> toSystemPredicates() {
+    final List<String> predicates = new ArrayList<>();
+
+    addRangePredicates(predicates, "system:width", minWidth, maxWidth, "");
+    addRangePredicates(predicates, "system:height", minHeight, maxHeight, "");
+    addRangePredicates(predicates, "system:filesize", minFileSize, maxFileSize, " B");
+    if (minImportAge > 0) {
+      predicates.add("system:import time > " + formatAge(minImportAge));
+    }
+    if (maxImportAge > 0) {
+      predicates.add("system:import time < " + formatAge(maxImportAge));
+    }
+    if (ratingService != null && minRating > 0 && ratingScale > 0) {
+      predicates.add(String.format(Locale.US, "system:rating for %s > %d/%d",
+          ratingService, minRating - 1, ratingScale));
+    }
+    // Evaluated last by the server, after sorting.
+    if (limit > 0) {
+      predicates.add("system:limit is " + limit);
+    }
+
+    return predicates;
+  }
+
+  /**
+   * Add predicates limiting a numeric value to an inclusive range.
+   *
+   * @param predicates List to add the predicates to.
+   * @param predicate  Predicate name.
+   * @param min        Minimum value. 0 if not limited.
+   * @param max        Maximum value. 0 if not limited.
+   * @param unit       Unit suffix.
+   */
+  private static void addRangePredicates(List<String> predicates, String predicate, long min, long max, String unit) {
+    if (min > 0 && min == max) {
+      predicates.add(predicate + " = " + min + unit);
+      return;
+    }
+    // System predicates only support exclusive bounds.
+    if (min > 0) {
+      predicates.add(predicate + " > " + (min - 1) + unit);
+    }
+    if (max > 0) {
+      predicates.add(predicate + " < " + (max + 1) + unit);
+    }
+  }
+
+  /**
+   * Format an age for use in time predicates.
+   *
+   * @param hours Age in hours.
+   * @return Formatted age, e.g. "7 days" or "1 days 12 hours".
+   */
+  private static String formatAge(int hours) {
+    if (hours % HOURS_PER_DAY == 0) {
+      return (hours / HOURS_PER_DAY) + " days";
+    } else if (hours < HOURS_PER_DAY) {
+      return hours + " hours";
+    }
+    return (hours / HOURS_PER_DAY) + " days " + (hours % HOURS_PER_DAY) + " hours";
+  }
+  //endregion
+
+  //region Unit enum
+  /** Units accepted by the values of range metatags. */
+  private enum Unit {
+    /** Plain numbers, e.g. dimensions in pixels. */
+    NONE,
+    /** File sizes, in bytes: "k", "m" and "g" (optionally followed by "b"). */
+    SIZE,
+    /** Ages, in hours: "h", "d", "w", "mo" and "y". Hours if no unit is given. */
+    AGE;
+
+    /**
+     * Get the units of a range metatag.
+     *
+     * @param metatag Metatag name.
+     * @return Units. null if the metatag isn't a supported range metatag.
+     */
+    @Nullable
+    public static Unit forMetatag(String metatag) {
+      switch (metatag) {
+        case "width":
+        case "height":
+          return NONE;
+        case "filesize":
+          return SIZE;
+        case "age":
+          return AGE;
+        default:
+          return null;
+      }
+    }
+
+    /**
+     * Get the multiplier of a unit suffix.
+     *
+     * @param suffix Unit suffix. Empty if no unit was given.
+     * @return Multiplier converting values into bytes or hours.
+     * @throws NumberFormatException The unit is not supported.
+     */
+    public long getMultiplier(String suffix) throws NumberFormatException {
+      if (suffix.isEmpty()) {
+        return 1;
+      }
+      switch (this) {
+        case SIZE:
+          switch (suffix) {
+            case "b":
+              return 1L;
+            case "k":
+            case "kb":
+              return 1024L;
+            case "m":
+            case "mb":
+              return 1024L * 1024L;
+            case "g":
+            case "gb":
+              return 1024L * 1024L * 1024L;
+          }
+          break;
+        case AGE:
+          switch (suffix) {
+            case "h":
+              return 1L;
+            case "d":
+              return HOURS_PER_DAY;
+            case "w":
+              return 7L * HOURS_PER_DAY;
+            case "mo":
+              return 30L * HOURS_PER_DAY;
+            case "y":
+              return 365L * HOURS_PER_DAY;
+          }
+          break;
+      }
+      throw new NumberFormatException("Unsupported unit: " + suffix);
+    }
+  }
+  //endregion
+
+  //region SortType enum
+  /** Sort types supported by the file_sort_type parameter of the search_files endpoint. */
+  public enum SortType {
+    FILE_SIZE(0, "filesize"),
+    DURATION(1, "duration"),
+    IMPORT_TIME(2, "imported"),
+    FILE_TYPE(3, "filetype"),
+    RANDOM(4, "random"),
+    WIDTH(5, "width"),
+    HEIGHT(6, "height"),
+    RATIO(7, "ratio"),
+    PIXEL_COUNT(8, "pixels"),
+    TAG_COUNT(9, "tagcount"),
+    VIEW_COUNT(10, "views"),
+    MODIFIED_TIME(14, "modified");
+
+    /** Value of the file_sort_type API parameter. */
+    public final int value;
+    /** Name used in order metatags. */
+    private final String metatag;
+
+    SortType(int value, String metatag) {
+      this.value = value;
+      this.metatag = metatag;
+    }
+
+    /**
+     * Get the sort type matching the value of an order metatag.
+     *
+     * @param metatag Metatag value, without direction suffix.
+     * @return Sort type. null if not supported.
+     */
+    @Nullable
+    public static SortType fromMetatag(String metatag) {
+      for (SortType sortType : values()) {
+        if (sortType.metatag.equals(metatag)) {
+          return sortType;
+        }
+      }
+      return null;
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,305 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.clients;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses the number of images requested per page of search results, based on the latency and
+ * throughput measured for each API endpoint.
+ * <p>
+ * The first page of a search is always small, so the first thumbnails are shown quickly. Following
+ * pages grow towards the number of images the API can return within {@link #TARGET_LATENCY}, up
+ * to its maximum page size. Slow servers keep small pages, while fast ones get fewer, larger
+ * requests.
+ * <p>
+ * Search clients keep using page numbers, while the APIs only accept a page number and a limit,
+ * fetching images from {@code page * limit}. Page sizes are therefore powers of 2 multiplied by the
+ * size of the first page, and only change where the start of the page is a multiple of the new size,
+ * so pages of different sizes never overlap or leave gaps. The size of each page is remembered for
+ * recent queries, so every client of the same endpoint fetches the same images for the same page.
+ * Layouts that may have been forgotten, e.g. after the app was restarted, are saved with the
+ * search result by {@link #getPageStarts(String)} and restored by {@link #restorePageLayout(String, int[])}.
+ */
+public class PageSizeController {
+
+  //region Constants
+  /** Time a page of search results should take to fetch, in milliseconds. */
+  private static final long TARGET_LATENCY = 1500;
+  /** Number of queries to keep page sizes for. */
+  private static final int MAX_QUERIES = 16;
+  //endregion
+
+  //region Static fields
+  /** Controllers shared by all search clients of each API endpoint. */
+  private static final Map<String, PageSizeController> controllers = new HashMap<>();
+  //endregion
+
+  //region Instance fields
+  /** Page size of the first page. Other page sizes are this multiplied by a power of 2. */
+  private final int minLimit;
+  /** Largest page size accepted by the API. */
+  private final int maxLimit;
+  /** Moving average of the measured throughput, in images per second. -1 if not measured yet. */
+  private double throughput = -1;
+  /** Page layouts of recent queries, least recently used first. */
+  private final Map<String, PageLayout> pageLayouts = new LinkedHashMap<String, PageLayout>(MAX_QUERIES, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, PageLayout> eldest) {
+      return size() > MAX_QUERIES;
+    }
+  };
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new controller.
+   *
+   * @param minLimit Page size of the first page.
+   * @param maxLimit Largest page size accepted by the API. Rounded down to {@code minLimit}
+   *                 multiplied by a power of 2.
+   */
+  public PageSizeController(int minLimit, int maxLimit) {
+    if (minLimit <= 0 || maxLimit < minLimit) {
+      throw new IllegalArgumentException("Invalid page size range: " + minLimit + "-" + maxLimit);
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = roundLimit(maxLimit, minLimit);
+  }
+
+  /**
+   * Get the controller shared by all search clients of an API endpoint.
+   *
+   * @param apiEndpoint URL to the HTTP API endpoint.
+   * @param minLimit    Page size of the first page.
+   * @param maxLimit    Largest page size accepted by the API.
+   * @return Shared controller.
+   */
+  public static PageSizeController forEndpoint(String apiEndpoint, int minLimit, int maxLimit) {
+    synchronized (controllers) {
+      PageSizeController controller = controllers.get(apiEndpoint);
+      if (controller == null || controller.minLimit != minLimit) {
+        controller = new PageSizeController(minLimit, maxLimit);
+        controllers.put(apiEndpoint, controller);
+      }
+      return controller;
+    }
+  }
+  //endregion
+
+  //region Page sizes
+  /**
+   * Get the page to request from the API for a page of search results.
+   * Requesting the first page starts a new layout for the query. If no layout is known for the
+   * query and none was restored, pages up to the requested one have the first page size.
+   *
+   * @param query Search query.
+   * @param pid   Page number of the search result. (0-indexed)
+   * @return Page number and page size to request from the API.
+   */
+  public synchronized Page getPage(String query, int pid) {
+    PageLayout pageLayout = pageLayouts.get(query);
+    if (pageLayout == null || pid == 0) {
+      pageLayout = new PageLayout();
+      pageLayouts.put(query, pageLayout);
+      // Following pages still grow from here, aligned to their own size.
+      while (pageLayout.count <= pid) {
+        pageLayout.addPage(minLimit);
+      }
+    }
+    while (pageLayout.count <= pid) {
+      pageLayout.addPage(getTargetLimit());
+    }
+    final int limit = pageLayout.limits[pid];
+    return new Page(pageLayout.starts[pid] / limit, limit);
+  }
+
+  /**
+   * Get the layout of the pages of a query, so it can be restored later.
+   *
+   * @param query Search query.
+   * @return Offset of the first image of each page in the layout, followed by the end of the last page.
+   */
+  public synchronized int[] getPageStarts(String query) {
+    final PageLayout pageLayout = pageLayouts.get(query);
+    if (pageLayout == null) {
+      return new int[]{0};
+    }
+    final int[] pageStarts = Arrays.copyOf(pageLayout.starts, pageLayout.count + 1);
+    pageStarts[pageLayout.count] = pageLayout.getEnd();
+    return pageStarts;
+  }
+
+  /**
+   * Restore the layout of the pages of a query, e.g. after the app was restarted, so its following
+   * pages start where the earlier ones ended. Pages added to the current layout since it was saved
+   * are kept, if the current layout matches the saved one.
+   *
+   * @param query      Search query.
+   * @param pageStarts Layout returned by {@link #getPageStarts(String)}.
+   */
+  public synchronized void restorePageLayout(String query, int[] pageStarts) {
+    final int count = pageStarts.length - 1;
+    // Ignore empty or invalid layouts, e.g. from saved state written by another version of the app.
+    if (count <= 0 || pageStarts[0] != 0) {
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      final int limit = pageStarts[i + 1] - pageStarts[i];
+      if (limit < minLimit || limit > maxLimit || roundLimit(limit, minLimit) != limit || pageStarts[i] % limit != 0) {
+        return;
+      }
+    }
+
+    final PageLayout pageLayout = pageLayouts.get(query);
+    if (pageLayout != null && pageLayout.count >= count && pageLayout.startsWith(pageStarts)) {
+      return;
+    }
+    final PageLayout restoredLayout = new PageLayout();
+    for (int i = 0; i < count; i++) {
+      restoredLayout.setPage(i, pageStarts[i], pageStarts[i + 1] - pageStarts[i]);
+    }
+    pageLayouts.put(query, restoredLayout);
+  }
+
+  /**
+   * Record the time it took to fetch a page, to adapt the size of the following pages.
+   *
+   * @param limit   Page size requested.
+   * @param latency Time it took to fetch and parse the page, in milliseconds.
+   */
+  public synchronized void onPageFetched(int limit, long latency) {
+    final double pageThroughput = limit * 1000.0 / Math.max(latency, 1);
+    if (throughput < 0) {
+      throughput = pageThroughput;
+    } else {
+      // Exponential moving average, giving each new sample a weight of 1/4.
+      throughput += (pageThroughput - throughput) / 4;
+    }
+  }
+
+  /**
+   * Get the page size the API can return within the target latency.
+   *
+   * @return Target page size, between the minimum and maximum page size.
+   */
+  public synchronized int getTargetLimit() {
+    if (throughput < 0) {
+      return minLimit;
+    }
+    return roundLimit((int) Math.min(maxLimit, throughput * TARGET_LATENCY / 1000), minLimit);
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Round a page size down to the minimum page size multiplied by a power of 2.
+   *
+   * @param limit    Page size.
+   * @param minLimit Minimum page size.
+   * @return Rounded page size. At least the minimum page size.
+   */
+  private static int roundLimit(int limit, int minLimit) {
+    int roundedLimit = minLimit;
+    while (roundedLimit * 2 <= limit) {
+      roundedLimit *= 2;
+    }
+    return roundedLimit;
+  }
+  //endregion
+
+  //region Inner classes
+  /** Page number and page size requested from the API. */
+  public static class Page {
+    /** Page number, in units of {@link #limit}. (0-indexed) */
+    public final int number;
+    /** Number of images to request. */
+    public final int limit;
+
+    /**
+     * Create a new page.
+     *
+     * @param number Page number, in units of the page size. (0-indexed)
+     * @param limit  Number of images to request.
+     */
+    public Page(int number, int limit) {
+      this.number = number;
+      this.limit = limit;
+    }
+
+    /** @return Offset of the first image of the page. */
+    public int getStart() {
+      return number * limit;
+    }
+  }
+
+  /** Page sizes chosen for the pages of a single query. */
+  private class PageLayout {
+    /** Offset of the first image of each page. */
+    private int[] starts = new int[8];
+    /** Size of each page. */
+    private int[] limits = new int[8];
+    /** Number of pages in the layout. */
+    private int count = 0;
+
+    /**
+     * Add the next page to the layout.
+     *
+     * @param targetLimit Preferred page size.
+     */
+    private void addPage(int targetLimit) {
+      final int start = getEnd();
+      // Keep the first page small. Use the largest page size up to the target that other pages can start at.
+      int limit = minLimit;
+      while (count > 0 && limit * 2 <= targetLimit && start % (limit * 2) == 0) {
+        limit *= 2;
+      }
+      setPage(count, start, limit);
+    }
+
+    /**
+     * Set the next page of the layout.
+     *
+     * @param index Page number. Must be the number of pages in the layout.
+     * @param start Offset of the first image of the page.
+     * @param limit Page size.
+     */
+    private void setPage(int index, int start, int limit) {
+      if (index == starts.length) {
+        starts = Arrays.copyOf(starts, index * 2);
+        limits = Arrays.copyOf(limits, index * 2);
+      }
+      starts[index] = start;
+      limits[index] = limit;
+      count = index + 1;
+    }
+
+    /** @return Offset of the image following the last page of the layout. */
+    private int getEnd() {
+      return count > 0 ? starts[count - 1] + limits[count - 1] : 0;
+    }
+
+    /**
+     * Check if the layout begins with the given pages.
+     *
+     * @param pageStarts Offset of the first image of each page, followed by the end of the last page.
+     * @return True if the pages in both layouts start at the same images and have the same sizes.
+     */
+    private boolean startsWith(int[] pageStarts) {
+      for (int i = 0; i < pageStarts.length - 1; i++) {
+        if (i >= count || starts[i] != pageStarts[i] || limits[i] != pageStarts[i + 1] - pageStarts[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+  //endregion
+}
@@ -13,7 +13,13 @@ import android.os.Parcelable;
 import java.io.IOException;
 
 import io.github.tjg1.library.norilib.BuildConfig;
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
 import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.SearchState;
+import io.github.tjg1.library.norilib.http.HostScheduler;
+import io.github.tjg1.library.norilib.http.HttpCall;
+import io.github.tjg1.library.norilib.http.RateLimit;
 
 /**
  * Interface for a client consuming a Danbooru style API.
@@ -49,8 +55,9 @@ public interface SearchClient {
    *
    * @param tags     Search query. A space-separated list of tags.
    * @param callback Callback listening for the SearchResult returned in the background.
+   * @return Request that can be cancelled. The callback isn't called once it was cancelled.
    */
-  public void search(String tags, SearchCallback callback);
+  public HttpCall search(String tags, SearchCallback callback);
 
   /**
    * Asynchronously search for images with the given set of tags.
@@ -58,8 +65,38 @@ public interface SearchClient {
    * @param tags     Search query. A space-separated list of tags.
    * @param pid      Page number. (zero-indexed)
    * @param callback Callback listening for the SearchResult returned in the background.
+   * @return Request that can be cancelled. The callback isn't called once it was cancelled.
    */
-  public void search(String tags, int pid, SearchCallback callback);
+  public HttpCall search(String tags, int pid, SearchCallback callback);
+  //endregion
+
+  //region Server-side filtering
+  /**
+   * Set a filter to push down into search queries, where supported by the API.
+   * The query sent to the server is extended with exclusions for blacklisted tags and SafeSearch
+   * ratings, within the API's tag limit, so fewer images are downloaded only to be filtered out.
+   * Results still have to be filtered with {@link SearchResult#filter(ImageFilter)}, as not all
+   * exclusions may fit. Clients for APIs without negated tag searches ignore the filter.
+   * <p>
+   * Exclusions are chosen when a query is first searched for after the filter is set, and reused
+   * for its following pages, so they don't overlap. Set the filter again when starting a new search.
+   * Pages of a search started by another client are fetched with the exclusions restored by
+   * {@link #resumeSearch(SearchState)} instead.
+   *
+   * @param filter Filter to push down. Null to send queries unchanged.
+   * @return True if exclusions are added to search queries. Search results fetched with a filter
+   * that was loosened since then may be missing images.
+   */
+  public boolean setQueryFilter(ImageFilter filter);
+
+  /**
+   * Fetch the following pages of a search with the same request parameters as its earlier pages,
+   * e.g. when the search result was passed to another activity or restored after the app was
+   * restarted. Applies to searches for the state's query, until the query filter is set again.
+   *
+   * @param searchState State returned by {@link SearchResult#getSearchState()}.
+   */
+  public void resumeSearch(SearchState searchState);
   //endregion
 
   //region Default query
@@ -109,6 +146,21 @@ public interface SearchClient {
      */
     public void onSuccess(SearchResult searchResult);
   }
+
+  /**
+   * {@link SearchCallback} also notified of each image as soon as it was parsed, so results can be
+   * shown before the whole response was downloaded. Only clients parsing responses incrementally
+   * call {@link #onImageParsed(Image)}, others only call {@link #onSuccess(SearchResult)}.
+   */
+  public static interface StreamingSearchCallback extends SearchCallback {
+    /**
+     * Called on the main thread for each image parsed from the response, before the complete
+     * result is returned to {@link #onSuccess(SearchResult)}.
+     *
+     * @param image Parsed image. Not filtered yet.
+     */
+    public void onImageParsed(Image image);
+  }
   //endregion
 
   //region API Settings getter + inner class
@@ -242,6 +294,7 @@ public interface SearchClient {
      * @return A {@link io.github.tjg1.library.norilib.clients.SearchClient} created using settings from this object.
      */
     public SearchClient createSearchClient(Context context) {
+      HostScheduler.getInstance().setRateLimit(endpoint, apiType.getRateLimit());
       switch (apiType) {
         case DANBOARD:
           return new Danbooru(context, name, endpoint, username, password);
@@ -268,14 +321,27 @@ public interface SearchClient {
     //region API type enumeration
     /** API client types used to construct an appropriate {@link SearchClient} from this Settings object. */
     public enum APIType {
-      DANBOARD,
-      DANBOARD_LEGACY,
-      GELBOARD,
-      SHIMMIE,
-      E621,
-      FLICKR,
-      FLICKR_USER,
-      HYDRUS
+      DANBOARD(new RateLimit(10, 10, 4)),
+      DANBOARD_LEGACY(new RateLimit(4, 4, 2)),
+      GELBOARD(new RateLimit(3, 3, 2)),
+      SHIMMIE(new RateLimit(4, 4, 2)),
+      E621(new RateLimit(1, 2, 2)),
+      FLICKR(new RateLimit(1, 5, 4)),
+      FLICKR_USER(new RateLimit(1, 5, 4)),
+      // Self-hosted, usually on the local network.
+      HYDRUS(RateLimit.UNLIMITED);
+
+      /** Limits on the requests sent to the API host. */
+      private final RateLimit rateLimit;
+
+      APIType(RateLimit rateLimit) {
+        this.rateLimit = rateLimit;
+      }
+
+      /** @return Limits on the requests sent to the API host, enforced by the {@link HostScheduler}. */
+      public RateLimit getRateLimit() {
+        return rateLimit;
+      }
     }
     //endregion
   }
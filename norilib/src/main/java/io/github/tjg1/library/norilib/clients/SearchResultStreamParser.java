@@ -0,0 +1,102 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.clients;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.http.StreamingParser;
+
+/**
+ * Base class for parsers reading search results straight from the network stream.
+ * Each image is added to the result as soon as it was parsed, and handed to a
+ * {@link SearchClient.StreamingSearchCallback}, so the first images can be shown before the
+ * download finishes.
+ */
+public abstract class SearchResultStreamParser extends StreamingParser<SearchResult> {
+  /** Handler used to deliver parsed images to the main thread. */
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  /** Tags searched for. */
+  private final String tags;
+  /** Current page offset. */
+  private final int pageOffset;
+  /** Callback notified of each parsed image. (optional) */
+  private final SearchClient.StreamingSearchCallback callback;
+  /** Parsed images waiting to be delivered to the {@link #callback}. Guarded by itself. */
+  private final List<Image> pendingImages = new ArrayList<>();
+
+  /**
+   * Create a new parser.
+   *
+   * @param tags       Tags searched for.
+   * @param pageOffset Current page offset.
+   * @param callback   Search callback. Notified of each parsed image, if it is a
+   *                   {@link SearchClient.StreamingSearchCallback}.
+   */
+  public SearchResultStreamParser(String tags, int pageOffset, @Nullable SearchClient.SearchCallback callback) {
+    this.tags = tags;
+    this.pageOffset = pageOffset;
+    this.callback = callback instanceof SearchClient.StreamingSearchCallback ?
+        (SearchClient.StreamingSearchCallback) callback : null;
+  }
+
+  /**
+   * Add a parsed image to the result and deliver it to the
+   * {@link SearchClient.StreamingSearchCallback} on the main thread. Images parsed while the main
+   * thread is busy are delivered together, so a single message is posted for a burst of images.
+   *
+   * @param imageList Images parsed so far.
+   * @param image     Parsed image.
+   */
+  protected void addImage(List<Image> imageList, Image image) {
+    image.searchPage = pageOffset;
+    image.searchPagePosition = imageList.size();
+    imageList.add(image);
+
+    if (callback == null) {
+      return;
+    }
+    synchronized (pendingImages) {
+      pendingImages.add(image);
+      if (pendingImages.size() > 1) {
+        // Already posted, not delivered yet.
+        return;
+      }
+    }
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        final List<Image> images;
+        synchronized (pendingImages) {
+          images = new ArrayList<>(pendingImages);
+          pendingImages.clear();
+        }
+        for (Image parsedImage : images) {
+          callback.onImageParsed(parsedImage);
+        }
+      }
+    });
+  }
+
+  /**
+   * Create the search result returned by the parser.
+   *
+   * @param imageList Parsed images.
+   * @return Search result containing the images.
+   */
+  protected SearchResult createSearchResult(List<Image> imageList) {
+    return new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), pageOffset);
+  }
+}
@@ -11,12 +11,12 @@ import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.ion.Ion;
-import com.koushikdutta.ion.Response;
-
+import java.io.IOException;
 import java.util.Locale;
-import java.util.concurrent.ExecutionException;
+
+import io.github.tjg1.library.norilib.http.HttpRequest;
+import io.github.tjg1.library.norilib.http.HttpTransports;
+import io.github.tjg1.library.norilib.http.StatusCodeParser;
 
 /**
  * Client for the Shimmie2 API.
@@ -48,25 +48,17 @@ public class Shimmie extends DanbooruLegacy {
     final String endpointUrl = Uri.withAppendedPath(uri, "/api/danbooru/find_posts/index.xml")
         .toString();
 
-    try {
-      final Response<DataEmitter> response = Ion.with(context)
-          .load(endpointUrl)
-          .setTimeout(timeout)
-          .userAgent(SearchClient.USER_AGENT)
-          .followRedirect(false)
-          .noCache()
-          .asDataEmitter()
-          .withResponse()
-          .get();
-
-      // Close the connection.
-      final DataEmitter dataEmitter = response.getResult();
-      if (dataEmitter != null) dataEmitter.close();
+    final HttpRequest request = new HttpRequest(endpointUrl)
+        .setTimeout(timeout)
+        .userAgent(SearchClient.USER_AGENT)
+        .followRedirect(false)
+        .noCache();
 
-      if (response.getHeaders().code() == 200) {
+    try {
+      if (HttpTransports.forContext(context).execute(request, new StatusCodeParser()) == 200) {
         return uri.toString();
       }
-    } catch (InterruptedException | ExecutionException ignored) {
+    } catch (IOException ignored) {
     }
     return null;
   }
@@ -80,6 +72,12 @@ public class Shimmie extends DanbooruLegacy {
   //endregion
 
   //region Creating search URLs
+  @Override
+  protected int getMaxSearchTags() {
+    // Support for negated tags and rating metatags depends on the extensions enabled on each board.
+    return 0;
+  }
+
   @Override
   protected String createSearchURL(String tags, int pid, int limit) {
     // Page numbers are 1-indexed for this api.
@@ -0,0 +1,174 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.clients;
+
+import android.support.annotation.Nullable;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+
+/**
+ * Parses XML search results straight from the network stream, one post element at a time.
+ * Each image is added to the result as soon as its post element closes, so the response body is
+ * never held in memory.
+ */
+public abstract class XmlSearchResultParser extends SearchResultStreamParser {
+  /** Name of the XML elements containing image metadata. */
+  private final String postTagName;
+
+  /**
+   * Create a new parser.
+   *
+   * @param tags        Tags searched for.
+   * @param pageOffset  Current page offset.
+   * @param postTagName Name of the XML elements containing image metadata.
+   * @param callback    Search callback. Notified of each parsed image, if it is a
+   *                    {@link SearchClient.StreamingSearchCallback}.
+   */
+  public XmlSearchResultParser(String tags, int pageOffset, String postTagName,
+                               @Nullable SearchClient.SearchCallback callback) {
+    super(tags, pageOffset, callback);
+    this.postTagName = postTagName;
+  }
+
+  /**
+   * Parse a single post element.
+   *
+   * @param xpp Pull parser positioned on the start tag of the post element. Must be left on its end tag.
+   * @return Image parsed from the post element. null to discard the post.
+   */
+  protected abstract Image parsePost(XmlPullParser xpp)
+      throws IOException, XmlPullParserException, ParseException;
+
+  @Override
+  protected SearchResult parse(InputStream inputStream) throws IOException {
+    try {
+      final XmlPullParser xpp = newPullParser();
+      // Let the parser detect the encoding from the XML declaration.
+      xpp.setInput(inputStream, null);
+      return parse(xpp);
+    } catch (XmlPullParserException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Parse a response that was already read into memory.
+   *
+   * @param reader Response body.
+   * @return Search result parsed from given XML.
+   */
+  public SearchResult parse(Reader reader) throws IOException {
+    try {
+      final XmlPullParser xpp = newPullParser();
+      xpp.setInput(reader);
+      return parse(xpp);
+    } catch (XmlPullParserException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Iterate over the post elements of a response.
+   *
+   * @param xpp Pull parser to read the response from.
+   * @return Search result containing the parsed images.
+   */
+  private SearchResult parse(XmlPullParser xpp) throws IOException {
+    final List<Image> imageList = new ArrayList<>();
+
+    try {
+      int eventType = xpp.getEventType();
+      while (eventType != XmlPullParser.END_DOCUMENT) {
+        if (eventType == XmlPullParser.START_TAG && postTagName.equals(xpp.getName())) {
+          final Image image = parsePost(xpp);
+          if (image != null) {
+            addImage(imageList, image);
+          }
+        }
+        eventType = xpp.next();
+      }
+    } catch (XmlPullParserException | ParseException | NumberFormatException e) {
+      // Convert into IOException.
+      // Needed for consistent method signatures in the SearchClient interface for different APIs.
+      throw new IOException(e);
+    }
+
+    return createSearchResult(imageList);
+  }
+
+  /**
+   * Read the text of each direct child element of the current element into an image, looking up
+   * the setter for each element by its name. Elements without a setter are skipped.
+   *
+   * @param xpp     Pull parser positioned on the start tag of the parent element. Left on its end tag.
+   * @param setters Setters keyed by element name.
+   * @param image   Image to set the values on.
+   */
+  protected static void readChildElements(XmlPullParser xpp, Map<String, FieldSetter> setters, Image image)
+      throws IOException, XmlPullParserException, ParseException {
+    final int depth = xpp.getDepth();
+
+    for (int eventType = xpp.next(); eventType != XmlPullParser.END_TAG || xpp.getDepth() > depth; eventType = xpp.next()) {
+      if (eventType == XmlPullParser.END_DOCUMENT) {
+        throw new XmlPullParserException("Unexpected end of document.");
+      } else if (eventType == XmlPullParser.START_TAG && xpp.getDepth() == depth + 1) {
+        final FieldSetter setter = setters.get(xpp.getName());
+        if (setter != null) {
+          setter.set(image, xpp.nextText());
+        }
+      }
+    }
+  }
+
+  /**
+   * Skip the rest of the current element, including all of its children.
+   *
+   * @param xpp Pull parser positioned inside of the element. Left on its end tag.
+   * @param depth Depth of the element to skip.
+   */
+  protected static void skipElement(XmlPullParser xpp, int depth)
+      throws IOException, XmlPullParserException {
+    while (xpp.getEventType() != XmlPullParser.END_TAG || xpp.getDepth() > depth) {
+      if (xpp.next() == XmlPullParser.END_DOCUMENT) {
+        throw new XmlPullParserException("Unexpected end of document.");
+      }
+    }
+  }
+
+  /** Sets a field of an {@link Image} from the text value of an XML element or attribute. */
+  public interface FieldSetter {
+    /**
+     * Set the field.
+     *
+     * @param image Image to set the field on.
+     * @param value Text value of the element or attribute.
+     */
+    void set(Image image, String value) throws ParseException;
+  }
+
+  /** @return New XML pull parser. */
+  private static XmlPullParser newPullParser() throws XmlPullParserException {
+    // Create an XML parser factory and disable namespace awareness for security reasons.
+    // See: (http://lists.w3.org/Archives/Public/public-xmlsec/2009Dec/att-0000/sws5-jensen.pdf).
+    final XmlPullParserFactory xmlParserFactory = XmlPullParserFactory.newInstance();
+    xmlParserFactory.setNamespaceAware(false);
+    return xmlParserFactory.newPullParser();
+  }
+}
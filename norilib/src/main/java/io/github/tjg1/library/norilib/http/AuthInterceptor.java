@@ -0,0 +1,51 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.koushikdutta.async.http.SimpleMiddleware;
+import com.koushikdutta.ion.Ion;
+
+import java.util.Map;
+
+/**
+ * Ion middleware applying the headers registered with {@link EndpointHeaders} to outgoing requests,
+ * including the images loaded by the app.
+ */
+public class AuthInterceptor extends SimpleMiddleware {
+  /** Shared instance, installed into the default ion instance. */
+  private static final AuthInterceptor instance = new AuthInterceptor();
+  /** True if the interceptor was added to the default ion instance. */
+  private static boolean installed = false;
+
+  /** Use {@link #install(Context)}. */
+  private AuthInterceptor() {
+  }
+
+  /**
+   * Add the interceptor to the default ion instance, if not already added.
+   *
+   * @param context Android context.
+   */
+  public static synchronized void install(@NonNull Context context) {
+    if (!installed) {
+      Ion.getDefault(context).getHttpClient().insertMiddleware(instance);
+      installed = true;
+    }
+  }
+
+  //region SimpleMiddleware methods
+  @Override
+  public void onRequest(OnRequestData data) {
+    for (Map.Entry<String, String> header : EndpointHeaders.getHeaders(data.request.getUri().toString()).entrySet()) {
+      data.request.setHeader(header.getKey(), header.getValue());
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,278 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending requests to a host after repeated transient failures, so a dead endpoint isn't hit
+ * on every scroll event.
+ * <p>
+ * Once a host failed a number of times in a row, its circuit is opened: requests that
+ * can be retried fail fast with a {@link CircuitOpenException}. The last failed request is then sent
+ * again asynchronously, after a delay growing with each failed probe. The circuit is closed
+ * once the host responds, and {@link Listener}s are notified so they can resume what they were
+ * doing.
+ */
+public class CircuitBreaker {
+  //region Constants
+  /** Number of consecutive failures opening the circuit of a host. */
+  private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  /** Delay before the first probe of a host, in milliseconds. */
+  private static final long DEFAULT_PROBE_DELAY = 5000;
+  /** Longest delay between probes of a host, in milliseconds. */
+  private static final long MAX_PROBE_DELAY = TimeUnit.MINUTES.toMillis(2);
+  /** Timeout of probe requests, in milliseconds. */
+  private static final int PROBE_TIMEOUT = 10000;
+  //endregion
+
+  //region Static fields
+  /** Circuit breaker shared by all transports. */
+  private static final CircuitBreaker instance = new CircuitBreaker(DEFAULT_FAILURE_THRESHOLD, DEFAULT_PROBE_DELAY);
+  //endregion
+
+  //region Instance fields
+  /** Number of consecutive failures opening the circuit of a host. */
+  private final int failureThreshold;
+  /** Delay before the first probe of a host, in milliseconds. */
+  private final long probeDelay;
+  /** Circuit state of each host. */
+  private final Map<String, HostState> hosts = new HashMap<>();
+  /** Listeners notified when a host comes back. */
+  private final List<Listener> listeners = new ArrayList<>();
+  /** Timer sending probe requests. */
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+      final Thread thread = new Thread(runnable, "CircuitBreaker");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new circuit breaker. Use {@link #getInstance()} to share host states with all transports.
+   *
+   * @param failureThreshold Number of consecutive failures opening the circuit of a host.
+   * @param probeDelay       Delay before the first probe of a host, in milliseconds.
+   */
+  public CircuitBreaker(int failureThreshold, long probeDelay) {
+    this.failureThreshold = failureThreshold;
+    this.probeDelay = probeDelay;
+  }
+
+  /** @return Circuit breaker shared by all transports. */
+  public static CircuitBreaker getInstance() {
+    return instance;
+  }
+  //endregion
+
+  //region Circuit state
+  /**
+   * Check if requests to a host should fail fast.
+   *
+   * @param url URL on the host.
+   * @return True if the host is considered down.
+   */
+  public synchronized boolean isOpen(@NonNull String url) {
+    final HostState hostState = hosts.get(HostScheduler.getHost(url));
+    return hostState != null && hostState.open;
+  }
+
+  /**
+   * Record a response received from a host.
+   *
+   * @param url Request URL.
+   */
+  public void onSuccess(@NonNull String url) {
+    close(HostScheduler.getHost(url), null);
+  }
+
+  /**
+   * Record a transient failure of a request. Opens the circuit of the host once it failed too many
+   * times in a row.
+   *
+   * @param request   Failed request. Sent again to probe the host while its circuit is open.
+   * @param transport Transport the request was sent with.
+   */
+  public void onFailure(@NonNull HttpRequest request, @NonNull HttpTransport transport) {
+    final String host = HostScheduler.getHost(request.getUrl());
+    final HostState hostState;
+    synchronized (this) {
+      if (!hosts.containsKey(host)) {
+        hosts.put(host, new HostState());
+      }
+      hostState = hosts.get(host);
+      if (hostState.open || ++hostState.failures < failureThreshold) {
+        return;
+      }
+      hostState.open = true;
+      hostState.probeDelay = probeDelay;
+    }
+    scheduleProbe(host, hostState, request, transport);
+  }
+  //endregion
+
+  //region Listeners
+  /**
+   * Add a listener notified when a host comes back.
+   *
+   * @param listener Listener.
+   */
+  public synchronized void addListener(@NonNull Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Remove a listener added with {@link #addListener(Listener)}.
+   *
+   * @param listener Listener.
+   */
+  public synchronized void removeListener(@NonNull Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Notify listeners a host came back.
+   *
+   * @param host Host.
+   */
+  private void notifyListeners(String host) {
+    final List<Listener> listeners;
+    synchronized (this) {
+      listeners = new ArrayList<>(this.listeners);
+    }
+    for (Listener listener : listeners) {
+      listener.onHostAvailable(host);
+    }
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Close the circuit of a host, notifying listeners if it was open.
+   *
+   * @param host      Host.
+   * @param hostState State the circuit must still be in. null to close it in any state.
+   */
+  private void close(String host, HostState hostState) {
+    final boolean wasOpen;
+    synchronized (this) {
+      final HostState currentState = hosts.get(host);
+      if (currentState == null || (hostState != null && currentState != hostState)) {
+        return;
+      }
+      wasOpen = currentState.open;
+      hosts.remove(host);
+    }
+    if (wasOpen) {
+      notifyListeners(host);
+    }
+  }
+
+  /**
+   * Probe a host with an open circuit after a delay.
+   *
+   * @param host      Host.
+   * @param hostState State of the opened circuit. Probing stops once it is no longer current.
+   * @param request   Request to probe the host with.
+   * @param transport Transport to send the probe with.
+   */
+  private void scheduleProbe(final String host, final HostState hostState, final HttpRequest request,
+                             final HttpTransport transport) {
+    final long delay;
+    synchronized (this) {
+      delay = hostState.probeDelay;
+      hostState.probeDelay = Math.min(hostState.probeDelay * 2, MAX_PROBE_DELAY);
+    }
+
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (CircuitBreaker.this) {
+          // Closed by a request that went through in the meantime.
+          if (hosts.get(host) != hostState) {
+            return;
+          }
+        }
+        probe(host, hostState, request, transport);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Send a probe request in the background, bypassing the HTTP cache. The timer only starts probes,
+   * so a host that doesn't respond doesn't hold up the probes of other hosts.
+   *
+   * @param host      Host.
+   * @param hostState State of the opened circuit.
+   * @param request   Request to probe the host with.
+   * @param transport Transport to send the probe with.
+   */
+  private void probe(final String host, final HostState hostState, final HttpRequest request,
+                     final HttpTransport transport) {
+    final HttpRequest probe = new HttpRequest(request.getUrl())
+        .setTimeout(PROBE_TIMEOUT)
+        .followRedirect(request.getFollowRedirects())
+        .noCache();
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      probe.setHeader(header.getKey(), header.getValue());
+    }
+    transport.enqueue(probe, new StatusCodeParser(), new HttpTransport.Callback<Integer>() {
+      @Override
+      public void onSuccess(Integer code) {
+        // The host is available if it responded without a server error.
+        if (code > 0 && code < 500) {
+          close(host, hostState);
+        } else {
+          scheduleProbe(host, hostState, request, transport);
+        }
+      }
+
+      @Override
+      public void onFailure(IOException e) {
+        scheduleProbe(host, hostState, request, transport);
+      }
+    });
+  }
+  //endregion
+
+  //region Inner classes
+  /** Notified when a host with an open circuit responds again. */
+  public interface Listener {
+    /**
+     * Called when a host comes back, on the thread the transport delivered the probe response on.
+     * This may be the main thread or a background thread.
+     *
+     * @param host Host and port.
+     */
+    void onHostAvailable(String host);
+  }
+
+  /** Circuit state of a single host. */
+  private static class HostState {
+    /** Number of consecutive failures. */
+    private int failures = 0;
+    /** True while the host is considered down. */
+    private boolean open = false;
+    /** Delay before the next probe, in milliseconds. */
+    private long probeDelay;
+  }
+  //endregion
+}
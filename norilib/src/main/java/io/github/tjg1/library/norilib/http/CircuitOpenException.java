@@ -0,0 +1,21 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import java.io.IOException;
+
+/** Thrown instead of sending a request to a host the {@link CircuitBreaker} considers down. */
+public class CircuitOpenException extends IOException {
+  /**
+   * Create a new exception.
+   *
+   * @param host Host the request was meant for.
+   */
+  public CircuitOpenException(String host) {
+    super(host + " is not responding. Waiting for it to come back.");
+  }
+}
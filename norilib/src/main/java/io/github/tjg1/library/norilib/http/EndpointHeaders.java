@@ -0,0 +1,120 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of HTTP headers, such as credentials, applied to all requests sent to an API endpoint.
+ * Keeping credentials out of URLs keeps them out of HTTP and bitmap cache keys, so cached responses
+ * survive credential changes and secrets don't leak into cache files.
+ * <p>
+ * Independent of any HTTP library: each {@link HttpTransport} applies the headers itself, and the
+ * {@link AuthInterceptor} applies them to the images loaded by the app through ion. Requests made
+ * by other components (e.g. the system DownloadManager or MediaPlayer) can get the headers from
+ * {@link #getHeaders(String)}.
+ */
+public final class EndpointHeaders {
+  /** Headers to apply, keyed by normalised endpoint URL. */
+  private static final Map<String, Map<String, String>> endpointHeaders = new HashMap<>();
+
+  /** Static methods only. */
+  private EndpointHeaders() {
+  }
+
+  //region Registering headers
+  /**
+   * Apply a header to all requests sent to given API endpoint.
+   *
+   * @param endpoint URL of the API endpoint. Applies to all URLs below it.
+   * @param name     Header name.
+   * @param value    Header value. null to remove the header.
+   */
+  public static void setHeader(@NonNull String endpoint, @NonNull String name, @Nullable String value) {
+    final String key = normalizeEndpoint(endpoint);
+    synchronized (endpointHeaders) {
+      Map<String, String> headers = endpointHeaders.get(key);
+      if (value == null) {
+        if (headers != null) {
+          headers.remove(name);
+        }
+        return;
+      }
+      if (headers == null) {
+        headers = new HashMap<>(2);
+        endpointHeaders.put(key, headers);
+      }
+      headers.put(name, value);
+    }
+  }
+
+  /**
+   * Get the headers applied to requests to given URL.
+   *
+   * @param url Request URL.
+   * @return Headers to send with the request. Empty map, if the URL doesn't need any credentials.
+   */
+  @NonNull
+  public static Map<String, String> getHeaders(@Nullable String url) {
+    if (url == null) {
+      return Collections.emptyMap();
+    }
+    synchronized (endpointHeaders) {
+      // Use the most specific endpoint, if endpoints are nested.
+      String match = null;
+      for (String endpoint : endpointHeaders.keySet()) {
+        if (isBelowEndpoint(url, endpoint) && (match == null || endpoint.length() > match.length())) {
+          match = endpoint;
+        }
+      }
+      if (match == null) {
+        return Collections.emptyMap();
+      }
+      return new HashMap<>(endpointHeaders.get(match));
+    }
+  }
+  //endregion
+
+  //region Matching URLs
+  /**
+   * Normalise an endpoint URL, so it can be used as a prefix of request URLs.
+   *
+   * @param endpoint Endpoint URL.
+   * @return Endpoint URL without trailing slashes.
+   */
+  private static String normalizeEndpoint(String endpoint) {
+    int end = endpoint.length();
+    while (end > 0 && endpoint.charAt(end - 1) == '/') {
+      end--;
+    }
+    return endpoint.substring(0, end);
+  }
+
+  /**
+   * Check if a URL points to a resource below given endpoint.
+   *
+   * @param url      Request URL.
+   * @param endpoint Normalised endpoint URL.
+   * @return True if the URL is the endpoint itself or a path below it.
+   */
+  private static boolean isBelowEndpoint(String url, String endpoint) {
+    if (!url.regionMatches(true, 0, endpoint, 0, endpoint.length())) {
+      return false;
+    }
+    if (url.length() == endpoint.length()) {
+      return true;
+    }
+    final char next = url.charAt(endpoint.length());
+    return next == '/' || next == '?' || next == '#';
+  }
+  //endregion
+}
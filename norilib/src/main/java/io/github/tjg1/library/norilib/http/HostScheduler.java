@@ -0,0 +1,388 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules requests per host, so fast scrolling doesn't get the app throttled or banned by the API.
+ * <p>
+ * Each host has a token bucket limiting the request rate, and a limit on the number of requests in
+ * flight, set by its {@link RateLimit}. Requests over the limits wait in a queue, in the order they
+ * were scheduled. After a 429 or 503 response, the host is paused for the time given by the
+ * Retry-After header, or for an exponentially growing delay if the header is missing.
+ */
+public class HostScheduler {
+  //region Constants
+  /** Limits used for hosts without a {@link RateLimit} set. */
+  private static final RateLimit DEFAULT_RATE_LIMIT = new RateLimit(10, 10, 6);
+  /** Back-off after the first throttled response without a Retry-After header, in milliseconds. */
+  private static final long MIN_BACK_OFF = 1000;
+  /** Longest back-off, in milliseconds. Longer Retry-After values are capped to it. */
+  private static final long MAX_BACK_OFF = TimeUnit.MINUTES.toMillis(5);
+  //endregion
+
+  //region Static fields
+  /** Scheduler shared by all transports. */
+  private static final HostScheduler instance = new HostScheduler();
+  //endregion
+
+  //region Instance fields
+  /** Limits set for each host. */
+  private final Map<String, RateLimit> rateLimits = new HashMap<>();
+  /** Scheduling state of each host. */
+  private final Map<String, HostState> hosts = new HashMap<>();
+  /** Timer starting requests delayed by rate limits and back-off. */
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+      final Thread thread = new Thread(runnable, "HostScheduler");
+      // Don't keep the JVM alive just for queued requests.
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  //endregion
+
+  //region Constructors
+  /** Create a new scheduler. Use {@link #getInstance()} to share limits with all transports. */
+  public HostScheduler() {
+  }
+
+  /** @return Scheduler shared by all transports. */
+  public static HostScheduler getInstance() {
+    return instance;
+  }
+  //endregion
+
+  //region Rate limits
+  /**
+   * Set the request limits of a host.
+   *
+   * @param url       URL on the host, e.g. the API endpoint.
+   * @param rateLimit Request limits.
+   */
+  public void setRateLimit(@NonNull String url, @NonNull RateLimit rateLimit) {
+    final String host = getHost(url);
+    synchronized (this) {
+      rateLimits.put(host, rateLimit);
+    }
+    // Start queued requests the new limits allow.
+    drain(host);
+  }
+
+  /**
+   * Get the request limits of a host.
+   *
+   * @param url URL on the host.
+   * @return Request limits.
+   */
+  @NonNull
+  public synchronized RateLimit getRateLimit(@NonNull String url) {
+    return getHostRateLimit(getHost(url));
+  }
+  //endregion
+
+  //region Scheduling requests
+  /**
+   * Start a request once the limits of its host allow it. {@link #release(String)} must be called
+   * once the request is done.
+   *
+   * @param url  Request URL.
+   * @param task Task starting the request. Run on the calling thread if the request can be sent
+   *             right away, otherwise on a timer thread. Must not block.
+   * @return Ticket that can be used to cancel the request before it is started.
+   */
+  public Ticket schedule(@NonNull String url, @NonNull Runnable task) {
+    final String host = getHost(url);
+    final Ticket ticket = new Ticket(host, task);
+    synchronized (this) {
+      getHostState(host).queue.add(ticket);
+    }
+    drain(host);
+    return ticket;
+  }
+
+  /**
+   * Mark a request started by {@link #schedule(String, Runnable)} as done.
+   *
+   * @param url Request URL.
+   */
+  public void release(@NonNull String url) {
+    final String host = getHost(url);
+    synchronized (this) {
+      final HostState hostState = getHostState(host);
+      hostState.inFlight = Math.max(0, hostState.inFlight - 1);
+    }
+    drain(host);
+  }
+
+  /**
+   * Record the status of a response, to back off when the host throttles requests.
+   *
+   * @param url        Request URL.
+   * @param code       HTTP status code.
+   * @param retryAfter Value of the Retry-After header. (optional)
+   */
+  public void onResponse(@NonNull String url, int code, @Nullable String retryAfter) {
+    final String host = getHost(url);
+    synchronized (this) {
+      final HostState hostState = getHostState(host);
+      final long now = now();
+      if (code != 429 && code != 503) {
+        if (now >= hostState.backOffUntil) {
+          hostState.backOffCount = 0;
+        }
+        return;
+      }
+
+      // Requests in flight while throttled get the same response: only the first one extends the back-off.
+      if (now < hostState.backOffUntil && retryAfter == null) {
+        return;
+      }
+      long backOff = parseRetryAfter(retryAfter, System.currentTimeMillis());
+      if (backOff < 0) {
+        backOff = MIN_BACK_OFF << Math.min(hostState.backOffCount, 16);
+        hostState.backOffCount++;
+      }
+      hostState.backOffUntil = Math.max(hostState.backOffUntil, now + Math.min(backOff, MAX_BACK_OFF));
+    }
+    drain(host);
+  }
+
+  /**
+   * Get the time left until a host can be sent requests again after a throttled response.
+   *
+   * @param url URL on the host.
+   * @return Remaining back-off, in milliseconds. 0 if the host isn't throttled.
+   */
+  public synchronized long getBackOffDelay(@NonNull String url) {
+    final HostState hostState = hosts.get(getHost(url));
+    return hostState != null ? Math.max(0, hostState.backOffUntil - now()) : 0;
+  }
+  //endregion
+
+  //region Helper methods
+  /** Start the queued requests of a host allowed by its limits, and set a timer for the rest. */
+  private void drain(final String host) {
+    while (true) {
+      final Ticket ticket;
+      synchronized (this) {
+        final HostState hostState = getHostState(host);
+        if (hostState.queue.isEmpty()) {
+          return;
+        }
+        final long delay = tryAcquire(hostState, getHostRateLimit(host));
+        if (delay < 0) {
+          // Wait for a request in flight to be released.
+          return;
+        } else if (delay > 0) {
+          if (!hostState.drainScheduled) {
+            hostState.drainScheduled = true;
+            timer.schedule(new Runnable() {
+              @Override
+              public void run() {
+                synchronized (HostScheduler.this) {
+                  getHostState(host).drainScheduled = false;
+                }
+                drain(host);
+              }
+            }, delay, TimeUnit.MILLISECONDS);
+          }
+          return;
+        }
+        ticket = hostState.queue.remove();
+        ticket.started = true;
+      }
+      ticket.task.run();
+    }
+  }
+
+  /**
+   * Take a permit to send a request to a host.
+   *
+   * @param hostState Host state.
+   * @param rateLimit Host limits.
+   * @return 0 if the permit was taken. Otherwise, milliseconds to wait for a permit, or -1 to wait
+   * for a request in flight to be released.
+   */
+  private long tryAcquire(HostState hostState, RateLimit rateLimit) {
+    final long now = now();
+    if (now < hostState.backOffUntil) {
+      return hostState.backOffUntil - now;
+    }
+    if (rateLimit.maxInFlight > 0 && hostState.inFlight >= rateLimit.maxInFlight) {
+      return -1;
+    }
+    if (rateLimit.requestsPerSecond > 0) {
+      // Refill the token bucket.
+      if (hostState.lastRefill < 0) {
+        hostState.tokens = rateLimit.burst;
+      } else {
+        hostState.tokens = Math.min(rateLimit.burst,
+            hostState.tokens + (now - hostState.lastRefill) * rateLimit.requestsPerSecond / 1000);
+      }
+      hostState.lastRefill = now;
+      if (hostState.tokens < 1) {
+        return Math.max(1, (long) Math.ceil((1 - hostState.tokens) * 1000 / rateLimit.requestsPerSecond));
+      }
+      hostState.tokens--;
+    }
+    hostState.inFlight++;
+    return 0;
+  }
+
+  /**
+   * Get the request limits of a host.
+   *
+   * @param host Host, as returned by {@link #getHost(String)}.
+   * @return Request limits.
+   */
+  private synchronized RateLimit getHostRateLimit(String host) {
+    final RateLimit rateLimit = rateLimits.get(host);
+    return rateLimit != null ? rateLimit : DEFAULT_RATE_LIMIT;
+  }
+
+  /**
+   * Get the scheduling state of a host, creating it if needed.
+   *
+   * @param host Host.
+   * @return Host state.
+   */
+  private synchronized HostState getHostState(String host) {
+    HostState hostState = hosts.get(host);
+    if (hostState == null) {
+      hostState = new HostState();
+      hosts.put(host, hostState);
+    }
+    return hostState;
+  }
+
+  /**
+   * Get the host requests to a URL are scheduled by.
+   *
+   * @param url URL.
+   * @return Host and port of the URL. Empty string if the URL has no host.
+   */
+  static String getHost(String url) {
+    String authority;
+    try {
+      // Unlike URI, URL accepts unescaped characters, e.g. spaces in search queries.
+      authority = new URL(url).getAuthority();
+    } catch (MalformedURLException e) {
+      // Unknown scheme. Take everything between "//" and the path.
+      final int start = url.indexOf("//") >= 0 ? url.indexOf("//") + 2 : 0;
+      int end = start;
+      while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+        end++;
+      }
+      authority = url.substring(start, end);
+    }
+    if (authority == null) {
+      return "";
+    }
+    // Drop credentials, if any.
+    return authority.substring(authority.lastIndexOf('@') + 1).toLowerCase(Locale.US);
+  }
+
+  /**
+   * Parse the value of a Retry-After header.
+   *
+   * @param retryAfter  Header value, in seconds or as a HTTP date. (optional)
+   * @param currentTime Current time, in milliseconds since epoch.
+   * @return Delay in milliseconds. -1 if the header is missing or can't be parsed.
+   */
+  public static long parseRetryAfter(@Nullable String retryAfter, long currentTime) {
+    if (retryAfter == null || retryAfter.trim().isEmpty()) {
+      return -1;
+    }
+    try {
+      return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+    } catch (NumberFormatException ignored) {
+    }
+    try {
+      final SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+      dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return Math.max(0, dateFormat.parse(retryAfter.trim()).getTime() - currentTime);
+    } catch (ParseException ignored) {
+      return -1;
+    }
+  }
+
+  /** @return Monotonic time, in milliseconds. */
+  private static long now() {
+    return System.nanoTime() / 1000000L;
+  }
+  //endregion
+
+  //region Inner classes
+  /** Request waiting to be started. */
+  public class Ticket {
+    /** Host the request is sent to. */
+    private final String host;
+    /** Task starting the request. */
+    private final Runnable task;
+    /** True once the task was started. Guarded by the scheduler. */
+    private boolean started = false;
+
+    private Ticket(String host, Runnable task) {
+      this.host = host;
+      this.task = task;
+    }
+
+    /**
+     * Remove the request from the queue, if it wasn't started yet.
+     *
+     * @return True if the request was removed. False if it was already started, and still has to be
+     * released.
+     */
+    public boolean cancel() {
+      synchronized (HostScheduler.this) {
+        if (started) {
+          return false;
+        }
+        getHostState(host).queue.remove(this);
+        return true;
+      }
+    }
+  }
+
+  /** Scheduling state of a single host. */
+  private static class HostState {
+    /** Requests waiting to be started, in the order they were scheduled. */
+    private final Queue<Ticket> queue = new ArrayDeque<>();
+    /** Number of requests in flight. */
+    private int inFlight = 0;
+    /** Tokens left in the bucket. */
+    private double tokens = 0;
+    /** Time the bucket was last refilled, in milliseconds. -1 if never. */
+    private long lastRefill = -1;
+    /** Time until which no requests are sent, in milliseconds. */
+    private long backOffUntil = 0;
+    /** Number of consecutive throttled responses without a Retry-After header. */
+    private int backOffCount = 0;
+    /** True if a timer was set to start queued requests. */
+    private boolean drainScheduled = false;
+  }
+  //endregion
+}
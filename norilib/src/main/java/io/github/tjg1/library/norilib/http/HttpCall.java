@@ -0,0 +1,16 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+/** Request sent in the background by a {@link HttpTransport}. */
+public interface HttpCall {
+  /** Cancel the request. Its callback won't be called. */
+  void cancel();
+
+  /** @return True if the request was cancelled. */
+  boolean isCancelled();
+}
@@ -0,0 +1,177 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.support.annotation.NonNull;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** HTTP GET request sent by a {@link HttpTransport}. Setters return the request, so calls can be chained. */
+public class HttpRequest {
+  /** Characters used by the Base64 encoding. */
+  private static final char[] BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  /** Request URL. */
+  private final String url;
+  /** Request headers, in the order they were set. */
+  private final Map<String, String> headers = new LinkedHashMap<>();
+  /** Timeout in milliseconds. 0 to use the default timeout of the transport. */
+  private int timeout = 0;
+  /** True if redirects should be followed. */
+  private boolean followRedirects = true;
+  /** True if the response can be served from, and stored in the HTTP cache. */
+  private boolean useCache = true;
+  /** True if the request can be sent again after a transient failure. */
+  private boolean retryOnFailure = false;
+
+  /**
+   * Create a new request.
+   *
+   * @param url Request URL.
+   */
+  public HttpRequest(@NonNull String url) {
+    this.url = url;
+  }
+
+  //region Request options
+  /**
+   * Set a request header, replacing its previous value.
+   *
+   * @param name  Header name.
+   * @param value Header value.
+   * @return This request.
+   */
+  public HttpRequest setHeader(@NonNull String name, @NonNull String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  /**
+   * Set the User-Agent header.
+   *
+   * @param userAgent User agent.
+   * @return This request.
+   */
+  public HttpRequest userAgent(@NonNull String userAgent) {
+    return setHeader("User-Agent", userAgent);
+  }
+
+  /**
+   * Authenticate using HTTP Basic authentication.
+   *
+   * @param username Username.
+   * @param password Password.
+   * @return This request.
+   */
+  public HttpRequest basicAuthentication(@NonNull String username, @NonNull String password) {
+    return setHeader("Authorization", "Basic " + base64((username + ":" + password).getBytes(Charset.forName("UTF-8"))));
+  }
+
+  /**
+   * Set the connection and read timeout.
+   *
+   * @param timeout Timeout in milliseconds. 0 to use the default timeout of the transport.
+   * @return This request.
+   */
+  public HttpRequest setTimeout(int timeout) {
+    this.timeout = timeout;
+    return this;
+  }
+
+  /**
+   * Set whether redirects should be followed.
+   *
+   * @param followRedirects True to follow redirects. (default)
+   * @return This request.
+   */
+  public HttpRequest followRedirect(boolean followRedirects) {
+    this.followRedirects = followRedirects;
+    return this;
+  }
+
+  /**
+   * Bypass the HTTP cache.
+   *
+   * @return This request.
+   */
+  public HttpRequest noCache() {
+    this.useCache = false;
+    return this;
+  }
+
+  /**
+   * Send the request again after a transient failure, such as a timeout or a 503 response, and fail
+   * fast while its host is down. Only for requests that are safe to repeat.
+   *
+   * @return This request.
+   * @see RetryingTransport
+   */
+  public HttpRequest retryOnFailure() {
+    this.retryOnFailure = true;
+    return this;
+  }
+  //endregion
+
+  //region Getters
+  /** @return Request URL. */
+  public String getUrl() {
+    return url;
+  }
+
+  /** @return Request headers, in the order they were set. */
+  public Map<String, String> getHeaders() {
+    return Collections.unmodifiableMap(headers);
+  }
+
+  /** @return Timeout in milliseconds. 0 to use the default timeout of the transport. */
+  public int getTimeout() {
+    return timeout;
+  }
+
+  /** @return True if redirects should be followed. */
+  public boolean getFollowRedirects() {
+    return followRedirects;
+  }
+
+  /** @return True if the response can be served from, and stored in the HTTP cache. */
+  public boolean getUseCache() {
+    return useCache;
+  }
+
+  /** @return True if the request can be sent again after a transient failure. */
+  public boolean getRetryOnFailure() {
+    return retryOnFailure;
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Encode bytes using Base64, as used by HTTP Basic authentication.
+   *
+   * @param bytes Bytes to encode.
+   * @return Base64-encoded string, with padding.
+   */
+  private static String base64(byte[] bytes) {
+    final StringBuilder sb = new StringBuilder((bytes.length + 2) / 3 * 4);
+    for (int i = 0; i < bytes.length; i += 3) {
+      final int remaining = bytes.length - i;
+      final int chunk = (bytes[i] & 0xff) << 16
+          | (remaining > 1 ? (bytes[i + 1] & 0xff) << 8 : 0)
+          | (remaining > 2 ? bytes[i + 2] & 0xff : 0);
+      sb.append(BASE64_ALPHABET[chunk >> 18 & 0x3f]);
+      sb.append(BASE64_ALPHABET[chunk >> 12 & 0x3f]);
+      sb.append(remaining > 1 ? BASE64_ALPHABET[chunk >> 6 & 0x3f] : '=');
+      sb.append(remaining > 2 ? BASE64_ALPHABET[chunk & 0x3f] : '=');
+    }
+    return sb.toString();
+  }
+  //endregion
+}
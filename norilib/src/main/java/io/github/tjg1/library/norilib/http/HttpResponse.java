@@ -0,0 +1,29 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.support.annotation.Nullable;
+
+import java.io.InputStream;
+
+/** Response received by a {@link HttpTransport}, handed to a {@link ResponseParser}. */
+public interface HttpResponse {
+  /** @return HTTP status code. */
+  int getCode();
+
+  /**
+   * Get the value of a response header.
+   *
+   * @param name Header name. Case-insensitive.
+   * @return Header value. null if the header wasn't sent.
+   */
+  @Nullable
+  String getHeader(String name);
+
+  /** @return Response body. Blocks until more data is received. Closed by the transport after parsing. */
+  InputStream getBody();
+}
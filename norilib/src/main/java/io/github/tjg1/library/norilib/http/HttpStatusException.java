@@ -0,0 +1,30 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import java.io.IOException;
+
+/** Thrown when a server responds with an error status instead of the requested resource. */
+public class HttpStatusException extends IOException {
+  /** HTTP status code. */
+  private final int code;
+
+  /**
+   * Create a new exception.
+   *
+   * @param code HTTP status code.
+   */
+  public HttpStatusException(int code) {
+    super("Server responded with HTTP " + code + ".");
+    this.code = code;
+  }
+
+  /** @return HTTP status code. */
+  public int getCode() {
+    return code;
+  }
+}
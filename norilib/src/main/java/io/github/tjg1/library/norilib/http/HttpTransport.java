@@ -0,0 +1,62 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import java.io.IOException;
+
+/**
+ * Sends HTTP requests for the API clients, so they are not tied to a single HTTP library.
+ * <p>
+ * Responses are handed to a {@link ResponseParser} while they are being downloaded. Credentials
+ * registered with {@link EndpointHeaders} are applied to all requests.
+ *
+ * @see HttpTransports#forContext(android.content.Context)
+ */
+public interface HttpTransport {
+  /**
+   * Send a request and wait for the parsed response.
+   *
+   * @param request Request to send.
+   * @param parser  Parser reading the response.
+   * @param <T>     Type of the parsed value.
+   * @return Parsed value.
+   * @throws IOException Request could not be sent, or the response could not be parsed.
+   */
+  <T> T execute(HttpRequest request, ResponseParser<T> parser) throws IOException;
+
+  /**
+   * Send a request in the background.
+   *
+   * @param request  Request to send.
+   * @param parser   Parser reading the response. Called on a background thread.
+   * @param callback Callback receiving the parsed value. Not called if the request is cancelled.
+   * @param <T>      Type of the parsed value.
+   * @return Call that can be used to cancel the request.
+   */
+  <T> HttpCall enqueue(HttpRequest request, ResponseParser<T> parser, Callback<T> callback);
+
+  /**
+   * Callback receiving the result of a request sent in the background.
+   *
+   * @param <T> Type of the parsed value.
+   */
+  interface Callback<T> {
+    /**
+     * Called when the response was parsed.
+     *
+     * @param result Parsed value.
+     */
+    void onSuccess(T result);
+
+    /**
+     * Called when the request could not be sent, or the response could not be parsed.
+     *
+     * @param e Error.
+     */
+    void onFailure(IOException e);
+  }
+}
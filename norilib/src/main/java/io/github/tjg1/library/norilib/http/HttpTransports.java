@@ -0,0 +1,87 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.Executor;
+
+/** Provides the {@link HttpTransport} used by the API clients. */
+public final class HttpTransports {
+  /** Transport used by all clients, if set. */
+  private static HttpTransport defaultTransport;
+  /** Transport used without an Android context. */
+  private static HttpTransport urlConnectionTransport;
+  /** Executor running callbacks on the main thread, where ion delivers its callbacks. Created on first use. */
+  private static Executor mainThreadExecutor;
+
+  /** Static methods only. */
+  private HttpTransports() {
+  }
+
+  /**
+   * Get the transport a client should use.
+   *
+   * @param context Android context. null outside of Android.
+   * @return The transport set with {@link #setDefault(HttpTransport)}. Otherwise, an
+   * {@link IonTransport} if a context was given, or an {@link UrlConnectionTransport}, sending
+   * requests through the shared {@link HostScheduler} and retrying them as allowed by the shared
+   * {@link CircuitBreaker}.
+   */
+  @NonNull
+  public static synchronized HttpTransport forContext(@Nullable Context context) {
+    if (defaultTransport != null) {
+      return defaultTransport;
+    } else if (context != null) {
+      return createTransport(new IonTransport(context), getMainThreadExecutor());
+    }
+    if (urlConnectionTransport == null) {
+      urlConnectionTransport = createTransport(new UrlConnectionTransport(), null);
+    }
+    return urlConnectionTransport;
+  }
+
+  /**
+   * Wrap a transport with the shared rate limits and retry policy.
+   *
+   * @param transport        Transport sending the requests.
+   * @param callbackExecutor Executor the transport delivers its callbacks on. null for a background thread.
+   * @return Wrapped transport.
+   */
+  private static HttpTransport createTransport(HttpTransport transport, @Nullable Executor callbackExecutor) {
+    // Retries go through the scheduler, so they respect the back-off of throttled hosts.
+    return new RetryingTransport(new RateLimitedTransport(transport, HostScheduler.getInstance()),
+        CircuitBreaker.getInstance(), callbackExecutor);
+  }
+
+  /** @return Executor running callbacks on the main thread. */
+  private static Executor getMainThreadExecutor() {
+    if (mainThreadExecutor == null) {
+      final Handler mainHandler = new Handler(Looper.getMainLooper());
+      mainThreadExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+          mainHandler.post(runnable);
+        }
+      };
+    }
+    return mainThreadExecutor;
+  }
+
+  /**
+   * Set the transport used by clients created from now on, e.g. to share a tuned connection pool.
+   *
+   * @param transport Transport. null to use the default transports.
+   */
+  public static synchronized void setDefault(@Nullable HttpTransport transport) {
+    defaultTransport = transport;
+  }
+}
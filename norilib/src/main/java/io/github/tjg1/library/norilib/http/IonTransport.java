@@ -0,0 +1,479 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.DataSink;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.future.SimpleCancellable;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpClientMiddleware;
+import com.koushikdutta.async.http.SimpleMiddleware;
+import com.koushikdutta.async.parser.AsyncParser;
+import com.koushikdutta.ion.HeadersCallback;
+import com.koushikdutta.ion.HeadersResponse;
+import com.koushikdutta.ion.Ion;
+import com.koushikdutta.ion.builder.Builders;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Type;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link HttpTransport} sending requests through ion. Shares ion's connection pool, HTTP cache and
+ * middleware (including the {@link AuthInterceptor} applying the {@link EndpointHeaders}) with the
+ * images loaded by the app.
+ * <p>
+ * Received bytes are handed to the {@link ResponseParser} running on a worker thread, through an
+ * {@link InputStream} that blocks until more data arrives. The network thread is never blocked: it
+ * only queues the received buffers, and pauses the response if the parser falls too far behind.
+ * Callbacks are delivered on the main thread.
+ */
+public class IonTransport implements HttpTransport {
+  /** Threads running the parsers. Blocking pull parsers can't run on the network thread. */
+  private static final ExecutorService parserExecutor = Executors.newCachedThreadPool();
+  /** Number of queued bytes at which the response is paused until the parser catches up. */
+  private static final int MAX_BUFFERED_BYTES = 256 * 1024;
+  /** Maximum number of connections ion opens to a single host, including image loads. */
+  private static final int MAX_CONNECTIONS_PER_HOST = 6;
+  /** True once the {@link ThrottleMiddleware} was added to the default ion instance. */
+  private static boolean throttleMiddlewareInstalled = false;
+
+  /** Android context. */
+  private final Context context;
+
+  /**
+   * Create a new transport.
+   *
+   * @param context Android context.
+   */
+  public IonTransport(@NonNull Context context) {
+    this.context = context;
+    installThrottleMiddleware(context);
+  }
+
+  //region HttpTransport methods
+  @Override
+  public <T> T execute(HttpRequest request, ResponseParser<T> parser) throws IOException {
+    final Future<T> future = load(request, parser);
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      // Stop the request, rather than leaving it to run to completion in the background.
+      future.cancel();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      // Normalise exception to IOException, so method signatures are not tied to a single HTTP
+      // library.
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+  }
+
+  @Override
+  public <T> HttpCall enqueue(HttpRequest request, ResponseParser<T> parser, final Callback<T> callback) {
+    final Future<T> future = load(request, parser);
+    future.setCallback(new FutureCallback<T>() {
+      @Override
+      public void onCompleted(Exception e, T result) {
+        if (future.isCancelled()) {
+          return;
+        }
+        if (e != null) {
+          callback.onFailure(e instanceof IOException ? (IOException) e : new IOException(e));
+        } else {
+          callback.onSuccess(result);
+        }
+      }
+    });
+
+    return new HttpCall() {
+      @Override
+      public void cancel() {
+        future.cancel();
+      }
+
+      @Override
+      public boolean isCancelled() {
+        return future.isCancelled();
+      }
+    };
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Report the responses of all ion requests to the {@link HostScheduler}, delay connections to hosts
+   * it is backing off from and cap the number of connections per host, so image loads back off along
+   * with the API requests.
+   *
+   * @param context Android context.
+   */
+  private static synchronized void installThrottleMiddleware(@NonNull Context context) {
+    if (!throttleMiddlewareInstalled) {
+      final AsyncHttpClient httpClient = Ion.getDefault(context).getHttpClient();
+      httpClient.insertMiddleware(new ThrottleMiddleware(HostScheduler.getInstance(), httpClient));
+      httpClient.getSocketMiddleware().setMaxConnectionCount(MAX_CONNECTIONS_PER_HOST);
+      httpClient.getSSLSocketMiddleware().setMaxConnectionCount(MAX_CONNECTIONS_PER_HOST);
+      throttleMiddlewareInstalled = true;
+    }
+  }
+
+  /**
+   * Start a request.
+   *
+   * @param request Request to send.
+   * @param parser  Parser reading the response.
+   * @param <T>     Type of the parsed value.
+   * @return Future completed with the parsed value.
+   */
+  private <T> Future<T> load(HttpRequest request, ResponseParser<T> parser) {
+    final IonResponseParser<T> ionParser = new IonResponseParser<>(parser);
+    Builders.Any.B builder = Ion.with(context).load(request.getUrl());
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      builder = builder.setHeader(header.getKey(), header.getValue());
+    }
+    if (request.getTimeout() > 0) {
+      builder = builder.setTimeout(request.getTimeout());
+    }
+    if (!request.getUseCache()) {
+      builder = builder.noCache();
+    }
+    return builder
+        .followRedirect(request.getFollowRedirects())
+        .onHeaders(ionParser)
+        .as(ionParser);
+  }
+  //endregion
+
+  //region Inner classes
+  /**
+   * Reports the status of all ion responses to the {@link HostScheduler}, and holds back connections
+   * to hosts it is backing off from, so images loaded by the app don't keep hitting a throttled host.
+   * API requests already waited for the back-off in the {@link RateLimitedTransport}, so they are
+   * only delayed if the host throttled requests since.
+   */
+  private static class ThrottleMiddleware extends SimpleMiddleware {
+    /** Scheduler backing off throttled hosts. */
+    private final HostScheduler scheduler;
+    /** HTTP client this middleware is installed into. */
+    private final AsyncHttpClient httpClient;
+
+    public ThrottleMiddleware(HostScheduler scheduler, AsyncHttpClient httpClient) {
+      this.scheduler = scheduler;
+      this.httpClient = httpClient;
+    }
+
+    @Override
+    public Cancellable getSocket(GetSocketData data) {
+      final long delay = scheduler.getBackOffDelay(data.request.getUri().toString());
+      if (delay <= 0) {
+        // Let the other middlewares connect right away.
+        return null;
+      }
+
+      // Responses served without a connection, e.g. from the cache, don't need to wait.
+      for (AsyncHttpClientMiddleware middleware : httpClient.getMiddleware()) {
+        if (middleware != this && !isSocketMiddleware(middleware)) {
+          final Cancellable cancellable = middleware.getSocket(data);
+          if (cancellable != null) {
+            return cancellable;
+          }
+        }
+      }
+      final SimpleCancellable cancellable = new SimpleCancellable();
+      connectLater(data, cancellable, delay);
+      return cancellable;
+    }
+
+    /**
+     * Hand a request to the socket middlewares once its host is no longer backed off from.
+     *
+     * @param data        Request waiting for a connection.
+     * @param cancellable Cancellable returned to the client for the connection.
+     * @param delay       Time to wait, in milliseconds.
+     */
+    private void connectLater(final GetSocketData data, final SimpleCancellable cancellable, long delay) {
+      httpClient.getServer().postDelayed(new Runnable() {
+        @Override
+        public void run() {
+          if (cancellable.isCancelled()) {
+            return;
+          }
+          // The back-off may have been extended in the meantime.
+          final long remainingDelay = scheduler.getBackOffDelay(data.request.getUri().toString());
+          if (remainingDelay > 0) {
+            connectLater(data, cancellable, remainingDelay);
+            return;
+          }
+          for (AsyncHttpClientMiddleware middleware : httpClient.getMiddleware()) {
+            if (isSocketMiddleware(middleware)) {
+              final Cancellable socketCancellable = middleware.getSocket(data);
+              if (socketCancellable != null) {
+                cancellable.setParent(socketCancellable);
+                if (cancellable.isCancelled()) {
+                  socketCancellable.cancel();
+                }
+                return;
+              }
+            }
+          }
+        }
+      }, delay);
+    }
+
+    /**
+     * Check if a middleware opens connections, rather than serving responses on its own.
+     *
+     * @param middleware Middleware installed into the {@link #httpClient}.
+     * @return True for the plain and SSL socket middlewares.
+     */
+    private boolean isSocketMiddleware(AsyncHttpClientMiddleware middleware) {
+      return middleware == httpClient.getSocketMiddleware() || middleware == httpClient.getSSLSocketMiddleware();
+    }
+
+    @Override
+    public void onHeadersReceived(OnHeadersReceivedDataOnRequestSentData data) {
+      scheduler.onResponse(data.request.getUri().toString(), data.response.code(),
+          data.response.headers().get("Retry-After"));
+    }
+  }
+
+  /**
+   * Adapts a {@link ResponseParser} to ion's {@link AsyncParser}.
+   *
+   * @param <T> Type of the parsed value.
+   */
+  private static class IonResponseParser<T> implements AsyncParser<T>, HeadersCallback {
+    /** Parser reading the response. */
+    private final ResponseParser<T> parser;
+    /** Response headers. Received before the body is parsed. */
+    private volatile HeadersResponse headers;
+
+    public IonResponseParser(ResponseParser<T> parser) {
+      this.parser = parser;
+    }
+
+    @Override
+    public void onHeaders(HeadersResponse headers) {
+      this.headers = headers;
+    }
+
+    @Override
+    public Future<T> parse(final DataEmitter emitter) {
+      final ResponseInputStream inputStream = new ResponseInputStream(emitter);
+      final SimpleFuture<T> future = new SimpleFuture<T>() {
+        @Override
+        protected void cancelCleanup() {
+          emitter.close();
+          inputStream.close();
+        }
+      };
+
+      emitter.setDataCallback(new DataCallback() {
+        @Override
+        public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+          inputStream.write(bb.getAllByteArray());
+        }
+      });
+      emitter.setEndCallback(new CompletedCallback() {
+        @Override
+        public void onCompleted(Exception ex) {
+          inputStream.end(ex);
+        }
+      });
+
+      final HttpResponse response = new HttpResponse() {
+        @Override
+        public int getCode() {
+          return headers != null ? headers.code() : 0;
+        }
+
+        @Override
+        public String getHeader(String name) {
+          return headers != null ? headers.getHeaders().get(name) : null;
+        }
+
+        @Override
+        public InputStream getBody() {
+          return inputStream;
+        }
+      };
+
+      parserExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            future.setComplete(parser.parse(response));
+          } catch (Exception e) {
+            future.setComplete(e);
+          } finally {
+            // Stop downloading anything the parser didn't need.
+            if (!inputStream.isEnded()) {
+              emitter.close();
+            }
+            inputStream.close();
+          }
+        }
+      });
+
+      return future;
+    }
+
+    @Override
+    public void write(DataSink sink, T value, CompletedCallback completed) {
+      // Not implemented.
+    }
+
+    @Override
+    public Type getType() {
+      return null;
+    }
+  }
+
+  /** Blocking stream of the chunks received from a {@link DataEmitter}. */
+  private static class ResponseInputStream extends InputStream {
+    /** Emitter the data is received from. Paused while too much data is queued. */
+    private final DataEmitter emitter;
+    /** Received chunks not read yet. */
+    private final LinkedList<byte[]> chunks = new LinkedList<>();
+    /** Chunk currently being read. */
+    private byte[] chunk;
+    /** Read position in {@link #chunk}. */
+    private int chunkPosition;
+    /** Number of bytes queued in {@link #chunks}. */
+    private int bufferedBytes;
+    /** True if the emitter was paused, because too much data was queued. */
+    private boolean paused;
+    /** True once the end of the response was reached. */
+    private boolean ended;
+    /** Error the response ended with, if any. */
+    private Exception error;
+    /** True once the stream was closed. */
+    private boolean closed;
+
+    public ResponseInputStream(DataEmitter emitter) {
+      this.emitter = emitter;
+    }
+
+    /**
+     * Queue data received from the network. Called on the network thread.
+     *
+     * @param bytes Received data.
+     */
+    public synchronized void write(byte[] bytes) {
+      if (closed || bytes.length == 0) {
+        return;
+      }
+      chunks.add(bytes);
+      bufferedBytes += bytes.length;
+      if (bufferedBytes >= MAX_BUFFERED_BYTES && !paused) {
+        paused = true;
+        emitter.pause();
+      }
+      notifyAll();
+    }
+
+    /**
+     * Mark the end of the response. Called on the network thread.
+     *
+     * @param e Error the response ended with. null on success.
+     */
+    public synchronized void end(Exception e) {
+      ended = true;
+      error = e;
+      notifyAll();
+    }
+
+    /** @return True once the end of the response was reached. */
+    public synchronized boolean isEnded() {
+      return ended;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (chunk == null || chunkPosition == chunk.length) {
+        if (closed) {
+          throw new IOException("Stream closed.");
+        } else if (!chunks.isEmpty()) {
+          chunk = chunks.removeFirst();
+          chunkPosition = 0;
+          bufferedBytes -= chunk.length;
+          resumeIfDrained();
+        } else if (ended) {
+          if (error != null) {
+            throw new IOException(error);
+          }
+          return -1;
+        } else {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+      }
+
+      final int count = Math.min(len, chunk.length - chunkPosition);
+      System.arraycopy(chunk, chunkPosition, b, off, count);
+      chunkPosition += count;
+      return count;
+    }
+
+    @Override
+    public synchronized int available() {
+      return (chunk != null ? chunk.length - chunkPosition : 0) + bufferedBytes;
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+      chunks.clear();
+      chunk = null;
+      bufferedBytes = 0;
+      resumeIfDrained();
+      notifyAll();
+    }
+
+    /** Resume the paused emitter once the parser read most of the queued data. */
+    private void resumeIfDrained() {
+      if (paused && (closed || bufferedBytes < MAX_BUFFERED_BYTES / 2)) {
+        paused = false;
+        emitter.getServer().post(new Runnable() {
+          @Override
+          public void run() {
+            emitter.resume();
+          }
+        });
+      }
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,33 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+/** Limits on the requests sent to a single host, enforced by the {@link HostScheduler}. */
+public class RateLimit {
+  /** No limits. */
+  public static final RateLimit UNLIMITED = new RateLimit(0, 0, 0);
+
+  /** Average number of requests per second. 0 for no rate limit. */
+  public final double requestsPerSecond;
+  /** Number of requests that can be sent at once after an idle period. */
+  public final int burst;
+  /** Maximum number of requests in flight. 0 for no limit. */
+  public final int maxInFlight;
+
+  /**
+   * Create new request limits.
+   *
+   * @param requestsPerSecond Average number of requests per second. 0 for no rate limit.
+   * @param burst             Number of requests that can be sent at once after an idle period.
+   * @param maxInFlight       Maximum number of requests in flight. 0 for no limit.
+   */
+  public RateLimit(double requestsPerSecond, int burst, int maxInFlight) {
+    this.requestsPerSecond = requestsPerSecond;
+    this.burst = Math.max(burst, 1);
+    this.maxInFlight = maxInFlight;
+  }
+}
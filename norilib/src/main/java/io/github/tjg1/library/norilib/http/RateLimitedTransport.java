@@ -0,0 +1,183 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link HttpTransport} sending the requests of another transport once the {@link HostScheduler}
+ * allows it, and reporting throttled responses back to the scheduler.
+ */
+public class RateLimitedTransport implements HttpTransport {
+  /** Transport sending the requests. */
+  private final HttpTransport transport;
+  /** Scheduler enforcing the limits of each host. */
+  private final HostScheduler scheduler;
+
+  /**
+   * Create a new transport.
+   *
+   * @param transport Transport sending the requests.
+   * @param scheduler Scheduler enforcing the limits of each host.
+   */
+  public RateLimitedTransport(@NonNull HttpTransport transport, @NonNull HostScheduler scheduler) {
+    this.transport = transport;
+    this.scheduler = scheduler;
+  }
+
+  //region HttpTransport methods
+  @Override
+  public <T> T execute(HttpRequest request, ResponseParser<T> parser) throws IOException {
+    final String url = request.getUrl();
+    final CountDownLatch started = new CountDownLatch(1);
+    final HostScheduler.Ticket ticket = scheduler.schedule(url, new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+      }
+    });
+
+    try {
+      started.await();
+    } catch (InterruptedException e) {
+      if (!ticket.cancel()) {
+        // Started while being interrupted.
+        scheduler.release(url);
+      }
+      throw new InterruptedIOException();
+    }
+
+    try {
+      return transport.execute(request, new ThrottleParser<>(url, parser));
+    } finally {
+      scheduler.release(url);
+    }
+  }
+
+  @Override
+  public <T> HttpCall enqueue(final HttpRequest request, final ResponseParser<T> parser, final Callback<T> callback) {
+    final ScheduledCall call = new ScheduledCall(request.getUrl());
+    call.ticket = scheduler.schedule(request.getUrl(), new Runnable() {
+      @Override
+      public void run() {
+        call.start(transport.enqueue(request, new ThrottleParser<>(request.getUrl(), parser), new Callback<T>() {
+          @Override
+          public void onSuccess(T result) {
+            call.release();
+            callback.onSuccess(result);
+          }
+
+          @Override
+          public void onFailure(IOException e) {
+            call.release();
+            callback.onFailure(e);
+          }
+        }));
+      }
+    });
+    return call;
+  }
+  //endregion
+
+  //region Inner classes
+  /**
+   * Reports the status of responses to the {@link HostScheduler} before parsing them.
+   *
+   * @param <T> Type of the parsed value.
+   */
+  private class ThrottleParser<T> implements ResponseParser<T> {
+    /** Request URL. */
+    private final String url;
+    /** Parser reading the response. */
+    private final ResponseParser<T> parser;
+
+    public ThrottleParser(String url, ResponseParser<T> parser) {
+      this.url = url;
+      this.parser = parser;
+    }
+
+    @Override
+    public T parse(HttpResponse response) throws Exception {
+      scheduler.onResponse(url, response.getCode(), response.getHeader("Retry-After"));
+      return parser.parse(response);
+    }
+  }
+
+  /** Request waiting for the {@link HostScheduler}, or sent by the wrapped transport. */
+  private class ScheduledCall implements HttpCall {
+    /** Request URL. */
+    private final String url;
+    /** True once the scheduler permit was released. */
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    /** Ticket of the request in the scheduler queue. */
+    private volatile HostScheduler.Ticket ticket;
+    /** Call of the wrapped transport, once the request was started. */
+    private HttpCall call;
+    /** True if the request was cancelled. */
+    private boolean cancelled;
+
+    public ScheduledCall(String url) {
+      this.url = url;
+    }
+
+    /**
+     * Attach the call of the wrapped transport, once the request was started.
+     *
+     * @param call Call of the wrapped transport.
+     */
+    private void start(HttpCall call) {
+      final boolean cancelCall;
+      synchronized (this) {
+        this.call = call;
+        cancelCall = cancelled;
+      }
+      if (cancelCall) {
+        call.cancel();
+      }
+    }
+
+    /** Release the scheduler permit taken by the request. Only the first call has an effect. */
+    private void release() {
+      if (released.compareAndSet(false, true)) {
+        scheduler.release(url);
+      }
+    }
+
+    @Override
+    public void cancel() {
+      final HttpCall call;
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        cancelled = true;
+        call = this.call;
+      }
+      if (ticket != null && ticket.cancel()) {
+        // Never started, so no permit was taken.
+        released.set(true);
+        return;
+      }
+      if (call != null) {
+        call.cancel();
+      }
+      // The wrapped transport doesn't call the callback for cancelled requests.
+      release();
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,24 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+/**
+ * Parses responses received by a {@link HttpTransport}. Called on a background thread, while the
+ * response body is being downloaded.
+ *
+ * @param <T> Type of the parsed value.
+ */
+public interface ResponseParser<T> {
+  /**
+   * Parse a response.
+   *
+   * @param response Response. The body doesn't have to be read to the end.
+   * @return Parsed value.
+   * @throws Exception Response could not be downloaded or parsed.
+   */
+  T parse(HttpResponse response) throws Exception;
+}
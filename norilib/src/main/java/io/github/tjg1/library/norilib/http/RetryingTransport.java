@@ -0,0 +1,345 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HttpTransport} sending requests marked with {@link HttpRequest#retryOnFailure()} again
+ * after transient failures, and failing them fast while the {@link CircuitBreaker} considers their
+ * host down. Other requests are passed through unchanged. Requests failing fast are still delivered
+ * asynchronously, on the given callback executor.
+ * <p>
+ * Connection errors, timeouts and 408, 429 and 5xx responses are retried, with an exponential
+ * back-off and full jitter so clients don't retry in lockstep. Requests are only retried before the
+ * response is handed to the parser: a partially parsed response may already have been delivered.
+ */
+public class RetryingTransport implements HttpTransport {
+  //region Constants
+  /** Maximum number of times a request is sent. */
+  private static final int MAX_ATTEMPTS = 3;
+  /** Upper bound of the delay before the first retry, in milliseconds. */
+  private static final long BASE_RETRY_DELAY = 500;
+  /** Upper bound of the delay before any retry, in milliseconds. */
+  private static final long MAX_RETRY_DELAY = 8000;
+  //endregion
+
+  //region Static fields
+  /** Timer sending retries in the background. */
+  private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+      final Thread thread = new Thread(runnable, "RetryingTransport");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  /** Source of the retry delay jitter. */
+  private static final Random random = new Random();
+  //endregion
+
+  //region Instance fields
+  /** Transport sending the requests. */
+  private final HttpTransport transport;
+  /** Circuit breaker tracking the hosts that are down. */
+  private final CircuitBreaker circuitBreaker;
+  /** Executor requests failing fast are delivered on. null to deliver them on a background thread. */
+  private final Executor callbackExecutor;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new transport delivering requests failing fast on a background thread.
+   *
+   * @param transport      Transport sending the requests.
+   * @param circuitBreaker Circuit breaker tracking the hosts that are down.
+   */
+  public RetryingTransport(@NonNull HttpTransport transport, @NonNull CircuitBreaker circuitBreaker) {
+    this(transport, circuitBreaker, null);
+  }
+
+  /**
+   * Create a new transport.
+   *
+   * @param transport        Transport sending the requests.
+   * @param circuitBreaker   Circuit breaker tracking the hosts that are down.
+   * @param callbackExecutor Executor requests failing fast are delivered on. Should match the thread
+   *                         the transport delivers its own callbacks on. null to use a background thread.
+   */
+  public RetryingTransport(@NonNull HttpTransport transport, @NonNull CircuitBreaker circuitBreaker,
+                           @Nullable Executor callbackExecutor) {
+    this.transport = transport;
+    this.circuitBreaker = circuitBreaker;
+    this.callbackExecutor = callbackExecutor;
+  }
+  //endregion
+
+  //region HttpTransport methods
+  @Override
+  public <T> T execute(HttpRequest request, ResponseParser<T> parser) throws IOException {
+    if (!request.getRetryOnFailure()) {
+      return transport.execute(request, parser);
+    }
+
+    for (int attempt = 1; ; attempt++) {
+      if (circuitBreaker.isOpen(request.getUrl())) {
+        throw new CircuitOpenException(HostScheduler.getHost(request.getUrl()));
+      }
+      final RetryParser<T> retryParser = new RetryParser<>(parser);
+      try {
+        final T result = transport.execute(request, retryParser);
+        circuitBreaker.onSuccess(request.getUrl());
+        return result;
+      } catch (IOException e) {
+        if (!onFailure(request, retryParser, e, attempt)) {
+          throw e;
+        }
+      }
+
+      try {
+        Thread.sleep(getRetryDelay(attempt));
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  @Override
+  public <T> HttpCall enqueue(HttpRequest request, ResponseParser<T> parser, Callback<T> callback) {
+    if (!request.getRetryOnFailure()) {
+      return transport.enqueue(request, parser, callback);
+    } else if (circuitBreaker.isOpen(request.getUrl())) {
+      final RetryCall<T> call = new RetryCall<>(request, parser, callback);
+      call.fail(new CircuitOpenException(HostScheduler.getHost(request.getUrl())));
+      return call;
+    }
+
+    final RetryCall<T> call = new RetryCall<>(request, parser, callback);
+    call.send(1);
+    return call;
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Record a failed attempt with the {@link CircuitBreaker}, and decide whether it should be retried.
+   *
+   * @param request Failed request.
+   * @param parser  Parser of the failed attempt.
+   * @param e       Error.
+   * @param attempt Number of the failed attempt, starting at 1.
+   * @return True if the request should be sent again.
+   */
+  private boolean onFailure(HttpRequest request, RetryParser<?> parser, IOException e, int attempt) {
+    final int code = parser.code;
+    if (parser.parsing) {
+      // The host responded, but the response could not be parsed.
+      circuitBreaker.onSuccess(request.getUrl());
+      return false;
+    } else if (code == 0 && e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+      // Cancelled.
+      return false;
+    } else if (code == 0 || code >= 500) {
+      circuitBreaker.onFailure(request, transport);
+    }
+    return attempt < MAX_ATTEMPTS && !circuitBreaker.isOpen(request.getUrl());
+  }
+
+  /**
+   * Get the delay before retrying a request.
+   *
+   * @param attempt Number of the failed attempt, starting at 1.
+   * @return Random delay, in milliseconds, with an upper bound doubling with each attempt.
+   */
+  private static long getRetryDelay(int attempt) {
+    final long maxDelay = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << (attempt - 1));
+    synchronized (random) {
+      return (long) (random.nextDouble() * maxDelay);
+    }
+  }
+
+  /**
+   * Check if a response status code marks a transient failure.
+   *
+   * @param code HTTP status code.
+   * @return True for request timeouts, throttled requests and server errors.
+   */
+  private static boolean isRetryableStatus(int code) {
+    return code == 408 || code == 429 || code >= 500;
+  }
+  //endregion
+
+  //region Inner classes
+  /**
+   * Fails responses with a transient error status before they reach the parser, so the request can
+   * be retried.
+   *
+   * @param <T> Type of the parsed value.
+   */
+  private static class RetryParser<T> implements ResponseParser<T> {
+    /** Parser reading the response. */
+    private final ResponseParser<T> parser;
+    /** Status code of the response. 0 if none was received. */
+    private volatile int code = 0;
+    /** True once the response was handed to {@link #parser}. */
+    private volatile boolean parsing = false;
+
+    public RetryParser(ResponseParser<T> parser) {
+      this.parser = parser;
+    }
+
+    @Override
+    public T parse(HttpResponse response) throws Exception {
+      code = response.getCode();
+      if (isRetryableStatus(code)) {
+        throw new HttpStatusException(code);
+      }
+      parsing = true;
+      return parser.parse(response);
+    }
+  }
+
+  /**
+   * Request sent in the background, possibly several times.
+   *
+   * @param <T> Type of the parsed value.
+   */
+  private class RetryCall<T> implements HttpCall {
+    /** Request to send. */
+    private final HttpRequest request;
+    /** Parser reading the response. */
+    private final ResponseParser<T> parser;
+    /** Callback receiving the result of the last attempt. */
+    private final Callback<T> callback;
+    /** Call of the current attempt. */
+    private HttpCall call;
+    /** Retry waiting for its delay. */
+    private ScheduledFuture<?> retry;
+    /** True if the request was cancelled. */
+    private boolean cancelled;
+
+    public RetryCall(HttpRequest request, ResponseParser<T> parser, Callback<T> callback) {
+      this.request = request;
+      this.parser = parser;
+      this.callback = callback;
+    }
+
+    /**
+     * Send the request.
+     *
+     * @param attempt Number of the attempt, starting at 1.
+     */
+    private void send(final int attempt) {
+      final RetryParser<T> retryParser = new RetryParser<>(parser);
+      final HttpCall call = transport.enqueue(request, retryParser, new Callback<T>() {
+        @Override
+        public void onSuccess(T result) {
+          circuitBreaker.onSuccess(request.getUrl());
+          callback.onSuccess(result);
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+          if (RetryingTransport.this.onFailure(request, retryParser, e, attempt)) {
+            scheduleRetry(attempt + 1);
+          } else {
+            callback.onFailure(e);
+          }
+        }
+      });
+
+      final boolean cancelCall;
+      synchronized (this) {
+        this.call = call;
+        cancelCall = cancelled;
+      }
+      if (cancelCall) {
+        call.cancel();
+      }
+    }
+
+    /**
+     * Fail the request without sending it. The error is delivered asynchronously, like the errors of
+     * requests that were sent, so callers don't have to expect their callback to run re-entrantly.
+     *
+     * @param e Error.
+     */
+    private void fail(final IOException e) {
+      final Runnable failure = new Runnable() {
+        @Override
+        public void run() {
+          if (!isCancelled()) {
+            callback.onFailure(e);
+          }
+        }
+      };
+      if (callbackExecutor != null) {
+        callbackExecutor.execute(failure);
+      } else {
+        timer.execute(failure);
+      }
+    }
+
+    /**
+     * Send the request again after a random delay.
+     *
+     * @param attempt Number of the attempt, starting at 2.
+     */
+    private synchronized void scheduleRetry(final int attempt) {
+      if (cancelled) {
+        return;
+      }
+      retry = timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (RetryCall.this) {
+            if (cancelled) {
+              return;
+            }
+          }
+          send(attempt);
+        }
+      }, getRetryDelay(attempt - 1), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void cancel() {
+      final HttpCall call;
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        cancelled = true;
+        call = this.call;
+        if (retry != null) {
+          retry.cancel(false);
+        }
+      }
+      if (call != null) {
+        call.cancel();
+      }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+  }
+  //endregion
+}
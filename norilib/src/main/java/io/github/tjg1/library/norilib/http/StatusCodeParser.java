@@ -0,0 +1,15 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+/** Returns the status code of a response, without downloading its body. */
+public class StatusCodeParser implements ResponseParser<Integer> {
+  @Override
+  public Integer parse(HttpResponse response) {
+    return response.getCode();
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import java.io.InputStream;
+
+/**
+ * {@link ResponseParser} that parses the response body while it is being downloaded, instead of
+ * buffering the whole body into a String first.
+ *
+ * @param <T> Type of the parsed value.
+ */
+public abstract class StreamingParser<T> implements ResponseParser<T> {
+  /**
+   * Parse the response. Called on a worker thread.
+   *
+   * @param inputStream Response body. Blocks until more data is received.
+   * @return Parsed value.
+   * @throws Exception Response could not be downloaded or parsed.
+   */
+  protected abstract T parse(InputStream inputStream) throws Exception;
+
+  @Override
+  public T parse(HttpResponse response) throws Exception {
+    return parse(response.getBody());
+  }
+}
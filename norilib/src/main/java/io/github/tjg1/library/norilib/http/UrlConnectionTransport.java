@@ -0,0 +1,240 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.http;
+
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * {@link HttpTransport} sending requests through {@link HttpURLConnection}. Doesn't need an Android
+ * context, so the clients can be used on a plain JVM, e.g. in tests and command line tools.
+ * <p>
+ * Each request blocks a thread from a shared pool while the response is parsed. Callbacks are
+ * delivered on that thread, unless a callback {@link Executor} is given.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+  /** Timeout used for requests that don't set their own, in milliseconds. */
+  private static final int DEFAULT_TIMEOUT = 30000;
+
+  /** Threads sending requests in the background. */
+  private static final ExecutorService requestExecutor = Executors.newCachedThreadPool();
+
+  /** Executor callbacks are delivered on. null to deliver them on the request thread. */
+  private final Executor callbackExecutor;
+
+  /** Create a new transport delivering callbacks on the request thread. */
+  public UrlConnectionTransport() {
+    this(null);
+  }
+
+  /**
+   * Create a new transport.
+   *
+   * @param callbackExecutor Executor callbacks are delivered on. null to deliver them on the request thread.
+   */
+  public UrlConnectionTransport(@Nullable Executor callbackExecutor) {
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  //region HttpTransport methods
+  @Override
+  public <T> T execute(HttpRequest request, ResponseParser<T> parser) throws IOException {
+    return execute(request, parser, null);
+  }
+
+  @Override
+  public <T> HttpCall enqueue(final HttpRequest request, final ResponseParser<T> parser, final Callback<T> callback) {
+    final UrlConnectionCall call = new UrlConnectionCall();
+    call.future = requestExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          deliverSuccess(call, callback, execute(request, parser, call));
+        } catch (IOException e) {
+          deliverFailure(call, callback, e);
+        }
+      }
+    });
+    return call;
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Send a request and parse the response on the current thread.
+   *
+   * @param request Request to send.
+   * @param parser  Parser reading the response.
+   * @param call    Call the connection is attached to, so it can be cancelled. (optional)
+   * @param <T>     Type of the parsed value.
+   * @return Parsed value.
+   * @throws IOException Request could not be sent, or the response could not be parsed.
+   */
+  private <T> T execute(HttpRequest request, ResponseParser<T> parser, @Nullable UrlConnectionCall call)
+      throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+    if (call != null && !call.setConnection(connection)) {
+      throw new InterruptedIOException("Request cancelled.");
+    }
+
+    InputStream body = null;
+    try {
+      final int timeout = request.getTimeout() > 0 ? request.getTimeout() : DEFAULT_TIMEOUT;
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      connection.setInstanceFollowRedirects(request.getFollowRedirects());
+      connection.setUseCaches(request.getUseCache());
+      for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+      // Apply credentials registered for the endpoint, as ion does through its middleware.
+      for (Map.Entry<String, String> header : EndpointHeaders.getHeaders(request.getUrl()).entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+
+      final int code = connection.getResponseCode();
+      body = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+      final InputStream responseBody = body != null ? body : new ByteArrayInputStream(new byte[0]);
+
+      return parser.parse(new HttpResponse() {
+        @Override
+        public int getCode() {
+          return code;
+        }
+
+        @Override
+        public String getHeader(String name) {
+          return connection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() {
+          return responseBody;
+        }
+      });
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      // Normalise parser exceptions to IOException.
+      throw new IOException(e);
+    } finally {
+      if (body != null) {
+        try {
+          body.close();
+        } catch (IOException ignored) {
+        }
+      }
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Deliver a parsed value to the callback, unless the call was cancelled.
+   *
+   * @param call     Call.
+   * @param callback Callback.
+   * @param result   Parsed value.
+   * @param <T>      Type of the parsed value.
+   */
+  private <T> void deliverSuccess(final UrlConnectionCall call, final Callback<T> callback, final T result) {
+    deliver(new Runnable() {
+      @Override
+      public void run() {
+        if (!call.isCancelled()) {
+          callback.onSuccess(result);
+        }
+      }
+    });
+  }
+
+  /**
+   * Deliver an error to the callback, unless the call was cancelled.
+   *
+   * @param call     Call.
+   * @param callback Callback.
+   * @param e        Error.
+   * @param <T>      Type of the parsed value.
+   */
+  private <T> void deliverFailure(final UrlConnectionCall call, final Callback<T> callback, final IOException e) {
+    deliver(new Runnable() {
+      @Override
+      public void run() {
+        if (!call.isCancelled()) {
+          callback.onFailure(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Run a callback on the {@link #callbackExecutor}, or on the current thread.
+   *
+   * @param runnable Callback.
+   */
+  private void deliver(Runnable runnable) {
+    if (callbackExecutor != null) {
+      callbackExecutor.execute(runnable);
+    } else {
+      runnable.run();
+    }
+  }
+  //endregion
+
+  //region Inner classes
+  /** Request sent in the background. Cancelling it disconnects the connection. */
+  private static class UrlConnectionCall implements HttpCall {
+    /** Task sending the request. */
+    private volatile Future<?> future;
+    /** Connection of the request, once opened. */
+    private HttpURLConnection connection;
+    /** True if the request was cancelled. */
+    private boolean cancelled;
+
+    /**
+     * Attach the opened connection.
+     *
+     * @param connection Connection.
+     * @return False if the call was already cancelled.
+     */
+    private synchronized boolean setConnection(HttpURLConnection connection) {
+      this.connection = connection;
+      return !cancelled;
+    }
+
+    @Override
+    public synchronized void cancel() {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      if (future != null) {
+        future.cancel(true);
+      }
+      if (connection != null) {
+        // Unblocks reads in progress.
+        connection.disconnect();
+      }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+  }
+  //endregion
+}
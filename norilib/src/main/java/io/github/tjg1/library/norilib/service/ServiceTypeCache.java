@@ -0,0 +1,164 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.service;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import java.util.Locale;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * Persistent cache of the API types detected by {@link ServiceTypeDetectionService}, keyed by
+ * host, port and path, so detecting the same service again doesn't hit the network.
+ * Only successful detections are cached, and entries expire after {@link #TTL}.
+ */
+public class ServiceTypeCache extends SQLiteOpenHelper {
+
+  //region SQLite Constants
+  /** Filename of the underlying SQLite database. */
+  private static final String DATABASE_NAME = "service_type_cache.db";
+  /** Detected service table name. */
+  private static final String TABLE_NAME = "service_types";
+  /** Host, port and path of the service (primary key) column. */
+  private static final String COLUMN_HOST = "host";
+  /** API Type ID column. */
+  private static final String COLUMN_TYPE = "type";
+  /** API endpoint URL column. */
+  private static final String COLUMN_ENDPOINT_URL = "endpoint_url";
+  /** Detection time column, in milliseconds since epoch. */
+  private static final String COLUMN_DETECTED = "detected";
+  /** Database schema version. */
+  private static final int SCHEMA_VERSION = 1;
+  //endregion
+
+  //region Constants
+  /** Time detected API types are cached for, in milliseconds. (7 days) */
+  private static final long TTL = 7L * 24 * 60 * 60 * 1000;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new service type cache access helper.
+   *
+   * @param context Android context.
+   */
+  public ServiceTypeCache(Context context) {
+    super(context, DATABASE_NAME, null, SCHEMA_VERSION);
+  }
+  //endregion
+
+  //region SQLiteOpenHelper methods
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    // SQL query used to create the database schema.
+    String createSQL = String.format(Locale.US,
+        "CREATE TABLE %s (%s TEXT PRIMARY KEY, %s INTEGER NOT NULL, %s TEXT NOT NULL, %s INTEGER NOT NULL);",
+        TABLE_NAME, COLUMN_HOST, COLUMN_TYPE, COLUMN_ENDPOINT_URL, COLUMN_DETECTED);
+    db.execSQL(createSQL);
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // Cached data can always be detected again.
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+    onCreate(db);
+  }
+  //endregion
+
+  //region Database queries
+  /**
+   * Get the cached detection result for a service.
+   *
+   * @param uri URL of the service.
+   * @return Cached result, or null if the service wasn't detected or the entry expired.
+   */
+  @Nullable
+  public Entry get(Uri uri) {
+    final SQLiteDatabase db = getReadableDatabase();
+    final Cursor c = db.query(TABLE_NAME, null, COLUMN_HOST + " = ? AND " + COLUMN_DETECTED + " > ?",
+        new String[]{getHostKey(uri), Long.toString(System.currentTimeMillis() - TTL)}, null, null, null);
+
+    Entry entry = null;
+    if (c.moveToNext()) {
+      final int apiType = c.getInt(c.getColumnIndex(COLUMN_TYPE));
+      if (apiType >= 0 && apiType < SearchClient.Settings.APIType.values().length) {
+        entry = new Entry(SearchClient.Settings.APIType.values()[apiType],
+            c.getString(c.getColumnIndex(COLUMN_ENDPOINT_URL)));
+      }
+    }
+
+    c.close();
+    db.close();
+    return entry;
+  }
+
+  /**
+   * Cache the detection result for a service, replacing the previous entry.
+   *
+   * @param uri         URL of the service, as entered by the user.
+   * @param apiType     Detected API type.
+   * @param endpointURL Detected endpoint URL.
+   */
+  public void put(Uri uri, SearchClient.Settings.APIType apiType, String endpointURL) {
+    final ContentValues contentValues = new ContentValues();
+    contentValues.put(COLUMN_HOST, getHostKey(uri));
+    contentValues.put(COLUMN_TYPE, apiType.ordinal());
+    contentValues.put(COLUMN_ENDPOINT_URL, endpointURL);
+    contentValues.put(COLUMN_DETECTED, System.currentTimeMillis());
+
+    final SQLiteDatabase db = getWritableDatabase();
+    db.insertWithOnConflict(TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+    // Drop expired entries.
+    db.delete(TABLE_NAME, COLUMN_DETECTED + " <= ?",
+        new String[]{Long.toString(System.currentTimeMillis() - TTL)});
+    db.close();
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Get the key a service is cached under. The URI scheme is ignored, since detection tries all
+   * supported schemes.
+   *
+   * @param uri URL of the service.
+   * @return Host, port and path of the service.
+   */
+  private static String getHostKey(Uri uri) {
+    final String path = uri.getPath() != null ? uri.getPath() : "";
+    return uri.getHost().toLowerCase(Locale.US) + ":" + uri.getPort()
+        + (path.endsWith("/") ? path.substring(0, path.length() - 1) : path);
+  }
+  //endregion
+
+  //region Inner classes
+  /** Cached detection result. */
+  public static class Entry {
+    /** Detected API type. */
+    public final SearchClient.Settings.APIType apiType;
+    /** Detected endpoint URL. */
+    public final String endpointURL;
+
+    /**
+     * Create a new cache entry.
+     *
+     * @param apiType     Detected API type.
+     * @param endpointURL Detected endpoint URL.
+     */
+    public Entry(SearchClient.Settings.APIType apiType, String endpointURL) {
+      this.apiType = apiType;
+      this.endpointURL = endpointURL;
+    }
+  }
+  //endregion
+}
@@ -9,8 +9,22 @@ package io.github.tjg1.library.norilib.service;
 import android.app.IntentService;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import io.github.tjg1.library.norilib.clients.Danbooru;
 import io.github.tjg1.library.norilib.clients.DanbooruLegacy;
 import io.github.tjg1.library.norilib.clients.E621;
@@ -20,7 +34,10 @@ import io.github.tjg1.library.norilib.clients.Gelbooru;
 import io.github.tjg1.library.norilib.clients.HydrusApi;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 import io.github.tjg1.library.norilib.clients.Shimmie;
-import io.github.tjg1.library.norilib.clients.HydrusApi;
+import io.github.tjg1.library.norilib.http.HttpRequest;
+import io.github.tjg1.library.norilib.http.HttpResponse;
+import io.github.tjg1.library.norilib.http.HttpTransports;
+import io.github.tjg1.library.norilib.http.ResponseParser;
 
 /** Service that detects the {@link io.github.tjg1.library.norilib.clients.SearchClient} API type for given URL. */
 public class ServiceTypeDetectionService extends IntentService {
@@ -47,6 +64,15 @@ public class ServiceTypeDetectionService extends IntentService {
   public static final String RESULT_CODE = "io.github.tjg1.library.norilib.service.ServiceTypeDetectionService.resultCode";
   /** Parcel ID used to send the {@link io.github.tjg1.library.norilib.clients.SearchClient.Settings.APIType#ordinal()} value back to the {@link android.content.BroadcastReceiver}. */
   public static final String API_TYPE = "io.github.tjg1.library.norilib.clients.SearchClient.Settings.APIType.ordinal";
+  /** Parcel ID of the {@link SearchClient.Settings.APIType#ordinal()} values of the probes, in priority order. */
+  public static final String PROBE_API_TYPES = "io.github.tjg1.library.norilib.service.ServiceTypeDetectionService.probeApiTypes";
+  /** Parcel ID of the URI schemes of the probes, in the same order as {@link #PROBE_API_TYPES}. */
+  public static final String PROBE_URI_SCHEMES = "io.github.tjg1.library.norilib.service.ServiceTypeDetectionService.probeUriSchemes";
+  /**
+   * Parcel ID of the time each probe took, in milliseconds, in the same order as {@link #PROBE_API_TYPES}.
+   * -1 for probes cancelled before they completed.
+   */
+  public static final String PROBE_LATENCIES = "io.github.tjg1.library.norilib.service.ServiceTypeDetectionService.probeLatencies";
   //endregion
 
   //region Constants (Service detection settings)
@@ -57,6 +83,31 @@ public class ServiceTypeDetectionService extends IntentService {
   /** Time to wait for HTTPS requests to complete. */
   private static final int REQUEST_TIMEOUT_TLS = 5000; // Compromise. Not all sites support TLS,
                                                        // so we wait longer for SSL checks to complete.
+  /**
+   * API types probed for each URI scheme, in priority order. Some servers implement more than one
+   * API (e.g. Danbooru 2.x still serves the 1.x API), so the first API in this list is preferred.
+   */
+  private static final SearchClient.Settings.APIType[] PROBE_API_TYPES_ORDER = {
+      SearchClient.Settings.APIType.HYDRUS,
+      SearchClient.Settings.APIType.DANBOARD,
+      SearchClient.Settings.APIType.DANBOARD_LEGACY,
+      SearchClient.Settings.APIType.GELBOARD,
+      SearchClient.Settings.APIType.SHIMMIE
+  };
+  /** Number of characters of the front page read to guess the API type. */
+  private static final int FINGERPRINT_MAX_LENGTH = 64 * 1024;
+  /**
+   * Markers identifying the API type from the front page of a site, checked in order.
+   * Some sites link to others, so markers of less specific APIs are checked last.
+   */
+  private static final String[] FINGERPRINT_MARKERS = {"shimmie", "moebooru", "gelbooru", "danbooru"};
+  /** API types identified by each of the {@link #FINGERPRINT_MARKERS}. */
+  private static final SearchClient.Settings.APIType[] FINGERPRINT_API_TYPES = {
+      SearchClient.Settings.APIType.SHIMMIE,
+      SearchClient.Settings.APIType.DANBOARD_LEGACY,
+      SearchClient.Settings.APIType.GELBOARD,
+      SearchClient.Settings.APIType.DANBOARD
+  };
   //endregion
 
   //region Constructors
@@ -98,46 +149,177 @@ public class ServiceTypeDetectionService extends IntentService {
       return;
     }
 
-    // Iterate over supported URI schemes for given URL.
-    for (String uriScheme : URI_SCHEMES) {
-      final Uri baseUri = new Uri.Builder().scheme(uriScheme).encodedAuthority(uri.getHost() + ":" + uri.getPort())
-          .path(uri.getPath()).build();
-      final int timeout = "https".equals(uriScheme) ? REQUEST_TIMEOUT_TLS : REQUEST_TIMEOUT;
-
-      apiEndpoint = HydrusApi.detectService(this, baseUri, timeout);
-      if (apiEndpoint != null) {
-        sendBroadcast(RESULT_OK, apiEndpoint, SearchClient.Settings.APIType.HYDRUS);
-        System.out.println(apiEndpoint);
-        return;
+    // Check services detected before.
+    final ServiceTypeCache serviceTypeCache = new ServiceTypeCache(this);
+    final ServiceTypeCache.Entry cacheEntry = serviceTypeCache.get(uri);
+    if (cacheEntry != null) {
+      sendBroadcast(RESULT_OK, cacheEntry.endpointURL, cacheEntry.apiType);
+      return;
+    }
+
+    // Guess the API from the front page of the site and confirm the guess with a single probe.
+    List<Probe> probes = new ArrayList<>();
+    Probe detectedProbe = fingerprintService(uri, probes);
+
+    if (detectedProbe == null) {
+      // Probe all supported APIs over all URI schemes at the same time.
+      probes = new ArrayList<>(URI_SCHEMES.length * PROBE_API_TYPES_ORDER.length);
+      for (String uriScheme : URI_SCHEMES) {
+        final Uri baseUri = getBaseUri(uri, uriScheme);
+        for (SearchClient.Settings.APIType apiType : PROBE_API_TYPES_ORDER) {
+          probes.add(new Probe(apiType, uriScheme, baseUri, getTimeout(uriScheme)));
+        }
       }
+      detectedProbe = runProbes(probes);
+    }
 
-      apiEndpoint = Danbooru.detectService(this, baseUri, timeout);
-      if (apiEndpoint != null) {
-        sendBroadcast(RESULT_OK, apiEndpoint, SearchClient.Settings.APIType.DANBOARD);
-        return;
+    if (detectedProbe != null) {
+      serviceTypeCache.put(uri, detectedProbe.apiType, detectedProbe.apiEndpoint);
+      sendBroadcast(RESULT_OK, detectedProbe.apiEndpoint, detectedProbe.apiType, probes);
+    } else {
+      // No probe found an API endpoint. Send error code to the BroadcastReceiver.
+      sendBroadcast(RESULT_FAIL_NO_API, null, null, probes);
+    }
+  }
+  //endregion
+
+  //region Fingerprinting APIs
+  /**
+   * Guess the API type from the response headers and body of the front page of a site.
+   *
+   * @param serverHeader Value of the Server or Hydrus-Server response header. Can be null.
+   * @param body         Response body. Can be null.
+   * @return Guessed API type. Null if the API type couldn't be guessed.
+   */
+  @Nullable
+  public static SearchClient.Settings.APIType fingerprint(@Nullable String serverHeader, @Nullable String body) {
+    if (serverHeader != null && serverHeader.toLowerCase(Locale.US).contains("hydrus")) {
+      return SearchClient.Settings.APIType.HYDRUS;
+    }
+    if (body != null) {
+      final String lowerCaseBody = body.toLowerCase(Locale.US);
+      for (int i = 0; i < FINGERPRINT_MARKERS.length; i++) {
+        if (lowerCaseBody.contains(FINGERPRINT_MARKERS[i])) {
+          return FINGERPRINT_API_TYPES[i];
+        }
       }
+    }
+    return null;
+  }
 
-      apiEndpoint = DanbooruLegacy.detectService(this, baseUri, timeout);
-      if (apiEndpoint != null) {
-        sendBroadcast(RESULT_OK, apiEndpoint, SearchClient.Settings.APIType.DANBOARD_LEGACY);
-        return;
+  /**
+   * Fetch the front page of a site, guess its API type and confirm the guess with a single probe.
+   *
+   * @param uri    URL of the site.
+   * @param probes List the confirming probe is added to.
+   * @return Confirming probe, if the API was detected. Null if the API needs to be probed for.
+   */
+  @Nullable
+  private Probe fingerprintService(Uri uri, List<Probe> probes) {
+    for (String uriScheme : URI_SCHEMES) {
+      final Uri baseUri = getBaseUri(uri, uriScheme);
+      final HttpRequest request = new HttpRequest(baseUri.toString())
+          .setTimeout(getTimeout(uriScheme))
+          .userAgent(SearchClient.USER_AGENT)
+          .noCache();
+      final SearchClient.Settings.APIType apiType;
+      try {
+        apiType = HttpTransports.forContext(this).execute(request, new FingerprintParser());
+      } catch (IOException e) {
+        // Try the next URI scheme.
+        continue;
       }
 
-      apiEndpoint = Gelbooru.detectService(this, baseUri, timeout);
-      if (apiEndpoint != null) {
-        sendBroadcast(RESULT_OK, apiEndpoint, SearchClient.Settings.APIType.GELBOARD);
-        return;
+      if (apiType == null) {
+        return null;
       }
+      final Probe probe = new Probe(apiType, uriScheme, baseUri, getTimeout(uriScheme)).call();
+      probes.add(probe);
+      return probe.apiEndpoint != null ? probe : null;
+    }
+    return null;
+  }
+  //endregion
+
+  //region Probing APIs
+  /**
+   * Run probes concurrently and return the highest priority probe that detected an API.
+   * <p>
+   * A detected API is only accepted once all probes with a higher priority have completed, so the
+   * result is the same as if the probes were run one after another. The remaining probes are
+   * cancelled as soon as the result is known.
+   *
+   * @param probes Probes to run, in priority order.
+   * @return Highest priority probe that detected an API. Null if no API was detected.
+   */
+  @Nullable
+  private static Probe runProbes(List<Probe> probes) {
+    final ExecutorService executor = Executors.newFixedThreadPool(probes.size());
+    final CompletionService<Probe> completionService = new ExecutorCompletionService<>(executor);
+    for (Probe probe : probes) {
+      completionService.submit(probe);
+    }
 
-      apiEndpoint = Shimmie.detectService(this, baseUri, timeout);
-      if (apiEndpoint != null) {
-        sendBroadcast(RESULT_OK, apiEndpoint, SearchClient.Settings.APIType.SHIMMIE);
-        return;
+    Probe detectedProbe = null;
+    try {
+      for (int completed = 0; completed < probes.size(); completed++) {
+        final Probe probe = completionService.take().get();
+        if (probe.apiEndpoint != null && (detectedProbe == null || probes.indexOf(probe) < probes.indexOf(detectedProbe))) {
+          detectedProbe = probe;
+        }
+        if (detectedProbe != null && isCompletedBefore(probes, probes.indexOf(detectedProbe))) {
+          break;
+        }
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ignored) {
+      // Probes don't throw exceptions.
+    } finally {
+      // Interrupt requests still in progress.
+      executor.shutdownNow();
     }
+    return detectedProbe;
+  }
 
-    // End of the loop was reached without finding an API endpoint. Send error code to the BroadcastReceiver.
-    sendBroadcast(RESULT_FAIL_NO_API, null, null);
+  /**
+   * Check if all probes with a priority higher than the given one have completed.
+   *
+   * @param probes   Probes, in priority order.
+   * @param priority Index of the probe in the list.
+   * @return True if all probes before the given index have completed.
+   */
+  private static boolean isCompletedBefore(List<Probe> probes, int priority) {
+    for (int i = 0; i < priority; i++) {
+      if (probes.get(i).latency < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Get the base URL of a service for an URI scheme.
+   *
+   * @param uri       URL of the service.
+   * @param uriScheme URI scheme to use.
+   * @return Base URL.
+   */
+  private static Uri getBaseUri(Uri uri, String uriScheme) {
+    return new Uri.Builder().scheme(uriScheme).encodedAuthority(uri.getHost() + ":" + uri.getPort())
+        .path(uri.getPath()).build();
+  }
+
+  /**
+   * Get the request timeout for an URI scheme.
+   *
+   * @param uriScheme URI scheme.
+   * @return Timeout, in milliseconds.
+   */
+  private static int getTimeout(String uriScheme) {
+    return "https".equals(uriScheme) ? REQUEST_TIMEOUT_TLS : REQUEST_TIMEOUT;
   }
   //endregion
 
@@ -151,6 +333,19 @@ public class ServiceTypeDetectionService extends IntentService {
    **/
   private void sendBroadcast(int resultCode, @Nullable String endpointURL,
                              @Nullable SearchClient.Settings.APIType apiType) {
+    sendBroadcast(resultCode, endpointURL, apiType, null);
+  }
+
+  /**
+   * Send result broadcast back to the listening activity, including the time each probe took.
+   *
+   * @param resultCode  Result code.
+   * @param endpointURL Detected endpoint URL. Can be null.
+   * @param apiType     Detected {@link SearchClient.Settings.APIType}.
+   * @param probes      Probes run to detect the API. Can be null.
+   **/
+  private void sendBroadcast(int resultCode, @Nullable String endpointURL,
+                             @Nullable SearchClient.Settings.APIType apiType, @Nullable List<Probe> probes) {
     final Intent broadcastIntent = new Intent(ACTION_DONE);
     broadcastIntent.putExtra(RESULT_CODE, resultCode);
 
@@ -160,8 +355,108 @@ public class ServiceTypeDetectionService extends IntentService {
     if (apiType != null) {
       broadcastIntent.putExtra(API_TYPE, apiType.ordinal());
     }
+    if (probes != null) {
+      final int[] probeApiTypes = new int[probes.size()];
+      final String[] probeUriSchemes = new String[probes.size()];
+      final long[] probeLatencies = new long[probes.size()];
+      for (int i = 0; i < probes.size(); i++) {
+        probeApiTypes[i] = probes.get(i).apiType.ordinal();
+        probeUriSchemes[i] = probes.get(i).uriScheme;
+        probeLatencies[i] = probes.get(i).latency;
+      }
+      broadcastIntent.putExtra(PROBE_API_TYPES, probeApiTypes);
+      broadcastIntent.putExtra(PROBE_URI_SCHEMES, probeUriSchemes);
+      broadcastIntent.putExtra(PROBE_LATENCIES, probeLatencies);
+    }
 
     sendBroadcast(broadcastIntent);
   }
   //endregion
+
+  //region Inner classes
+  /** Guesses the API type from the headers and the beginning of the front page of a site. */
+  private static class FingerprintParser implements ResponseParser<SearchClient.Settings.APIType> {
+    @Override
+    public SearchClient.Settings.APIType parse(HttpResponse response) throws IOException {
+      final String serverHeader = response.getHeader("Hydrus-Server") != null ?
+          response.getHeader("Hydrus-Server") : response.getHeader("Server");
+
+      final Reader reader = new InputStreamReader(response.getBody(), "UTF-8");
+      final char[] buffer = new char[FINGERPRINT_MAX_LENGTH];
+      int length = 0;
+      int count;
+      while (length < buffer.length && (count = reader.read(buffer, length, buffer.length - length)) != -1) {
+        length += count;
+      }
+      return fingerprint(serverHeader, new String(buffer, 0, length));
+    }
+  }
+
+  /** Checks if a single API type is available over a single URI scheme. */
+  private class Probe implements Callable<Probe> {
+    /** API type to detect. */
+    private final SearchClient.Settings.APIType apiType;
+    /** URI scheme used. */
+    private final String uriScheme;
+    /** Base URL of the server. */
+    private final Uri uri;
+    /** Timeout in milliseconds. */
+    private final int timeout;
+    /** Detected endpoint URL. Null if the API wasn't detected. */
+    private volatile String apiEndpoint;
+    /** Time the probe took, in milliseconds. -1 until the probe completes. */
+    private volatile long latency = -1;
+
+    /**
+     * Create a new probe.
+     *
+     * @param apiType   API type to detect.
+     * @param uriScheme URI scheme used.
+     * @param uri       Base URL of the server.
+     * @param timeout   Timeout in milliseconds.
+     */
+    public Probe(SearchClient.Settings.APIType apiType, String uriScheme, Uri uri, int timeout) {
+      this.apiType = apiType;
+      this.uriScheme = uriScheme;
+      this.uri = uri;
+      this.timeout = timeout;
+    }
+
+    @Override
+    public Probe call() {
+      final long startTime = SystemClock.elapsedRealtime();
+      try {
+        apiEndpoint = detectService();
+      } catch (RuntimeException ignored) {
+        // Treat unexpected errors as the API not being available.
+      }
+      latency = SystemClock.elapsedRealtime() - startTime;
+      return this;
+    }
+
+    /**
+     * Run the service detection of the probed API type.
+     *
+     * @return Detected endpoint URL. Null if the API wasn't detected.
+     */
+    @Nullable
+    private String detectService() {
+      final ServiceTypeDetectionService context = ServiceTypeDetectionService.this;
+      switch (apiType) {
+        case HYDRUS:
+          return HydrusApi.detectService(context, uri, timeout);
+        case DANBOARD:
+          return Danbooru.detectService(context, uri, timeout);
+        case DANBOARD_LEGACY:
+          return DanbooruLegacy.detectService(context, uri, timeout);
+        case GELBOARD:
+          return Gelbooru.detectService(context, uri, timeout);
+        case SHIMMIE:
+          return Shimmie.detectService(context, uri, timeout);
+        default:
+          return null;
+      }
+    }
+  }
+  //endregion
 }
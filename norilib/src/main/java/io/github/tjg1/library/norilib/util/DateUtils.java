@@ -0,0 +1,236 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.util;
+
+import java.text.ParseException;
+import java.util.TimeZone;
+
+/**
+ * Decodes the date formats returned by imageboard APIs into milliseconds since the epoch.
+ * <p>
+ * Dates are parsed by hand rather than with {@link java.text.SimpleDateFormat}, which is expensive
+ * to create and not thread-safe. The parsers below can be called from any thread, and don't
+ * allocate any objects, except for exceptions thrown on invalid input and the time zone looked up
+ * for dates without one.
+ */
+public abstract class DateUtils {
+
+  //region Constants
+  /** Three-letter English month abbreviations, used by ctime-style dates. */
+  private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+  /** Milliseconds per second. */
+  private static final long SECOND = 1000L;
+  /** Milliseconds per minute. */
+  private static final long MINUTE = 60 * SECOND;
+  /** Milliseconds per hour. */
+  private static final long HOUR = 60 * MINUTE;
+  /** Milliseconds per day. */
+  private static final long DAY = 24 * HOUR;
+  //endregion
+
+  //region Parsing dates
+  /**
+   * Parse an ISO 8601 date and time, e.g. {@code 2016-02-19T14:53:08.123-05:00}.
+   * <p>
+   * Fractional seconds are truncated to milliseconds. The time zone can be {@code Z} or a numeric
+   * offset with or without colon. The date and time may also be separated by a space instead of
+   * {@code T}, as done by Danbooru 1.x. Dates without a time zone are in the device's local time.
+   *
+   * @param date Date string.
+   * @return Milliseconds since the epoch.
+   * @throws ParseException Invalid date string.
+   */
+  public static long parseIso8601(String date) throws ParseException {
+    final int length = date.length();
+    if (length < 19 || date.charAt(4) != '-' || date.charAt(7) != '-' ||
+        (date.charAt(10) != 'T' && date.charAt(10) != ' ') ||
+        date.charAt(13) != ':' || date.charAt(16) != ':') {
+      throw new ParseException("Invalid ISO 8601 date: " + date, 0);
+    }
+
+    long time = toMillis(parseDigits(date, 0, 4), parseDigits(date, 5, 2), parseDigits(date, 8, 2),
+        parseDigits(date, 11, 2), parseDigits(date, 14, 2), parseDigits(date, 17, 2));
+    int position = 19;
+
+    // Fractional seconds.
+    if (position < length && date.charAt(position) == '.') {
+      int multiplier = 100;
+      position++;
+      while (position < length && isDigit(date.charAt(position))) {
+        time += (date.charAt(position) - '0') * multiplier;
+        multiplier /= 10;
+        position++;
+      }
+    }
+
+    // Time zone.
+    if (position == length) {
+      return time - localOffset(time);
+    } else if (date.charAt(position) == 'Z' && position + 1 == length) {
+      return time;
+    }
+    return time - parseZoneOffset(date, position, length);
+  }
+
+  /**
+   * Parse a Unix timestamp, as returned by Moebooru-based boards.
+   *
+   * @param date Seconds since the epoch.
+   * @return Milliseconds since the epoch.
+   * @throws ParseException Invalid timestamp.
+   */
+  public static long parseUnixTimestamp(String date) throws ParseException {
+    if (date.isEmpty() || date.length() > 18) {
+      throw new ParseException("Invalid Unix timestamp: " + date, 0);
+    }
+    return parseDigits(date, 0, date.length()) * SECOND;
+  }
+
+  /**
+   * Parse a ctime-style date with a numeric time zone, as returned by Gelbooru, e.g.
+   * {@code Fri Feb 19 14:53:08 -0500 2016}. Matches the {@code EEE MMM d HH:mm:ss Z yyyy}
+   * SimpleDateFormat pattern.
+   *
+   * @param date Date string.
+   * @return Milliseconds since the epoch.
+   * @throws ParseException Invalid date string.
+   */
+  public static long parseCtime(String date) throws ParseException {
+    final int length = date.length();
+    // Skip the day of the week.
+    int position = date.indexOf(' ');
+    if (position == -1 || position + 4 >= length) {
+      throw new ParseException("Invalid date: " + date, 0);
+    }
+    position++;
+
+    // Month.
+    int month = 0;
+    for (int i = 0; i < 12; i++) {
+      if (date.regionMatches(true, position, MONTHS, i * 3, 3)) {
+        month = i + 1;
+        break;
+      }
+    }
+    if (month == 0 || date.charAt(position + 3) != ' ') {
+      throw new ParseException("Invalid month: " + date, position);
+    }
+    position += 4;
+
+    // Day of the month. Either one or two digits.
+    final int dayEnd = date.indexOf(' ', position);
+    if (dayEnd == -1 || dayEnd - position < 1 || dayEnd - position > 2 || dayEnd + 9 >= length ||
+        date.charAt(dayEnd + 3) != ':' || date.charAt(dayEnd + 6) != ':' || date.charAt(dayEnd + 9) != ' ') {
+      throw new ParseException("Invalid date: " + date, position);
+    }
+    final int day = (int) parseDigits(date, position, dayEnd - position);
+    final int hour = (int) parseDigits(date, dayEnd + 1, 2);
+    final int minute = (int) parseDigits(date, dayEnd + 4, 2);
+    final int second = (int) parseDigits(date, dayEnd + 7, 2);
+    position = dayEnd + 10;
+
+    // Time zone, followed by the year.
+    final int zoneEnd = date.indexOf(' ', position);
+    if (zoneEnd == -1 || zoneEnd + 1 == length) {
+      throw new ParseException("Invalid date: " + date, position);
+    }
+    final long offset = parseZoneOffset(date, position, zoneEnd);
+    final int year = (int) parseDigits(date, zoneEnd + 1, length - zoneEnd - 1);
+
+    return toMillis(year, month, day, hour, minute, second) - offset;
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Parse a numeric time zone offset: {@code +hh:mm}, {@code +hhmm} or {@code +hh}.
+   *
+   * @param date  Date string.
+   * @param start Index of the sign.
+   * @param end   End of the time zone (exclusive).
+   * @return Offset from UTC in milliseconds.
+   */
+  private static long parseZoneOffset(String date, int start, int end) throws ParseException {
+    final char sign = date.charAt(start);
+    final int length = end - start;
+    if ((sign != '+' && sign != '-') || (length != 3 && length != 5 && length != 6) ||
+        (length == 6 && date.charAt(start + 3) != ':')) {
+      throw new ParseException("Invalid time zone: " + date, start);
+    }
+    final long hours = parseDigits(date, start + 1, 2);
+    final long minutes = length > 3 ? parseDigits(date, end - 2, 2) : 0;
+    final long offset = hours * HOUR + minutes * MINUTE;
+    return sign == '-' ? -offset : offset;
+  }
+
+  /**
+   * Parse a run of decimal digits.
+   *
+   * @param s      String to parse.
+   * @param start  Index of the first digit.
+   * @param length Number of digits.
+   * @return Parsed number.
+   */
+  private static long parseDigits(String s, int start, int length) throws ParseException {
+    long value = 0;
+    for (int i = start; i < start + length; i++) {
+      final char c = s.charAt(i);
+      if (!isDigit(c)) {
+        throw new ParseException("Expected digit: " + s, i);
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /** @return True if the character is an ASCII digit. */
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * Convert a UTC date and time to milliseconds since the epoch.
+   *
+   * @return Milliseconds since the epoch.
+   */
+  private static long toMillis(long year, long month, long day, long hour, long minute, long second)
+      throws ParseException {
+    if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+      throw new ParseException("Date out of range: " + year + "-" + month + "-" + day, 0);
+    }
+    return daysFromCivil(year, month, day) * DAY + hour * HOUR + minute * MINUTE + second * SECOND;
+  }
+
+  /**
+   * Count the days between the epoch and a date in the proleptic Gregorian calendar.
+   * See: (http://howardhinnant.github.io/date_algorithms.html#days_from_civil).
+   *
+   * @return Days since 1970-01-01.
+   */
+  private static long daysFromCivil(long year, long month, long day) {
+    year -= month <= 2 ? 1 : 0;
+    final long era = (year >= 0 ? year : year - 399) / 400;
+    final long yearOfEra = year - era * 400;
+    final long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  /**
+   * Get the offset of the device's time zone from UTC.
+   *
+   * @param localTime Local time, in milliseconds since the epoch.
+   * @return Offset in milliseconds.
+   */
+  private static long localOffset(long localTime) {
+    final TimeZone timeZone = TimeZone.getDefault();
+    // Look up the offset at the approximate UTC time, then correct it once for daylight saving time.
+    final long offset = timeZone.getOffset(localTime - timeZone.getRawOffset());
+    return timeZone.getOffset(localTime - offset);
+  }
+  //endregion
+}